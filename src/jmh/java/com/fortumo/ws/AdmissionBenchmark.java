@@ -0,0 +1,60 @@
+package com.fortumo.ws;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost of the {@link SumService.Limits} on the add path, in the sample mode for the latency percentiles:
+ * <ul>
+ *     <li><tt>none</tt>: no limits, a round ends every 1000 adds.</li>
+ *     <li><tt>timeout</tt>: every add has a deadline, which is cancelled when its round ends every 1000 adds.</li>
+ *     <li><tt>full</tt>: the round is full and never ends, i.e. the steady state of an overload, every add is
+ *     rejected.</li>
+ * </ul>
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dorg.slf4j.simpleLogger.defaultLogLevel=warn")
+@Threads(4)
+@State(Scope.Benchmark)
+public class AdmissionBenchmark {
+
+    @Param({"none", "timeout", "full"})
+    public String limits;
+
+    private SumService service;
+
+    @Setup(Level.Trial)
+    public void createService() {
+        service = new SumService(Summation.DOUBLE, Metrics.disabled(), null, switch (limits) {
+            case "none" -> new SumService.Limits(0, 0, 1_000, 0);
+            case "timeout" -> new SumService.Limits(0, 1_000, 1_000, 0);
+            case "full" -> new SumService.Limits(1_000, 0, 0, 0);
+            default -> throw new IllegalArgumentException("unknown limits=" + limits);
+        });
+    }
+
+    @Benchmark
+    public Object add() {
+        try {
+            return service.add(1);
+        } catch (SumService.OverloadedException e) {
+            return e;
+        }
+    }
+}
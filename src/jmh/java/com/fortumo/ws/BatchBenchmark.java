@@ -0,0 +1,87 @@
+package com.fortumo.ws;
+
+import jakarta.servlet.http.HttpServletResponse;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the number of values per microsecond that {@link SumServlet#doPost} handles when each request carries a
+ * single value, compared to a text or binary batch of {@link #BATCH_SIZE} values. The service is stubbed, so that only
+ * the per-request overhead of the servlet is measured, the HTTP round-trip saved by a batch comes on top.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dorg.slf4j.simpleLogger.defaultLogLevel=warn")
+@State(Scope.Thread)
+public class BatchBenchmark {
+
+    private static final int BATCH_SIZE = 1_000;
+
+    private final SumServlet servlet = new SumServlet() {
+        @Override
+        SumService createService() {
+            return new SumService() {
+                @Override
+                double doAdd(double number) {
+                    return 1234567.125;
+                }
+
+                @Override
+                double doAdd(Batch batch, long key) {
+                    return 1234567.125;
+                }
+            };
+        }
+    };
+
+    private final HttpServletResponse response = ServletFakes.response();
+    private final byte[] text;
+    private final byte[] binary;
+
+    public BatchBenchmark() {
+        StringBuilder sb = new StringBuilder();
+        ByteBuffer buf = ByteBuffer.allocate(BATCH_SIZE * Double.BYTES);
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            double value = 1234.5678 + i;
+            sb.append(value).append('\n');
+            buf.putDouble(value);
+        }
+        text = sb.toString().getBytes(StandardCharsets.ISO_8859_1);
+        binary = buf.array();
+    }
+
+    @Benchmark
+    public HttpServletResponse single() throws IOException {
+        servlet.doPost(ServletFakes.request("1234.5678"), response);
+        return response;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public HttpServletResponse textBatch() throws IOException {
+        servlet.doPost(ServletFakes.request(text, SumServlet.BATCH_PARAM, null), response);
+        return response;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public HttpServletResponse binaryBatch() throws IOException {
+        servlet.doPost(ServletFakes.request(binary, null, SumServlet.BINARY_CONTENT_TYPE), response);
+        return response;
+    }
+}
@@ -0,0 +1,80 @@
+package com.fortumo.ws;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Compares the binary front end (see {@link BinaryServer}) to the HTTP one, both served by an embedded
+ * {@link SumServer} in the async mode over the loopback interface. An operation is a round of a session of its own: a
+ * window of adds followed by an 'end' signal, i.e. <tt>window + 1</tt> messages, so the throughput in messages per
+ * second is the one in operations times <tt>window + 1</tt>. The sample mode gives the percentiles of the round
+ * latency. The same rounds are run by {@link LoadGenerator}.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dorg.slf4j.simpleLogger.defaultLogLevel=warn")
+@State(Scope.Benchmark)
+public class BinaryProtocolBenchmark {
+
+    @Param({"binary", "http"})
+    public String protocol;
+
+    @Param({"1", "64"})
+    public int window;
+
+    private final AtomicInteger sessions = new AtomicInteger();
+    private SumServer server;
+    private int binaryPort;
+
+    @Setup(Level.Trial)
+    public void startServer() throws Exception {
+        binaryPort = LoadGenerator.freePort();
+        server = new SumServer(Map.of("port", "0", "host", "127.0.0.1", "mode", "async",
+                SumServlet.BINARY_PORT_PARAM, Integer.toString(binaryPort)));
+        server.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void stopServer() throws Exception {
+        server.stop();
+    }
+
+    @State(Scope.Thread)
+    public static class Connection {
+        LoadGenerator.Client client;
+
+        @Setup(Level.Trial)
+        public void connect(BinaryProtocolBenchmark benchmark) throws Exception {
+            int port = benchmark.protocol.equals("binary") ? benchmark.binaryPort : benchmark.server.port();
+            client = LoadGenerator.client(benchmark.protocol, "127.0.0.1", port,
+                    "bench-" + benchmark.sessions.incrementAndGet(), benchmark.window);
+        }
+
+        @TearDown(Level.Trial)
+        public void close() throws Exception {
+            client.close();
+        }
+    }
+
+    @Benchmark
+    public int round(Connection connection) throws Exception {
+        return connection.client.round();
+    }
+}
@@ -0,0 +1,62 @@
+package com.fortumo.ws;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.text.DecimalFormat;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the former request parsing and response formatting ({@link BufferedReader#readLine()},
+ * {@link Double#parseDouble(String)} and {@link DecimalFormat}) with the {@link RequestBody} and the
+ * {@link DoubleFormat}. Run with <tt>-prof gc</tt> to see the allocations per operation.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class DoubleFormatBenchmark {
+
+    private final DecimalFormat decimalFormat = new DecimalFormat("0.###");
+    private final byte[] body = "1234.5678\n".getBytes(StandardCharsets.ISO_8859_1);
+    private final ServletFakes.NullOutputStream out = new ServletFakes.NullOutputStream();
+    private double value = 1234567.125;
+
+    @Benchmark
+    public ServletFakes.NullOutputStream formatDecimalFormat() throws IOException {
+        out.write(decimalFormat.format(value).getBytes(StandardCharsets.UTF_8));
+        return out;
+    }
+
+    @Benchmark
+    public ServletFakes.NullOutputStream formatDoubleFormat() throws IOException {
+        DoubleFormat.write(value, out);
+        return out;
+    }
+
+    @Benchmark
+    public double parseReadLine() throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new ByteArrayInputStream(body), StandardCharsets.ISO_8859_1));
+        return Double.parseDouble(reader.readLine());
+    }
+
+    @Benchmark
+    public double parseRequestBody() throws IOException {
+        return RequestBody.readLine(new ByteArrayInputStream(body)).parseDouble();
+    }
+}
@@ -0,0 +1,90 @@
+package com.fortumo.ws;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the latency from the {@link SumService#doEnd()} call until the last waiter of the round is released. The
+ * waiters are asynchronous, as in the async servlet mode, so no thread scheduling is involved. See
+ * {@link ParkedAddersBenchmark} for the waiters blocking on threads.
+ * <p>
+ * The waiters are registered by {@link #REGISTRARS} threads, so they are spread over the groups of the round, which are
+ * released one after the other by the ending thread (<tt>serial</tt>) or by the tree of fork/join tasks
+ * (<tt>parallel</tt>), see {@link Round}.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 20)
+@Fork(value = 1, jvmArgsAppend = "-Dorg.slf4j.simpleLogger.defaultLogLevel=warn")
+@State(Scope.Benchmark)
+public class EndFanOutBenchmark {
+
+    private static final int REGISTRARS = 8;
+
+    @Param({"10", "1000", "10000", "100000"})
+    public int waiters;
+
+    @Param({"serial", "parallel"})
+    public String release;
+
+    private ExecutorService registrars;
+    private SumService service;
+    private CountDownLatch released;
+
+    @Setup(Level.Trial)
+    public void startRegistrars() {
+        registrars = Executors.newFixedThreadPool(REGISTRARS);
+        Round.parallelReleaseClients = release.equals("parallel") ? 0 : Long.MAX_VALUE;
+    }
+
+    @TearDown(Level.Trial)
+    public void stopRegistrars() {
+        registrars.shutdown();
+    }
+
+    @Setup(Level.Invocation)
+    public void registerWaiters() throws InterruptedException, ExecutionException {
+        service = new SumService();
+        released = new CountDownLatch(waiters);
+        List<Future<?>> registrations = new ArrayList<>();
+        for (int r = 0; r < REGISTRARS; r++) {
+            int count = waiters / REGISTRARS + (r < waiters % REGISTRARS ? 1 : 0);
+            registrations.add(registrars.submit(() -> {
+                for (int i = 0; i < count; i++) {
+                    service.add(1).thenRun(released::countDown);
+                }
+            }));
+        }
+        for (Future<?> registration : registrations) {
+            registration.get();
+        }
+    }
+
+    @Benchmark
+    public double endToLastRelease() throws InterruptedException {
+        double sum = service.doEnd();
+        released.await();
+        return sum;
+    }
+}
@@ -0,0 +1,83 @@
+package com.fortumo.ws;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost of a tick of {@link SumEvents} that fans out a changed running sum to 1k to 100k subscribers of a
+ * session, i.e. the work of the event thread per update. The subscribers write to a sink that only counts the bytes.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class EventsBenchmark {
+
+    @Param({"1000", "10000", "100000"})
+    private int subscribers;
+
+    private SumService service;
+    private SumEvents events;
+    private long bytes;
+    private int ticks;
+
+    @Setup(Level.Trial)
+    public void setup() throws InterruptedException {
+        SumServiceRegistry sessions = new SumServiceRegistry(id -> new SumService(), 10, Long.MAX_VALUE);
+        service = sessions.call("s", s -> s);
+        events = new SumEvents(sessions, 0);
+        for (int i = 0; i < subscribers; i++) {
+            events.subscribe("s", new SumEvents.Subscriber(new CountingSink()));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        events.close();
+    }
+
+    @Benchmark
+    public long tick() {
+        if (++ticks % 1024 == 0) {
+            service.end();  // releases the futures of the adds.
+        }
+        service.add(1);
+        events.tick();
+        return bytes;
+    }
+
+    private final class CountingSink implements SumEvents.Sink {
+        @Override
+        public boolean isReady() {
+            return true;
+        }
+
+        @Override
+        public void write(byte[] event) {
+            bytes += event.length;
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package com.fortumo.ws;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures the cost of the idempotency keys on the add path of 4 adders, whose rounds end every 1000 adds:
+ * <ul>
+ *     <li><tt>none</tt>: the adds have no key.</li>
+ *     <li><tt>unique</tt>: every add has a new key, i.e. the cost of claiming it.</li>
+ *     <li><tt>header</tt>: the same, with the key hashed from a UUID header first.</li>
+ *     <li><tt>retried</tt>: every add is sent twice, the second one is answered through the first one. An operation
+ *     is the pair.</li>
+ * </ul>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dorg.slf4j.simpleLogger.defaultLogLevel=warn")
+@Threads(4)
+@State(Scope.Benchmark)
+public class IdempotentAddBenchmark {
+
+    private static final String HEADER = "3f2b8c1e-9d4a-4c6b-8e7f-";
+
+    @Param({"none", "unique", "header", "retried"})
+    public String keys;
+
+    private SumService service;
+
+    private final AtomicLong adders = new AtomicLong();
+
+    @Setup(Level.Trial)
+    public void createService() {
+        service = new SumService(Summation.DOUBLE, Metrics.disabled(), null, new SumService.Limits(0, 0, 1_000, 0));
+    }
+
+    @TearDown(Level.Trial)
+    public void endService() {
+        service.end();
+    }
+
+    /**
+     * The keys of an adder thread, unique across the threads.
+     */
+    @State(Scope.Thread)
+    public static class Adder {
+        private final StringBuilder header = new StringBuilder(HEADER);
+        private long next;
+
+        @Setup(Level.Trial)
+        public void start(IdempotentAddBenchmark benchmark) {
+            next = benchmark.adders.incrementAndGet() << 40;
+        }
+    }
+
+    @Benchmark
+    public CompletableFuture<Double> add(Adder adder) {
+        switch (keys) {
+            case "none":
+                return service.add(1);
+            case "unique":
+                return service.add(1, ++adder.next);
+            case "header":
+                adder.header.setLength(HEADER.length());
+                adder.header.append(Long.toHexString(++adder.next));
+                return service.add(1, IdempotencyKeys.hash(adder.header));
+            case "retried":
+                service.add(1, ++adder.next);
+                return service.add(1, adder.next);
+            default:
+                throw new IllegalArgumentException("unknown keys=" + keys);
+        }
+    }
+}
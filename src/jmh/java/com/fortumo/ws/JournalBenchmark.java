@@ -0,0 +1,84 @@
+package com.fortumo.ws;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Compares the add throughput without a journal, with a {@link Journal.Durability#ASYNC} journal flushed by the
+ * operating system, and with a {@link Journal.Durability#SYNC} journal that forces every add with group commit. Each
+ * adder thread ends the round after every {@link #ROUND_SIZE} adds, so the segment files are created and deleted as
+ * in a real workload.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+@State(Scope.Benchmark)
+public class JournalBenchmark {
+
+    private static final int ROUND_SIZE = 1024;
+
+    @Param({"NONE", "ASYNC", "SYNC"})
+    private String durability;
+
+    private Path dir;
+    private SumService service;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("journal-benchmark");
+        service = durability.equals("NONE")
+                ? new SumService(Summation.DOUBLE)
+                : new SumService(Summation.DOUBLE, Metrics.disabled(),
+                        new Journal(dir, "", Journal.Durability.valueOf(durability)));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        service.end();
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(dir);
+    }
+
+    /**
+     * The number of the adds of a thread.
+     */
+    @State(Scope.Thread)
+    public static class Adds {
+        private int count = 0;
+    }
+
+    @Benchmark
+    public CompletableFuture<Double> add(Adds adds) {
+        CompletableFuture<Double> result = service.add(1);
+        if (++adds.count % ROUND_SIZE == 0) {
+            service.end();
+        }
+        return result;
+    }
+}
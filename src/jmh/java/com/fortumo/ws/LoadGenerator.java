@@ -0,0 +1,245 @@
+package com.fortumo.ws;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.StandardSocketOptions;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A closed-loop load generator of the binary (see {@link BinaryServer}) and the HTTP front ends. Each connection sums
+ * up its own session in rounds: it sends a window of adds followed by an 'end' signal, waits for all the responses and
+ * starts the next round. The messages per second and the percentiles of the round latency are printed at the end.
+ * <p>
+ * Without a <tt>--port</tt>, an embedded {@link SumServer} is started in the async mode with both front ends, e.g.
+ * <pre>
+ * mvn -P benchmark test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=com.fortumo.ws.LoadGenerator \
+ *     -Dexec.args="--protocol=binary --connections=8 --window=64 --seconds=10"
+ * </pre>
+ */
+public class LoadGenerator {
+
+    /**
+     * A connection that runs the rounds of its session.
+     */
+    interface Client extends Closeable {
+        /**
+         * Runs a round and waits for all its responses.
+         * @return the number of the messages sent.
+         * @throws IOException          if a request fails.
+         * @throws InterruptedException if interrupted while waiting for a response.
+         */
+        int round() throws IOException, InterruptedException;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>(Map.of(
+                "protocol", "binary", "host", "127.0.0.1", "connections", "8", "window", "64", "seconds", "10"));
+        options.putAll(SumServer.parse(args));
+        String protocol = options.get("protocol");
+        String host = options.get("host");
+        int connections = Integer.parseInt(options.get("connections"));
+        int window = Integer.parseInt(options.get("window"));
+        long nanos = TimeUnit.SECONDS.toNanos(Long.parseLong(options.get("seconds")));
+
+        SumServer server = null;
+        int port;
+        if (options.containsKey("port")) {
+            port = Integer.parseInt(options.get("port"));
+        } else {
+            int binaryPort = freePort();
+            server = new SumServer(Map.of("port", "0", "host", host, "mode", "async",
+                    SumServlet.BINARY_PORT_PARAM, Integer.toString(binaryPort)));
+            server.start();
+            port = protocol.equals("binary") ? binaryPort : server.port();
+        }
+
+        AtomicLong messages = new AtomicLong();
+        List<long[]> latencies = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+        long deadline = System.nanoTime() + nanos;
+        for (int c = 0; c < connections; c++) {
+            Client client = client(protocol, host, port, "load-" + c, window);
+            long[][] recorded = {new long[1024]};
+            int[] count = {0};
+            Thread thread = new Thread(() -> {
+                try (client) {
+                    while (System.nanoTime() < deadline) {
+                        long start = System.nanoTime();
+                        messages.addAndGet(client.round());
+                        if (count[0] == recorded[0].length) {
+                            recorded[0] = Arrays.copyOf(recorded[0], count[0] * 2);
+                        }
+                        recorded[0][count[0]++] = System.nanoTime() - start;
+                    }
+                } catch (IOException | InterruptedException e) {
+                    throw new IllegalStateException(e);
+                }
+                synchronized (latencies) {
+                    latencies.add(Arrays.copyOf(recorded[0], count[0]));
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long[] all = latencies.stream().flatMapToLong(Arrays::stream).sorted().toArray();
+        System.out.printf("protocol=%s connections=%d window=%d rounds=%d messages/s=%.0f"
+                        + " round latency p50=%dus p99=%dus p99.9=%dus%n",
+                protocol, connections, window, all.length, messages.get() * 1e9 / nanos,
+                percentile(all, 0.5), percentile(all, 0.99), percentile(all, 0.999));
+        if (server != null) {
+            server.stop();
+        }
+    }
+
+    /**
+     * @param protocol  <tt>binary</tt> or <tt>http</tt>.
+     * @param host      the host of the server.
+     * @param port      the port of the front end.
+     * @param sessionId the session of the client.
+     * @param window    the number of the adds of a round.
+     * @return a client connected to the front end.
+     * @throws IOException if the client cannot connect.
+     */
+    static Client client(String protocol, String host, int port, String sessionId, int window) throws IOException {
+        return switch (protocol) {
+            case "binary" -> new BinaryClient(host, port, sessionId, window);
+            case "http" -> new HttpRoundClient(host, port, sessionId, window);
+            default -> throw new IllegalArgumentException("unknown protocol=" + protocol);
+        };
+    }
+
+    /**
+     * @return a port that is free, most probably until it is bound again.
+     * @throws IOException if no port is free.
+     */
+    static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static long percentile(long[] sorted, double quantile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        return TimeUnit.NANOSECONDS.toMicros(sorted[(int) Math.min(sorted.length - 1, sorted.length * quantile)]);
+    }
+
+    /**
+     * Pipelines the adds and the 'end' signal of a round over a single connection.
+     */
+    static final class BinaryClient implements Client {
+        private final SocketChannel channel;
+        private final byte[] sessionId;
+        private final int window;
+        private final ByteBuffer out;
+        private final ByteBuffer in = ByteBuffer.allocateDirect(64 * 1024);
+
+        BinaryClient(String host, int port, String sessionId, int window) throws IOException {
+            this.channel = SocketChannel.open(new InetSocketAddress(host, port));
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            this.sessionId = sessionId.getBytes(StandardCharsets.UTF_8);
+            this.window = window;
+            this.out = ByteBuffer.allocateDirect((window + 1) * BinaryServer.MAX_REQUEST_SIZE);
+        }
+
+        @Override
+        public int round() throws IOException {
+            out.clear();
+            for (int i = 0; i < window; i++) {
+                BinaryServer.writeAdd(out, i, sessionId, 1);
+            }
+            BinaryServer.writeEnd(out, window, sessionId);
+            out.flip();
+            while (out.hasRemaining()) {
+                channel.write(out);
+            }
+            int responses = 0;
+            in.clear();
+            while (responses <= window) {
+                if (channel.read(in) < 0) {
+                    throw new IOException("connection closed");
+                }
+                in.flip();
+                while (in.remaining() >= BinaryServer.RESULT_SIZE) {
+                    if (in.get() != BinaryServer.RESULT) {
+                        throw new IOException("request id=" + in.getInt() + " failed, status=" + in.getShort());
+                    }
+                    in.position(in.position() + BinaryServer.RESULT_SIZE - 1);
+                    responses++;
+                }
+                in.compact();
+            }
+            return window + 1;
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    /**
+     * Sends the adds of a round concurrently over HTTP/1.1 connections, then the 'end' signal until all the adds are
+     * answered, since an add may reach the server after the 'end' signal on another connection.
+     */
+    static final class HttpRoundClient implements Client {
+        private final HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+        private final HttpRequest add;
+        private final HttpRequest end;
+        private final int window;
+
+        HttpRoundClient(String host, int port, String sessionId, int window) {
+            URI uri = URI.create("http://" + host + ":" + port + "/" + sessionId);
+            this.add = HttpRequest.newBuilder(uri).POST(HttpRequest.BodyPublishers.ofString("1")).build();
+            this.end = HttpRequest.newBuilder(uri).POST(HttpRequest.BodyPublishers.ofString("end")).build();
+            this.window = window;
+        }
+
+        @Override
+        public int round() throws IOException, InterruptedException {
+            List<CompletableFuture<HttpResponse<Void>>> adds = new ArrayList<>(window);
+            for (int i = 0; i < window; i++) {
+                adds.add(client.sendAsync(add, HttpResponse.BodyHandlers.discarding()));
+            }
+            int messages = window;
+            while (!adds.stream().allMatch(CompletableFuture::isDone)) {
+                int status = client.send(end, HttpResponse.BodyHandlers.discarding()).statusCode();
+                if (status != 200) {
+                    throw new IOException("'end' failed, status=" + status);
+                }
+                messages++;
+            }
+            for (CompletableFuture<HttpResponse<Void>> result : adds) {
+                if (result.join().statusCode() != 200) {
+                    throw new IOException("add failed, status=" + result.join().statusCode());
+                }
+            }
+            return messages;
+        }
+
+        @Override
+        public void close() {
+            // the connections of the client are closed when it is collected.
+        }
+    }
+}
@@ -0,0 +1,581 @@
+package com.fortumo.ws;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * An open-loop load test of the HTTP front end. The adds are scheduled at a fixed rate regardless of the responses,
+ * at most {@link #CONCURRENCY_OPTION} of them waiting for their round at a time, and the 'end' signals are sent at a
+ * fixed interval. A small ratio of the adds have invalid bodies, which must be rejected with <tt>400</tt>.
+ * <p>
+ * The latency of a request is measured from the time it is scheduled to be sent, rather than the time it is actually
+ * sent, so that the requests delayed by a stalled server (or by the concurrency limit) are not left out of the
+ * percentiles, i.e. the latencies are corrected for the coordinated omission. The uncorrected latencies are reported
+ * for comparison. Note that an add waits for the 'end' signal of its round, so its latency includes up to an
+ * {@link #END_INTERVAL_OPTION}.
+ * <p>
+ * The rounds are the intervals between the scheduled 'end' signals, and every add is counted in the round it is
+ * scheduled in. The sums of the 'end' signals must add up to the numbers of the adds answered with <tt>200</tt>,
+ * otherwise the run is inconsistent.
+ * <p>
+ * The report is printed and written as JSON to {@link #OUT_OPTION}. The {@link #MAX_P99_OPTION},
+ * {@link #MAX_P999_OPTION}, {@link #MAX_ERROR_RATE_OPTION} and {@link #MIN_THROUGHPUT_OPTION} thresholds fail the
+ * run with exit status 1, as does an inconsistent run, so that a build can fail on a regression.
+ * <p>
+ * Without a {@link #URL_OPTION}, an embedded {@link SumServer} is started on the loopback interface in the async
+ * mode, and the options that are not the ones of the load test are passed to it, e.g.
+ * <pre>
+ * mvn -P benchmark test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=com.fortumo.ws.LoadTest \
+ *     -Dexec.args="--rate=5000 --concurrency=2000 --endIntervalMillis=20 --seconds=30 --maxP99Millis=50"
+ * </pre>
+ * With <tt>--url=http://localhost:8080/</tt>, the server started by <tt>mvn cargo:run</tt> is tested instead.
+ */
+public class LoadTest {
+
+    /**
+     * The base URL of the server to test, an embedded server is started if it is not set.
+     */
+    static final String URL_OPTION = "url";
+
+    /**
+     * The adds scheduled per second.
+     */
+    static final String RATE_OPTION = "rate";
+
+    /**
+     * The maximum number of the adds waiting for a response, i.e. the adder connections.
+     */
+    static final String CONCURRENCY_OPTION = "concurrency";
+
+    /**
+     * The time between two scheduled 'end' signals, in milliseconds.
+     */
+    static final String END_INTERVAL_OPTION = "endIntervalMillis";
+
+    /**
+     * The ratio of the adds that have an invalid body.
+     */
+    static final String INVALID_RATIO_OPTION = "invalidRatio";
+
+    /**
+     * The duration of the measured run, in seconds.
+     */
+    static final String SECONDS_OPTION = "seconds";
+
+    /**
+     * The duration of the run before the measured one, whose results are discarded, in seconds.
+     */
+    static final String WARMUP_OPTION = "warmupSeconds";
+
+    /**
+     * The session the requests are sent to.
+     */
+    static final String SESSION_OPTION = "session";
+
+    /**
+     * The file the JSON report is written to.
+     */
+    static final String OUT_OPTION = "out";
+
+    /**
+     * The maximum p99 latency of the adds, in milliseconds.
+     */
+    static final String MAX_P99_OPTION = "maxP99Millis";
+
+    /**
+     * The maximum p99.9 latency of the adds, in milliseconds.
+     */
+    static final String MAX_P999_OPTION = "maxP999Millis";
+
+    /**
+     * The maximum ratio of the requests that are answered with an unexpected status or not at all.
+     */
+    static final String MAX_ERROR_RATE_OPTION = "maxErrorRate";
+
+    /**
+     * The minimum number of the adds answered with <tt>200</tt> per second.
+     */
+    static final String MIN_THROUGHPUT_OPTION = "minThroughput";
+
+    /**
+     * The load test options and their defaults, the thresholds are disabled unless set.
+     */
+    private static final Map<String, String> DEFAULTS = Map.of(
+            RATE_OPTION, "1000",
+            CONCURRENCY_OPTION, "1000",
+            END_INTERVAL_OPTION, "50",
+            INVALID_RATIO_OPTION, "0.01",
+            SECONDS_OPTION, "10",
+            WARMUP_OPTION, "2",
+            SESSION_OPTION, "load-test",
+            OUT_OPTION, "target/load-test.json");
+
+    private static final List<String> THRESHOLDS =
+            List.of(MAX_P99_OPTION, MAX_P999_OPTION, MAX_ERROR_RATE_OPTION, MIN_THROUGHPUT_OPTION);
+
+    /**
+     * The bodies of the invalid adds.
+     */
+    private static final String[] INVALID_BODIES = {"abc", "", "1.2.3", "--1", "0x"};
+
+    /**
+     * The time the adds still waiting are given to be answered once the scheduling stops.
+     */
+    private static final long DRAIN_NANOS = TimeUnit.SECONDS.toNanos(30);
+
+    /**
+     * Marks a request that is not answered, in place of a status.
+     */
+    private static final int NO_RESPONSE = 0;
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new LinkedHashMap<>(DEFAULTS);
+        options.putAll(SumServer.parse(args));
+        Map<String, String> serverOptions = new LinkedHashMap<>(Map.of(
+                SumServer.PORT_OPTION, "0", SumServer.HOST_OPTION, "127.0.0.1", SumServlet.MODE_PARAM, "async"));
+        options.forEach((name, value) -> {
+            if (!DEFAULTS.containsKey(name) && !THRESHOLDS.contains(name) && !name.equals(URL_OPTION)) {
+                serverOptions.put(name, value);
+            }
+        });
+
+        SumServer server = null;
+        URI base;
+        if (options.containsKey(URL_OPTION)) {
+            base = URI.create(options.get(URL_OPTION));
+        } else {
+            server = new SumServer(serverOptions);
+            server.start();
+            base = URI.create("http://127.0.0.1:" + server.port() + "/");
+        }
+        Report report;
+        try {
+            double warmup = Double.parseDouble(options.get(WARMUP_OPTION));
+            if (warmup > 0) {
+                new LoadTest(base, options, warmup).run();
+            }
+            report = new LoadTest(base, options, Double.parseDouble(options.get(SECONDS_OPTION))).run();
+        } finally {
+            if (server != null) {
+                server.stop();
+            }
+        }
+        List<String> violations = report.violations(options);
+        String json = report.toJson(options, violations);
+        Path out = Paths.get(options.get(OUT_OPTION));
+        if (out.getParent() != null) {
+            Files.createDirectories(out.getParent());
+        }
+        Files.writeString(out, json);
+        System.out.println(report.summary());
+        System.out.println("report written to " + out.toAbsolutePath());
+        if (!violations.isEmpty()) {
+            violations.forEach(violation -> System.err.println("FAILED: " + violation));
+            System.exit(1);
+        }
+    }
+
+    private final HttpClient client = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_1_1)
+            .connectTimeout(Duration.ofSeconds(10))
+            .build();
+    private final URI uri;
+    private final long intervalNanos;
+    private final long endIntervalNanos;
+    private final double invalidRatio;
+    private final int addCount;
+    private final Semaphore concurrency;
+
+    /**
+     * The per-add records, by the index of the add: its number (NaN if invalid), the time it is actually sent and
+     * answered, and its status. The time it is scheduled is <tt>start + index * intervalNanos</tt>.
+     */
+    private final double[] numbers;
+    private final long[] sentNanos;
+    private final long[] doneNanos;
+    private final int[] statuses;
+
+    /**
+     * The 'end' signals, in the order they are sent.
+     */
+    private final List<End> ends = new ArrayList<>();
+
+    private long start;
+
+    /**
+     * @param base    the base URL of the server.
+     * @param options the load test options.
+     * @param seconds the duration of the run.
+     */
+    LoadTest(URI base, Map<String, String> options, double seconds) {
+        this.uri = base.resolve(options.get(SESSION_OPTION));
+        double rate = Double.parseDouble(options.get(RATE_OPTION));
+        this.intervalNanos = (long) (1e9 / rate);
+        this.endIntervalNanos = TimeUnit.MILLISECONDS.toNanos(Long.parseLong(options.get(END_INTERVAL_OPTION)));
+        this.invalidRatio = Double.parseDouble(options.get(INVALID_RATIO_OPTION));
+        this.addCount = (int) (seconds * rate);
+        this.concurrency = new Semaphore(Integer.parseInt(options.get(CONCURRENCY_OPTION)));
+        if (intervalNanos <= 0 || endIntervalNanos <= 0 || addCount <= 0 || invalidRatio < 0 || invalidRatio > 1) {
+            throw new IllegalArgumentException("invalid options=" + options);
+        }
+        this.numbers = new double[addCount];
+        this.sentNanos = new long[addCount];
+        this.doneNanos = new long[addCount];
+        this.statuses = new int[addCount];
+    }
+
+    /**
+     * Schedules the adds and the 'end' signals, then sends the 'end' signals until all the adds are answered.
+     * @return the report of the run.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    Report run() throws InterruptedException {
+        List<CompletableFuture<?>> adds = new ArrayList<>(addCount);
+        start = System.nanoTime();
+        Thread signaller = Thread.ofPlatform().name("load-test-end").start(this::sendEnds);
+        SplittableRandom random = new SplittableRandom(42);
+        for (int i = 0; i < addCount; i++) {
+            long scheduled = start + i * intervalNanos;
+            for (long now = System.nanoTime(); now < scheduled; now = System.nanoTime()) {
+                LockSupport.parkNanos(scheduled - now);
+            }
+            String body;
+            if (random.nextDouble() < invalidRatio) {
+                numbers[i] = Double.NaN;
+                body = INVALID_BODIES[random.nextInt(INVALID_BODIES.length)];
+            } else {
+                numbers[i] = 1 + random.nextInt(9);
+                body = Integer.toString((int) numbers[i]);
+            }
+            concurrency.acquire();  // delays the add, which is still measured from the time it is scheduled.
+            int index = i;
+            sentNanos[i] = System.nanoTime();
+            adds.add(client.sendAsync(post(body), HttpResponse.BodyHandlers.discarding())
+                    .whenComplete((response, error) -> {
+                        doneNanos[index] = System.nanoTime();
+                        statuses[index] = error == null ? response.statusCode() : NO_RESPONSE;
+                        concurrency.release();
+                    }));
+        }
+        signaller.interrupt();
+        signaller.join();
+        long deadline = System.nanoTime() + DRAIN_NANOS;
+        while (!adds.stream().allMatch(CompletableFuture::isDone) && System.nanoTime() < deadline) {
+            sendEnd(System.nanoTime());  // the last adds may reach the server after an 'end' signal.
+        }
+        CompletableFuture.allOf(adds.stream().filter(CompletableFuture::isDone).toArray(CompletableFuture[]::new))
+                .exceptionally(error -> null).join();  // publishes the records of the completed adds.
+        return new Report(System.nanoTime() - start);
+    }
+
+    /**
+     * Sends the 'end' signals at the fixed interval until interrupted.
+     */
+    private void sendEnds() {
+        for (int k = 1; ; k++) {
+            long scheduled = start + k * endIntervalNanos;
+            for (long now = System.nanoTime(); now < scheduled; now = System.nanoTime()) {
+                LockSupport.parkNanos(scheduled - now);
+                if (Thread.interrupted()) {
+                    return;
+                }
+            }
+            try {
+                sendEnd(scheduled);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Sends an 'end' signal and waits for its response.
+     * @param scheduled the time the signal is scheduled to be sent.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    private void sendEnd(long scheduled) throws InterruptedException {
+        long sent = System.nanoTime();
+        int status;
+        double sum = Double.NaN;
+        try {
+            HttpResponse<String> response = client.send(post("end"), HttpResponse.BodyHandlers.ofString());
+            status = response.statusCode();
+            if (status == 200) {
+                sum = Double.parseDouble(response.body().trim());
+            }
+        } catch (IOException | NumberFormatException e) {
+            status = NO_RESPONSE;
+        }
+        End end = new End(scheduled, sent, System.nanoTime(), status, sum);
+        synchronized (ends) {
+            ends.add(end);
+        }
+    }
+
+    private HttpRequest post(String body) {
+        return HttpRequest.newBuilder(uri).POST(HttpRequest.BodyPublishers.ofString(body, StandardCharsets.UTF_8))
+                .build();
+    }
+
+    /**
+     * An 'end' signal, its times in terms of {@link System#nanoTime()} and its result.
+     */
+    private static final class End {
+        final long scheduledNanos;
+        final long sentNanos;
+        final long doneNanos;
+        final int status;
+        final double sum;
+
+        End(long scheduledNanos, long sentNanos, long doneNanos, int status, double sum) {
+            this.scheduledNanos = scheduledNanos;
+            this.sentNanos = sentNanos;
+            this.doneNanos = doneNanos;
+            this.status = status;
+            this.sum = sum;
+        }
+    }
+
+    /**
+     * The results of a run.
+     */
+    final class Report {
+        private final long nanos;
+        private final long[] corrected;
+        private final long[] uncorrected;
+        private final long[] endLatencies;
+        private final Map<String, Integer> errors = new TreeMap<>();
+        private final List<String> rounds = new ArrayList<>();
+        private long ok;
+        private long rejected;
+        private long errorCount;
+        private double countedSum;
+        private double endedSum;
+
+        Report(long nanos) {
+            this.nanos = nanos;
+            long[] corrected = new long[addCount];
+            long[] uncorrected = new long[addCount];
+            int answered = 0;
+            for (int i = 0; i < addCount; i++) {
+                int status = statuses[i];
+                boolean valid = !Double.isNaN(numbers[i]);
+                if (status != NO_RESPONSE) {
+                    corrected[answered] = doneNanos[i] - scheduled(i);
+                    uncorrected[answered++] = doneNanos[i] - sentNanos[i];
+                }
+                if (valid && status == 200) {
+                    ok++;
+                    countedSum += numbers[i];
+                } else if (!valid && status == 400) {
+                    rejected++;
+                } else {
+                    errorCount++;
+                    errors.merge(status == NO_RESPONSE ? "none" : Integer.toString(status), 1, Integer::sum);
+                }
+            }
+            this.corrected = sorted(Arrays.copyOf(corrected, answered));
+            this.uncorrected = sorted(Arrays.copyOf(uncorrected, answered));
+            this.endLatencies = new long[ends.size()];
+            for (int k = 0; k < ends.size(); k++) {
+                End end = ends.get(k);
+                endLatencies[k] = end.doneNanos - end.scheduledNanos;
+                if (end.status == 200) {
+                    endedSum += end.sum;
+                } else {
+                    errorCount++;
+                    errors.merge("end " + (end.status == NO_RESPONSE ? "none" : end.status), 1, Integer::sum);
+                }
+            }
+            Arrays.sort(endLatencies);
+            collectRounds();
+        }
+
+        /**
+         * Splits the adds into the rounds between the scheduled 'end' signals.
+         */
+        private void collectRounds() {
+            int first = 0;
+            for (int k = 0; k < ends.size() && first < addCount; k++) {
+                End end = ends.get(k);
+                int last = k == ends.size() - 1 ? addCount : (int) Math.min(addCount,
+                        Math.max(first, Math.ceilDiv(end.scheduledNanos - start, intervalNanos)));
+                long[] latencies = new long[last - first];
+                int answered = 0;
+                int roundErrors = 0;
+                for (int i = first; i < last; i++) {
+                    boolean valid = !Double.isNaN(numbers[i]);
+                    if (statuses[i] != NO_RESPONSE) {
+                        latencies[answered++] = doneNanos[i] - scheduled(i);
+                    }
+                    if (statuses[i] != (valid ? 200 : 400)) {
+                        roundErrors++;
+                    }
+                }
+                long[] round = sorted(Arrays.copyOf(latencies, answered));
+                StringBuilder json = new StringBuilder(200);
+                json.append("{\"round\":").append(k + 1)
+                        .append(",\"adds\":").append(last - first)
+                        .append(",\"errors\":").append(roundErrors)
+                        .append(",\"endStatus\":").append(end.status)
+                        .append(",\"sum\":");
+                RoundStats.appendNumber(json, end.sum);
+                json.append(",\"endLatencyMicros\":").append(micros(end.doneNanos - end.scheduledNanos))
+                        .append(",\"latencyMicros\":");
+                appendPercentiles(json, round);
+                rounds.add(json.append('}').toString());
+                first = last;
+            }
+        }
+
+        /**
+         * @param options the load test options with the thresholds.
+         * @return the thresholds that the run violates, and whether it is inconsistent.
+         */
+        List<String> violations(Map<String, String> options) {
+            List<String> violations = new ArrayList<>();
+            if (countedSum != endedSum) {
+                violations.add("inconsistent: the adds answered with 200 sum up to " + countedSum
+                        + " but the 'end' signals to " + endedSum);
+            }
+            threshold(options, MAX_P99_OPTION, percentile(corrected, 0.99) / 1e6, true, violations);
+            threshold(options, MAX_P999_OPTION, percentile(corrected, 0.999) / 1e6, true, violations);
+            threshold(options, MAX_ERROR_RATE_OPTION, errorRate(), true, violations);
+            threshold(options, MIN_THROUGHPUT_OPTION, throughput(), false, violations);
+            return violations;
+        }
+
+        private void threshold(Map<String, String> options, String name, double value, boolean max,
+                               List<String> violations) {
+            String limit = options.get(name);
+            if (limit != null && (max ? value > Double.parseDouble(limit) : value < Double.parseDouble(limit))) {
+                violations.add(name + "=" + limit + " but was " + value);
+            }
+        }
+
+        private double throughput() {
+            return ok * 1e9 / nanos;
+        }
+
+        private double errorRate() {
+            long requests = addCount + ends.size();
+            return (double) errorCount / requests;
+        }
+
+        /**
+         * @return the one line summary of the run.
+         */
+        String summary() {
+            return String.format("adds=%d ok=%d invalid=%d errors=%d %s ends=%d rounds=%d throughput=%.0f/s"
+                            + " add latency p50=%dus p99=%dus p99.9=%dus max=%dus (uncorrected p99=%dus)"
+                            + " end latency p99=%dus sums %s",
+                    addCount, ok, rejected, errorCount, errors, ends.size(), rounds.size(), throughput(),
+                    micros(percentile(corrected, 0.5)), micros(percentile(corrected, 0.99)),
+                    micros(percentile(corrected, 0.999)), micros(percentile(corrected, 1)),
+                    micros(percentile(uncorrected, 0.99)), micros(percentile(endLatencies, 0.99)),
+                    countedSum == endedSum ? "consistent" : "INCONSISTENT");
+        }
+
+        /**
+         * @param options    the load test options.
+         * @param violations the violated thresholds.
+         * @return the report as a JSON object.
+         */
+        String toJson(Map<String, String> options, List<String> violations) {
+            StringBuilder json = new StringBuilder(1024 + rounds.size() * 200);
+            json.append("{\n  \"options\": {");
+            String separator = "";
+            for (Map.Entry<String, String> option : options.entrySet()) {
+                json.append(separator).append('"').append(escape(option.getKey())).append("\":\"")
+                        .append(escape(option.getValue())).append('"');
+                separator = ",";
+            }
+            json.append("},\n  \"seconds\": ").append(nanos / 1e9)
+                    .append(",\n  \"adds\": ").append(addCount)
+                    .append(",\n  \"ok\": ").append(ok)
+                    .append(",\n  \"invalid\": ").append(rejected)
+                    .append(",\n  \"ends\": ").append(ends.size())
+                    .append(",\n  \"throughput\": ").append(throughput())
+                    .append(",\n  \"errorRate\": ").append(errorRate())
+                    .append(",\n  \"errors\": {");
+            separator = "";
+            for (Map.Entry<String, Integer> error : errors.entrySet()) {
+                json.append(separator).append('"').append(error.getKey()).append("\":").append(error.getValue());
+                separator = ",";
+            }
+            json.append("},\n  \"latencyMicros\": ");
+            appendPercentiles(json, corrected);
+            json.append(",\n  \"uncorrectedLatencyMicros\": ");
+            appendPercentiles(json, uncorrected);
+            json.append(",\n  \"endLatencyMicros\": ");
+            appendPercentiles(json, endLatencies);
+            json.append(",\n  \"countedSum\": ").append(countedSum)
+                    .append(",\n  \"endedSum\": ").append(endedSum)
+                    .append(",\n  \"consistent\": ").append(countedSum == endedSum)
+                    .append(",\n  \"violations\": [");
+            separator = "";
+            for (String violation : violations) {
+                json.append(separator).append('"').append(escape(violation)).append('"');
+                separator = ",";
+            }
+            json.append("],\n  \"rounds\": [");
+            separator = "\n    ";
+            for (String round : rounds) {
+                json.append(separator).append(round);
+                separator = ",\n    ";
+            }
+            return json.append("\n  ]\n}\n").toString();
+        }
+    }
+
+    private long scheduled(int index) {
+        return start + index * intervalNanos;
+    }
+
+    private static void appendPercentiles(StringBuilder json, long[] sorted) {
+        json.append("{\"p50\":").append(micros(percentile(sorted, 0.5)))
+                .append(",\"p99\":").append(micros(percentile(sorted, 0.99)))
+                .append(",\"p999\":").append(micros(percentile(sorted, 0.999)))
+                .append(",\"max\":").append(micros(percentile(sorted, 1)))
+                .append('}');
+    }
+
+    private static long[] sorted(long[] values) {
+        Arrays.sort(values);
+        return values;
+    }
+
+    private static long percentile(long[] sorted, double quantile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        return sorted[(int) Math.min(sorted.length - 1, sorted.length * quantile)];
+    }
+
+    private static long micros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+}
@@ -0,0 +1,75 @@
+package com.fortumo.ws;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Measures the overhead of the {@link Metrics} on the add path of {@link SumService#add(double)}, comparing the
+ * enabled metrics with the disabled ones, and the cost of recording a request latency. The budget is at most 10% on
+ * the add path, and recording a request must cost no more than the {@link System#nanoTime()} calls it needs anyway.
+ * A background thread ends the rounds every 100 microseconds, so the pending futures do not pile up. Run with
+ * <tt>-t</tt> to measure with more threads.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dorg.slf4j.simpleLogger.defaultLogLevel=warn")
+@State(Scope.Benchmark)
+public class MetricsBenchmark {
+
+    @Param({"true", "false"})
+    private boolean enabled;
+
+    private final Metrics metrics = new Metrics();
+    private SumService service;
+    private Thread ender;
+    private volatile boolean running;
+
+    @Setup(Level.Trial)
+    public void startEnder() {
+        service = new SumService(Summation.DOUBLE, enabled ? metrics : Metrics.disabled());
+        running = true;
+        ender = new Thread(() -> {
+            while (running) {
+                service.end();
+                LockSupport.parkNanos(100_000);
+            }
+        }, "ender");
+        ender.setDaemon(true);
+        ender.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void stopEnder() throws InterruptedException {
+        running = false;
+        ender.join();
+        service.end();
+    }
+
+    @Benchmark
+    public CompletableFuture<Double> add() {
+        return service.add(1);
+    }
+
+    @Benchmark
+    public Metrics recordRequest() {
+        metrics.onRequest(Metrics.RequestType.ADD, System.nanoTime() - 150_000);
+        return metrics;
+    }
+}
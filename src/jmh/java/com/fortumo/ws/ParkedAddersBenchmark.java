@@ -0,0 +1,139 @@
+package com.fortumo.ws;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parks the adders on platform or virtual threads until the 'end' signal is received, and measures the time from the
+ * {@link SumService#doEnd()} call until the last adder is released. The memory used by the parked adders is reported
+ * with the secondary <tt>rssBytesPerAdder</tt> and <tt>heapBytesPerAdder</tt> results.
+ * <p>
+ * Note that parking 100k platform threads requires the OS thread limits (e.g. <tt>ulimit -u</tt>) to allow it.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xss256k", "-Dorg.slf4j.simpleLogger.defaultLogLevel=warn"})
+@State(Scope.Benchmark)
+public class ParkedAddersBenchmark {
+
+    @Param({"platform", "virtual"})
+    public String threadType;
+
+    @Param({"10000", "100000"})
+    public int adders;
+
+    private SumService service;
+    private CountDownLatch released;
+    private List<Thread> threads;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Memory {
+        public long rssBytesPerAdder;
+        public long heapBytesPerAdder;
+    }
+
+    /**
+     * The resident set size before any adders are started. Thread stacks freed by the previous invocations are not
+     * necessarily returned to the OS, so the footprint is measured against the start of the trial.
+     */
+    private long rssBefore;
+
+    @Setup(Level.Trial)
+    public void measureBaseline() {
+        System.gc();
+        rssBefore = rss();
+    }
+
+    @Setup(Level.Invocation)
+    public void parkAdders(Memory memory) throws InterruptedException {
+        System.gc();
+        long heapBefore = heapUsed();
+
+        service = new SumService();
+        CountDownLatch added = new CountDownLatch(adders);
+        released = new CountDownLatch(adders);
+        threads = new ArrayList<>(adders);
+        Thread.Builder builder = threadType.equals("virtual") ? Thread.ofVirtual() : Thread.ofPlatform().daemon();
+        for (int i = 0; i < adders; i++) {
+            threads.add(builder.start(() -> {
+                try {
+                    var result = service.add(1);
+                    added.countDown();
+                    result.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (ExecutionException e) {
+                    throw new IllegalStateException(e);
+                } finally {
+                    released.countDown();
+                }
+            }));
+        }
+        added.await();
+
+        memory.rssBytesPerAdder = (rss() - rssBefore) / adders;
+        memory.heapBytesPerAdder = (heapUsed() - heapBefore) / adders;
+    }
+
+    /**
+     * Waits for the released adders to exit, so that their memory is not counted in the next invocation.
+     */
+    @TearDown(Level.Invocation)
+    public void joinAdders() throws InterruptedException {
+        for (Thread thread : threads) {
+            thread.join();
+        }
+    }
+
+    @Benchmark
+    public double endToLastRelease() throws InterruptedException {
+        double sum = service.doEnd();
+        released.await();
+        return sum;
+    }
+
+    private static long heapUsed() {
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * @return the resident set size of the process in bytes, or zero if it is unknown on this platform.
+     */
+    private static long rss() {
+        try {
+            for (String line : Files.readAllLines(Path.of("/proc/self/status"))) {
+                if (line.startsWith("VmRSS:")) {
+                    return Long.parseLong(line.replaceAll("\\D", "")) * 1024;
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            // not supported on this platform.
+        }
+        return 0;
+    }
+}
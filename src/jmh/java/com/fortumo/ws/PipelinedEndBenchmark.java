@@ -0,0 +1,90 @@
+package com.fortumo.ws;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the sustained adds per second of 4 adders while the rounds end every 16 or 256 adds, with the clients of
+ * an ended round released by the adder that ends it (<tt>pipelined=false</tt>) or in the background
+ * (<tt>pipelined=true</tt>). Every adder keeps up to 256 adds in flight like a pipelining client, and releasing a
+ * client costs about a response write, so the adder that ends a round otherwise stalls for the whole round.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dorg.slf4j.simpleLogger.defaultLogLevel=warn")
+@Threads(4)
+@State(Scope.Benchmark)
+public class PipelinedEndBenchmark {
+
+    /**
+     * The CPU cost of releasing a client, in {@link Blackhole#consumeCPU(long)} tokens.
+     */
+    private static final long RELEASE_TOKENS = 200;
+
+    @Param({"false", "true"})
+    public boolean pipelined;
+
+    @Param({"16", "256"})
+    public long autoEndAdds;
+
+    private SumService service;
+
+    @Setup(Level.Trial)
+    public void createService() {
+        service = new SumService(Summation.DOUBLE, Metrics.disabled(), null,
+                new SumService.Limits(0, 0, autoEndAdds, 0), RoundStats.Level.NONE, pipelined);
+    }
+
+    @TearDown(Level.Trial)
+    public void endService() {
+        service.end();
+    }
+
+    /**
+     * The adds an adder thread has in flight.
+     */
+    @State(Scope.Thread)
+    public static class Window {
+        @SuppressWarnings("unchecked")
+        private final CompletableFuture<Void>[] adds = new CompletableFuture[256];
+        private int index = 0;
+
+        @TearDown(Level.Iteration)
+        public void drain(PipelinedEndBenchmark benchmark) {
+            benchmark.service.end();
+            for (CompletableFuture<Void> add : adds) {
+                if (add != null) {
+                    add.join();
+                }
+            }
+        }
+    }
+
+    @Benchmark
+    public void add(Window window) {
+        int slot = window.index++ & (window.adds.length - 1);
+        CompletableFuture<Void> previous = window.adds[slot];
+        if (previous != null) {
+            previous.join();
+        }
+        window.adds[slot] = service.add(1).thenRun(() -> Blackhole.consumeCPU(RELEASE_TOKENS));
+    }
+}
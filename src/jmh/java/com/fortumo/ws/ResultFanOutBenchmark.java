@@ -0,0 +1,112 @@
+package com.fortumo.ws;
+
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.WriteListener;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost of answering all the 1k or 10k waiters of a round with its sum: the former way, which formats the
+ * sum into every response (<tt>perResponse</tt>), compared to the line encoded once and shared by the responses
+ * (<tt>shared</tt>), see {@link DoubleFormat#line(double)}. Every round has a new sum. The responses copy the bytes
+ * into their buffers like the ones of a servlet container. Run with <tt>-prof gc</tt> to see the allocations per
+ * round.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class ResultFanOutBenchmark {
+
+    private static final byte[] CRLF = {'\r', '\n'};
+
+    @Param({"1000", "10000"})
+    public int waiters;
+
+    private BufferStream[] responses;
+    private double sum = 1234567.125;
+
+    @Setup
+    public void createResponses() {
+        responses = new BufferStream[waiters];
+        for (int i = 0; i < waiters; i++) {
+            responses[i] = new BufferStream();
+        }
+    }
+
+    @Benchmark
+    public long perResponse() throws IOException {
+        double result = ++sum;
+        long written = 0;
+        for (BufferStream out : responses) {
+            out.reset();
+            DoubleFormat.write(result, out);
+            out.write(CRLF);
+            written += out.size;
+        }
+        return written;
+    }
+
+    @Benchmark
+    public long shared() throws IOException {
+        double result = ++sum;
+        long written = 0;
+        for (BufferStream out : responses) {
+            out.reset();
+            byte[] line = DoubleFormat.line(result);
+            out.contentLength = line.length;
+            out.write(line);
+            written += out.size;
+        }
+        return written;
+    }
+
+    /**
+     * The output stream of a response, which copies the bytes into its buffer.
+     */
+    static final class BufferStream extends ServletOutputStream {
+        private final byte[] buffer = new byte[512];
+        private int size = 0;
+        private int contentLength = -1;
+
+        void reset() {
+            size = 0;
+            contentLength = -1;
+        }
+
+        @Override
+        public boolean isReady() {
+            return true;
+        }
+
+        @Override
+        public void setWriteListener(WriteListener writeListener) {
+            // writes never block.
+        }
+
+        @Override
+        public void write(int b) {
+            buffer[size++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            System.arraycopy(b, off, buffer, size, len);
+            size += len;
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package com.fortumo.ws;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the throughput of the contended accumulation path of a {@link Round} with the former implementation that
+ * guarded the sum with the global lock of the service.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(8)
+public class RoundBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Striped {
+        final Round round = new Round();
+    }
+
+    /**
+     * The accumulation path of the former <tt>synchronized</tt> {@link SumService#doAdd(double)}.
+     */
+    @State(Scope.Benchmark)
+    public static class Synchronized {
+        private double totalSum = 0;
+        private int entries = 0;
+
+        synchronized double add(double number) {
+            ++entries;
+            try {
+                totalSum += number;
+                return totalSum;
+            } finally {
+                --entries;
+            }
+        }
+    }
+
+    @Benchmark
+    public boolean striped(Striped state) {
+        return state.round.tryAdd(1);
+    }
+
+    @Benchmark
+    public double synchronizedBaseline(Synchronized state) {
+        return state.add(1);
+    }
+}
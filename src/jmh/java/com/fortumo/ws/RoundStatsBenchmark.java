@@ -0,0 +1,76 @@
+package com.fortumo.ws;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the per-add cost of each {@link RoundStats.Level} on the accumulation path of a {@link Round}, by a single
+ * adder and by 4 contended adders. The numbers added are log-normally distributed over a few orders of magnitude, so
+ * that the quantile sketch has a realistic number of buckets.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RoundStatsBenchmark {
+
+    @Param({"NONE", "MOMENTS", "QUANTILES"})
+    private String stats;
+
+    private Round round;
+
+    @Setup(Level.Iteration)
+    public void newRound() {
+        round = Summation.DOUBLE.newRound();
+        round.collectStats(RoundStats.Level.valueOf(stats));
+    }
+
+    /**
+     * The numbers an adder thread cycles through.
+     */
+    @State(Scope.Thread)
+    public static class Numbers {
+        private final double[] values = new double[1024];
+        private int index = 0;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            Random random = new Random(42);
+            for (int i = 0; i < values.length; i++) {
+                values[i] = Math.exp(random.nextGaussian() * 2);
+            }
+        }
+
+        double next() {
+            return values[index++ & (values.length - 1)];
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public boolean add(Numbers numbers) {
+        return round.tryAdd(numbers.next());
+    }
+
+    @Benchmark
+    @Threads(4)
+    public boolean addContended(Numbers numbers) {
+        return round.tryAdd(numbers.next());
+    }
+}
@@ -0,0 +1,122 @@
+package com.fortumo.ws;
+
+import jakarta.servlet.ReadListener;
+import jakarta.servlet.ServletInputStream;
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.WriteListener;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * Lightweight fakes of the servlet API used by the benchmarks, mocking frameworks are too slow to be measured with.
+ */
+final class ServletFakes {
+
+    private ServletFakes() {
+    }
+
+    /**
+     * @param body the body of the request.
+     * @return a request whose input stream returns the provided <tt>body</tt>.
+     */
+    static HttpServletRequest request(String body) {
+        byte[] bytes = body.getBytes(StandardCharsets.ISO_8859_1);
+        return proxy(HttpServletRequest.class, Map.of("getInputStream", () -> new ByteInputStream(bytes)));
+    }
+
+    /**
+     * @param body        the body of the request.
+     * @param queryString the query string of the request.
+     * @param contentType the content type of the request.
+     * @return a request with the provided <tt>body</tt>, <tt>queryString</tt> and <tt>contentType</tt>.
+     */
+    static HttpServletRequest request(byte[] body, String queryString, String contentType) {
+        return proxy(HttpServletRequest.class, Map.of(
+                "getInputStream", () -> new ByteInputStream(body),
+                "getQueryString", () -> queryString,
+                "getContentType", () -> contentType));
+    }
+
+    /**
+     * @return a response that discards everything written to it.
+     */
+    static HttpServletResponse response() {
+        NullOutputStream out = new NullOutputStream();
+        return proxy(HttpServletResponse.class, Map.of("getOutputStream", () -> out));
+    }
+
+    /**
+     * Creates a proxy that answers the methods with the provided names from their <tt>answers</tt>, and returns null
+     * for any other method.
+     */
+    private static <T> T proxy(Class<T> type, Map<String, Supplier<Object>> answers) {
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, (proxy, method, args) -> {
+            Supplier<Object> answer = answers.get(method.getName());
+            return answer == null ? null : answer.get();
+        }));
+    }
+
+    /**
+     * An output stream that counts and discards the written bytes.
+     */
+    static final class NullOutputStream extends ServletOutputStream {
+        long written = 0;
+
+        @Override
+        public boolean isReady() {
+            return true;
+        }
+
+        @Override
+        public void setWriteListener(WriteListener writeListener) {
+            // writes never block.
+        }
+
+        @Override
+        public void write(int b) {
+            written++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            written += len;
+        }
+    }
+
+    /**
+     * An input stream over the provided bytes.
+     */
+    static final class ByteInputStream extends ServletInputStream {
+        private final byte[] bytes;
+        private int position = 0;
+
+        ByteInputStream(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        @Override
+        public boolean isFinished() {
+            return position == bytes.length;
+        }
+
+        @Override
+        public boolean isReady() {
+            return true;
+        }
+
+        @Override
+        public void setReadListener(ReadListener readListener) {
+            // reads never block.
+        }
+
+        @Override
+        public int read() {
+            return position < bytes.length ? bytes[position++] & 0xff : -1;
+        }
+    }
+}
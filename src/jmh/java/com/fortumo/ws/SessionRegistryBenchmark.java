@@ -0,0 +1,93 @@
+package com.fortumo.ws;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.ThreadParams;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Measures the throughput of adding numbers through the {@link SumServiceRegistry} while the adder threads are spread
+ * over 1 to 16 active sessions. Each thread sticks to the session <tt>threadIndex % sessions</tt>. A background thread
+ * ends all the sessions every 100 microseconds, so the pending futures do not pile up. Since the sessions share
+ * nothing, the throughput should grow with the number of sessions until the cores are saturated. Run with
+ * <tt>-t</tt> to change the number of adder threads.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dorg.slf4j.simpleLogger.defaultLogLevel=warn")
+@Threads(16)
+@State(Scope.Benchmark)
+public class SessionRegistryBenchmark {
+
+    @Param({"1", "2", "4", "8", "16"})
+    private int sessions;
+
+    private final SumServiceRegistry registry = new SumServiceRegistry(id -> new SumService(), 1_000, Long.MAX_VALUE);
+    private Thread ender;
+    private volatile boolean running;
+
+    @Setup(Level.Trial)
+    public void startEnder() {
+        running = true;
+        ender = new Thread(() -> {
+            while (running) {
+                endAll();
+                LockSupport.parkNanos(100_000);
+            }
+        }, "ender");
+        ender.setDaemon(true);
+        ender.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void stopEnder() throws InterruptedException {
+        running = false;
+        ender.join();
+        endAll();
+    }
+
+    private void endAll() {
+        try {
+            for (int i = 0; i < sessions; i++) {
+                registry.call(Integer.toString(i), SumService::end);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * The session of an adder thread.
+     */
+    @State(Scope.Thread)
+    public static class Session {
+        private String id;
+
+        @Setup(Level.Trial)
+        public void setup(SessionRegistryBenchmark benchmark, ThreadParams threads) {
+            id = Integer.toString(threads.getThreadIndex() % benchmark.sessions);
+        }
+    }
+
+    @Benchmark
+    public CompletableFuture<Double> add(Session session) throws InterruptedException {
+        return registry.call(session.id, service -> service.add(1));
+    }
+}
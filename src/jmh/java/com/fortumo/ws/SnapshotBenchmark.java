@@ -0,0 +1,75 @@
+package com.fortumo.ws;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures whether polling the {@link SumService#snapshot()} in a tight loop slows down the adders. Each group runs 3
+ * adders, whose rounds end every 1000 adds, next to a fourth thread that polls the snapshot (<tt>polled</tt>), or
+ * burns about as much CPU without touching the service (<tt>control</tt>), so that the adders get the same share of the
+ * CPU in both groups. Compare the <tt>add</tt> scores of the groups; the <tt>poll</tt> score is the polling rate.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dorg.slf4j.simpleLogger.defaultLogLevel=warn")
+@State(Scope.Group)
+public class SnapshotBenchmark {
+
+    private SumService service;
+
+    @Setup(Level.Trial)
+    public void createService() {
+        service = new SumService(Summation.DOUBLE, Metrics.disabled(), null, new SumService.Limits(0, 0, 1_000, 0));
+    }
+
+    @TearDown(Level.Trial)
+    public void endService() {
+        service.end();
+    }
+
+    @Benchmark
+    @Group("control")
+    @GroupThreads(3)
+    public CompletableFuture<Double> controlAdd() {
+        return service.add(1);
+    }
+
+    @Benchmark
+    @Group("control")
+    @GroupThreads(1)
+    public void controlBurn() {
+        Blackhole.consumeCPU(50);
+    }
+
+    @Benchmark
+    @Group("polled")
+    @GroupThreads(3)
+    public CompletableFuture<Double> polledAdd() {
+        return service.add(1);
+    }
+
+    @Benchmark
+    @Group("polled")
+    @GroupThreads(1)
+    public Round.Snapshot polledSnapshot() {
+        return service.snapshot();
+    }
+}
@@ -0,0 +1,85 @@
+package com.fortumo.ws;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the throughput of the contended {@link SumService#doAdd(double)} with 1 to 256 adder threads. A background
+ * thread keeps sending the 'end' signal, so each operation is a full round trip of an adder: adding the number and
+ * waiting for the round to be complete.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dorg.slf4j.simpleLogger.defaultLogLevel=warn")
+@State(Scope.Benchmark)
+public class SumServiceBenchmark {
+
+    private final SumService service = new SumService();
+    private Thread ender;
+    private volatile boolean running;
+
+    @Setup(Level.Trial)
+    public void startEnder() {
+        running = true;
+        ender = new Thread(() -> {
+            while (running) {
+                service.doEnd();
+                Thread.onSpinWait();
+            }
+        }, "ender");
+        ender.setDaemon(true);
+        ender.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void stopEnder() throws InterruptedException {
+        running = false;
+        ender.join();
+        service.doEnd();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public double doAdd001() throws InterruptedException {
+        return service.doAdd(1);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public double doAdd004() throws InterruptedException {
+        return service.doAdd(1);
+    }
+
+    @Benchmark
+    @Threads(16)
+    public double doAdd016() throws InterruptedException {
+        return service.doAdd(1);
+    }
+
+    @Benchmark
+    @Threads(64)
+    public double doAdd064() throws InterruptedException {
+        return service.doAdd(1);
+    }
+
+    @Benchmark
+    @Threads(256)
+    public double doAdd256() throws InterruptedException {
+        return service.doAdd(1);
+    }
+}
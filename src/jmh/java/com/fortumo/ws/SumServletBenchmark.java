@@ -0,0 +1,60 @@
+package com.fortumo.ws;
+
+import jakarta.servlet.http.HttpServletResponse;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost of the request parsing and the response formatting in {@link SumServlet#doPost}. The service is
+ * stubbed, so that only the servlet overhead is measured. Run with <tt>-prof gc</tt> to see the allocations per
+ * request.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dorg.slf4j.simpleLogger.defaultLogLevel=warn")
+@State(Scope.Thread)
+public class SumServletBenchmark {
+
+    private final SumServlet servlet = new SumServlet() {
+        @Override
+        SumService createService() {
+            return new SumService() {
+                @Override
+                double doAdd(double number) {
+                    return 1234567.125;
+                }
+
+                @Override
+                double doEnd() {
+                    return 1234567.125;
+                }
+            };
+        }
+    };
+
+    private final HttpServletResponse response = ServletFakes.response();
+
+    @Benchmark
+    public HttpServletResponse postNumber() throws IOException {
+        servlet.doPost(ServletFakes.request("1234.5678"), response);
+        return response;
+    }
+
+    @Benchmark
+    public HttpServletResponse postEnd() throws IOException {
+        servlet.doPost(ServletFakes.request("end"), response);
+        return response;
+    }
+}
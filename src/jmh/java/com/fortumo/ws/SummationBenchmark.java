@@ -0,0 +1,68 @@
+package com.fortumo.ws;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the throughput of the contended accumulation path of a {@link Round} with each {@link Summation} strategy.
+ * The numbers added are integers of mixed magnitudes, so that every strategy accepts them.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+@State(Scope.Benchmark)
+public class SummationBenchmark {
+
+    @Param({"DOUBLE", "COMPENSATED", "EXACT", "FIXED_POINT"})
+    private String summation;
+
+    private Round round;
+
+    @Setup(Level.Iteration)
+    public void newRound() {
+        round = Summation.valueOf(summation).newRound();
+    }
+
+    /**
+     * The numbers an adder thread cycles through.
+     */
+    @State(Scope.Thread)
+    public static class Numbers {
+        private final double[] values = new double[1024];
+        private int index = 0;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            Random random = new Random(42);
+            for (int i = 0; i < values.length; i++) {
+                values[i] = Math.rint(random.nextGaussian() * Math.pow(10, random.nextInt(7)));
+            }
+        }
+
+        double next() {
+            return values[index++ & (values.length - 1)];
+        }
+    }
+
+    @Benchmark
+    public boolean add(Numbers numbers) {
+        return round.tryAdd(numbers.next());
+    }
+}
@@ -0,0 +1,274 @@
+package com.fortumo.ws;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.DoubleConsumer;
+
+/**
+ * The numbers of a batch request, collected while the body is streamed so that the batch is added to a
+ * {@link SumService} as a single add, each number accumulated with the {@link Summation} strategy of the round (see
+ * {@link #addEach(DoubleConsumer)}). The values that cannot be parsed or that the strategy rejects are skipped and
+ * reported as errors, they do not reject the rest of the batch. A batch takes 8 bytes per number, and 4 more for the
+ * line number of a text batch, so a batch holds at most a given number of numbers, after which the body is not read
+ * anymore and the batch is rejected with {@link TooLargeException}.
+ * <p>
+ * A batch body is either a text of newline separated numbers (see {@link #readText(InputStream)}) or a binary array of
+ * doubles (see {@link #readBinary(InputStream)}).
+ */
+final class Batch {
+
+    /**
+     * The default maximum number of the numbers of a batch, about 12 MB of a text batch.
+     */
+    static final int DEFAULT_MAX_COUNT = 1 << 20;
+
+    /**
+     * At most this many error messages are kept, the rest are only counted.
+     */
+    static final int MAX_ERRORS = 100;
+
+    /**
+     * The size of the buffer the binary values are read into, a multiple of {@link Double#BYTES}.
+     */
+    private static final int BINARY_BUFFER_SIZE = 8192;
+
+    /**
+     * The initial capacity of the {@link #numbers}.
+     */
+    private static final int INITIAL_CAPACITY = 16;
+
+    private double[] numbers = new double[INITIAL_CAPACITY];
+
+    /**
+     * The maximum number of the {@link #numbers}.
+     */
+    private final int maxCount;
+
+    /**
+     * The line numbers of the {@link #numbers} of a text batch, or null for a binary batch.
+     */
+    private int[] lines;
+    private int count = 0;
+    private int errorCount = 0;
+    private final List<String> errors = new ArrayList<>();
+
+    private Batch(int maxCount) {
+        if (maxCount < 1) {
+            throw new IllegalArgumentException("invalid maxCount=" + maxCount);
+        }
+        this.maxCount = maxCount;
+    }
+
+    /**
+     * Reads a text body of at most {@link #DEFAULT_MAX_COUNT} numbers, see {@link #readText(InputStream, int)}.
+     * @param in the stream to read.
+     * @return the batch read.
+     * @throws IOException       if the stream cannot be read.
+     * @throws TooLargeException if the body has more numbers.
+     */
+    static Batch readText(InputStream in) throws IOException {
+        return readText(in, DEFAULT_MAX_COUNT);
+    }
+
+    /**
+     * Reads a binary body of at most {@link #DEFAULT_MAX_COUNT} numbers, see {@link #readBinary(InputStream, int)}.
+     * @param in the stream to read.
+     * @return the batch read.
+     * @throws IOException       if the stream cannot be read.
+     * @throws TooLargeException if the body has more numbers.
+     */
+    static Batch readBinary(InputStream in) throws IOException {
+        return readBinary(in, DEFAULT_MAX_COUNT);
+    }
+
+    /**
+     * Reads a text body of numbers separated by '\n', '\r' or "\r\n". The blank lines are skipped, every other line
+     * must be a number accepted by {@link RequestBody#parseDouble()}.
+     * @param in       the stream to read.
+     * @param maxCount the maximum number of the numbers of the batch.
+     * @return the batch read.
+     * @throws IOException       if the stream cannot be read.
+     * @throws TooLargeException if the body has more numbers, in which case the rest of it is not read.
+     */
+    static Batch readText(InputStream in, int maxCount) throws IOException {
+        Batch batch = new Batch(maxCount);
+        batch.lines = new int[INITIAL_CAPACITY];
+        RequestBody line = new RequestBody();
+        int lineNumber = 0;
+        while (line.next(in)) {
+            lineNumber++;
+            if (line.isBlank()) {
+                continue;
+            }
+            if (line.isEnd()) {
+                batch.error("line " + lineNumber + ": 'end' is not allowed in a batch");
+                continue;
+            }
+            try {
+                batch.add(line.parseDouble(), lineNumber);
+            } catch (NumberFormatException e) {
+                batch.error("line " + lineNumber + ": not a number");
+            }
+        }
+        return batch;
+    }
+
+    /**
+     * Reads a binary body of doubles, each encoded in 8 bytes in big-endian order (see
+     * {@link java.io.DataOutput#writeDouble(double)}).
+     * @param in       the stream to read.
+     * @param maxCount the maximum number of the numbers of the batch.
+     * @return the batch read.
+     * @throws IOException       if the stream cannot be read.
+     * @throws TooLargeException if the body has more numbers, in which case the rest of it is not read.
+     */
+    static Batch readBinary(InputStream in, int maxCount) throws IOException {
+        Batch batch = new Batch(maxCount);
+        ByteBuffer buf = ByteBuffer.allocate(BINARY_BUFFER_SIZE);
+        int read;
+        while ((read = in.read(buf.array(), buf.position(), buf.remaining())) != -1) {
+            buf.position(buf.position() + read);
+            if (!buf.hasRemaining()) {
+                buf.flip();
+                batch.addAll(buf);
+                buf.compact();
+            }
+        }
+        buf.flip();
+        batch.addAll(buf);
+        if (buf.hasRemaining()) {
+            batch.error("value " + (batch.count + 1) + ": trailing " + buf.remaining() + " bytes are not a double");
+        }
+        return batch;
+    }
+
+    private void addAll(ByteBuffer buf) {
+        while (buf.remaining() >= Double.BYTES) {
+            add(buf.getDouble(), 0);
+        }
+    }
+
+    private void add(double number, int lineNumber) {
+        if (count == maxCount) {
+            throw new TooLargeException(maxCount);
+        }
+        if (count == numbers.length) {
+            int capacity = (int) Math.min(maxCount, count * 2L);
+            numbers = Arrays.copyOf(numbers, capacity);
+            if (lines != null) {
+                lines = Arrays.copyOf(lines, capacity);
+            }
+        }
+        numbers[count] = number;
+        if (lines != null) {
+            lines[count] = lineNumber;
+        }
+        count++;
+    }
+
+    /**
+     * Passes the numbers to the <tt>adder</tt> in order, and removes the ones it rejects with an
+     * {@link IllegalArgumentException} from the batch, each reported as an error with the message of the exception.
+     * @param adder adds a number, e.g. to a round.
+     * @return the number of the numbers left in the batch, i.e. the ones the <tt>adder</tt> accepted.
+     * @throws RuntimeException if the <tt>adder</tt> fails otherwise, in which case the batch is left with the numbers
+     *                          accepted before the failure only, so that the caller can undo them.
+     */
+    int addEach(DoubleConsumer adder) {
+        int kept = 0;
+        for (int i = 0; i < count; i++) {
+            try {
+                adder.accept(numbers[i]);
+            } catch (IllegalArgumentException e) {
+                error((lines != null ? "line " + lines[i] : "value " + (i + 1)) + ": " + e.getMessage());
+                continue;
+            } catch (RuntimeException e) {
+                count = kept;
+                throw e;
+            }
+            numbers[kept] = numbers[i];
+            if (lines != null) {
+                lines[kept] = lines[i];
+            }
+            kept++;
+        }
+        count = kept;
+        return kept;
+    }
+
+    private void error(String message) {
+        if (errorCount++ < MAX_ERRORS) {
+            errors.add(message);
+        }
+    }
+
+    /**
+     * @param index the index of a valid number, less than {@link #count()}.
+     * @return the number.
+     */
+    double number(int index) {
+        return numbers[index];
+    }
+
+    /**
+     * @return the number of valid numbers in the batch.
+     */
+    int count() {
+        return count;
+    }
+
+    /**
+     * @return the number of values that are rejected.
+     */
+    int errorCount() {
+        return errorCount;
+    }
+
+    /**
+     * Appends the errors as JSON members, e.g. <tt>"errors":["line 2: not a number"],"errorCount":1</tt>, where
+     * <tt>errors</tt> holds the first {@link #MAX_ERRORS} messages and <tt>errorCount</tt> counts all of them.
+     * @param out the builder to append to.
+     * @return the <tt>out</tt> builder.
+     */
+    StringBuilder appendErrorsJson(StringBuilder out) {
+        out.append("\"errors\":[");
+        for (int i = 0; i < errors.size(); i++) {
+            if (i > 0) {
+                out.append(',');
+            }
+            out.append('"');
+            String error = errors.get(i);
+            for (int j = 0; j < error.length(); j++) {
+                char c = error.charAt(j);
+                if (c == '"' || c == '\\') {
+                    out.append('\\');
+                }
+                out.append(c);
+            }
+            out.append('"');
+        }
+        return out.append("],\"errorCount\":").append(errorCount);
+    }
+
+    /**
+     * @return the messages of the first {@link #MAX_ERRORS} errors.
+     */
+    List<String> errors() {
+        return Collections.unmodifiableList(errors);
+    }
+
+    /**
+     * Thrown when a batch has more numbers than it may hold. It has no stack trace, since it is thrown at the rate of
+     * the oversized requests.
+     */
+    static final class TooLargeException extends RuntimeException {
+        TooLargeException(int maxCount) {
+            super("batch has more than maxCount=" + maxCount + " numbers", null, false, false);
+        }
+    }
+}
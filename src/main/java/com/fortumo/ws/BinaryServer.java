@@ -0,0 +1,605 @@
+package com.fortumo.ws;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * A TCP front end of the sessions with a compact binary protocol, for the producers that send numbers at a rate where
+ * the HTTP framing and the text parsing dominate the cost of a number. It drives the same sessions as
+ * {@link SumServlet}: an add is answered with the sum of its round once the round ends, and an 'end' is answered with
+ * the sum of the round it ends (of the cluster, if any).
+ * <p>
+ * A connection carries any number of pipelined requests. Each request has an id chosen by the client, and its
+ * response carries the same id, since the responses are sent as the requests complete, which is not necessarily the
+ * order they are received in. The frames are big-endian:
+ * <pre>
+ * request:  type (1) | request id (4) | session id length (1) | session id (UTF-8) | number (8, {@link #ADD} only)
+ * response: type (1) | request id (4) | sum (8, {@link #RESULT}) or status (2, {@link #ERROR})
+ * </pre>
+ * The status of an error is the HTTP status code the servlet answers with in the same case, e.g. <tt>400</tt> if the
+ * number is not accepted by the {@link Summation} strategy, <tt>429</tt> if the round is full and <tt>503</tt> if the
+ * number is withdrawn since the round did not end in time (see {@link SumService.Limits}). A malformed request is
+ * answered with <tt>400</tt> and the connection is closed, since its framing is lost. A request that fails
+ * unexpectedly, e.g. since the {@link Journal} cannot be written, is answered with <tt>500</tt> and its connection is
+ * closed too, while the loop keeps serving its other connections.
+ * <p>
+ * The connections are spread over a fixed number of event loops, each a thread with its own selector. A loop reads
+ * into a direct buffer that it shares with all its connections, only the incomplete frame at the end of a read is
+ * copied out of it. The responses are encoded by the threads that complete the requests (e.g. the one that ends the
+ * round) into the output buffer of the connection, and the loop writes all the responses that are pending for a
+ * connection with a single write. A connection with more than {@link #MAX_PENDING_OUTPUT} bytes of unsent responses
+ * is not read until the client catches up.
+ */
+final class BinaryServer implements Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(BinaryServer.class);
+
+    /**
+     * The type of a request that adds a number.
+     */
+    static final byte ADD = 1;
+
+    /**
+     * The type of a request that ends the round.
+     */
+    static final byte END = 2;
+
+    /**
+     * The type of a response with the sum of a round.
+     */
+    static final byte RESULT = 3;
+
+    /**
+     * The type of a response with an error status.
+     */
+    static final byte ERROR = 4;
+
+    /**
+     * The maximum length of a session id, in bytes.
+     */
+    static final int MAX_SESSION_ID_LENGTH = 128;
+
+    /**
+     * The size of the header of a request, up to the session id.
+     */
+    private static final int HEADER_SIZE = 6;
+
+    /**
+     * The maximum size of a request.
+     */
+    static final int MAX_REQUEST_SIZE = HEADER_SIZE + MAX_SESSION_ID_LENGTH + Double.BYTES;
+
+    /**
+     * The size of a {@link #RESULT} response.
+     */
+    static final int RESULT_SIZE = 5 + Double.BYTES;
+
+    /**
+     * The size of an {@link #ERROR} response.
+     */
+    static final int ERROR_SIZE = 5 + Short.BYTES;
+
+    /**
+     * The size of the read buffer of a loop.
+     */
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * The number of unsent response bytes after which a connection is not read anymore until they are sent.
+     */
+    static final int MAX_PENDING_OUTPUT = 1 << 20;
+
+    private final SumServiceRegistry sessions;
+    private final SumCluster cluster;
+    private final Metrics metrics;
+    private final ServerSocketChannel acceptor;
+    private final Loop[] loops;
+
+    /**
+     * The loop the next accepted connection is assigned to, accessed by the first loop only.
+     */
+    private int nextLoop = 0;
+
+    private volatile boolean closed = false;
+
+    /**
+     * Binds the server socket and starts the loops.
+     * @param sessions  the sessions to drive.
+     * @param cluster   the cluster that the 'end' signal is coordinated with, or null.
+     * @param metrics   the metrics the requests are recorded to.
+     * @param address   the address to listen on, with port 0 for a free port.
+     * @param loopCount the number of the event loops.
+     * @throws IOException if the server socket cannot be bound.
+     */
+    BinaryServer(SumServiceRegistry sessions, SumCluster cluster, Metrics metrics, InetSocketAddress address,
+                 int loopCount) throws IOException {
+        if (loopCount < 1) {
+            throw new IllegalArgumentException("invalid loopCount=" + loopCount);
+        }
+        this.sessions = sessions;
+        this.cluster = cluster;
+        this.metrics = metrics;
+        this.acceptor = ServerSocketChannel.open();
+        this.loops = new Loop[loopCount];
+        try {
+            acceptor.bind(address);
+            acceptor.configureBlocking(false);
+            for (int i = 0; i < loopCount; i++) {
+                loops[i] = new Loop(i);
+            }
+            acceptor.register(loops[0].selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+        for (Loop loop : loops) {
+            loop.thread.start();
+        }
+        LOG.info("binary server listening on {} with {} loops", acceptor.getLocalAddress(), loopCount);
+    }
+
+    /**
+     * @return the port the server listens on.
+     */
+    int port() {
+        return acceptor.socket().getLocalPort();
+    }
+
+    /**
+     * Stops the loops and closes all the connections. The requests that are pending are not answered.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        for (Loop loop : loops) {
+            if (loop != null) {
+                loop.selector.wakeup();
+                try {
+                    loop.thread.join(1_000);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+        try {
+            acceptor.close();
+        } catch (IOException e) {
+            LOG.warn("cannot close the server socket, cause={}", e.getMessage());
+        }
+    }
+
+    /**
+     * Encodes a request that adds the <tt>number</tt>.
+     * @param out       the buffer to encode into.
+     * @param id        the id of the request.
+     * @param sessionId the id of the session, in UTF-8.
+     * @param number    the number to add.
+     */
+    static void writeAdd(ByteBuffer out, int id, byte[] sessionId, double number) {
+        out.put(ADD).putInt(id).put((byte) sessionId.length).put(sessionId).putDouble(number);
+    }
+
+    /**
+     * Encodes a request that ends the round.
+     * @param out       the buffer to encode into.
+     * @param id        the id of the request.
+     * @param sessionId the id of the session, in UTF-8.
+     */
+    static void writeEnd(ByteBuffer out, int id, byte[] sessionId) {
+        out.put(END).putInt(id).put((byte) sessionId.length).put(sessionId);
+    }
+
+    /**
+     * Adds the number to the session and answers with the sum of its round once the round ends.
+     */
+    private void add(Connection connection, int id, String sessionId, double number, long start) {
+        CompletableFuture<Double> result;
+        try {
+            result = sessions.call(sessionId, service -> service.add(number));
+        } catch (IllegalArgumentException e) {
+            LOG.debug(e.getMessage());
+            connection.error(id, 400);
+            return;
+        } catch (SumService.OverloadedException e) {
+            LOG.debug(e.getMessage());
+            connection.error(id, 429);
+            return;
+        } catch (RejectedExecutionException | InterruptedException e) {
+            LOG.warn(e.getMessage());
+            connection.error(id, 503);
+            return;
+        }
+        result.whenComplete((sum, error) -> {
+            if (error == null) {
+                connection.result(id, sum);
+                metrics.onRequest(Metrics.RequestType.ADD, start);
+            } else if (error instanceof SumService.TimedOutException) {
+                LOG.debug(error.getMessage());
+                connection.error(id, 503);
+            } else {
+                LOG.error(error.getMessage());
+                connection.error(id, 500);
+            }
+        });
+    }
+
+    /**
+     * Ends the round of the session, or coordinates the cut of the cluster, and answers with its sum.
+     */
+    private void end(Connection connection, int id, String sessionId, long start) {
+        CompletableFuture<Double> result;
+        try {
+            result = cluster == null ? sessions.call(sessionId, SumService::end) : cluster.end(sessionId);
+        } catch (RejectedExecutionException | InterruptedException e) {
+            LOG.warn(e.getMessage());
+            connection.error(id, 503);
+            return;
+        }
+        result.whenComplete((sum, error) -> {
+            if (error == null) {
+                connection.result(id, sum);
+                metrics.onRequest(Metrics.RequestType.END, start);
+            } else {
+                LOG.error(error.getMessage());
+                connection.error(id, 500);
+            }
+        });
+    }
+
+    /**
+     * An event loop, which accepts (the first one only), reads and writes the connections registered with its
+     * selector.
+     */
+    private final class Loop implements Runnable {
+        private final Selector selector;
+        private final Thread thread;
+        private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+
+        /**
+         * The connections accepted by the first loop, to be registered with this one.
+         */
+        private final Queue<SocketChannel> accepted = new ConcurrentLinkedQueue<>();
+
+        /**
+         * The connections that have responses to write.
+         */
+        private final Queue<Connection> flushes = new ConcurrentLinkedQueue<>();
+
+        Loop(int index) throws IOException {
+            this.selector = Selector.open();
+            this.thread = new Thread(this, "sum-binary-" + index);
+            thread.setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!closed) {
+                    selector.select(this::handle);
+                    SocketChannel channel;
+                    while ((channel = accepted.poll()) != null) {
+                        register(channel);
+                    }
+                    Connection connection;
+                    while ((connection = flushes.poll()) != null) {
+                        flush(connection);
+                    }
+                }
+            } catch (IOException | ClosedSelectorException e) {
+                LOG.error("binary server loop failed", e);
+            } finally {
+                for (SelectionKey key : selector.keys()) {
+                    if (key.attachment() instanceof Connection connection) {
+                        connection.close();
+                    }
+                }
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                    LOG.warn("cannot close the selector, cause={}", e.getMessage());
+                }
+            }
+        }
+
+        /**
+         * Reads or writes the connection of the key, or accepts the new connections. A connection that fails is
+         * closed, so that it does not stop the loop.
+         */
+        private void handle(SelectionKey key) {
+            if (!key.isValid()) {
+                return;
+            }
+            if (key.isAcceptable()) {
+                accept();
+                return;
+            }
+            Connection connection = (Connection) key.attachment();
+            try {
+                if (key.isReadable()) {
+                    connection.read();
+                }
+                if (key.isValid() && key.isWritable()) {
+                    connection.flush();
+                }
+            } catch (RuntimeException e) {
+                LOG.error("binary connection failed", e);
+                connection.close();
+            }
+        }
+
+        /**
+         * Writes the pending responses of the connection, which is closed if it fails.
+         */
+        private void flush(Connection connection) {
+            try {
+                connection.flush();
+            } catch (RuntimeException e) {
+                LOG.error("binary connection failed", e);
+                connection.close();
+            }
+        }
+
+        private void accept() {
+            try {
+                SocketChannel channel;
+                while ((channel = acceptor.accept()) != null) {
+                    channel.configureBlocking(false);
+                    channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                    Loop loop = loops[nextLoop];
+                    nextLoop = (nextLoop + 1) % loops.length;
+                    if (loop == this) {
+                        register(channel);
+                    } else {
+                        loop.accepted.add(channel);
+                        loop.selector.wakeup();
+                    }
+                }
+            } catch (IOException e) {
+                LOG.warn("cannot accept a connection, cause={}", e.getMessage());
+            }
+        }
+
+        private void register(SocketChannel channel) {
+            try {
+                Connection connection = new Connection(channel, this);
+                connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+            } catch (IOException e) {
+                LOG.warn("cannot register a connection, cause={}", e.getMessage());
+            }
+        }
+
+        /**
+         * Schedules the connection to be flushed by this loop. Called by any thread.
+         */
+        void schedule(Connection connection) {
+            flushes.add(connection);
+            if (Thread.currentThread() != thread) {
+                selector.wakeup();
+            }
+        }
+    }
+
+    /**
+     * A connection, read by its loop only. The responses are written by any thread.
+     */
+    private final class Connection {
+        private final SocketChannel channel;
+        private final Loop loop;
+        private SelectionKey key;
+
+        // accessed by the loop only.
+        private final byte[] partial = new byte[MAX_REQUEST_SIZE];
+        private int partialLength = 0;
+        private boolean failed = false;
+        private byte[] lastSession = new byte[0];
+        private String lastSessionId = SumServiceRegistry.DEFAULT_SESSION;
+
+        // guarded by this.
+        private ByteBuffer output = ByteBuffer.allocate(256);
+        private boolean flushScheduled = false;
+        private boolean closed = false;
+
+        Connection(SocketChannel channel, Loop loop) {
+            this.channel = channel;
+            this.loop = loop;
+        }
+
+        /**
+         * Reads the available bytes and handles the complete requests.
+         */
+        void read() {
+            ByteBuffer in = loop.readBuffer;
+            in.clear();
+            in.put(partial, 0, partialLength);
+            int read;
+            try {
+                read = channel.read(in);
+            } catch (IOException e) {
+                LOG.debug("connection is gone, cause={}", e.getMessage());
+                close();
+                return;
+            }
+            if (read < 0) {
+                close();
+                return;
+            }
+            in.flip();
+            while (!failed && handle(in)) {
+                // handles the next request.
+            }
+            partialLength = in.remaining();
+            in.get(partial, 0, partialLength);
+        }
+
+        /**
+         * @param in the bytes read.
+         * @return true if a request is handled, false if the rest of the buffer is not a complete request.
+         */
+        private boolean handle(ByteBuffer in) {
+            int start = in.position();
+            if (in.remaining() < HEADER_SIZE) {
+                return false;
+            }
+            byte type = in.get(start);
+            int id = in.getInt(start + 1);
+            int sessionLength = in.get(start + 5) & 0xff;
+            if ((type != ADD && type != END) || sessionLength > MAX_SESSION_ID_LENGTH) {
+                LOG.debug("malformed request type={}, sessionLength={}", type, sessionLength);
+                failed = true;
+                in.position(in.limit());
+                error(id, 400);
+                return false;
+            }
+            int size = HEADER_SIZE + sessionLength + (type == ADD ? Double.BYTES : 0);
+            if (in.remaining() < size) {
+                return false;
+            }
+            long received = System.nanoTime();
+            String sessionId = sessionId(in, start + HEADER_SIZE, sessionLength);
+            try {
+                if (type == ADD) {
+                    add(this, id, sessionId, in.getDouble(start + HEADER_SIZE + sessionLength), received);
+                } else {
+                    end(this, id, sessionId, received);
+                }
+            } catch (RuntimeException e) {
+                LOG.error("cannot handle request id={}, session={}", id, sessionId, e);
+                failed = true;  // the connection is closed once the error is sent.
+                in.position(in.limit());
+                error(id, 500);
+                return false;
+            }
+            in.position(start + size);
+            return true;
+        }
+
+        /**
+         * Decodes the session id, which is usually the same as the one of the previous request.
+         */
+        private String sessionId(ByteBuffer in, int offset, int length) {
+            if (length == lastSession.length) {
+                int i = 0;
+                while (i < length && in.get(offset + i) == lastSession[i]) {
+                    i++;
+                }
+                if (i == length) {
+                    return lastSessionId;
+                }
+            }
+            byte[] bytes = new byte[length];
+            in.get(offset, bytes);
+            lastSession = bytes;
+            lastSessionId = new String(bytes, StandardCharsets.UTF_8);
+            return lastSessionId;
+        }
+
+        /**
+         * Sends the sum of a round. Called by any thread.
+         */
+        void result(int id, double sum) {
+            boolean schedule;
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                reserve(RESULT_SIZE);
+                output.put(RESULT).putInt(id).putDouble(sum);
+                schedule = !flushScheduled;
+                flushScheduled = true;
+            }
+            if (schedule) {
+                loop.schedule(this);
+            }
+        }
+
+        /**
+         * Sends an error status. Called by any thread.
+         */
+        void error(int id, int status) {
+            metrics.onError();
+            boolean schedule;
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                reserve(ERROR_SIZE);
+                output.put(ERROR).putInt(id).putShort((short) status);
+                schedule = !flushScheduled;
+                flushScheduled = true;
+            }
+            if (schedule) {
+                loop.schedule(this);
+            }
+        }
+
+        private void reserve(int size) {
+            if (output.remaining() < size) {
+                ByteBuffer grown = ByteBuffer.allocate(Math.max(output.capacity() * 2, output.position() + size));
+                output.flip();
+                output = grown.put(output);
+            }
+        }
+
+        /**
+         * Writes the pending responses, and reads the connection only while the client keeps up with them. Called by
+         * the loop only.
+         */
+        void flush() {
+            synchronized (this) {
+                flushScheduled = false;
+                if (closed) {
+                    return;
+                }
+                output.flip();
+                try {
+                    channel.write(output);
+                } catch (IOException e) {
+                    LOG.debug("connection is gone, cause={}", e.getMessage());
+                    output.clear();
+                    close();
+                    return;
+                }
+                output.compact();
+                int pending = output.position();
+                if (pending == 0 && failed) {
+                    close();
+                    return;
+                }
+                int ops = pending > 0 ? SelectionKey.OP_WRITE : 0;
+                if (pending < MAX_PENDING_OUTPUT && !failed) {
+                    ops |= SelectionKey.OP_READ;
+                }
+                key.interestOps(ops);
+            }
+        }
+
+        synchronized void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                LOG.debug("cannot close the connection, cause={}", e.getMessage());
+            }
+        }
+    }
+}
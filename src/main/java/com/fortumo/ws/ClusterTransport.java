@@ -0,0 +1,37 @@
+package com.fortumo.ws;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Carries the calls of a {@link SumCluster} coordinator to the other nodes of the cluster. Every call is asynchronous,
+ * so a coordinator calls all the nodes in parallel. The implementations must be thread-safe.
+ */
+interface ClusterTransport {
+
+    /**
+     * Calls {@link SumService#cut()} on the session of the node.
+     * @param node      the address of the node.
+     * @param sessionId the id of the session.
+     * @return a future completed with the cut, or completed exceptionally if the node cannot be called.
+     */
+    CompletableFuture<SumService.Cut> cut(String node, String sessionId);
+
+    /**
+     * Calls {@link SumService#complete(long, double)} on the session of the node.
+     * @param node      the address of the node.
+     * @param sessionId the id of the session.
+     * @param cut       the id of the cut.
+     * @param total     the total of the cluster.
+     * @return a future completed once the node completed its clients.
+     */
+    CompletableFuture<Void> complete(String node, String sessionId, long cut, double total);
+
+    /**
+     * Calls {@link SumService#abort(long, Throwable)} on the session of the node.
+     * @param node      the address of the node.
+     * @param sessionId the id of the session.
+     * @param cut       the id of the cut.
+     * @return a future completed once the node failed its clients.
+     */
+    CompletableFuture<Void> abort(String node, String sessionId, long cut);
+}
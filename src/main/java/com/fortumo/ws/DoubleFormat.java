@@ -0,0 +1,158 @@
+package com.fortumo.ws;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+import java.util.Locale;
+
+/**
+ * Formats the values with the semantics of the <tt>"0.###"</tt> {@link DecimalFormat} pattern, i.e. at most three
+ * fraction digits rounded half-even and no decimal places if the value is an integer. The digits are written directly
+ * into the output stream without any allocation. The rare values that cannot be formatted this way (i.e. non-finite,
+ * very large, or too close to a rounding tie) are formatted with a {@link DecimalFormat}. This class is thread-safe.
+ * <p>
+ * Note that the root locale symbols are used, so the decimal separator is always '.'.
+ * <p>
+ * The {@link #line(double) lines} of the recent values are cached, so the many responses that carry the sum of the
+ * same round share a single encoding of it.
+ */
+final class DoubleFormat {
+
+    /**
+     * The reference format that handles the values not supported by the fast path.
+     */
+    private static final DecimalFormat DECIMAL_FORMAT =
+            new DecimalFormat("0.###", DecimalFormatSymbols.getInstance(Locale.ROOT));
+
+    /**
+     * Values below this limit have an ulp smaller than half of the last fraction digit, so that rounding the exact
+     * binary value gives the same result as the {@link #DECIMAL_FORMAT}.
+     */
+    private static final double FAST_PATH_LIMIT = 0x1p42;
+
+    /**
+     * The lines of the recently formatted values, in a direct mapped cache indexed by a hash of the value.
+     */
+    private static final Line[] LINES = new Line[256];
+
+    private DoubleFormat() {
+    }
+
+    /**
+     * Writes the formatted <tt>value</tt> to the <tt>out</tt> stream.
+     * @param value the value to format.
+     * @param out   the stream to write to.
+     * @throws IOException if the stream cannot be written.
+     */
+    static void write(double value, OutputStream out) throws IOException {
+        double abs = Math.abs(value);
+        if (!(abs < FAST_PATH_LIMIT)) {  // also true for NaN
+            writeFallback(value, out);
+            return;
+        }
+        double scaled = abs * 1000;
+        double error = Math.fma(abs, 1000, -scaled);  // abs * 1000 == scaled + error, exactly.
+        double floor = Math.floor(scaled);
+        double distance = (scaled - floor - 0.5) + error;  // signed distance from the rounding boundary.
+        if (Math.abs(distance) <= 2 * Math.ulp(scaled)) {
+            writeFallback(value, out);  // a (near) tie, let the reference format decide.
+            return;
+        }
+        long units = (long) floor + (distance > 0 ? 1 : 0);
+        if (Double.doubleToRawLongBits(value) < 0) {
+            out.write('-');
+        }
+        writeDigits(units / 1000, out);
+        int fraction = (int) (units % 1000);
+        if (fraction != 0) {
+            out.write('.');
+            out.write('0' + fraction / 100);
+            if (fraction % 100 != 0) {
+                out.write('0' + fraction / 10 % 10);
+                if (fraction % 10 != 0) {
+                    out.write('0' + fraction % 10);
+                }
+            }
+        }
+    }
+
+    /**
+     * @param value the value to format.
+     * @return the formatted value.
+     */
+    static String format(double value) {
+        try (ByteArrayOutputStream out = new ByteArrayOutputStream(24)) {
+            write(value, out);
+            return out.toString(StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);  // never thrown by the byte array stream.
+        }
+    }
+
+    /**
+     * Formats the <tt>value</tt> followed by <tt>CRLF</tt>, or returns the cached line of an earlier call with the
+     * same value. The cache is read and written without a lock: a {@link Line} is immutable, so a racing caller at
+     * worst formats the value once more.
+     * @param value the value to format.
+     * @return the UTF-8 bytes of the line, shared and must not be modified.
+     */
+    static byte[] line(double value) {
+        long bits = Double.doubleToRawLongBits(value);
+        int hash = Long.hashCode(bits * 0x9E3779B97F4A7C15L);
+        int slot = (hash ^ hash >>> 16) & (LINES.length - 1);
+        Line line = LINES[slot];
+        if (line == null || line.bits != bits) {
+            try (ByteArrayOutputStream out = new ByteArrayOutputStream(24)) {
+                write(value, out);
+                out.write('\r');
+                out.write('\n');
+                line = new Line(bits, out.toByteArray());
+            } catch (IOException e) {
+                throw new IllegalStateException(e);  // never thrown by the byte array stream.
+            }
+            LINES[slot] = line;
+        }
+        return line.bytes;
+    }
+
+    /**
+     * The formatted line of a value, published through its final fields.
+     */
+    private static final class Line {
+        private final long bits;
+        private final byte[] bytes;
+
+        Line(long bits, byte[] bytes) {
+            this.bits = bits;
+            this.bytes = bytes;
+        }
+    }
+
+    /**
+     * Writes the decimal digits of the non-negative <tt>number</tt>.
+     */
+    private static void writeDigits(long number, OutputStream out) throws IOException {
+        long divisor = 1;
+        while (divisor <= number / 10) {
+            divisor *= 10;
+        }
+        for (; divisor > 0; divisor /= 10) {
+            out.write('0' + (int) (number / divisor % 10));
+        }
+    }
+
+    /**
+     * Writes the <tt>value</tt> formatted with the {@link #DECIMAL_FORMAT}, which is not thread-safe. The lock is only
+     * held while formatting and is never held while blocking.
+     */
+    private static void writeFallback(double value, OutputStream out) throws IOException {
+        String formatted;
+        synchronized (DECIMAL_FORMAT) {
+            formatted = DECIMAL_FORMAT.format(value);
+        }
+        out.write(formatted.getBytes(StandardCharsets.UTF_8));
+    }
+}
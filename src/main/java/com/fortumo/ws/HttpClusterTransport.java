@@ -0,0 +1,99 @@
+package com.fortumo.ws;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * A {@link ClusterTransport} over HTTP, which calls the {@link SumServlet} of the other nodes. A node is addressed by
+ * the base URL of its servlet, e.g. <tt>http://10.0.0.2:8080/sum</tt>, and the calls are the <tt>POST</tt> requests
+ * described in {@link SumCluster}. The connections are kept alive and shared by all the calls.
+ * <p>
+ * Every call carries the shared secret of the cluster in the {@link #SECRET_HEADER} header, so that a node serves the
+ * calls of the other nodes only, see {@link #authenticates(String, String)}.
+ */
+final class HttpClusterTransport implements ClusterTransport {
+
+    /**
+     * The header of a cluster call that carries the shared secret of the cluster.
+     */
+    static final String SECRET_HEADER = "X-Cluster-Secret";
+
+    private final HttpClient client;
+
+    private final Duration timeout;
+
+    /**
+     * The shared secret of the cluster.
+     */
+    private final String secret;
+
+    /**
+     * @param timeout the timeout of a call.
+     * @param secret  the shared secret of the cluster.
+     * @throws IllegalArgumentException if the secret is empty.
+     */
+    HttpClusterTransport(Duration timeout, String secret) {
+        if (secret == null || secret.isBlank()) {
+            throw new IllegalArgumentException("the cluster secret is empty");
+        }
+        this.client = HttpClient.newBuilder().connectTimeout(timeout).build();
+        this.timeout = timeout;
+        this.secret = secret;
+    }
+
+    /**
+     * Compares the secrets in constant time, so that the time of a rejection does not leak the secret.
+     * @param secret the shared secret of the cluster.
+     * @param header the {@link #SECRET_HEADER} of a call, may be null.
+     * @return true if the call carries the secret.
+     */
+    static boolean authenticates(String secret, String header) {
+        return header != null && MessageDigest.isEqual(
+                secret.getBytes(StandardCharsets.UTF_8), header.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public CompletableFuture<SumService.Cut> cut(String node, String sessionId) {
+        return send(node, sessionId, SumCluster.CUT_PARAM, "").thenApply(SumCluster::parseCut);
+    }
+
+    @Override
+    public CompletableFuture<Void> complete(String node, String sessionId, long cut, double total) {
+        return send(node, sessionId, SumCluster.COMPLETE_PARAM + "=" + cut, Double.toString(total))
+                .thenApply(body -> null);
+    }
+
+    @Override
+    public CompletableFuture<Void> abort(String node, String sessionId, long cut) {
+        return send(node, sessionId, SumCluster.ABORT_PARAM + "=" + cut, "").thenApply(body -> null);
+    }
+
+    /**
+     * @return a future completed with the body of the response, or completed exceptionally if the status is not 200.
+     */
+    private CompletableFuture<String> send(String node, String sessionId, String query, String body) {
+        String path = URLEncoder.encode(sessionId, StandardCharsets.UTF_8).replace("+", "%20");
+        HttpRequest request = HttpRequest.newBuilder(URI.create(node + "/" + path + "?" + query))
+                .timeout(timeout)
+                .header(SECRET_HEADER, secret)
+                .POST(HttpRequest.BodyPublishers.ofString(body, StandardCharsets.UTF_8))
+                .build();
+        return client.sendAsync(request, HttpResponse.BodyHandlers.ofString(StandardCharsets.UTF_8))
+                .thenApply(response -> {
+                    if (response.statusCode() != 200) {
+                        throw new CompletionException(new IOException(
+                                "node=" + node + " answered status=" + response.statusCode() + " to " + query));
+                    }
+                    return response.body();
+                });
+    }
+}
@@ -0,0 +1,255 @@
+package com.fortumo.ws;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+/**
+ * The idempotency keys of the adds of a {@link Round}, each mapped to a value of the add that claimed it first, so
+ * that a retried add finds the original one instead of being counted again. This class is thread-safe.
+ * <p>
+ * The keys are longs (see {@link #hash(CharSequence)}), kept in open-addressing tables with linear probing, without
+ * a boxed key or an entry object per add. The keys are striped over {@link #STRIPE_COUNT} tables, each guarded by a
+ * spin lock of its own, so only the adds whose keys fall into the same stripe contend. A table grows by doubling once
+ * it is half full, so a key takes at most 4 slots of a long and a reference each, and the keys of a round are dropped
+ * along with the round.
+ *
+ * @param <V> the type of the values.
+ */
+final class IdempotencyKeys<V> {
+
+    /**
+     * The key of an add that has no idempotency key.
+     */
+    static final long NONE = 0;
+
+    /**
+     * The number of the stripes, a power of two.
+     */
+    static final int STRIPE_COUNT = Round.CELL_COUNT;
+
+    /**
+     * The initial capacity of the table of a stripe, a power of two.
+     */
+    private static final int INITIAL_CAPACITY = 8;
+
+    private final Stripe[] stripes = new Stripe[STRIPE_COUNT];
+
+    IdempotencyKeys() {
+        for (int i = 0; i < STRIPE_COUNT; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    /**
+     * Maps the <tt>key</tt> to the <tt>value</tt>, unless it is already mapped.
+     * @param key   the key, not {@link #NONE}.
+     * @param value the value.
+     * @return the value the key is already mapped to, or null if it is mapped to the <tt>value</tt> now.
+     */
+    @SuppressWarnings("unchecked")
+    V putIfAbsent(long key, V value) {
+        long hash = mix(key);
+        Stripe stripe = stripe(hash);
+        stripe.lock();
+        try {
+            int slot = stripe.find(key, hash);
+            if (slot >= 0) {
+                return (V) stripe.values[slot];
+            }
+            stripe.insert(key, hash, value);
+            return null;
+        } finally {
+            stripe.unlock();
+        }
+    }
+
+    /**
+     * @param key the key.
+     * @return the value the key is mapped to, or null.
+     */
+    @SuppressWarnings("unchecked")
+    V get(long key) {
+        long hash = mix(key);
+        Stripe stripe = stripe(hash);
+        stripe.lock();
+        try {
+            int slot = stripe.find(key, hash);
+            return slot >= 0 ? (V) stripe.values[slot] : null;
+        } finally {
+            stripe.unlock();
+        }
+    }
+
+    /**
+     * Removes the mapping of the <tt>key</tt>, e.g. once the add that claimed it is not counted after all.
+     * @param key the key.
+     * @return true if the key was mapped.
+     */
+    boolean remove(long key) {
+        long hash = mix(key);
+        Stripe stripe = stripe(hash);
+        stripe.lock();
+        try {
+            int slot = stripe.find(key, hash);
+            if (slot < 0) {
+                return false;
+            }
+            stripe.delete(slot);
+            return true;
+        } finally {
+            stripe.unlock();
+        }
+    }
+
+    /**
+     * Note that the result is exact only if the keys are not modified meanwhile.
+     * @return the number of the mapped keys.
+     */
+    int size() {
+        int size = 0;
+        for (Stripe stripe : stripes) {
+            stripe.lock();
+            try {
+                size += stripe.size;
+            } finally {
+                stripe.unlock();
+            }
+        }
+        return size;
+    }
+
+    private Stripe stripe(long hash) {
+        return stripes[(int) (hash >>> 32) & (STRIPE_COUNT - 1)];
+    }
+
+    /**
+     * Spreads the bits of a key, so that the keys that are not random, e.g. the ids of a counter, still spread over
+     * the stripes and the slots.
+     */
+    private static long mix(long key) {
+        return key * 0x9E3779B97F4A7C15L;
+    }
+
+    /**
+     * Hashes an idempotency key received from a client into the key of this table, with the 64-bit FNV-1a hash of its
+     * characters followed by the finalizer of MurmurHash3. Two different keys of the same round share a hash with a
+     * probability of about <tt>n^2 / 2^65</tt> for <tt>n</tt> keys, in which case the later one is taken for a retry.
+     * @param key the key received from a client, not empty.
+     * @return the hash of the key, never {@link #NONE}.
+     */
+    static long hash(CharSequence key) {
+        long hash = 0xCBF29CE484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            hash = (hash ^ key.charAt(i)) * 0x100000001B3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xFF51AFD7ED558CCDL;
+        hash ^= hash >>> 33;
+        hash *= 0xC4CEB9FE1A85EC53L;
+        hash ^= hash >>> 33;
+        return hash == NONE ? 1 : hash;
+    }
+
+    /**
+     * An open-addressing table of the keys of a stripe, the empty slots hold {@link #NONE}. The fields are accessed
+     * only while the lock is held.
+     */
+    private static final class Stripe {
+        private long[] keys = new long[INITIAL_CAPACITY];
+        private Object[] values = new Object[INITIAL_CAPACITY];
+        private int size = 0;
+
+        /**
+         * The spin lock of the stripe, 1 if held.
+         */
+        private volatile int locked = 0;
+
+        private static final VarHandle LOCKED;
+
+        static {
+            try {
+                LOCKED = MethodHandles.lookup().findVarHandle(Stripe.class, "locked", int.class);
+            } catch (ReflectiveOperationException e) {
+                throw new ExceptionInInitializerError(e);
+            }
+        }
+
+        /**
+         * Yields now and then while spinning, since the holder of the lock may have been descheduled.
+         */
+        void lock() {
+            for (int spins = 1; !LOCKED.weakCompareAndSetAcquire(this, 0, 1); spins++) {
+                if ((spins & 63) == 0) {
+                    Thread.yield();
+                } else {
+                    Thread.onSpinWait();
+                }
+            }
+        }
+
+        void unlock() {
+            LOCKED.setRelease(this, 0);
+        }
+
+        /**
+         * @return the slot of the <tt>key</tt>, or -1 if it is not in the table.
+         */
+        int find(long key, long hash) {
+            int mask = keys.length - 1;
+            for (int slot = (int) hash & mask; keys[slot] != NONE; slot = (slot + 1) & mask) {
+                if (keys[slot] == key) {
+                    return slot;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Inserts a key that is not in the table, after doubling the table if it is half full.
+         */
+        void insert(long key, long hash, Object value) {
+            if (++size * 2 > keys.length) {
+                long[] oldKeys = keys;
+                Object[] oldValues = values;
+                keys = new long[oldKeys.length * 2];
+                values = new Object[oldKeys.length * 2];
+                for (int i = 0; i < oldKeys.length; i++) {
+                    if (oldKeys[i] != NONE) {
+                        place(oldKeys[i], mix(oldKeys[i]), oldValues[i]);
+                    }
+                }
+            }
+            place(key, hash, value);
+        }
+
+        private void place(long key, long hash, Object value) {
+            int mask = keys.length - 1;
+            int slot = (int) hash & mask;
+            while (keys[slot] != NONE) {
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = key;
+            values[slot] = value;
+        }
+
+        /**
+         * Empties the <tt>slot</tt> and shifts the keys probed past it back, so that the table needs no tombstones.
+         */
+        void delete(int slot) {
+            int mask = keys.length - 1;
+            int hole = slot;
+            for (int next = (hole + 1) & mask; keys[next] != NONE; next = (next + 1) & mask) {
+                int home = (int) mix(keys[next]) & mask;
+                // moves the key to the hole unless its home slot is cyclically after the hole, up to its slot.
+                if (((next - home) & mask) >= ((next - hole) & mask)) {
+                    keys[hole] = keys[next];
+                    values[hole] = values[next];
+                    hole = next;
+                }
+            }
+            keys[hole] = NONE;
+            values[hole] = null;
+            size--;
+        }
+    }
+}
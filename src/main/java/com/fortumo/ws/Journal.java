@@ -0,0 +1,341 @@
+package com.fortumo.ws;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.DoubleConsumer;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * The write-ahead log of a session, which keeps the numbers added to the current round on disk so that they survive
+ * a restart. This class is thread-safe.
+ * <p>
+ * Every round writes to its own {@link Segment}, a file that is memory-mapped in chunks of {@link #CHUNK_SIZE} bytes
+ * and created on the first add. A segment is deleted once its round is ended, which keeps the log as small as the
+ * current round. On startup, the segments left by the previous run are replayed into the first round, and are deleted
+ * only when that round is ended, so a crash during the recovery does not lose or double count any number.
+ */
+final class Journal {
+
+    private static final Logger LOG = LoggerFactory.getLogger(Journal.class);
+
+    /**
+     * When an add is considered durable.
+     */
+    enum Durability {
+        /**
+         * Every add waits until its record is forced to the disk. The concurrent adders share the forces (group
+         * commit), so the cost of an fsync is amortized over all the adders that wait for it.
+         */
+        SYNC,
+        /**
+         * The records are written to the mapped memory only and flushed by the operating system. An add survives a
+         * crash of the process, but not a crash of the machine.
+         */
+        ASYNC
+    }
+
+    /**
+     * The size of the mapped chunks of a segment, a power of two.
+     */
+    static final int CHUNK_SIZE = 1 << 20;
+
+    /**
+     * The size of a record: the {@link #MAGIC} marker followed by the number.
+     */
+    static final int RECORD_SIZE = 16;
+
+    /**
+     * The maximum number of chunks of a segment.
+     */
+    private static final int MAX_CHUNKS = 4096;
+
+    /**
+     * Marks a record that is completely written. The slots that are not written are zero-filled, so they are ignored.
+     */
+    private static final long MAGIC = 0x5355_4D57_414C_0001L;
+
+    private static final String SUFFIX = ".wal";
+
+    private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
+    private final Path dir;
+    private final String prefix;
+    private final Durability durability;
+    private final AtomicLong nextSegment;
+
+    /**
+     * @param dir        the directory of the segment files, created if it does not exist.
+     * @param sessionId  the id of the session.
+     * @param durability when an add is considered durable.
+     * @throws UncheckedIOException if the directory cannot be read.
+     */
+    Journal(Path dir, String sessionId, Durability durability) {
+        this.dir = dir;
+        this.prefix = "s" + Base64.getUrlEncoder().withoutPadding()
+                .encodeToString(sessionId.getBytes(StandardCharsets.UTF_8)) + "-";
+        this.durability = durability;
+        long last = 0;
+        for (Path segment : segments()) {
+            last = Math.max(last, sequence(segment));
+        }
+        this.nextSegment = new AtomicLong(last + 1);
+    }
+
+    /**
+     * @return a new segment for a new round. The file is not created until the first record is appended.
+     */
+    Segment newSegment() {
+        return new Segment(dir.resolve(prefix + nextSegment.getAndIncrement() + SUFFIX));
+    }
+
+    /**
+     * @return the segment files left by the previous run, in the order they are created.
+     * @throws UncheckedIOException if the directory cannot be read.
+     */
+    List<Path> segments() {
+        List<Path> segments = new ArrayList<>();
+        try {
+            Files.createDirectories(dir);
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, prefix + "*" + SUFFIX)) {
+                for (Path file : files) {
+                    if (sequence(file) > 0) {
+                        segments.add(file);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        segments.sort((a, b) -> Long.compare(sequence(a), sequence(b)));
+        return segments;
+    }
+
+    /**
+     * @param dir the directory of the segment files.
+     * @return the ids of the sessions that have segment files in the directory.
+     * @throws UncheckedIOException if the directory cannot be read.
+     */
+    static Set<String> sessionIds(Path dir) {
+        Set<String> ids = new HashSet<>();
+        if (!Files.isDirectory(dir)) {
+            return ids;
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "s*" + SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                int end = name.lastIndexOf('-');
+                if (end > 0) {
+                    try {
+                        byte[] id = Base64.getUrlDecoder().decode(name.substring(1, end));
+                        ids.add(new String(id, StandardCharsets.UTF_8));
+                    } catch (IllegalArgumentException e) {
+                        LOG.warn("skipping unknown file={}", file);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return ids;
+    }
+
+    /**
+     * Reads the numbers of the complete records in the segment file.
+     * @param segment  the segment file.
+     * @param consumer the consumer of the numbers.
+     * @throws UncheckedIOException if the file cannot be read.
+     */
+    static void replay(Path segment, DoubleConsumer consumer) {
+        try (FileChannel channel = FileChannel.open(segment, READ)) {
+            ByteBuffer buf = ByteBuffer.allocate(CHUNK_SIZE);
+            while (channel.read(buf) != -1 || buf.position() > 0) {
+                buf.flip();
+                while (buf.remaining() >= RECORD_SIZE) {
+                    long marker = buf.getLong();
+                    double number = buf.getDouble();
+                    if (marker == MAGIC) {
+                        consumer.accept(number);
+                    }
+                }
+                if (!buf.hasRemaining() && channel.position() == channel.size()) {
+                    break;
+                }
+                buf.compact();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * @param segment the segment file.
+     * @return the sequence number of the segment, or 0 if the name is not of a segment of this session.
+     */
+    private long sequence(Path segment) {
+        String name = segment.getFileName().toString();
+        if (!name.startsWith(prefix) || !name.endsWith(SUFFIX)) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(name, prefix.length(), name.length() - SUFFIX.length(), 10);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * The log of a single round. The records are appended concurrently: each adder reserves a slot with a single
+     * atomic increment and writes its record to the mapped memory.
+     */
+    final class Segment {
+
+        private final Path path;
+        private final AtomicLong position = new AtomicLong();
+        private final AtomicReferenceArray<MappedByteBuffer> chunks = new AtomicReferenceArray<>(MAX_CHUNKS);
+
+        /**
+         * The segments of the previous run that are recovered into this round, deleted together with this one.
+         */
+        private final List<Path> inherited = new ArrayList<>();
+
+        /**
+         * Guarded by this.
+         */
+        private FileChannel channel;
+
+        /**
+         * The number of forces started and completed. A record is durable once a force that is started after the
+         * record is written is completed.
+         */
+        private volatile long forcesStarted = 0;
+        private volatile long forcesCompleted = 0;
+
+        private Segment(Path path) {
+            this.path = path;
+        }
+
+        /**
+         * Appends the <tt>number</tt> to the segment.
+         * @param number the number to append.
+         * @throws UncheckedIOException if the segment cannot be mapped.
+         * @throws IllegalStateException if the segment is full.
+         */
+        void append(double number) {
+            long pos = position.getAndAdd(RECORD_SIZE);
+            int index = (int) (pos / CHUNK_SIZE);
+            if (index >= MAX_CHUNKS) {
+                throw new IllegalStateException("journal segment is full, path=" + path);
+            }
+            MappedByteBuffer chunk = chunks.get(index);
+            if (chunk == null) {
+                chunk = map(index);
+            }
+            int offset = (int) (pos % CHUNK_SIZE);
+            chunk.putDouble(offset + Long.BYTES, number);
+            LONGS.setRelease(chunk, offset, MAGIC);  // the record is complete once the marker is visible.
+        }
+
+        /**
+         * Waits until all the records appended by the calling thread are durable, according to the
+         * {@link Durability}. The concurrent callers wait for the same force.
+         * @throws UncheckedIOException if the segment cannot be forced.
+         */
+        void awaitDurable() {
+            if (durability == Durability.ASYNC) {
+                return;
+            }
+            long started = forcesStarted;
+            if (forcesCompleted > started) {
+                return;
+            }
+            synchronized (this) {
+                if (forcesCompleted > started) {
+                    return;  // forced by another adder meanwhile.
+                }
+                long force = forcesStarted + 1;
+                forcesStarted = force;
+                for (int i = 0; i < MAX_CHUNKS; i++) {
+                    MappedByteBuffer chunk = chunks.get(i);
+                    if (chunk == null) {
+                        break;
+                    }
+                    chunk.force();
+                }
+                forcesCompleted = force;
+            }
+        }
+
+        /**
+         * Adds the segments of the previous run that are recovered into this round.
+         * @param segments the recovered segment files.
+         */
+        synchronized void inherit(List<Path> segments) {
+            inherited.addAll(segments);
+        }
+
+        /**
+         * Deletes the segment and the inherited ones, must be called only after the round is sealed.
+         * @throws UncheckedIOException if a file cannot be deleted.
+         */
+        synchronized void delete() {
+            try {
+                if (channel != null) {
+                    channel.close();
+                }
+                Files.deleteIfExists(path);
+                for (Path segment : inherited) {
+                    Files.deleteIfExists(segment);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        /**
+         * @return the path of the segment file.
+         */
+        Path path() {
+            return path;
+        }
+
+        private synchronized MappedByteBuffer map(int index) {
+            MappedByteBuffer chunk = chunks.get(index);
+            if (chunk != null) {
+                return chunk;
+            }
+            try {
+                if (channel == null) {
+                    channel = FileChannel.open(path, CREATE, READ, WRITE);
+                }
+                chunk = channel.map(FileChannel.MapMode.READ_WRITE, (long) index * CHUNK_SIZE, CHUNK_SIZE);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            chunks.set(index, chunk);
+            return chunk;
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package com.fortumo.ws;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free latency histogram with log-linear buckets, in the spirit of the HdrHistogram: each power of two between
+ * {@link #MIN_NANOS} and {@link #MAX_NANOS} is split into {@link #SUB_BUCKETS} buckets, so that a recorded value is
+ * known with at most 25% error over the whole range. Every bucket is a {@link LongAdder}, so the concurrent recorders
+ * do not contend with each other.
+ */
+final class LatencyHistogram {
+
+    /**
+     * The number of buckets per power of two, a power of two itself.
+     */
+    private static final int SUB_BUCKETS = 4;
+
+    private static final int SUB_BUCKET_BITS = Integer.numberOfTrailingZeros(SUB_BUCKETS);
+
+    /**
+     * The log2 of the smallest value with its own bucket, the smaller values are counted in the first bucket.
+     */
+    private static final int MIN_EXPONENT = 10;
+
+    /**
+     * The log2 of the smallest value that is counted in the overflow bucket.
+     */
+    private static final int MAX_EXPONENT = 37;
+
+    static final long MIN_NANOS = 1L << MIN_EXPONENT;
+    static final long MAX_NANOS = 1L << MAX_EXPONENT;
+
+    /**
+     * The number of buckets, including the first and the overflow buckets.
+     */
+    private static final int BUCKET_COUNT = 2 + (MAX_EXPONENT - MIN_EXPONENT) * SUB_BUCKETS;
+
+    private final LongAdder[] buckets = new LongAdder[BUCKET_COUNT];
+    private final LongAdder sumNanos = new LongAdder();
+
+    LatencyHistogram() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Records a value.
+     * @param nanos the value to record, in nanoseconds.
+     */
+    void record(long nanos) {
+        nanos = Math.max(nanos, 0);  // guards against a clock that goes backwards.
+        buckets[bucketIndex(nanos)].increment();
+        sumNanos.add(nanos);
+    }
+
+    /**
+     * @param nanos the value.
+     * @return the index of the bucket the value is counted in.
+     */
+    static int bucketIndex(long nanos) {
+        if (nanos < MIN_NANOS) {
+            return 0;
+        }
+        if (nanos >= MAX_NANOS) {
+            return BUCKET_COUNT - 1;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+        int subBucket = (int) (nanos >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return 1 + (exponent - MIN_EXPONENT) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * @param index the index of the bucket.
+     * @return the (exclusive) upper bound of the values counted in the bucket, in nanoseconds, or
+     *         {@link Long#MAX_VALUE} for the overflow bucket.
+     */
+    static long upperBound(int index) {
+        if (index == 0) {
+            return MIN_NANOS;
+        }
+        if (index == BUCKET_COUNT - 1) {
+            return Long.MAX_VALUE;
+        }
+        int exponent = MIN_EXPONENT + (index - 1) / SUB_BUCKETS;
+        int subBucket = (index - 1) % SUB_BUCKETS;
+        return (long) (SUB_BUCKETS + subBucket + 1) << (exponent - SUB_BUCKET_BITS);
+    }
+
+    /**
+     * @return the number of values recorded.
+     */
+    long count() {
+        long count = 0;
+        for (LongAdder bucket : buckets) {
+            count += bucket.sum();
+        }
+        return count;
+    }
+
+    /**
+     * Writes the histogram in the Prometheus text format, i.e. the cumulative <tt>_bucket</tt> series followed by the
+     * <tt>_sum</tt> and <tt>_count</tt> series, in seconds.
+     * @param out    the output.
+     * @param name   the name of the metric.
+     * @param labels the labels of the metric, e.g. <tt>type="add"</tt>, or an empty string.
+     */
+    void writePrometheus(StringBuilder out, String name, String labels) {
+        String prefix = labels.isEmpty() ? "{le=\"" : "{" + labels + ",le=\"";
+        long cumulative = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            cumulative += buckets[i].sum();
+            long upper = upperBound(i);
+            out.append(name).append("_bucket").append(prefix)
+                    .append(upper == Long.MAX_VALUE ? "+Inf" : Double.toString(upper / 1e9))
+                    .append("\"} ").append(cumulative).append('\n');
+        }
+        String suffix = labels.isEmpty() ? " " : "{" + labels + "} ";
+        out.append(name).append("_sum").append(suffix).append(sumNanos.sum() / 1e9).append('\n');
+        out.append(name).append("_count").append(suffix).append(cumulative).append('\n');
+    }
+}
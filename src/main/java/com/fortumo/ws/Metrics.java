@@ -0,0 +1,200 @@
+package com.fortumo.ws;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The counters and the latency histograms of the services and the servlet, exposed in the Prometheus text format by
+ * {@link #writePrometheus(StringBuilder, int)}. This class is thread-safe.
+ * <p>
+ * Every metric is striped ({@link LongAdder} or {@link LatencyHistogram}), so recording never contends with the
+ * other threads. The add path records a single counter increment; the number of the clients waiting for the 'end'
+ * signal is derived from the number of the numbers added and the number of the adders released by the ended rounds.
+ */
+final class Metrics {
+
+    /**
+     * The request types the request latencies are recorded for.
+     */
+    enum RequestType {
+        ADD, END, BATCH;
+
+        private final String label = "type=\"" + name().toLowerCase(Locale.ROOT) + "\"";
+    }
+
+    /**
+     * The reasons an add is rejected for, see {@link SumService.Limits}.
+     */
+    enum Rejection {
+        /**
+         * The round has too many pending adders.
+         */
+        OVERLOADED,
+        /**
+         * The round did not end in time and the number is withdrawn.
+         */
+        TIMED_OUT;
+
+        private final String label = "reason=\"" + name().toLowerCase(Locale.ROOT) + "\"";
+    }
+
+    private final boolean enabled;
+
+    private final LongAdder adds = new LongAdder();
+    private final LongAdder released = new LongAdder();
+    private final LongAdder rounds = new LongAdder();
+    private final LongAdder blocked = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder duplicates = new LongAdder();
+    private final LongAdder[] rejected = new LongAdder[Rejection.values().length];
+    private final LatencyHistogram roundDuration = new LatencyHistogram();
+    private final LatencyHistogram sealDuration = new LatencyHistogram();
+    private final LatencyHistogram[] requestDuration = new LatencyHistogram[RequestType.values().length];
+
+    Metrics() {
+        this(true);
+    }
+
+    private Metrics(boolean enabled) {
+        this.enabled = enabled;
+        for (int i = 0; i < requestDuration.length; i++) {
+            requestDuration[i] = new LatencyHistogram();
+        }
+        for (int i = 0; i < rejected.length; i++) {
+            rejected[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * @return metrics that record nothing.
+     */
+    static Metrics disabled() {
+        return new Metrics(false);
+    }
+
+    /**
+     * Records a number added to a round.
+     */
+    void onAdd() {
+        if (enabled) {
+            adds.increment();
+        }
+    }
+
+    /**
+     * Records an ended round.
+     * @param count      the number of the adds of the round, i.e. its clients.
+     * @param roundNanos the time the round is open for.
+     * @param sealNanos  the time it took to seal the round, i.e. to wait for the in-flight adders to leave.
+     */
+    void onEnd(long count, long roundNanos, long sealNanos) {
+        if (enabled) {
+            released.add(count);
+            rounds.increment();
+            roundDuration.record(roundNanos);
+            sealDuration.record(sealNanos);
+        }
+    }
+
+    /**
+     * Records a thread that starts or stops blocking for the 'end' signal.
+     * @param delta 1 when the thread starts blocking, -1 when it stops.
+     */
+    void onBlocked(int delta) {
+        if (enabled) {
+            blocked.add(delta);
+        }
+    }
+
+    /**
+     * Records the latency of a request that is answered successfully.
+     * @param type       the type of the request.
+     * @param startNanos the time (in terms of {@link System#nanoTime()}) the request is received.
+     */
+    void onRequest(RequestType type, long startNanos) {
+        if (enabled) {
+            requestDuration[type.ordinal()].record(System.nanoTime() - startNanos);
+        }
+    }
+
+    /**
+     * Records a rejected add. A timed out add is recorded by {@link #onAdd()} first, then withdrawn.
+     * @param reason the reason the add is rejected for.
+     */
+    void onRejected(Rejection reason) {
+        if (enabled) {
+            rejected[reason.ordinal()].increment();
+        }
+    }
+
+    /**
+     * Records a retried add, i.e. one whose idempotency key is already claimed, which is not counted again.
+     */
+    void onDuplicate() {
+        if (enabled) {
+            duplicates.increment();
+        }
+    }
+
+    /**
+     * Records a request that is answered with an error.
+     */
+    void onError() {
+        if (enabled) {
+            errors.increment();
+        }
+    }
+
+    /**
+     * Writes all the metrics in the Prometheus text format.
+     * @param out      the output.
+     * @param sessions the number of the sessions.
+     */
+    void writePrometheus(StringBuilder out, int sessions) {
+        long releasedAdders = released.sum();
+        long added = adds.sum();
+        long withdrawn = rejected[Rejection.TIMED_OUT.ordinal()].sum();
+        // an adder is counted only after its number is added.
+        long pending = Math.max(added - releasedAdders - withdrawn, 0);
+        gauge(out, "sum_sessions", "The number of sessions.", sessions);
+        counter(out, "sum_adds_total", "The numbers added.", added);
+        gauge(out, "sum_pending_adders", "The clients waiting for the 'end' signal.", pending);
+        gauge(out, "sum_blocked_threads", "The threads blocked in doAdd waiting for the 'end' signal.", blocked.sum());
+        counter(out, "sum_rounds_total", "The rounds ended.", rounds.sum());
+        counter(out, "sum_request_errors_total", "The requests answered with an error.", errors.sum());
+        counter(out, "sum_duplicate_adds_total", "The retried adds answered without being counted again.",
+                duplicates.sum());
+        header(out, "sum_rejected_adds_total", "The adds rejected by the admission limits.", "counter");
+        for (Rejection reason : Rejection.values()) {
+            out.append("sum_rejected_adds_total{").append(reason.label).append("} ")
+                    .append(rejected[reason.ordinal()].sum()).append('\n');
+        }
+        histogram(out, "sum_round_duration_seconds", "The time a round is open for.");
+        roundDuration.writePrometheus(out, "sum_round_duration_seconds", "");
+        histogram(out, "sum_round_seal_seconds", "The time 'end' waits for the in-flight adders to leave.");
+        sealDuration.writePrometheus(out, "sum_round_seal_seconds", "");
+        histogram(out, "sum_request_duration_seconds", "The time from receiving a request to answering it.");
+        for (RequestType type : RequestType.values()) {
+            requestDuration[type.ordinal()].writePrometheus(out, "sum_request_duration_seconds", type.label);
+        }
+    }
+
+    private static void gauge(StringBuilder out, String name, String help, long value) {
+        header(out, name, help, "gauge");
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void counter(StringBuilder out, String name, String help, long value) {
+        header(out, name, help, "counter");
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void histogram(StringBuilder out, String name, String help) {
+        header(out, name, help, "histogram");
+    }
+
+    private static void header(StringBuilder out, String name, String help, String type) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+}
@@ -0,0 +1,181 @@
+package com.fortumo.ws;
+
+import java.util.Arrays;
+
+/**
+ * A mergeable quantile sketch with a relative error guarantee, in the spirit of the DDSketch: a value is counted in a
+ * logarithmic bucket given by its sign, its exponent and the top {@link #PRECISION_BITS} bits of its mantissa, so that
+ * a quantile is known within a relative error of <tt>2^-(PRECISION_BITS + 1)</tt> (i.e. 0.8%) over the whole range of
+ * the normal doubles, while the subnormal ones share the first bucket. Only the buckets that hold values are kept, in an open addressing table, so the sketch of a narrow
+ * distribution stays small.
+ * <p>
+ * Two sketches are merged by adding up the counts of their buckets, and a value is removed by decrementing the count of
+ * its bucket. <tt>NaN</tt> is not counted. This class is not thread-safe.
+ */
+final class QuantileSketch {
+
+    /**
+     * The number of the mantissa bits that a bucket is keyed by.
+     */
+    static final int PRECISION_BITS = 6;
+
+    private static final int SHIFT = 52 - PRECISION_BITS;
+
+    /**
+     * The key of the bucket of the infinities, the largest magnitude.
+     */
+    private static final int INFINITE = (int) (Double.doubleToRawLongBits(Double.POSITIVE_INFINITY) >>> SHIFT);
+
+    private static final int EMPTY = Integer.MIN_VALUE;
+
+    private int[] keys = empty(16);
+    private long[] counts = new long[16];
+    private int size;
+    private long total;
+
+    /**
+     * Counts a value.
+     * @param value the value to count.
+     */
+    void add(double value) {
+        add(value, 1);
+    }
+
+    /**
+     * Removes a value counted by {@link #add(double)}.
+     * @param value the value to remove.
+     */
+    void remove(double value) {
+        add(value, -1);
+    }
+
+    /**
+     * Adds the counts of the <tt>other</tt> sketch to this one.
+     * @param other the sketch to merge, left as it is.
+     */
+    void merge(QuantileSketch other) {
+        for (int i = 0; i < other.keys.length; i++) {
+            if (other.keys[i] != EMPTY) {
+                add(other.keys[i], other.counts[i]);
+            }
+        }
+        total += other.total;
+    }
+
+    /**
+     * @return the number of the values counted.
+     */
+    long count() {
+        return total;
+    }
+
+    /**
+     * @param quantiles the quantiles to estimate, each in <tt>[0, 1]</tt> in ascending order.
+     * @return the estimates of the quantiles, <tt>NaN</tt> if no value is counted.
+     */
+    double[] quantiles(double... quantiles) {
+        double[] estimates = new double[quantiles.length];
+        if (total <= 0) {
+            Arrays.fill(estimates, Double.NaN);
+            return estimates;
+        }
+        int[] sorted = new int[size];
+        int n = 0;
+        for (int key : keys) {
+            if (key != EMPTY) {
+                sorted[n++] = key;
+            }
+        }
+        Arrays.sort(sorted);
+        int next = 0;
+        long seen = 0;
+        for (int i = 0; i < n && next < quantiles.length; i++) {
+            seen += counts[slot(sorted[i])];
+            while (next < quantiles.length && seen > (long) (quantiles[next] * (total - 1))) {
+                estimates[next++] = value(sorted[i]);
+            }
+        }
+        return estimates;
+    }
+
+    /**
+     * @param value the value.
+     * @return the key of the bucket the value is counted in, ordered like the values.
+     */
+    static int key(double value) {
+        long bits = Double.doubleToRawLongBits(value);
+        int key = (int) ((bits & Long.MAX_VALUE) >>> SHIFT);
+        return bits < 0 ? -key - 1 : key;
+    }
+
+    /**
+     * @param key the key of a bucket.
+     * @return the midpoint of the values counted in the bucket.
+     */
+    static double value(int key) {
+        int magnitude = key < 0 ? -key - 1 : key;
+        double value;
+        if (magnitude >= INFINITE) {
+            value = Double.POSITIVE_INFINITY;
+        } else {
+            double lower = Double.longBitsToDouble((long) magnitude << SHIFT);
+            double upper = Double.longBitsToDouble((long) (magnitude + 1) << SHIFT);
+            value = lower + (upper - lower) / 2;
+        }
+        return key < 0 ? -value : value;
+    }
+
+    private void add(double value, long delta) {
+        if (!Double.isNaN(value)) {
+            add(key(value), delta);
+            total += delta;
+        }
+    }
+
+    private void add(int key, long delta) {
+        int slot = slot(key);
+        if (keys[slot] == EMPTY) {
+            keys[slot] = key;
+            if (++size * 2 > keys.length) {
+                counts[slot] = delta;
+                grow();
+                return;
+            }
+        }
+        counts[slot] += delta;
+    }
+
+    /**
+     * @param key the key of a bucket.
+     * @return the slot of the bucket, or the empty slot it would take.
+     */
+    private int slot(int key) {
+        int mask = keys.length - 1;
+        int hash = key * 0x9E3779B9;
+        int slot = (hash ^ hash >>> 16) & mask;
+        while (keys[slot] != EMPTY && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void grow() {
+        int[] oldKeys = keys;
+        long[] oldCounts = counts;
+        keys = empty(oldKeys.length * 2);
+        counts = new long[oldKeys.length * 2];
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != EMPTY) {
+                int slot = slot(oldKeys[i]);
+                keys[slot] = oldKeys[i];
+                counts[slot] = oldCounts[i];
+            }
+        }
+    }
+
+    private static int[] empty(int length) {
+        int[] keys = new int[length];
+        Arrays.fill(keys, EMPTY);
+        return keys;
+    }
+}
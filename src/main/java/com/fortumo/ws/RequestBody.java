@@ -0,0 +1,150 @@
+package com.fortumo.ws;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A line of a request body, read as bytes without decoding it into a {@link String}. The common decimal numbers are
+ * parsed directly from the bytes, anything else is delegated to {@link Double#parseDouble(String)}, so the accepted
+ * inputs are the same. The same object can be used to read the successive lines of a body with {@link #next}.
+ */
+final class RequestBody {
+
+    /**
+     * Up to this many significant digits, the mantissa is exactly representable as a double.
+     */
+    private static final int MAX_FAST_PATH_DIGITS = 15;
+
+    /**
+     * The powers of ten that are exactly representable as a double.
+     */
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    private static final byte[] END = {'e', 'n', 'd'};
+
+    private byte[] bytes = new byte[32];
+    private int length = 0;
+
+    /**
+     * Set if the last line read is terminated by '\r', so that the '\n' of a following "\r\n" is skipped.
+     */
+    private boolean carriageReturn = false;
+
+    /**
+     * Reads the first line of the stream, see {@link #next(InputStream)}.
+     * @param in the stream to read.
+     * @return the first line, or null if the stream is empty.
+     * @throws IOException if the stream cannot be read.
+     */
+    static RequestBody readLine(InputStream in) throws IOException {
+        RequestBody body = new RequestBody();
+        return body.next(in) ? body : null;
+    }
+
+    /**
+     * Reads the next line of the stream into this object, reusing its buffer. A line is terminated by '\n', '\r',
+     * "\r\n" or the end of the stream.
+     * @param in the stream to read.
+     * @return true if a line is read, false if the end of the stream is reached.
+     * @throws IOException if the stream cannot be read.
+     */
+    boolean next(InputStream in) throws IOException {
+        int len = 0;
+        int b = in.read();
+        if (b == '\n' && carriageReturn) {
+            b = in.read();
+        }
+        while (b != -1 && b != '\n' && b != '\r') {
+            if (len == bytes.length) {
+                bytes = Arrays.copyOf(bytes, len * 2);
+            }
+            bytes[len++] = (byte) b;
+            b = in.read();
+        }
+        length = len;
+        carriageReturn = b == '\r';
+        return b != -1 || len > 0;
+    }
+
+    /**
+     * @return true if the line is empty or contains only white space, see {@link String#isBlank()}.
+     */
+    boolean isBlank() {
+        for (int i = 0; i < length; i++) {
+            if (!Character.isWhitespace((char) (bytes[i] & 0xff))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return true if the line is exactly the string 'end'.
+     */
+    boolean isEnd() {
+        return Arrays.equals(bytes, 0, length, END, 0, END.length);
+    }
+
+    /**
+     * Parses the line as a double, see {@link Double#parseDouble(String)}. The plain decimal numbers with at most
+     * {@link #MAX_FAST_PATH_DIGITS} significant digits are converted exactly with a single multiplication or division.
+     * @return the parsed number.
+     * @throws NumberFormatException if the line is not a number.
+     */
+    double parseDouble() {
+        int i = 0;
+        int end = length;
+        while (i < end && (bytes[i] & 0xff) <= ' ') {
+            i++;
+        }
+        while (end > i && (bytes[end - 1] & 0xff) <= ' ') {
+            end--;
+        }
+        boolean negative = false;
+        if (i < end && (bytes[i] == '-' || bytes[i] == '+')) {
+            negative = bytes[i++] == '-';
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int exponent = 0;
+        boolean anyDigit = false;
+        boolean fraction = false;
+        for (; i < end; i++) {
+            byte b = bytes[i];
+            if (b >= '0' && b <= '9') {
+                anyDigit = true;
+                if (mantissa == 0 && b == '0') {
+                    exponent -= fraction ? 1 : 0;  // leading zeros are not significant.
+                    continue;
+                }
+                if (++digits > MAX_FAST_PATH_DIGITS) {
+                    return Double.parseDouble(toString());
+                }
+                mantissa = mantissa * 10 + (b - '0');
+                exponent -= fraction ? 1 : 0;
+            } else if (b == '.' && !fraction) {
+                fraction = true;
+            } else {
+                return Double.parseDouble(toString());  // exponents, hex, NaN, Infinity, suffixes or invalid.
+            }
+        }
+        if (!anyDigit || -exponent >= POWERS_OF_TEN.length) {
+            return Double.parseDouble(toString());
+        }
+        double value = mantissa / POWERS_OF_TEN[-exponent];
+        return negative ? -value : value;
+    }
+
+    /**
+     * @return the line decoded as ISO-8859-1, the default charset of the servlet requests.
+     */
+    @Override
+    public String toString() {
+        return new String(bytes, 0, length, StandardCharsets.ISO_8859_1);
+    }
+}
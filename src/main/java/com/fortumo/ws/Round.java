@@ -0,0 +1,965 @@
+package com.fortumo.ws;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.BiConsumer;
+
+/**
+ * A single round of additions, i.e. all the numbers added until the 'end' signal is received. The numbers are
+ * accumulated in striped cells (in the spirit of {@link java.util.concurrent.atomic.DoubleAdder}) so that the
+ * concurrent adders never contend on a shared lock.
+ * <p>
+ * A round is sealed exactly once by {@link #seal()}. Every {@link #tryAdd(double)} that succeeded before the round is
+ * sealed is counted in its sum, any later call fails and has to be retried against the next round. This gives an exact
+ * cut between the consecutive rounds. This class is thread-safe.
+ * <p>
+ * The numbers of a {@link Batch} are added by a single {@link #tryAdd(Batch)}, each accumulated on its own with the
+ * {@link Summation} strategy, so a batch is as exact as its numbers added one by one, and counted in a single round.
+ * <p>
+ * An empty round (one that no number was added to) can also be sealed temporarily and {@link #unseal() unsealed}
+ * again, which is how a {@link SumService} is closed once it turns out to be idle.
+ * <p>
+ * This class sums up the numbers as plain doubles. The other {@link Summation} strategies override
+ * {@link #accumulate(int, int, double)} and {@link #total()}, which are called only while the in-flight counter of the
+ * cell is held and after all the cells are drained respectively.
+ * <p>
+ * If a {@link Journal.Segment} is {@link #attach(Journal.Segment) attached}, every number is appended to it once it is
+ * accumulated, still while the in-flight counter is held, so a sealed round has no pending writes to its segment, and
+ * the journal holds only the numbers the {@link Summation} strategy accepted.
+ * <p>
+ * A number can be {@link #tryWithdraw(double) withdrawn} again as long as the round is not sealed, which is how an
+ * adder that gives up waiting leaves the round without being counted.
+ * <p>
+ * If the {@link #collectStats(RoundStats.Level) statistics are collected}, every cell keeps its own {@link RoundStats}
+ * too, updated under a spin lock of the cell, so only the adders of the same cell contend. The cells are merged once
+ * the round is sealed. A withdrawn number is removed from the statistics of the cell of the withdrawing thread, which
+ * is usually not the one of the adder, and subtracted from the added numbers once the cells are merged.
+ * <p>
+ * The clients waiting for the round register in groups, one per cell, each completed through a future of its own.
+ * A round with many clients releases its groups in parallel, by a tree of fork/join tasks that splits the groups in
+ * halves, so the time to release the clients grows with the clients per core rather than all of them. The groups also
+ * spread the registrations of the adders, which would otherwise contend on a single future.
+ * <p>
+ * The in-flight counter of a cell is kept as two monotonic counters, of the adders that entered and that left the cell,
+ * so that a {@link #snapshot()} of the running round can tell whether any adder touched the cells while it read them,
+ * in the spirit of a seqlock, without the adders ever waiting for the readers.
+ * <p>
+ * An add with an idempotency key claims the key in the {@link IdempotencyKeys} of the round while the in-flight
+ * counter of its cell is held, so a key is claimed exactly when the number is counted in the round. A retry of the
+ * add, i.e. one with the same key, gets the {@link Claim} of the add that claimed it, whether it is sent to the same
+ * round or to the next one, which knows its {@link #previous(Round) previous} round until it is sealed itself.
+ */
+class Round {
+
+    /**
+     * The number of longs between two consecutive cells. Keeps the cells on different cache lines.
+     */
+    static final int STRIDE = 16;
+
+    /**
+     * Offset of the raw bits of the partial sum of a cell. The offsets after {@link #COUNT} up to the {@link #ADDS}
+     * counter are free for the use of the subclasses.
+     */
+    static final int SUM = 0;
+
+    /**
+     * Offset of the number of the adders that entered a cell, the adders operating on the cell are the ones that
+     * entered but not {@link #LEFT} yet.
+     */
+    private static final int ENTERED = 1;
+
+    /**
+     * Offset of the number of the numbers added to a cell, each number of a batch counted on its own.
+     */
+    static final int COUNT = 2;
+
+    /**
+     * Offset of the number of the adds of a cell, i.e. of the clients waiting for the round, a batch counted once.
+     */
+    private static final int ADDS = STRIDE - 3;
+
+    /**
+     * Offset of the number of the adders that left a cell, see {@link #ENTERED}.
+     */
+    private static final int LEFT = STRIDE - 2;
+
+    /**
+     * Offset of the spin lock of the statistics of a cell, 1 if held.
+     */
+    private static final int STATS_LOCK = STRIDE - 1;
+
+    /**
+     * The number of cells, a power of two that is at least twice the number of available processors.
+     */
+    static final int CELL_COUNT = Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 4 - 1);
+
+    /**
+     * VisibleForTesting. The number of the clients of a round from which its groups are released in parallel, never if
+     * there is a single processor.
+     */
+    static long parallelReleaseClients = Runtime.getRuntime().availableProcessors() > 1 ? 1024 : Long.MAX_VALUE;
+
+    /**
+     * The number of times a {@link #snapshot()} is read before it gives up on a consistent one.
+     */
+    static final int SNAPSHOT_ATTEMPTS = 64;
+
+    /**
+     * Marks a released group, the clients that register later use the {@link #result} of the round that is already
+     * completed.
+     */
+    private static final CompletableFuture<Double> RELEASED = new CompletableFuture<>();
+
+    /**
+     * A round that is sealed forever, marks a {@link SumService} that is being closed.
+     */
+    static final Round CLOSING = new Round(true);
+
+    /**
+     * A round that is sealed forever, marks a closed {@link SumService}.
+     */
+    static final Round CLOSED = new Round(true);
+
+    /**
+     * Returned by {@link #tryAdd(double, long, Claim)} if the round is sealed. The claim of the {@link #CLOSED} round,
+     * which no add can claim.
+     */
+    static final Claim SEALED = CLOSED.claim();
+
+    /**
+     * The striped cells, each holding a partial sum and an in-flight counter.
+     */
+    final AtomicLongArray cells = new AtomicLongArray(CELL_COUNT * STRIDE);
+
+    /**
+     * Set when the 'end' signal is received. No number can be added to the round afterwards.
+     */
+    private volatile boolean sealed;
+
+    /**
+     * Set by the first successful {@link #tryAdd(double)}, i.e. when there is at least one client waiting for the
+     * round. Written at most a few times, so it does not add to the contention of the adders.
+     */
+    private volatile boolean touched = false;
+
+    /**
+     * Set by the first {@link #markTimed()}.
+     */
+    private volatile boolean timed = false;
+
+    /**
+     * Set once the round is sealed and all the adders left its cells, i.e. no key is claimed or released anymore.
+     */
+    private volatile boolean settled = false;
+
+    /**
+     * The keys of the adds of the round, created by the first add with a key.
+     */
+    private volatile IdempotencyKeys<Claim> keys;
+
+    /**
+     * The round before this one, whose keys are looked up by the retries sent to this round, or null.
+     */
+    private volatile Round previous;
+
+    /**
+     * The claim of the adds with an idempotency key that are answered with the sum of the round.
+     */
+    private final Claim claim = new Claim() {
+        @Override
+        public Round round() {
+            return Round.this;
+        }
+
+        @Override
+        public CompletableFuture<Double> result() {
+            return Round.this.result();
+        }
+    };
+
+    private static final VarHandle TIMED;
+    private static final VarHandle KEYS;
+
+    static {
+        try {
+            TIMED = MethodHandles.lookup().findVarHandle(Round.class, "timed", boolean.class);
+            KEYS = MethodHandles.lookup().findVarHandle(Round.class, "keys", IdempotencyKeys.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    /**
+     * The time (in terms of {@link System#nanoTime()}) the round is created.
+     */
+    private final long createdNanos = System.nanoTime();
+
+    /**
+     * The id of the round, one more than the one of the previous round of its service. Set before the round is
+     * published to the adders.
+     */
+    private long id = 1;
+
+    /**
+     * Completed with the sum of the round once it is sealed. The clients waiting for the round are completed through
+     * this future exactly once, without competing for a shared monitor.
+     */
+    private final CompletableFuture<Double> result = new CompletableFuture<>();
+
+    /**
+     * The groups of the clients waiting for the round, by the cells of the threads that registered them. A group is
+     * created by its first client and replaced with {@link #RELEASED} once it is released.
+     */
+    private final AtomicReferenceArray<CompletableFuture<Double>> groups = new AtomicReferenceArray<>(CELL_COUNT);
+
+    /**
+     * The segment the numbers are journaled to, or null. Set before the round is published to the adders.
+     */
+    private Journal.Segment segment;
+
+    /**
+     * The statistics of the cells (each created by its first add), or null if not collected. Set before the round is
+     * published to the adders.
+     */
+    private RoundStats[] stats;
+    private RoundStats.Level statsLevel;
+
+    /**
+     * The statistics of all the cells, merged by {@link #seal()}.
+     */
+    private RoundStats sealedStats;
+
+    Round() {
+        this(false);
+    }
+
+    private Round(boolean sealed) {
+        this.sealed = sealed;
+    }
+
+    /**
+     * Adds the <tt>number</tt> to the cell of the calling thread, unless the round is already sealed.
+     * @param number the number to add.
+     * @return true if the number is counted in this round, false if the round was sealed.
+     * @throws IllegalArgumentException if the number is not accepted by the {@link Summation} strategy.
+     */
+    boolean tryAdd(double number) {
+        return tryAdd(number, null, true, 1, IdempotencyKeys.NONE);
+    }
+
+    /**
+     * Withdraws a number added by {@link #tryAdd(double)}, unless the round is already sealed. The withdrawal is
+     * journaled as the negated number. A number that is not finite cannot be withdrawn, since its negation does not
+     * cancel it out.
+     * @param number the number to withdraw.
+     * @return true if the number is not counted in this round anymore, false if the round was sealed or the number is
+     *         not finite.
+     */
+    boolean tryWithdraw(double number) {
+        return tryWithdraw(number, IdempotencyKeys.NONE);
+    }
+
+    /**
+     * Withdraws a number added by {@link #tryAdd(double, long, Claim)} and releases its key, so that a
+     * retry of the add is counted again, see {@link #tryWithdraw(double)}.
+     * @param number the number to withdraw.
+     * @param key    the idempotency key of the add, or {@link IdempotencyKeys#NONE}.
+     * @return true if the number is not counted in this round anymore, false if the round was sealed or the number is
+     *         not finite.
+     */
+    boolean tryWithdraw(double number, long key) {
+        return Double.isFinite(number) && tryAdd(number, null, true, -1, key);
+    }
+
+    /**
+     * Adds a number recovered from the journal, which is not journaled again, see {@link #tryAdd(double)}.
+     * @param number the number to add.
+     * @return true if the number is counted in this round, false if the round was sealed.
+     */
+    boolean tryRecover(double number) {
+        return tryAdd(number, null, false, 1, IdempotencyKeys.NONE);
+    }
+
+    /**
+     * Adds the numbers of the <tt>batch</tt> to the cell of the calling thread as a single add, unless the round is
+     * already sealed. Each number is accumulated with the {@link Summation} strategy on its own, and the ones it
+     * rejects are removed from the batch as its errors, see {@link Batch#addEach(java.util.function.DoubleConsumer)}.
+     * Either all the accepted numbers are counted in this round or, if it was sealed, none of them is.
+     * @param batch the numbers to add.
+     * @return true if the numbers are counted in this round, false if the round was sealed.
+     * @throws IllegalArgumentException if no number of the batch is accepted by the {@link Summation} strategy.
+     */
+    boolean tryAdd(Batch batch) {
+        return tryAdd(0, batch, true, 1, IdempotencyKeys.NONE);
+    }
+
+    /**
+     * Withdraws the numbers of a batch added by {@link #tryAdd(Batch)} or {@link #tryAdd(Batch, long, Claim)}, see
+     * {@link #tryWithdraw(double, long)}.
+     * @param batch the numbers to withdraw, the ones accepted by this round.
+     * @param key   the idempotency key of the add, or {@link IdempotencyKeys#NONE}.
+     * @return true if the numbers are not counted in this round anymore, false if the round was sealed or a number is
+     *         not finite.
+     */
+    boolean tryWithdraw(Batch batch, long key) {
+        for (int i = 0; i < batch.count(); i++) {
+            if (!Double.isFinite(batch.number(i))) {
+                return false;
+            }
+        }
+        return tryAdd(0, batch, true, -1, key);
+    }
+
+    /**
+     * Adds the <tt>number</tt> unless the round is sealed or the <tt>key</tt> is already claimed by an add of this
+     * round or of the previous one, in which case the number is not added. The previous round is looked up only once
+     * it is settled, so that an add still claiming the key there is never missed.
+     * @param number the number to add.
+     * @param key    the idempotency key of the add, not {@link IdempotencyKeys#NONE}.
+     * @param claim  the claim of the add, e.g. its deadline, or null if the add is answered with the sum of this
+     *               round, see {@link #claim()}.
+     * @return null if the number is added, the claim of the add that claimed the key earlier, or {@link #SEALED} if
+     *         the round was sealed.
+     * @throws IllegalArgumentException if the number is not accepted by the {@link Summation} strategy.
+     */
+    Claim tryAdd(double number, long key, Claim claim) {
+        return tryAdd(number, null, key, claim);
+    }
+
+    /**
+     * Adds the numbers of the <tt>batch</tt> as a single add unless the round is sealed or the <tt>key</tt> is already
+     * claimed, see {@link #tryAdd(double, long, Claim)} and {@link #tryAdd(Batch)}.
+     * @param batch the numbers to add.
+     * @param key   the idempotency key of the add, not {@link IdempotencyKeys#NONE}.
+     * @param claim the claim of the add, or null if the add is answered with the sum of this round.
+     * @return null if the numbers are added, the claim of the add that claimed the key earlier, or {@link #SEALED} if
+     *         the round was sealed.
+     * @throws IllegalArgumentException if no number of the batch is accepted by the {@link Summation} strategy.
+     */
+    Claim tryAdd(Batch batch, long key, Claim claim) {
+        return tryAdd(0, batch, key, claim);
+    }
+
+    /**
+     * Looks up the add that claimed the <tt>key</tt> in this round or in the previous one, without adding anything, so
+     * that a retry can be answered before the add is admitted. An add claiming the key concurrently may be missed, the
+     * claim is then still found by {@link #tryAdd(double, long, Claim)}.
+     * @param key the idempotency key of an add, not {@link IdempotencyKeys#NONE}.
+     * @return the claim of the add that claimed the key, or null.
+     */
+    Claim claimed(long key) {
+        IdempotencyKeys<Claim> claimed = keys;
+        Claim claim = claimed == null ? null : claimed.get(key);
+        Round before = previous;
+        return claim != null || before == null ? claim : before.claimOf(key);
+    }
+
+    /**
+     * @param batch the numbers to add instead of the <tt>number</tt>, or null.
+     */
+    private Claim tryAdd(double number, Batch batch, long key, Claim claim) {
+        Round before = previous;
+        if (before != null) {
+            Claim earlier = before.claimOf(key);
+            if (earlier != null) {
+                return earlier;
+            }
+        }
+        int cell = cellIndex();
+        int base = cell * STRIDE;
+        cells.getAndIncrement(base + ENTERED);
+        try {
+            if (sealed) {
+                return SEALED;
+            }
+            IdempotencyKeys<Claim> claimed = keys();
+            Claim earlier = claimed.putIfAbsent(key, claim == null ? this.claim : claim);
+            if (earlier != null) {
+                return earlier;
+            }
+            try {
+                add(cell, base, number, batch, true, 1);
+            } catch (RuntimeException e) {
+                claimed.remove(key);
+                throw e;
+            }
+            return null;
+        } finally {
+            cells.getAndIncrement(base + LEFT);
+        }
+    }
+
+    /**
+     * @param batch        the numbers to add instead of the <tt>number</tt>, or null.
+     * @param withdrawnKey the key to release along with a withdrawn number, or {@link IdempotencyKeys#NONE}.
+     */
+    private boolean tryAdd(double number, Batch batch, boolean journaled, int count, long withdrawnKey) {
+        int cell = cellIndex();
+        int base = cell * STRIDE;
+        cells.getAndIncrement(base + ENTERED);
+        try {
+            if (sealed) {
+                return false;
+            }
+            add(cell, base, number, batch, journaled, count);
+            if (withdrawnKey != IdempotencyKeys.NONE) {
+                keys.remove(withdrawnKey);
+            }
+            return true;
+        } finally {
+            cells.getAndIncrement(base + LEFT);
+        }
+    }
+
+    /**
+     * Adds the <tt>number</tt>, or the numbers of the <tt>batch</tt>, to the cell while the in-flight counter of the
+     * cell is held. A <tt>count</tt> of -1 withdraws them instead.
+     */
+    private void add(int cell, int base, double number, Batch batch, boolean journaled, int count) {
+        boolean withdrawn = count < 0;
+        if (batch == null) {
+            add(cell, base, withdrawn ? -number : number, journaled, withdrawn);
+        } else if (withdrawn) {
+            for (int i = 0; i < batch.count(); i++) {
+                add(cell, base, -batch.number(i), journaled, true);
+            }
+        } else {
+            int accepted;
+            try {
+                accepted = batch.addEach(value -> add(cell, base, value, journaled, false));
+            } catch (RuntimeException e) {
+                undo(cell, base, batch, journaled, e);  // the batch holds the numbers added before the failure.
+                throw e;
+            }
+            if (accepted == 0) {
+                throw new IllegalArgumentException("no number of the batch is accepted");
+            }
+        }
+        cells.getAndAdd(base + COUNT, batch == null ? count : count * batch.count());
+        cells.getAndAdd(base + ADDS, count);
+        if (!touched) {
+            touched = true;
+        }
+    }
+
+    /**
+     * Adds a single <tt>number</tt> to the cell, see {@link #add(int, int, double, Batch, boolean, int)}.
+     * @param withdrawn true if the number is the negation of a withdrawn one.
+     */
+    private void add(int cell, int base, double number, boolean journaled, boolean withdrawn) {
+        accumulate(cell, base, number);
+        if (journaled && segment != null) {
+            try {
+                segment.append(number);
+            } catch (RuntimeException e) {
+                accumulate(cell, base, -number);  // not counted unless journaled.
+                throw e;
+            }
+        }
+        if (stats != null) {
+            record(cell, base, withdrawn ? -number : number, !withdrawn);
+        }
+    }
+
+    /**
+     * Removes the numbers of a <tt>batch</tt> that were added before the add of the batch failed, e.g. as the journal
+     * could not be written, so that a failed batch is not counted in part. The journaled numbers are negated by
+     * compensating records, so that a recovery does not count them either.
+     * @param failure the failure of the add, which the failures of the compensating records are added to.
+     */
+    private void undo(int cell, int base, Batch batch, boolean journaled, RuntimeException failure) {
+        for (int i = 0; i < batch.count(); i++) {
+            double number = batch.number(i);
+            accumulate(cell, base, -number);
+            if (journaled && segment != null) {
+                try {
+                    segment.append(-number);
+                } catch (RuntimeException e) {
+                    failure.addSuppressed(e);
+                }
+            }
+            if (stats != null) {
+                record(cell, base, number, false);
+            }
+        }
+    }
+
+    /**
+     * Waits until the round is settled, yielding meanwhile, since the thread sealing the round may have been
+     * descheduled.
+     * @param key the idempotency key of an add.
+     * @return the claim of the add of this round that claimed the key, or null.
+     */
+    private Claim claimOf(long key) {
+        while (!settled) {
+            Thread.yield();
+        }
+        IdempotencyKeys<Claim> claimed = keys;
+        return claimed == null ? null : claimed.get(key);
+    }
+
+    /**
+     * @return the keys of the round, created by the first call.
+     */
+    private IdempotencyKeys<Claim> keys() {
+        IdempotencyKeys<Claim> claimed = keys;
+        if (claimed == null) {
+            KEYS.compareAndSet(this, null, new IdempotencyKeys<Claim>());
+            claimed = keys;
+        }
+        return claimed;
+    }
+
+    private void record(int cell, int base, double number, boolean added) {
+        while (!cells.weakCompareAndSetAcquire(base + STATS_LOCK, 0, 1)) {
+            Thread.onSpinWait();
+        }
+        try {
+            RoundStats cellStats = stats[cell];
+            if (cellStats == null) {
+                cellStats = new RoundStats(statsLevel);
+                stats[cell] = cellStats;
+            }
+            if (added) {
+                cellStats.add(number);
+            } else {
+                cellStats.remove(number);
+            }
+        } finally {
+            cells.setRelease(base + STATS_LOCK, 0);
+        }
+    }
+
+    /**
+     * Adds the <tt>number</tt> to the cell. Other threads may operate on the same cell concurrently.
+     * @param cell   the index of the cell.
+     * @param base   the offset of the cell in the {@link #cells}.
+     * @param number the number to add.
+     * @throws IllegalArgumentException if the number cannot be added, in which case the cell is left as it is.
+     */
+    void accumulate(int cell, int base, double number) {
+        long prev;
+        long next;
+        do {
+            prev = cells.get(base + SUM);
+            next = Double.doubleToRawLongBits(Double.longBitsToDouble(prev) + number);
+        } while (!cells.weakCompareAndSetVolatile(base + SUM, prev, next));
+    }
+
+    /**
+     * Called once all the adders left the cells. May also be called while the adders are operating on the cells, in
+     * which case the result is a snapshot that may miss the additions in progress.
+     * @return the sum of the cells.
+     */
+    double total() {
+        double sum = 0;
+        for (int i = 0; i < CELL_COUNT; i++) {
+            sum += Double.longBitsToDouble(cells.get(i * STRIDE + SUM));
+        }
+        return sum;
+    }
+
+    /**
+     * Seals the round and waits for the adders that are still operating on the cells to leave. Must be called only
+     * once per round.
+     * @return the sum of all the numbers added to this round.
+     */
+    double seal() {
+        sealed = true;
+        for (int i = 0; i < CELL_COUNT; i++) {
+            while (!isIdle(i * STRIDE, cells.get(i * STRIDE + LEFT))) {
+                Thread.onSpinWait();
+            }
+        }
+        settled = true;
+        double sum = total();
+        if (stats != null) {
+            RoundStats merged = new RoundStats(statsLevel);
+            for (RoundStats cellStats : stats) {
+                if (cellStats != null) {
+                    merged.merge(cellStats);
+                }
+            }
+            merged.sum(sum);
+            sealedStats = merged;
+        }
+        return sum;
+    }
+
+    /**
+     * @param base the offset of a cell in the {@link #cells}.
+     * @param left the number of the adders that left the cell, read before this call.
+     * @return true if every adder that entered the cell so far had left it by the time <tt>left</tt> was read.
+     */
+    private boolean isIdle(int base, long left) {
+        return cells.get(base + ENTERED) == left;
+    }
+
+    /**
+     * Reads the sum and the adds of the round as of a single point in time, without blocking the adders. The left
+     * counters of all the cells are read first, then the sum and the adds, and the read is consistent if no adder
+     * entered any of the cells since, i.e. it saw every cell at rest. Otherwise it is retried, up to
+     * {@link #SNAPSHOT_ATTEMPTS} times, after which the last read is returned as inconsistent: it may miss the
+     * additions in progress, the same as {@link #total()}.
+     * @return the snapshot of the round.
+     */
+    Snapshot snapshot() {
+        long[] left = new long[CELL_COUNT];
+        for (int attempt = 1; ; attempt++) {
+            for (int i = 0; i < CELL_COUNT; i++) {
+                left[i] = cells.get(i * STRIDE + LEFT);
+            }
+            double sum = total();
+            long adds = adds();
+            boolean consistent = true;
+            for (int i = 0; i < CELL_COUNT && consistent; i++) {
+                consistent = isIdle(i * STRIDE, left[i]);
+            }
+            if (consistent || attempt >= SNAPSHOT_ATTEMPTS) {
+                return new Snapshot(id, sum, adds, consistent);
+            }
+            Thread.yield();  // lets an adder that is descheduled within a cell leave it.
+        }
+    }
+
+    /**
+     * @return the statistics of the round, set once it is {@link #seal() sealed} and visible to its clients once it is
+     *         completed, or null if the statistics are not collected.
+     */
+    RoundStats stats() {
+        return sealedStats;
+    }
+
+    /**
+     * Note that the result is exact only after the round is {@link #seal() sealed}.
+     * @return the number of the numbers added to the round, each number of a batch counted on its own.
+     */
+    long count() {
+        long count = 0;
+        for (int i = 0; i < CELL_COUNT; i++) {
+            count += cells.get(i * STRIDE + COUNT);
+        }
+        return count;
+    }
+
+    /**
+     * Note that the result is exact only after the round is {@link #seal() sealed}.
+     * @return the number of the adds of the round, i.e. the number of the clients waiting for it, a batch counted
+     *         once.
+     */
+    long adds() {
+        long adds = 0;
+        for (int i = 0; i < CELL_COUNT; i++) {
+            adds += cells.get(i * STRIDE + ADDS);
+        }
+        return adds;
+    }
+
+    /**
+     * Lets the numbers be added to the round again. Must be called only by the thread that {@link #seal() sealed} the
+     * round and only if no other thread can seal it meanwhile.
+     */
+    void unseal() {
+        settled = false;
+        sealed = false;
+    }
+
+    /**
+     * Note that the result is exact only after the round is {@link #seal() sealed}.
+     * @return true if no number is added to the round so far.
+     */
+    boolean isEmpty() {
+        return !touched;
+    }
+
+    /**
+     * @return true for the first call only, e.g. to schedule a single timer per round.
+     */
+    boolean markTimed() {
+        return !timed && TIMED.compareAndSet(this, false, true);
+    }
+
+    /**
+     * @return the time (in terms of {@link System#nanoTime()}) the round is created.
+     */
+    long createdNanos() {
+        return createdNanos;
+    }
+
+    /**
+     * @return the id of the round, unique within its service.
+     */
+    long id() {
+        return id;
+    }
+
+    /**
+     * Sets the id of the round. Must be called before the round is published to the adders.
+     * @param id the id of the round.
+     */
+    void id(long id) {
+        this.id = id;
+    }
+
+    /**
+     * Sets the round before this one, whose idempotency keys are looked up by the adds of this round. Must be called
+     * before the round is published to the adders, and with null once this round is sealed, so that every round keeps
+     * only the one before it.
+     * @param previous the previous round, or null.
+     */
+    void previous(Round previous) {
+        this.previous = previous;
+    }
+
+    /**
+     * Note that the result is exact only after the round is {@link #seal() sealed}.
+     * @return the number of the idempotency keys claimed by the adds of the round.
+     */
+    int keyCount() {
+        IdempotencyKeys<Claim> claimed = keys;
+        return claimed == null ? 0 : claimed.size();
+    }
+
+    /**
+     * Attaches the segment the numbers are journaled to. Must be called before the round is published to the adders.
+     * @param segment the segment of the round.
+     */
+    void attach(Journal.Segment segment) {
+        this.segment = segment;
+    }
+
+    /**
+     * Collects the statistics of the numbers of the round. Must be called before the round is published to the adders.
+     * @param level the statistics to collect.
+     */
+    void collectStats(RoundStats.Level level) {
+        if (level != RoundStats.Level.NONE) {
+            this.statsLevel = level;
+            this.stats = new RoundStats[CELL_COUNT];
+        }
+    }
+
+    /**
+     * @return the segment the numbers are journaled to, or null.
+     */
+    Journal.Segment segment() {
+        return segment;
+    }
+
+    /**
+     * Completes the round with the provided <tt>sum</tt>.
+     * @param sum the sum of the round.
+     */
+    void complete(double sum) {
+        release(sum, null);
+    }
+
+    /**
+     * Fails the round, so that all the clients waiting for it are completed exceptionally.
+     * @param cause the cause of the failure.
+     */
+    void fail(Throwable cause) {
+        release(0, cause);
+    }
+
+    /**
+     * Completes the {@link #result} first, so that the clients that register meanwhile are completed by it, then all
+     * the groups, in parallel if the round has many clients. Returns once all the clients are completed.
+     */
+    private void release(double sum, Throwable cause) {
+        if (cause == null) {
+            result.complete(sum);
+        } else {
+            result.completeExceptionally(cause);
+        }
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        CompletableFuture<Double>[] released = new CompletableFuture[CELL_COUNT];
+        int count = 0;
+        for (int i = 0; i < CELL_COUNT; i++) {
+            CompletableFuture<Double> group = groups.getAndSet(i, RELEASED);
+            if (group != null && group != RELEASED) {
+                released[count++] = group;
+            }
+        }
+        if (count > 1 && adds() >= parallelReleaseClients) {
+            Release.POOL.invoke(new Release(released, 0, count, sum, cause));
+        } else {
+            for (int i = 0; i < count; i++) {
+                Release.complete(released[i], sum, cause);
+            }
+        }
+    }
+
+    /**
+     * @return a future that is completed with the sum of the round. Completing the returned future has no effect on
+     *         the round.
+     */
+    CompletableFuture<Double> result() {
+        return group().copy();
+    }
+
+    /**
+     * @return the claim of the adds with an idempotency key that are answered with the sum of the round.
+     */
+    Claim claim() {
+        return claim;
+    }
+
+    /**
+     * Registers an action that is called with the sum of the round once it ends, without the copy of
+     * {@link #result()}. The round keeps the action until it ends.
+     * @param action the action, must not block.
+     */
+    void whenComplete(BiConsumer<? super Double, ? super Throwable> action) {
+        group().whenComplete(action);
+    }
+
+    /**
+     * @return the group of the calling thread, or the {@link #result} if the round is already released.
+     */
+    private CompletableFuture<Double> group() {
+        int cell = cellIndex();
+        CompletableFuture<Double> group = groups.get(cell);
+        while (group == null) {
+            CompletableFuture<Double> created = new CompletableFuture<>();
+            if (groups.compareAndSet(cell, null, created)) {
+                return created;
+            }
+            group = groups.get(cell);
+        }
+        return group == RELEASED ? result : group;
+    }
+
+    /**
+     * VisibleForTesting. A thread sticks to the same cell, so that the adders on different cores mostly operate on
+     * different cells.
+     * @return the index of the cell assigned to the calling thread.
+     */
+    static int cellIndex() {
+        long id = Thread.currentThread().threadId() * 0x9E3779B97F4A7C15L;
+        return (int) (id >>> 32) & (CELL_COUNT - 1);
+    }
+
+    /**
+     * The add that claimed an idempotency key, which answers the retries of the add: the {@link #claim()} of a round
+     * for the adds that are answered with its sum, or the deadline of an add that may be withdrawn.
+     */
+    interface Claim {
+
+        /**
+         * @return the round the number of the add is counted in, unless it is withdrawn.
+         */
+        Round round();
+
+        /**
+         * @return a future that is completed the same as the client of the add, may be shared with the client.
+         */
+        CompletableFuture<Double> result();
+    }
+
+    /**
+     * The state of a running round as of a single point in time, see {@link #snapshot()}.
+     */
+    static final class Snapshot {
+        private final long roundId;
+        private final double sum;
+        private final long pending;
+        private final boolean consistent;
+
+        /**
+         * @param roundId    the id of the round.
+         * @param sum        the sum of the numbers added to the round so far.
+         * @param pending    the number of the adds of the round so far, i.e. the clients waiting for it.
+         * @param consistent true if the <tt>sum</tt> and the <tt>pending</tt> count the same adds.
+         */
+        Snapshot(long roundId, double sum, long pending, boolean consistent) {
+            this.roundId = roundId;
+            this.sum = sum;
+            this.pending = pending;
+            this.consistent = consistent;
+        }
+
+        long roundId() {
+            return roundId;
+        }
+
+        double sum() {
+            return sum;
+        }
+
+        long pending() {
+            return pending;
+        }
+
+        boolean consistent() {
+            return consistent;
+        }
+
+        /**
+         * Appends the snapshot as a JSON object, e.g. <tt>{"round":3,"sum":6.0,"pending":2,"consistent":true}</tt>,
+         * a sum that is not finite as <tt>null</tt>.
+         * @param out the builder to append to.
+         * @return the <tt>out</tt> builder.
+         */
+        StringBuilder appendJson(StringBuilder out) {
+            out.append("{\"round\":").append(roundId).append(",\"sum\":");
+            RoundStats.appendNumber(out, sum);
+            return out.append(",\"pending\":").append(pending).append(",\"consistent\":").append(consistent)
+                    .append('}');
+        }
+    }
+
+    /**
+     * Completes a range of the groups of a round, splitting it in halves down to a single group, so that the idle
+     * workers of the {@link #POOL} steal the halves and complete the groups in parallel.
+     */
+    private static final class Release extends RecursiveAction {
+
+        /**
+         * The workers of the releases of all the rounds, one per processor.
+         */
+        static final ForkJoinPool POOL = new ForkJoinPool(Runtime.getRuntime().availableProcessors(), pool -> {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            thread.setName("sum-release-" + thread.getPoolIndex());
+            return thread;
+        }, null, false);
+
+        private final CompletableFuture<Double>[] groups;
+        private final int from;
+        private final int to;
+        private final double sum;
+        private final Throwable cause;
+
+        Release(CompletableFuture<Double>[] groups, int from, int to, double sum, Throwable cause) {
+            this.groups = groups;
+            this.from = from;
+            this.to = to;
+            this.sum = sum;
+            this.cause = cause;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from == 1) {
+                complete(groups[from], sum, cause);
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new Release(groups, from, middle, sum, cause), new Release(groups, middle, to, sum, cause));
+        }
+
+        static void complete(CompletableFuture<Double> group, double sum, Throwable cause) {
+            if (cause == null) {
+                group.complete(sum);
+            } else {
+                group.completeExceptionally(cause);
+            }
+        }
+    }
+}
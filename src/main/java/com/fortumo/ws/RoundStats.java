@@ -0,0 +1,282 @@
+package com.fortumo.ws;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * The aggregates of the numbers of a round, computed in a single pass: the count, the min, the max, the mean and the
+ * variance (by the Welford algorithm) and, at the {@link Level#QUANTILES} level, a {@link QuantileSketch}. The
+ * aggregates of two parts of a round are {@link #merge(RoundStats) merged} by the pairwise update of Chan et al., so
+ * that every cell of a {@link Round} keeps its own aggregates and the adders of different cells do not contend.
+ * <p>
+ * A number can be {@link #remove(double) removed} again, except from the min and the max that keep the withdrawn
+ * numbers, so they are bounds of the numbers in the round rather than exact. The removed numbers are aggregated on
+ * their own and subtracted from the added ones when the aggregates are read, so a number can be removed from other
+ * aggregates than the ones it is added to, e.g. by the thread that withdraws it from another cell of the round, and
+ * the merged aggregates are still exact. The variance is the population variance. The sum is not aggregated here but set from the {@link Summation} strategy of the round once it
+ * is sealed. This class is not thread-safe.
+ */
+final class RoundStats {
+
+    /**
+     * The aggregates to collect.
+     */
+    enum Level {
+        /** No aggregates, the rounds have only their sums. */
+        NONE,
+        /** The count, the min, the max, the mean and the variance. */
+        MOMENTS,
+        /** The {@link #MOMENTS} and the quantiles. */
+        QUANTILES;
+
+        /**
+         * @param value the name of the level, case insensitive.
+         * @return the level.
+         * @throws IllegalArgumentException if the level is unknown.
+         */
+        static Level parse(String value) {
+            return valueOf(value.trim().toUpperCase(Locale.ROOT));
+        }
+    }
+
+    /**
+     * The quantiles written by {@link #appendJson(StringBuilder)}, at the {@link Level#QUANTILES} level.
+     */
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99};
+    private static final String[] QUANTILE_NAMES = {"p50", "p90", "p99"};
+
+    /**
+     * The moments of the added numbers.
+     */
+    private final Moments added = new Moments();
+
+    /**
+     * The moments of the removed numbers, which may be added to other aggregates.
+     */
+    private final Moments removed = new Moments();
+    private double min = Double.POSITIVE_INFINITY;
+    private double max = Double.NEGATIVE_INFINITY;
+    private double sum;
+    private final QuantileSketch sketch;
+
+    /**
+     * The {@link #json()} of the aggregates, once encoded.
+     */
+    private volatile byte[] json;
+
+    /**
+     * @param level the aggregates to collect, not {@link Level#NONE}.
+     */
+    RoundStats(Level level) {
+        this.sketch = level == Level.QUANTILES ? new QuantileSketch() : null;
+    }
+
+    /**
+     * Adds a number to the aggregates.
+     * @param number the number.
+     */
+    void add(double number) {
+        added.add(number);
+        if (number < min) {
+            min = number;
+        }
+        if (number > max) {
+            max = number;
+        }
+        if (sketch != null) {
+            sketch.add(number);
+        }
+    }
+
+    /**
+     * Removes a number added by {@link #add(double)} to these aggregates or to others that are merged with these,
+     * except from the min and the max.
+     * @param number the number.
+     */
+    void remove(double number) {
+        removed.add(number);
+        if (sketch != null) {
+            sketch.remove(number);
+        }
+    }
+
+    /**
+     * Merges the aggregates of the <tt>other</tt> part of the round into this one.
+     * @param other the aggregates to merge, left as they are.
+     */
+    void merge(RoundStats other) {
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+        if (sketch != null && other.sketch != null) {
+            sketch.merge(other.sketch);
+        }
+        added.merge(other.added);
+        removed.merge(other.removed);
+    }
+
+    /**
+     * @param sum the sum of the round, as computed by its {@link Summation} strategy.
+     */
+    void sum(double sum) {
+        this.sum = sum;
+    }
+
+    /**
+     * @return the sum of the round, as computed by its {@link Summation} strategy.
+     */
+    double sum() {
+        return sum;
+    }
+
+    /**
+     * @return the number of the numbers.
+     */
+    long count() {
+        return Math.max(0, added.count - removed.count);
+    }
+
+    /**
+     * @return the smallest number, <tt>NaN</tt> if there are none.
+     */
+    double min() {
+        return count() == 0 ? Double.NaN : min;
+    }
+
+    /**
+     * @return the largest number, <tt>NaN</tt> if there are none.
+     */
+    double max() {
+        return count() == 0 ? Double.NaN : max;
+    }
+
+    /**
+     * @return the mean of the numbers, <tt>NaN</tt> if there are none.
+     */
+    double mean() {
+        long count = count();
+        if (count == 0 || removed.count == 0) {
+            return count == 0 ? Double.NaN : added.mean;
+        }
+        return (added.count * added.mean - removed.count * removed.mean) / count;
+    }
+
+    /**
+     * @return the population variance of the numbers, <tt>NaN</tt> if there are none.
+     */
+    double variance() {
+        long count = count();
+        if (count == 0) {
+            return Double.NaN;
+        }
+        if (removed.count == 0) {
+            return added.m2 / count;
+        }
+        // the reverse of the pairwise update: the added numbers are the remaining and the removed ones merged.
+        double delta = removed.mean - mean();
+        double m2 = added.m2 - removed.m2 - delta * delta * ((double) removed.count * count / added.count);
+        return Math.max(0, m2) / count;
+    }
+
+    /**
+     * @param quantiles the quantiles to estimate, each in <tt>[0, 1]</tt> in ascending order.
+     * @return the estimates of the quantiles within the min and the max, all <tt>NaN</tt> if there are no numbers or
+     *         the quantiles are not collected.
+     */
+    double[] quantiles(double... quantiles) {
+        if (sketch == null || count() == 0) {
+            double[] estimates = new double[quantiles.length];
+            Arrays.fill(estimates, Double.NaN);
+            return estimates;
+        }
+        double[] estimates = sketch.quantiles(quantiles);
+        for (int i = 0; i < estimates.length; i++) {
+            estimates[i] = Math.max(min, Math.min(max, estimates[i]));
+        }
+        return estimates;
+    }
+
+    /**
+     * Appends the aggregates as a JSON object, the values that are not finite as <tt>null</tt>, e.g.
+     * <tt>{"sum":6.0,"count":3,"min":1.0,"max":3.0,"mean":2.0,"variance":0.6666666666666666}</tt>, followed by
+     * <tt>"p50"</tt>, <tt>"p90"</tt> and <tt>"p99"</tt> if the quantiles are collected.
+     * @param out the builder to append to.
+     * @return the <tt>out</tt> builder.
+     */
+    StringBuilder appendJson(StringBuilder out) {
+        out.append("{\"sum\":");
+        appendNumber(out, sum);
+        out.append(",\"count\":").append(count());
+        out.append(",\"min\":");
+        appendNumber(out, min());
+        out.append(",\"max\":");
+        appendNumber(out, max());
+        out.append(",\"mean\":");
+        appendNumber(out, mean());
+        out.append(",\"variance\":");
+        appendNumber(out, variance());
+        if (sketch != null) {
+            double[] estimates = quantiles(QUANTILES);
+            for (int i = 0; i < estimates.length; i++) {
+                out.append(",\"").append(QUANTILE_NAMES[i]).append("\":");
+                appendNumber(out, estimates[i]);
+            }
+        }
+        return out.append('}');
+    }
+
+    /**
+     * Encodes the aggregates once, so that all the clients of a round share the bytes. Must be called only once the
+     * aggregates are final, i.e. the round is sealed.
+     * @return the UTF-8 bytes of the {@link #appendJson(StringBuilder) JSON object}, shared and must not be modified.
+     */
+    byte[] json() {
+        byte[] bytes = json;
+        if (bytes == null) {
+            bytes = appendJson(new StringBuilder(160)).toString().getBytes(StandardCharsets.UTF_8);
+            json = bytes;  // a racing caller encodes the same bytes.
+        }
+        return bytes;
+    }
+
+    /**
+     * Appends a number as a JSON value.
+     * @param out    the builder to append to.
+     * @param number the number, <tt>null</tt> if it is not finite.
+     */
+    static void appendNumber(StringBuilder out, double number) {
+        if (Double.isFinite(number)) {
+            out.append(number);
+        } else {
+            out.append("null");
+        }
+    }
+
+    /**
+     * The count, the mean and the sum of the squared differences from the mean of some numbers, updated by the
+     * Welford algorithm and merged by the pairwise update of Chan et al.
+     */
+    private static final class Moments {
+        private long count;
+        private double mean;
+        private double m2;
+
+        void add(double number) {
+            count++;
+            double delta = number - mean;
+            mean += delta / count;
+            m2 += delta * (number - mean);
+        }
+
+        void merge(Moments other) {
+            if (other.count == 0) {
+                return;
+            }
+            long total = count + other.count;
+            double delta = other.mean - mean;
+            mean += delta * ((double) other.count / total);
+            m2 += other.m2 + delta * delta * ((double) count * other.count / total);
+            count = total;
+        }
+    }
+}
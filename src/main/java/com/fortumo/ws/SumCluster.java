@@ -0,0 +1,250 @@
+package com.fortumo.ws;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A node of a cluster of servlets that sum up the numbers of the same sessions together. Each node accumulates the
+ * numbers it receives in its own {@link SumService}, so a load balancer may send any request to any node. This class
+ * is thread-safe.
+ * <p>
+ * The node that receives the 'end' signal coordinates a cut of the session across the cluster: every node
+ * {@link SumService#cut() cuts} its current round and returns its partial sum, then every node
+ * {@link SumService#complete(long, double) completes} its sealed round with the total of the partial sums. All the
+ * clients of a cut are released with the same total, and every number is counted in exactly one cut. The concurrent
+ * cuts of different coordinators do not block each other, each of them sums up the rounds it has sealed.
+ * <p>
+ * If any node cannot be cut, the cuts of the other nodes are aborted and their clients fail, so that no client is
+ * released with a partial total. A node aborts a cut on its own if the coordinator does not complete it in
+ * {@link #cutTimeoutMillis}. The nodes talk to each other through a pluggable {@link ClusterTransport}, the node
+ * side of the calls is {@link #handle(String, String, String)}.
+ */
+final class SumCluster {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SumCluster.class);
+
+    /**
+     * Name of the query parameter of a cut call, i.e. <tt>POST /{sessionId}?cut</tt>. Answered with the id of the cut
+     * and the partial sum, separated by a space.
+     */
+    static final String CUT_PARAM = "cut";
+
+    /**
+     * Name of the query parameter of a complete call, i.e. <tt>POST /{sessionId}?complete={cutId}</tt> with the total
+     * in the body.
+     */
+    static final String COMPLETE_PARAM = "complete";
+
+    /**
+     * Name of the query parameter of an abort call, i.e. <tt>POST /{sessionId}?abort={cutId}</tt>.
+     */
+    static final String ABORT_PARAM = "abort";
+
+    /**
+     * The address of this node.
+     */
+    private final String self;
+
+    /**
+     * The addresses of all the nodes, including this one.
+     */
+    private final List<String> nodes;
+
+    private final ClusterTransport transport;
+
+    /**
+     * The sessions of this node.
+     */
+    private final SumServiceRegistry sessions;
+
+    /**
+     * The time after which a cut that is not completed by its coordinator is aborted, in milliseconds.
+     */
+    private final long cutTimeoutMillis;
+
+    /**
+     * @param self             the address of this node.
+     * @param nodes            the addresses of all the nodes, including this one.
+     * @param transport        the transport to the other nodes.
+     * @param sessions         the sessions of this node.
+     * @param cutTimeoutMillis the time after which a cut that is not completed by its coordinator is aborted.
+     * @throws IllegalArgumentException if this node is not one of the nodes.
+     */
+    SumCluster(String self, List<String> nodes, ClusterTransport transport, SumServiceRegistry sessions,
+               long cutTimeoutMillis) {
+        if (!nodes.contains(self)) {
+            throw new IllegalArgumentException("node=" + self + " is not one of nodes=" + nodes);
+        }
+        this.self = self;
+        this.nodes = List.copyOf(nodes);
+        this.transport = transport;
+        this.sessions = sessions;
+        this.cutTimeoutMillis = cutTimeoutMillis;
+    }
+
+    /**
+     * Coordinates a cut of the session across the cluster.
+     * @param sessionId the id of the session.
+     * @return a future completed with the total of the cluster, or completed exceptionally if a node cannot be cut.
+     */
+    CompletableFuture<Double> end(String sessionId) {
+        List<CompletableFuture<SumService.Cut>> cuts = new ArrayList<>(nodes.size());
+        for (String node : nodes) {
+            cuts.add(node.equals(self) ? localCut(sessionId) : transport.cut(node, sessionId));
+        }
+        return CompletableFuture.allOf(cuts.toArray(new CompletableFuture<?>[0])).handle((ignored, failure) -> {
+            if (failure != null) {
+                abortAll(sessionId, cuts);
+                throw new CompletionException("cannot cut session=" + sessionId, failure);
+            }
+            double total = total(cuts);
+            for (int i = 0; i < nodes.size(); i++) {
+                String node = nodes.get(i);
+                long cut = cuts.get(i).join().id();
+                if (node.equals(self)) {
+                    call(sessionId, service -> service.complete(cut, total));
+                } else {
+                    transport.complete(node, sessionId, cut, total).exceptionally(e -> {
+                        LOG.error("cannot complete node={}, session={}, cut={}", node, sessionId, cut, e);
+                        return null;
+                    });
+                }
+            }
+            return total;
+        });
+    }
+
+    /**
+     * Handles a call of a coordinator.
+     * @param sessionId the id of the session.
+     * @param query     the query string of the call, see {@link #isClusterCall(String)}.
+     * @param body      the body of the call.
+     * @return the body of the response.
+     * @throws IllegalArgumentException if the call is malformed.
+     * @throws IllegalStateException    if the cut is unknown or already completed.
+     * @throws InterruptedException     if thread interrupted while waiting.
+     */
+    String handle(String sessionId, String query, String body) throws InterruptedException {
+        if (query.equals(CUT_PARAM)) {
+            SumService.Cut cut = sessions.call(sessionId, service -> {
+                SumService.Cut local = service.cut();
+                CompletableFuture.delayedExecutor(cutTimeoutMillis, TimeUnit.MILLISECONDS)
+                        .execute(() -> abortExpired(service, local.id()));
+                return local;
+            });
+            return cut.id() + " " + cut.sum();
+        }
+        if (query.startsWith(COMPLETE_PARAM + "=")) {
+            long cut = Long.parseLong(query.substring(COMPLETE_PARAM.length() + 1));
+            double total = Double.parseDouble(body.trim());
+            sessions.call(sessionId, service -> service.complete(cut, total));
+            return "";
+        }
+        if (query.startsWith(ABORT_PARAM + "=")) {
+            long cut = Long.parseLong(query.substring(ABORT_PARAM.length() + 1));
+            sessions.call(sessionId, service -> {
+                service.abort(cut, new IllegalStateException("cut aborted by the coordinator"));
+                return null;
+            });
+            return "";
+        }
+        throw new IllegalArgumentException("unknown cluster call=" + query);
+    }
+
+    /**
+     * @param query the query string of a request, may be null.
+     * @return true if the request is a call of a coordinator.
+     */
+    static boolean isClusterCall(String query) {
+        return query != null && (query.equals(CUT_PARAM)
+                || query.startsWith(COMPLETE_PARAM + "=")
+                || query.startsWith(ABORT_PARAM + "="));
+    }
+
+    /**
+     * Parses the response of a cut call, see {@link #CUT_PARAM}.
+     * @param response the body of the response.
+     * @return the cut.
+     * @throws IllegalArgumentException if the response is malformed.
+     */
+    static SumService.Cut parseCut(String response) {
+        String trimmed = response.trim();
+        int space = trimmed.indexOf(' ');
+        if (space < 0) {
+            throw new IllegalArgumentException("malformed cut=" + response);
+        }
+        return new SumService.Cut(
+                Long.parseLong(trimmed.substring(0, space)), Double.parseDouble(trimmed.substring(space + 1)));
+    }
+
+    /**
+     * @param cuts the completed cuts of all the nodes.
+     * @return the sum of the partial sums, in the order of the nodes.
+     */
+    private static double total(List<CompletableFuture<SumService.Cut>> cuts) {
+        double total = 0;
+        for (CompletableFuture<SumService.Cut> cut : cuts) {
+            total += cut.join().sum();
+        }
+        return total;
+    }
+
+    private CompletableFuture<SumService.Cut> localCut(String sessionId) {
+        try {
+            return CompletableFuture.completedFuture(sessions.call(sessionId, SumService::cut));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return CompletableFuture.failedFuture(e);
+        } catch (RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    private void abortAll(String sessionId, List<CompletableFuture<SumService.Cut>> cuts) {
+        for (int i = 0; i < nodes.size(); i++) {
+            CompletableFuture<SumService.Cut> cut = cuts.get(i);
+            if (cut.isCompletedExceptionally()) {
+                continue;
+            }
+            String node = nodes.get(i);
+            long id = cut.join().id();
+            if (node.equals(self)) {
+                call(sessionId, service -> {
+                    service.abort(id, new IllegalStateException("cannot cut all the nodes"));
+                    return null;
+                });
+            } else {
+                transport.abort(node, sessionId, id).exceptionally(e -> {
+                    LOG.error("cannot abort node={}, session={}, cut={}", node, sessionId, id, e);
+                    return null;
+                });
+            }
+        }
+    }
+
+    private static void abortExpired(SumService service, long cut) {
+        try {
+            service.abort(cut, new IllegalStateException("cut is not completed by the coordinator"));
+        } catch (IllegalStateException e) {
+            // completed or aborted by the coordinator in time.
+        }
+    }
+
+    /**
+     * Applies the <tt>call</tt> to the local session, rethrowing an interrupt as an unchecked exception.
+     */
+    private <T> T call(String sessionId, SumServiceRegistry.SessionCall<T> call) {
+        try {
+            return sessions.call(sessionId, call);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CompletionException(e);
+        }
+    }
+}
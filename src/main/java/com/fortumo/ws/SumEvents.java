@@ -0,0 +1,285 @@
+package com.fortumo.ws;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pushes the running sums of the sessions and their completed rounds to the subscribers as Server-Sent Events. This
+ * class is thread-safe.
+ * <p>
+ * The updates are coalesced: a single thread {@link #tick() ticks} at a fixed rate, and sends the running sum of a
+ * session only if it changed since the last tick, followed by a <tt>round</tt> event for every round completed
+ * meanwhile. Each event is encoded once per tick and shared by all the subscribers of the session. Neither the adders
+ * nor the 'end' signal ever touch the subscribers, completing a round only enqueues its sum.
+ * <p>
+ * A slow subscriber never blocks the others: the events are written only while its sink is ready, otherwise only the
+ * latest running sum is kept for it, and a subscriber that falls behind by more than {@link #MAX_PENDING_ROUNDS}
+ * round events is closed.
+ */
+final class SumEvents {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SumEvents.class);
+
+    /**
+     * The maximum number of round events kept for a subscriber that is not ready.
+     */
+    static final int MAX_PENDING_ROUNDS = 64;
+
+    /**
+     * The output of a subscriber, e.g. a non-blocking servlet output stream. Called by one thread at a time.
+     */
+    interface Sink {
+        /**
+         * @return true if the sink can be written to without blocking. If false, the sink must call
+         *         {@link Subscriber#flush()} once it is ready again.
+         */
+        boolean isReady();
+
+        /**
+         * @param event the event to write.
+         * @throws IOException if the subscriber is gone.
+         */
+        void write(byte[] event) throws IOException;
+
+        /**
+         * Sends the events written so far.
+         * @throws IOException if the subscriber is gone.
+         */
+        void flush() throws IOException;
+
+        /**
+         * Closes the sink, called once.
+         */
+        void close();
+    }
+
+    private final SumServiceRegistry sessions;
+
+    /**
+     * The subscribed sessions by their ids.
+     */
+    private final Map<String, Topic> topics = new ConcurrentHashMap<>();
+
+    /**
+     * Runs the ticks, or null if the ticks are run by the caller.
+     */
+    private final ScheduledExecutorService scheduler;
+
+    /**
+     * @param sessions       the sessions to read the running sums of.
+     * @param intervalMillis the time between two ticks, or 0 if {@link #tick()} is called by the caller.
+     */
+    SumEvents(SumServiceRegistry sessions, long intervalMillis) {
+        this.sessions = sessions;
+        if (intervalMillis <= 0) {
+            this.scheduler = null;
+            return;
+        }
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "sum-events");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::tick, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Subscribes to the events of the session. The current running sum is sent with the next tick.
+     * @param sessionId  the id of the session.
+     * @param subscriber the subscriber.
+     */
+    void subscribe(String sessionId, Subscriber subscriber) {
+        topics.compute(sessionId, (id, topic) -> {
+            Topic subscribed = topic == null ? new Topic() : topic;
+            subscribed.subscribers.add(subscriber);
+            subscribed.lastSum = Double.NaN;  // so that the new subscriber receives the running sum.
+            return subscribed;
+        });
+    }
+
+    /**
+     * Enqueues a <tt>round</tt> event for the subscribers of the session, sent with the next tick.
+     * @param sessionId the id of the session.
+     * @param sum       the sum of the completed round.
+     */
+    void roundCompleted(String sessionId, double sum) {
+        Topic topic = topics.get(sessionId);
+        if (topic != null) {
+            topic.rounds.add(sum);
+        }
+    }
+
+    /**
+     * VisibleForTesting. Sends the changed running sums and the completed rounds to the subscribers, and drops the
+     * closed subscribers.
+     */
+    void tick() {
+        for (Map.Entry<String, Topic> entry : topics.entrySet()) {
+            String sessionId = entry.getKey();
+            Topic topic = entry.getValue();
+            try {
+                publish(sessionId, topic);
+            } catch (RuntimeException e) {
+                LOG.error("cannot publish session={}", sessionId, e);
+            }
+            topic.subscribers.removeIf(Subscriber::isClosed);
+            topics.computeIfPresent(sessionId, (id, t) -> t.subscribers.isEmpty() ? null : t);
+        }
+    }
+
+    /**
+     * @return the number of the subscribers of all the sessions.
+     */
+    int subscriberCount() {
+        int count = 0;
+        for (Topic topic : topics.values()) {
+            count += topic.subscribers.size();
+        }
+        return count;
+    }
+
+    /**
+     * Stops the ticks and closes all the subscribers.
+     */
+    void close() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+        for (Topic topic : topics.values()) {
+            topic.subscribers.forEach(Subscriber::close);
+        }
+        topics.clear();
+    }
+
+    private void publish(String sessionId, Topic topic) {
+        Double round;
+        while ((round = topic.rounds.poll()) != null) {
+            byte[] event = event("round", round);
+            for (Subscriber subscriber : topic.subscribers) {
+                subscriber.offerRound(event);
+            }
+        }
+        SumService service = sessions.peek(sessionId);
+        double sum = service == null ? 0 : service.runningSum();
+        if (Double.compare(sum, topic.lastSum) != 0) {
+            topic.lastSum = sum;
+            byte[] event = event("sum", sum);
+            for (Subscriber subscriber : topic.subscribers) {
+                subscriber.offerSum(event);
+            }
+        }
+    }
+
+    /**
+     * @param name the name of the event.
+     * @param sum  the data of the event.
+     * @return the event in the Server-Sent Events format.
+     */
+    static byte[] event(String name, double sum) {
+        return ("event: " + name + "\ndata: " + DoubleFormat.format(sum) + "\n\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * The subscribers of a session.
+     */
+    private static final class Topic {
+        private final Set<Subscriber> subscribers = ConcurrentHashMap.newKeySet();
+        private final Queue<Double> rounds = new ConcurrentLinkedQueue<>();
+
+        /**
+         * The running sum sent with the last tick, accessed by the ticks only.
+         */
+        private volatile double lastSum = Double.NaN;
+    }
+
+    /**
+     * A subscriber, which keeps the events that cannot be written yet. The latest running sum replaces the earlier
+     * ones, the round events are queued.
+     */
+    static final class Subscriber {
+        private final Sink sink;
+
+        // guarded by this.
+        private byte[] pendingSum;
+        private final Queue<byte[]> pendingRounds = new ArrayDeque<>();
+        private boolean closed = false;
+
+        /**
+         * @param sink the output of the subscriber.
+         */
+        Subscriber(Sink sink) {
+            this.sink = sink;
+        }
+
+        synchronized void offerSum(byte[] event) {
+            pendingSum = event;
+            flush();
+        }
+
+        synchronized void offerRound(byte[] event) {
+            if (pendingRounds.size() >= MAX_PENDING_ROUNDS) {
+                LOG.debug("closing slow subscriber");
+                close();
+                return;
+            }
+            pendingRounds.add(event);
+            pendingSum = null;  // belongs to the completed round, the next tick sends the sum of the new one.
+            flush();
+        }
+
+        /**
+         * Writes the pending events while the sink is ready.
+         */
+        synchronized void flush() {
+            if (closed) {
+                return;
+            }
+            try {
+                boolean written = false;
+                while (sink.isReady()) {
+                    byte[] event = pendingRounds.poll();
+                    if (event == null) {
+                        event = pendingSum;
+                        pendingSum = null;
+                    }
+                    if (event == null) {
+                        if (written) {
+                            sink.flush();
+                        }
+                        return;
+                    }
+                    sink.write(event);
+                    written = true;
+                }
+            } catch (IOException e) {
+                LOG.debug("subscriber is gone, cause={}", e.getMessage());
+                close();
+            }
+        }
+
+        synchronized void close() {
+            if (!closed) {
+                closed = true;
+                pendingRounds.clear();
+                pendingSum = null;
+                sink.close();
+            }
+        }
+
+        synchronized boolean isClosed() {
+            return closed;
+        }
+    }
+}
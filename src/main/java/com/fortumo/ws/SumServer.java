@@ -0,0 +1,266 @@
+package com.fortumo.ws;
+
+import org.eclipse.jetty.server.HttpConfiguration;
+import org.eclipse.jetty.server.HttpConnectionFactory;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Runs {@link SumServlet} in an embedded Jetty, without an application server, e.g.
+ * <tt>java -jar fortumows-standalone.jar --port=8080 --mode=async</tt>.
+ * <p>
+ * The options are given as <tt>--name=value</tt> arguments. The {@link #PORT_OPTION}, {@link #HOST_OPTION},
+ * {@link #ACCEPTORS_OPTION}, {@link #SELECTORS_OPTION}, {@link #MIN_THREADS_OPTION}, {@link #MAX_THREADS_OPTION},
+ * {@link #ACCEPT_QUEUE_OPTION} and {@link #IDLE_TIMEOUT_OPTION} options configure the server, any other option is
+ * passed to the servlet as an init parameter (see <tt>web.xml</tt>). With the {@link #TRAIN_OPTION} option, the
+ * server is started on a free port, serves a few requests to itself and stops, which is how the class data sharing
+ * archive of the <tt>standalone</tt> profile is dumped.
+ */
+public final class SumServer {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SumServer.class);
+
+    /**
+     * The port to listen on, 0 for a free port.
+     */
+    static final String PORT_OPTION = "port";
+
+    /**
+     * The address to listen on, all the interfaces if not set.
+     */
+    static final String HOST_OPTION = "host";
+
+    /**
+     * The number of the acceptor threads, -1 for the Jetty default, which depends on the number of the CPUs.
+     */
+    static final String ACCEPTORS_OPTION = "acceptors";
+
+    /**
+     * The number of the selector threads, -1 for the Jetty default, which depends on the number of the CPUs.
+     */
+    static final String SELECTORS_OPTION = "selectors";
+
+    /**
+     * The minimum number of the worker threads.
+     */
+    static final String MIN_THREADS_OPTION = "minThreads";
+
+    /**
+     * The maximum number of the worker threads, which limits the waiting clients in the blocking mode.
+     */
+    static final String MAX_THREADS_OPTION = "maxThreads";
+
+    /**
+     * The backlog of the server socket.
+     */
+    static final String ACCEPT_QUEUE_OPTION = "acceptQueueSize";
+
+    /**
+     * The time after which an idle connection is closed, in milliseconds. A client waiting for the 'end' signal does
+     * not send anything, so it must be longer than a round.
+     */
+    static final String IDLE_TIMEOUT_OPTION = "idleTimeoutMillis";
+
+    /**
+     * The option that runs the training requests and exits.
+     */
+    static final String TRAIN_OPTION = "train";
+
+    /**
+     * The server options and their defaults.
+     */
+    private static final Map<String, String> DEFAULTS = Map.of(
+            PORT_OPTION, "8080",
+            HOST_OPTION, "",
+            ACCEPTORS_OPTION, "-1",
+            SELECTORS_OPTION, "-1",
+            MIN_THREADS_OPTION, "8",
+            MAX_THREADS_OPTION, "200",
+            ACCEPT_QUEUE_OPTION, "0",
+            IDLE_TIMEOUT_OPTION, "600000");
+
+    private final Server server;
+    private final ServerConnector connector;
+
+    /**
+     * @param options the server options and the servlet init parameters, see {@link #parse(String[])}.
+     * @throws IllegalArgumentException if a server option is invalid.
+     */
+    SumServer(Map<String, String> options) {
+        Map<String, String> serverOptions = new LinkedHashMap<>(DEFAULTS);
+        Map<String, String> initParams = new LinkedHashMap<>();
+        options.forEach((name, value) -> (DEFAULTS.containsKey(name) ? serverOptions : initParams).put(name, value));
+
+        int minThreads = intOption(serverOptions, MIN_THREADS_OPTION);
+        int maxThreads = intOption(serverOptions, MAX_THREADS_OPTION);
+        if (minThreads < 1 || maxThreads < minThreads) {
+            throw new IllegalArgumentException(
+                    "invalid minThreads=" + minThreads + " or maxThreads=" + maxThreads);
+        }
+        QueuedThreadPool threads = new QueuedThreadPool(maxThreads, minThreads);
+        threads.setName("sum-server");
+        server = new Server(threads);
+        server.setStopAtShutdown(true);
+
+        HttpConfiguration http = new HttpConfiguration();
+        http.setSendServerVersion(false);
+        connector = new ServerConnector(server, intOption(serverOptions, ACCEPTORS_OPTION),
+                intOption(serverOptions, SELECTORS_OPTION), new HttpConnectionFactory(http));
+        String host = serverOptions.get(HOST_OPTION);
+        connector.setHost(host.isBlank() ? null : host);
+        connector.setPort(intOption(serverOptions, PORT_OPTION));
+        connector.setAcceptQueueSize(intOption(serverOptions, ACCEPT_QUEUE_OPTION));
+        connector.setIdleTimeout(longOption(serverOptions, IDLE_TIMEOUT_OPTION));
+        server.addConnector(connector);
+
+        ServletContextHandler context = new ServletContextHandler(ServletContextHandler.NO_SESSIONS);
+        context.setContextPath("/");
+        ServletHolder servlet = new ServletHolder("SumServlet", SumServlet.class);
+        servlet.setInitParameters(initParams);
+        servlet.setInitOrder(0);  // initialized on start, so that a misconfiguration fails fast.
+        servlet.setAsyncSupported(true);
+        context.addServlet(servlet, "/*");
+        server.setHandler(context);
+    }
+
+    /**
+     * Starts the server.
+     * @throws Exception if the server or the servlet cannot be started.
+     */
+    void start() throws Exception {
+        server.start();
+    }
+
+    /**
+     * Stops the server, which destroys the servlet.
+     * @throws Exception if the server cannot be stopped.
+     */
+    void stop() throws Exception {
+        server.stop();
+    }
+
+    /**
+     * @return the port the server listens on.
+     */
+    int port() {
+        return connector.getLocalPort();
+    }
+
+    /**
+     * @param args the options, see {@link SumServer}.
+     * @throws Exception if the server cannot be started.
+     */
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options;
+        try {
+            options = parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println("usage: java -jar fortumows-standalone.jar [--" + TRAIN_OPTION + "] [--"
+                    + PORT_OPTION + "=8080] [--" + MAX_THREADS_OPTION + "=200] [--{servlet init parameter}=value]...");
+            System.exit(2);
+            return;
+        }
+        boolean train = options.remove(TRAIN_OPTION) != null;
+        if (train) {
+            options.put(PORT_OPTION, "0");
+        }
+        SumServer server = new SumServer(options);
+        server.start();
+        Instant jvmStart = ProcessHandle.current().info().startInstant().orElse(null);
+        LOG.info("server started on port={} in {} ms since the JVM start", server.port(),
+                jvmStart == null ? "?" : Duration.between(jvmStart, Instant.now()).toMillis());
+        if (train) {
+            try {
+                train(URI.create("http://localhost:" + server.port()));
+            } finally {
+                server.stop();
+            }
+        }
+    }
+
+    /**
+     * @param args the arguments, each <tt>--name=value</tt>, or <tt>--name</tt> for a flag.
+     * @return the values by their names, a flag is mapped to <tt>true</tt>.
+     * @throws IllegalArgumentException if an argument is malformed.
+     */
+    static Map<String, String> parse(String[] args) {
+        Map<String, String> options = new LinkedHashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || arg.length() == 2 || arg.charAt(2) == '=') {
+                throw new IllegalArgumentException("malformed option: " + arg);
+            }
+            int separator = arg.indexOf('=');
+            if (separator < 0) {
+                options.put(arg.substring(2), "true");
+            } else {
+                options.put(arg.substring(2, separator), arg.substring(separator + 1));
+            }
+        }
+        return options;
+    }
+
+    /**
+     * Sends the requests of a round to the server, so that the classes on the paths of the add, the 'end' signal and
+     * the metrics are loaded.
+     * @param base the base URL of the server.
+     * @throws IOException          if a request fails.
+     * @throws InterruptedException if interrupted while waiting for a response.
+     */
+    static void train(URI base) throws IOException, InterruptedException {
+        HttpClient client = HttpClient.newHttpClient();
+        HttpRequest end = HttpRequest.newBuilder(base.resolve("/train"))
+                .POST(HttpRequest.BodyPublishers.ofString("end")).build();
+        for (int round = 0; round < 10; round++) {
+            CompletableFuture<HttpResponse<String>> add = client.sendAsync(
+                    HttpRequest.newBuilder(base.resolve("/train")).POST(HttpRequest.BodyPublishers.ofString("1"))
+                            .build(),
+                    HttpResponse.BodyHandlers.ofString());
+            while (!add.isDone()) {  // the add may reach the server after the 'end' signal.
+                int status = client.send(end, HttpResponse.BodyHandlers.discarding()).statusCode();
+                if (status != 200) {
+                    throw new IOException("training 'end' signal failed, status=" + status);
+                }
+            }
+            if (add.join().statusCode() != 200) {
+                throw new IOException("training add failed, status=" + add.join().statusCode());
+            }
+        }
+        client.send(HttpRequest.newBuilder(base.resolve(SumServlet.METRICS_PATH)).GET().build(),
+                HttpResponse.BodyHandlers.discarding());
+    }
+
+    private static int intOption(Map<String, String> options, String name) {
+        String value = options.get(name);
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("invalid " + name + "=" + value, e);
+        }
+    }
+
+    private static long longOption(Map<String, String> options, String name) {
+        String value = options.get(name);
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("invalid " + name + "=" + value, e);
+        }
+    }
+}
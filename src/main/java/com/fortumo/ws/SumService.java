@@ -3,73 +3,1181 @@ package com.fortumo.ws;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+import java.util.function.DoubleConsumer;
+
 /**
- * The service that collects and sums up the numbers (handled by {@link #doAdd(double)}) received from the clients and
- * waits until one of the client sends the 'end' signal (handled by {@link #doEnd()}).
+ * The service that collects and sums up the numbers (handled by {@link #add(double)}) received from the clients until
+ * one of the client sends the 'end' signal (handled by {@link #end()}).
  * Note that, objects created from this class are re-usable. This class is thread-safe.
+ * <p>
+ * The numbers are accumulated in the striped cells of the current {@link Round} with the configured {@link Summation}
+ * strategy, so the adders do not contend on a shared lock. Each round is completed through a future, so every waiting
+ * client is released exactly once without re-acquiring a monitor. The blocking {@link #doAdd(double)} and
+ * {@link #doEnd()} are thin wrappers over this API. The numbers of a {@link Batch} are added by a single
+ * {@link #add(Batch, long)}, each with the strategy of the round.
+ * <p>
+ * A service that has no clients waiting for its current round can be closed with {@link #tryClose(long)}, after which
+ * every call fails with {@link ClosedException}. This is how {@link SumServiceRegistry} evicts the idle sessions.
+ * <p>
+ * With a {@link Journal}, every number is journaled before it is counted and the journal of a round is deleted once
+ * the round is ended. The numbers journaled by the previous run are recovered into the first round.
+ * <p>
+ * The 'end' signal is split in two steps for {@link SumCluster}: {@link #cut()} seals the current round and returns
+ * its partial sum, and {@link #complete(long, double)} releases the clients of the sealed round with the total of all
+ * the nodes.
+ * <p>
+ * The {@link Limits} bound the number of the clients waiting for a round and the time they wait: an add is rejected
+ * with {@link OverloadedException} while the round is full, withdrawn with {@link TimedOutException} if the round is
+ * not ended in time, and a round can be ended automatically once it has enough numbers or is open long enough.
+ * <p>
+ * With a {@link RoundStats.Level} other than <tt>NONE</tt>, the rounds also collect the {@link RoundStats} of their
+ * numbers, which {@link #doEndWithStats()} and {@link #addWithStats(double)} return along with the sum.
+ * <p>
+ * A <tt>pipelined</tt> service releases the clients of an ended round in the background: {@link #end()} seals the
+ * current round, opens the next one and returns the sum at once, while the clients of the sealed round are drained by
+ * a shared pool, one round after the other in the order they are ended. So neither the 'end' signal nor an adder that
+ * ends a round automatically waits for the clients of the round to be released, unless {@link #MAX_UNDRAINED} rounds
+ * are already waiting to be released.
+ * <p>
+ * An add may carry an idempotency key, e.g. {@link #add(double, long)}, so that a client can safely retry an add it
+ * did not get the answer of, e.g. after a proxy timed out waiting for the round to end. A retry of an add that is
+ * counted in the current round or in the one before is not counted again: it waits for and gets the same answer as
+ * the original add. The keys are kept by the rounds (see {@link Round#tryAdd(double, long, Round.Claim)}), so
+ * they take memory only as long as their rounds do. A key is released if its add is withdrawn, and the keys are not
+ * journaled, so a retry after a restart is counted again.
  */
-class SumService implements IMonitor {
+class SumService {
 
     private static final Logger LOG = LoggerFactory.getLogger(SumService.class);
 
     /**
-     * The sum of all the numbers received from the clients.
+     * The number of the ended rounds of a pipelined service that can wait to be released, after which ending a round
+     * waits for the drain to catch up, so that a flood of 'end' signals does not queue up rounds without bound.
+     */
+    static final int MAX_UNDRAINED = 256;
+
+    /**
+     * The round that is currently accepting numbers. A round is defined as all the {@link #add(double)} calls before
+     * a thread calls the {@link #end()}.
+     */
+    private final AtomicReference<Round> current;
+
+    /**
+     * The strategy the rounds sum up their numbers with.
+     */
+    private final Summation summation;
+
+    /**
+     * The metrics the service records to.
+     */
+    private final Metrics metrics;
+
+    /**
+     * The journal of the rounds, or null.
+     */
+    private final Journal journal;
+
+    /**
+     * The admission limits of the rounds.
+     */
+    private final Limits limits;
+
+    /**
+     * The statistics the rounds collect.
+     */
+    private final RoundStats.Level statsLevel;
+
+    /**
+     * True if the clients of the ended rounds are released in the background.
      */
-    private double totalSum = 0;
+    private final boolean pipelined;
 
     /**
-     * the number of threads that called the {@link #doAdd(double)} method.
+     * The cuts whose clients are yet to be released in the background, in the order of the cuts.
      */
-    private int entries = 0;
+    private final Queue<Cut> draining = new ConcurrentLinkedQueue<>();
 
     /**
-     * A round is defined as all the {@link #doAdd(double)} calls before a thread calls the {@link #doEnd()}.
-     * If false, then a round is currently active and any thread that called the {@link #doAdd(double)} has to
-     * wait for notification. This variable is used to protect against spurious wake-ups.
+     * The number of the cuts offered to {@link #draining} that are not drained yet, the drain runs while it is not 0.
      */
-    private boolean roundComplete = false;
+    private final AtomicInteger undrained = new AtomicInteger();
 
     /**
-     * Adds the provided <tt>number</tt> to {@link #totalSum} and waits for {@link #doEnd()} call.
+     * The monitor that the 'end' signals wait on while {@link #MAX_UNDRAINED} rounds are waiting to be released,
+     * notified by the drain once the backlog is below the limit.
+     */
+    private final Object drainProgress = new Object();
+
+    /**
+     * Fails the adds that time out, shared as it has no stack trace.
+     */
+    private final TimedOutException timedOut;
+
+    /**
+     * The sealed rounds waiting to be completed, by their cut ids.
+     */
+    private final Map<Long, Round> pending = new ConcurrentHashMap<>();
+
+    /**
+     * The last cut id.
+     */
+    private final AtomicLong cuts = new AtomicLong();
+
+    /**
+     * The number of cuts that are started but not completed or aborted yet, the service is not closed meanwhile.
+     */
+    private final AtomicInteger openCuts = new AtomicInteger();
+
+    /**
+     * Called with the sum of every completed round, or null.
+     */
+    private volatile DoubleConsumer completionListener;
+
+    SumService() {
+        this(Summation.DOUBLE, Metrics.disabled());
+    }
+
+    /**
+     * @param summation the strategy the rounds sum up their numbers with.
+     */
+    SumService(Summation summation) {
+        this(summation, Metrics.disabled());
+    }
+
+    /**
+     * @param summation the strategy the rounds sum up their numbers with.
+     * @param metrics   the metrics the service records to.
+     */
+    SumService(Summation summation, Metrics metrics) {
+        this(summation, metrics, null);
+    }
+
+    /**
+     * @param summation the strategy the rounds sum up their numbers with.
+     * @param metrics   the metrics the service records to.
+     * @param journal   the journal of the rounds, or null. The numbers it holds are recovered into the first round.
+     * @throws UncheckedIOException if the journal cannot be read.
+     */
+    SumService(Summation summation, Metrics metrics, Journal journal) {
+        this(summation, metrics, journal, Limits.NONE);
+    }
+
+    /**
+     * @param summation the strategy the rounds sum up their numbers with.
+     * @param metrics   the metrics the service records to.
+     * @param journal   the journal of the rounds, or null. The numbers it holds are recovered into the first round.
+     * @param limits    the admission limits of the rounds.
+     * @throws UncheckedIOException if the journal cannot be read.
+     */
+    SumService(Summation summation, Metrics metrics, Journal journal, Limits limits) {
+        this(summation, metrics, journal, limits, RoundStats.Level.NONE);
+    }
+
+    /**
+     * @param summation  the strategy the rounds sum up their numbers with.
+     * @param metrics    the metrics the service records to.
+     * @param journal    the journal of the rounds, or null. The numbers it holds are recovered into the first round.
+     * @param limits     the admission limits of the rounds.
+     * @param statsLevel the statistics the rounds collect.
+     * @throws UncheckedIOException if the journal cannot be read.
+     */
+    SumService(Summation summation, Metrics metrics, Journal journal, Limits limits, RoundStats.Level statsLevel) {
+        this(summation, metrics, journal, limits, statsLevel, false);
+    }
+
+    /**
+     * @param summation  the strategy the rounds sum up their numbers with.
+     * @param metrics    the metrics the service records to.
+     * @param journal    the journal of the rounds, or null. The numbers it holds are recovered into the first round.
+     * @param limits     the admission limits of the rounds.
+     * @param statsLevel the statistics the rounds collect.
+     * @param pipelined  true to release the clients of the ended rounds in the background.
+     * @throws UncheckedIOException if the journal cannot be read.
+     */
+    SumService(Summation summation, Metrics metrics, Journal journal, Limits limits, RoundStats.Level statsLevel,
+               boolean pipelined) {
+        this.summation = summation;
+        this.metrics = metrics;
+        this.journal = journal;
+        this.limits = limits;
+        this.statsLevel = statsLevel;
+        this.pipelined = pipelined;
+        this.timedOut = new TimedOutException(limits.addTimeoutMillis);
+        Round round = newRound();
+        if (journal != null) {
+            recover(round);
+        }
+        this.current = new AtomicReference<>(round);
+    }
+
+    /**
+     * Adds the provided <tt>number</tt> to the current round.
      * @param number the number to add.
-     * @return the {@link #totalSum}.
-     * @throws InterruptedException if thread interrupted while waiting.
+     * @return a future that is completed with the sum of the round the number is added to, once the round ends, or
+     *         failed with {@link TimedOutException} if the round is not ended within the add timeout of the
+     *         {@link Limits}.
+     * @throws ClosedException if the service is closed.
+     * @throws IllegalArgumentException if the number is not accepted by the {@link Summation} strategy.
+     * @throws OverloadedException if the current round already has the maximum number of pending adds.
+     */
+    CompletableFuture<Double> add(double number) {
+        Round round = admit(number, null);
+        return track(round, number, null);
+    }
+
+    /**
+     * Adds the provided <tt>number</tt> to the current round, unless an add with the same idempotency <tt>key</tt> is
+     * counted in the current round or in the one before, see {@link #add(double)}.
+     * @param number the number to add.
+     * @param key    the idempotency key of the add, or {@link IdempotencyKeys#NONE}.
+     * @return a future that is completed with the sum of the round the number, or the number of the earlier add with
+     *         the same key, is added to, see {@link #add(double)}.
+     * @throws ClosedException if the service is closed.
+     * @throws IllegalArgumentException if the number is not accepted by the {@link Summation} strategy.
+     * @throws OverloadedException if the current round already has the maximum number of pending adds.
+     */
+    CompletableFuture<Double> add(double number, long key) {
+        if (key == IdempotencyKeys.NONE) {
+            return add(number);
+        }
+        return claim(number, null, key).result();
+    }
+
+    /**
+     * Adds the numbers of the <tt>batch</tt> to the current round as a single add, each accumulated with the
+     * {@link Summation} strategy on its own, see {@link Round#tryAdd(Batch)} and {@link #add(double, long)}. The
+     * numbers the strategy rejects are removed from the batch as its errors.
+     * @param batch the numbers to add.
+     * @param key   the idempotency key of the add, or {@link IdempotencyKeys#NONE}.
+     * @return a future that is completed with the sum of the round the numbers, or the ones of the earlier add with
+     *         the same key, are added to, see {@link #add(double)}.
+     * @throws ClosedException if the service is closed.
+     * @throws IllegalArgumentException if no number of the batch is accepted by the {@link Summation} strategy.
+     * @throws OverloadedException if the current round already has the maximum number of pending adds.
+     */
+    CompletableFuture<Double> add(Batch batch, long key) {
+        if (key == IdempotencyKeys.NONE) {
+            Round round = admit(0, batch);
+            return track(round, 0, batch);
+        }
+        return claim(0, batch, key).result();
+    }
+
+    /**
+     * Adds the provided <tt>number</tt> to the current round, see {@link #add(double)}.
+     * @param number the number to add.
+     * @return a future that is completed with the statistics (including the sum) of the round the number is added to,
+     *         once the round ends, or with null if the statistics are not collected.
+     * @throws ClosedException if the service is closed.
+     * @throws IllegalArgumentException if the number is not accepted by the {@link Summation} strategy.
+     * @throws OverloadedException if the current round already has the maximum number of pending adds.
+     */
+    CompletableFuture<RoundStats> addWithStats(double number) {
+        Round round = admit(number, null);
+        return track(round, number, null).thenApply(sum -> round.stats());
+    }
+
+    /**
+     * Adds the provided <tt>number</tt> to the current round, see {@link #add(double, long)} and
+     * {@link #addWithStats(double)}.
+     * @param number the number to add.
+     * @param key    the idempotency key of the add, or {@link IdempotencyKeys#NONE}.
+     * @return a future that is completed with the statistics of the round the number, or the number of the earlier add
+     *         with the same key, is added to, or with null if the statistics are not collected.
+     * @throws ClosedException if the service is closed.
+     * @throws IllegalArgumentException if the number is not accepted by the {@link Summation} strategy.
+     * @throws OverloadedException if the current round already has the maximum number of pending adds.
+     */
+    CompletableFuture<RoundStats> addWithStats(double number, long key) {
+        if (key == IdempotencyKeys.NONE) {
+            return addWithStats(number);
+        }
+        Round.Claim claim = claim(number, null, key);
+        return claim.result().thenApply(sum -> claim.round().stats());
+    }
+
+    /**
+     * Adds the numbers of the <tt>batch</tt> to the current round as a single add, see {@link #add(Batch, long)} and
+     * {@link #addWithStats(double)}. Each number is aggregated in the statistics on its own.
+     * @param batch the numbers to add.
+     * @param key   the idempotency key of the add, or {@link IdempotencyKeys#NONE}.
+     * @return a future that is completed with the statistics of the round the numbers, or the ones of the earlier add
+     *         with the same key, are added to, or with null if the statistics are not collected.
+     * @throws ClosedException if the service is closed.
+     * @throws IllegalArgumentException if no number of the batch is accepted by the {@link Summation} strategy.
+     * @throws OverloadedException if the current round already has the maximum number of pending adds.
+     */
+    CompletableFuture<RoundStats> addWithStats(Batch batch, long key) {
+        if (key == IdempotencyKeys.NONE) {
+            Round round = admit(0, batch);
+            return track(round, 0, batch).thenApply(sum -> round.stats());
+        }
+        Round.Claim claim = claim(0, batch, key);
+        return claim.result().thenApply(sum -> claim.round().stats());
+    }
+
+    /**
+     * Adds the <tt>number</tt>, or the numbers of the <tt>batch</tt>, to the current round, unless it is full.
+     * @param number the number to add.
+     * @param batch  the numbers to add instead of the <tt>number</tt>, or null.
+     * @return the round the number is added to.
+     */
+    private Round admit(double number, Batch batch) {
+        Round round = admitting();
+        while (!(batch == null ? round.tryAdd(number) : round.tryAdd(batch))) {
+            round = open();  // the round was sealed by end(), retry with the next one.
+        }
+        onAdmitted(round, number, batch);
+        return round;
+    }
+
+    /**
+     * Adds the <tt>number</tt> to the current round, unless it is full or the <tt>key</tt> is already claimed, in
+     * which case the add is a retry and is answered the same as the add that claimed the key. A retry is answered even
+     * if the round is full, as it adds nothing.
+     * @param number the number to add.
+     * @param batch  the numbers to add instead of the <tt>number</tt>, or null.
+     * @param key    the idempotency key of the add.
+     * @return the claim of the add, or of the add that claimed the key earlier.
+     */
+    private Round.Claim claim(double number, Batch batch, long key) {
+        Round round = open();
+        Round.Claim retried = round.claimed(key);
+        if (retried != null) {
+            return retried(retried, number, batch, key);
+        }
+        admitting(round);
+        while (true) {
+            Deadline deadline = limits.addTimeoutMillis > 0 ? new Deadline(round, number, batch, key) : null;
+            Round.Claim earlier = batch == null
+                    ? round.tryAdd(number, key, deadline) : round.tryAdd(batch, key, deadline);
+            if (earlier == Round.SEALED) {
+                round = open();  // the round was sealed by end(), retry with the next one.
+            } else if (earlier != null) {
+                return retried(earlier, number, batch, key);
+            } else {
+                onAdmitted(round, number, batch);
+                if (deadline != null) {
+                    deadline.start();
+                }
+                if (limits.autoEnds()) {
+                    autoEnd(round);
+                }
+                return deadline != null ? deadline : round.claim();
+            }
+        }
+    }
+
+    /**
+     * Records a retry of the add that claimed the <tt>key</tt> earlier.
+     * @param earlier the claim of the earlier add.
+     * @return the <tt>earlier</tt> claim, which the retry is answered with.
      */
-    synchronized double doAdd(double number) throws InterruptedException {
-        ++entries;
+    private Round.Claim retried(Round.Claim earlier, double number, Batch batch, long key) {
+        metrics.onDuplicate();
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("retried number={}, key={}", batch == null ? number : "batch", key);
+        }
+        return earlier;
+    }
+
+    /**
+     * @return the current round, unless it is full.
+     * @throws ClosedException if the service is closed.
+     * @throws OverloadedException if the current round already has the maximum number of pending adds.
+     */
+    private Round admitting() {
+        return admitting(open());
+    }
+
+    /**
+     * @param round the current round.
+     * @return the <tt>round</tt>, unless it is full.
+     * @throws OverloadedException if the round already has the maximum number of pending adds.
+     */
+    private Round admitting(Round round) {
+        if (limits.maxPendingAdds > 0 && round.adds() >= limits.maxPendingAdds) {
+            metrics.onRejected(Metrics.Rejection.OVERLOADED);
+            throw new OverloadedException(limits.maxPendingAdds);
+        }
+        return round;
+    }
+
+    /**
+     * Waits for the journal of the <tt>round</tt> the <tt>number</tt> or the <tt>batch</tt> is just added to and
+     * records the add.
+     */
+    private void onAdmitted(Round round, double number, Batch batch) {
+        Journal.Segment segment = round.segment();
+        if (segment != null) {
+            segment.awaitDurable();
+        }
+        metrics.onAdd();
+        if (LOG.isDebugEnabled()) {
+            if (batch == null) {
+                LOG.debug("adding number={}", number);
+            } else {
+                LOG.debug("adding batch count={}", batch.count());
+            }
+        }
+    }
+
+    /**
+     * @param round  the round the <tt>number</tt> is added to.
+     * @param number the number added.
+     * @param batch  the numbers added instead of the <tt>number</tt>, or null.
+     * @return the future of the client, see {@link #add(double)}.
+     */
+    private CompletableFuture<Double> track(Round round, double number, Batch batch) {
+        CompletableFuture<Double> result = limits.addTimeoutMillis > 0
+                ? withDeadline(round, number, batch) : round.result();
+        if (limits.autoEnds()) {
+            autoEnd(round);
+        }
+        return result;
+    }
+
+    /**
+     * Ends the <tt>round</tt> if it has the number of adds that ends a round automatically, or schedules its end if
+     * it is the first add of the round and the rounds end after a time.
+     * @param round the round a number is just added to.
+     */
+    private void autoEnd(Round round) {
+        if (limits.autoEndAdds > 0 && round.adds() >= limits.autoEndAdds) {
+            endRound(round);
+        } else if (limits.autoEndMillis > 0 && round.markTimed()) {
+            Timer.EXECUTOR.schedule(() -> endRound(round), limits.autoEndMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Ends the <tt>round</tt> the same as {@link #end()}, unless it is already ended. A failure is only logged, since
+     * the caller is an adder or a timer.
+     * @param round the round to end.
+     */
+    private void endRound(Round round) {
         try {
-            totalSum += number;
-            LOG.info("adding number={}, currentSum={}", number, totalSum);
-            while (!roundComplete) {
-                doWait();
+            Cut cut = cut(round);
+            if (cut != null) {
+                finish(cut);
             }
-            return totalSum;
-        } finally {
-            if (--entries == 0) {
-                doNotify(); // notify the doEnd thread.
+        } catch (RuntimeException e) {
+            LOG.error("cannot end the round automatically", e);
+        }
+    }
+
+    /**
+     * Schedules the deadline of an add, see {@link Deadline}.
+     * @param round  the round the number is added to.
+     * @param number the number added.
+     * @param batch  the numbers added instead of the <tt>number</tt>, or null.
+     * @return the future of the client.
+     */
+    private CompletableFuture<Double> withDeadline(Round round, double number, Batch batch) {
+        Deadline deadline = new Deadline(round, number, batch, IdempotencyKeys.NONE);
+        CompletableFuture<Double> client = deadline.client;
+        deadline.start();
+        return client;
+    }
+
+    /**
+     * Starts a new round, then seals the previous one and completes all the clients waiting for it. Every
+     * {@link #add(double)} call that happened before is counted in the sum of the ended round, and the ones after are
+     * counted in the new round. If the service is pipelined, the clients are released in the background instead.
+     * @return a completed future with the sum of the round that is ended.
+     * @throws ClosedException if the service is closed.
+     */
+    CompletableFuture<Double> end() {
+        Cut cut = cut();
+        finish(cut);
+        return CompletableFuture.completedFuture(cut.sum());
+    }
+
+    /**
+     * Completes all the clients waiting for the round sealed by the <tt>cut</tt> with its sum, in the background if
+     * the service is pipelined.
+     * @param cut the cut of the round.
+     */
+    private void finish(Cut cut) {
+        if (!pipelined) {
+            complete(cut.id(), cut.sum());
+            return;
+        }
+        draining.offer(cut);
+        int backlog = undrained.getAndIncrement();
+        if (backlog == 0) {
+            Drain.EXECUTOR.execute(this::drain);
+        } else if (backlog >= MAX_UNDRAINED && Thread.currentThread().getThreadGroup() != Drain.GROUP) {
+            awaitDrain();
+        }
+    }
+
+    /**
+     * Blocks until at most {@link #MAX_UNDRAINED} cuts are waiting to be released, without burning the CPU that the
+     * drain needs. An interrupt does not stop the wait, as the cut is already ended, but is kept for the caller.
+     */
+    private void awaitDrain() {
+        boolean interrupted = false;
+        synchronized (drainProgress) {
+            while (undrained.get() > MAX_UNDRAINED) {
+                try {
+                    drainProgress.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
             }
         }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
     }
 
     /**
-     * Notifies all the waiting clients that the 'end' signal is received and then sets the {@link #totalSum} to zero.
-     * Also waits until all threads that called the {@link #doAdd(double)} exited first.
-     * @return the {@link #totalSum}.
-     * @throws InterruptedException if thread interrupted while waiting.
+     * Completes the clients of the cuts in {@link #draining} until there are none left. Runs on one thread of the
+     * {@link Drain} pool at a time, so the rounds are released in the order they are ended. The cuts are counted off
+     * one by one, so that the 'end' signals waiting in {@link #awaitDrain()} proceed as soon as the backlog is below
+     * the limit.
+     */
+    private void drain() {
+        int left;
+        do {
+            Cut cut = draining.poll();  // never null, as a cut is offered before it is counted.
+            try {
+                complete(cut.id(), cut.sum());
+            } catch (RuntimeException e) {
+                LOG.error("cannot release cut={}", cut.id(), e);
+            }
+            left = undrained.decrementAndGet();
+            if (left == MAX_UNDRAINED) {
+                synchronized (drainProgress) {
+                    drainProgress.notifyAll();
+                }
+            }
+        } while (left != 0);  // otherwise, a later cut starts the drain again.
+    }
+
+    /**
+     * Starts a new round and seals the previous one, the same as {@link #end()} except that the clients waiting for
+     * the sealed round are not completed until {@link #complete(long, double)} or {@link #abort(long, Throwable)} is
+     * called with the id of the cut.
+     * @return the id of the cut and the sum of the sealed round.
+     * @throws ClosedException if the service is closed.
      */
-    synchronized double doEnd() throws InterruptedException {
-        double sum = totalSum;
-        LOG.info("notifying all with sum={}", totalSum);
-        roundComplete = true;
-        doNotifyAll();
+    Cut cut() {
+        return cut(null);
+    }
+
+    /**
+     * @param expected the round to seal, or null to seal the current one.
+     * @return the cut, or null if the <tt>expected</tt> round is not the current one.
+     * @throws ClosedException if the service is closed.
+     */
+    private Cut cut(Round expected) {
+        if (expected != null && current.get() != expected) {
+            return null;
+        }
+        openCuts.incrementAndGet();  // before the round is replaced, see tryClose(long).
+        Round round;
         try {
-            while (entries > 0) {
-                doWait();
+            Round next = newRound();
+            do {
+                round = open();
+                if (expected != null && round != expected) {
+                    openCuts.decrementAndGet();
+                    deleteJournal(next);
+                    return null;
+                }
+                next.id(round.id() + 1);
+                next.previous(round);
+            } while (!current.compareAndSet(round, next));
+        } catch (RuntimeException e) {
+            openCuts.decrementAndGet();
+            throw e;
+        }
+        long sealStart = System.nanoTime();
+        double sum = round.seal();
+        round.previous(null);  // the next round keeps this one only.
+        metrics.onEnd(round.adds(), sealStart - round.createdNanos(), System.nanoTime() - sealStart);
+        deleteJournal(round);  // before the clients are completed, so that a recovery never counts them twice.
+        long id = cuts.incrementAndGet();
+        pending.put(id, round);
+        return new Cut(id, sum, round.stats());
+    }
+
+    /**
+     * Completes all the clients waiting for the round sealed by the cut.
+     * @param cut the id of the cut.
+     * @param sum the sum to complete the clients with.
+     * @return a completed future with the <tt>sum</tt>.
+     * @throws IllegalStateException if the cut is unknown or already completed.
+     */
+    CompletableFuture<Double> complete(long cut, double sum) {
+        Round round = release(cut);
+        LOG.info("notifying all with sum={}", sum);
+        round.complete(sum);
+        DoubleConsumer listener = completionListener;
+        if (listener != null) {
+            listener.accept(sum);
+        }
+        return round.result();
+    }
+
+    /**
+     * Fails all the clients waiting for the round sealed by the cut. Their numbers are not counted in any sum.
+     * @param cut   the id of the cut.
+     * @param cause the cause of the failure.
+     * @throws IllegalStateException if the cut is unknown or already completed.
+     */
+    void abort(long cut, Throwable cause) {
+        LOG.warn("aborting cut={}, cause={}", cut, cause.getMessage());
+        release(cut).fail(cause);
+    }
+
+    private Round release(long cut) {
+        Round round = pending.remove(cut);
+        if (round == null) {
+            throw new IllegalStateException("unknown cut=" + cut);
+        }
+        openCuts.decrementAndGet();
+        return round;
+    }
+
+    /**
+     * Sets the listener that is called with the sum of every completed round, by the thread that completes it.
+     * @param listener the listener, must not block.
+     */
+    void onComplete(DoubleConsumer listener) {
+        this.completionListener = listener;
+    }
+
+    /**
+     * @return the sum of the numbers added to the current round so far, which may miss the additions in progress, or
+     *         0 if the service is closed.
+     */
+    double runningSum() {
+        Round round = current.get();
+        return round == Round.CLOSING || round == Round.CLOSED ? 0 : round.total();
+    }
+
+    /**
+     * Reads the current round without blocking or joining it, so that polling it adds no contention to the adders,
+     * see {@link Round#snapshot()}.
+     * @return the id, the sum and the number of the pending adds of the current round as of a single point in time.
+     * @throws ClosedException if the service is closed.
+     */
+    Round.Snapshot snapshot() {
+        return open().snapshot();
+    }
+
+    /**
+     * @param now the current time, in terms of {@link System#nanoTime()}.
+     * @return the time since the last activity of the service, i.e. since its current round is opened by the last
+     *         'end' signal, if no number is added to the round and no cut is waiting to be completed, or -1 if the
+     *         service is busy or closed.
+     */
+    long idleNanos(long now) {
+        Round round = current.get();
+        if (round == Round.CLOSING || round == Round.CLOSED || !round.isEmpty() || openCuts.get() != 0) {
+            return -1;
+        }
+        return Math.max(0, now - round.createdNanos());
+    }
+
+    /**
+     * Closes the service if no number is added to its current round, the round is open for at least
+     * <tt>idleNanos</tt> and no cut is waiting to be completed. The current round is sealed first so that no adder can
+     * slip in unnoticed, and restored if one did. Closing never loses a number, as there is nothing to lose.
+     * @param idleNanos the minimum time the current round must be open and empty, in nanoseconds.
+     * @return true if the service is closed (by this or an earlier call), false otherwise.
+     */
+    boolean tryClose(long idleNanos) {
+        Round round = current.get();
+        if (round == Round.CLOSED) {
+            return true;
+        }
+        if (round == Round.CLOSING
+                || !round.isEmpty()
+                || openCuts.get() != 0
+                || System.nanoTime() - round.createdNanos() < idleNanos
+                || !current.compareAndSet(round, Round.CLOSING)) {
+            return false;
+        }
+        round.seal();
+        if (round.isEmpty() && openCuts.get() == 0) {
+            current.set(Round.CLOSED);
+            deleteJournal(round);
+            return true;
+        }
+        round.unseal();  // an adder or a cut slipped in before the round is sealed.
+        current.set(round);
+        return false;
+    }
+
+    /**
+     * @return a new round, attached to a new segment of the journal if there is one.
+     */
+    private Round newRound() {
+        Round round = summation.newRound();
+        round.collectStats(statsLevel);
+        if (journal != null) {
+            round.attach(journal.newSegment());
+        }
+        return round;
+    }
+
+    /**
+     * Adds the numbers journaled by the previous run to the <tt>round</tt>. The recovered segments are deleted only
+     * once the round is ended, so that a crash meanwhile recovers them again.
+     * @param round the first round, not yet published to the adders.
+     */
+    private void recover(Round round) {
+        List<Path> segments = journal.segments();
+        for (Path segment : segments) {
+            Journal.replay(segment, number -> {
+                try {
+                    round.tryRecover(number);
+                } catch (IllegalArgumentException e) {
+                    LOG.warn("skipping journaled number={}, cause={}", number, e.getMessage());
+                }
+            });
+        }
+        round.segment().inherit(segments);
+        if (!segments.isEmpty()) {
+            LOG.info("recovered count={} from segments={}", round.count(), segments);
+        }
+    }
+
+    /**
+     * Deletes the journal of the sealed <tt>round</tt>. A failure is only logged, so that the clients waiting for the
+     * round are still completed.
+     * @param round the sealed round.
+     */
+    private void deleteJournal(Round round) {
+        Journal.Segment segment = round.segment();
+        if (segment == null) {
+            return;
+        }
+        try {
+            segment.delete();
+        } catch (UncheckedIOException e) {
+            LOG.error("cannot delete the journal, path={}", segment.path(), e);
+        }
+    }
+
+    /**
+     * Waits while the service is being closed, yielding now and then since the closing thread may have been
+     * descheduled.
+     * @return the round that is currently accepting numbers.
+     * @throws ClosedException if the service is closed.
+     */
+    private Round open() {
+        Round round = current.get();
+        for (int spins = 1; round == Round.CLOSING; spins++) {
+            if ((spins & 63) == 0) {
+                Thread.yield();
+            } else {
+                Thread.onSpinWait();
             }
+            round = current.get();
+        }
+        if (round == Round.CLOSED) {
+            throw new ClosedException();
+        }
+        return round;
+    }
+
+    /**
+     * Adds the provided <tt>number</tt> and waits for the {@link #end()} call.
+     * @param number the number to add.
+     * @return the sum of the round the number is added to.
+     * @throws InterruptedException if thread interrupted while waiting.
+     */
+    double doAdd(double number) throws InterruptedException {
+        return awaitBlocked(add(number));
+    }
+
+    /**
+     * Adds the provided <tt>number</tt> and waits for the {@link #end()} call, see {@link #add(double, long)}.
+     * @param number the number to add.
+     * @param key    the idempotency key of the add, or {@link IdempotencyKeys#NONE}.
+     * @return the sum of the round the number, or the number of the earlier add with the same key, is added to.
+     * @throws InterruptedException if thread interrupted while waiting.
+     */
+    double doAdd(double number, long key) throws InterruptedException {
+        return awaitBlocked(add(number, key));
+    }
+
+    /**
+     * Adds the numbers of the <tt>batch</tt> as a single add and waits for the {@link #end()} call, see
+     * {@link #add(Batch, long)}.
+     * @param batch the numbers to add.
+     * @param key   the idempotency key of the add, or {@link IdempotencyKeys#NONE}.
+     * @return the sum of the round the numbers, or the ones of the earlier add with the same key, are added to.
+     * @throws InterruptedException if thread interrupted while waiting.
+     */
+    double doAdd(Batch batch, long key) throws InterruptedException {
+        return awaitBlocked(add(batch, key));
+    }
+
+    /**
+     * Adds the provided <tt>number</tt> and waits for the {@link #end()} call, see {@link #addWithStats(double)}.
+     * @param number the number to add.
+     * @return the statistics of the round the number is added to, or null if the statistics are not collected.
+     * @throws InterruptedException if thread interrupted while waiting.
+     */
+    RoundStats doAddWithStats(double number) throws InterruptedException {
+        Round round = admit(number, null);
+        awaitBlocked(track(round, number, null));
+        return round.stats();
+    }
+
+    /**
+     * Adds the provided <tt>number</tt> and waits for the {@link #end()} call, see
+     * {@link #addWithStats(double, long)}.
+     * @param number the number to add.
+     * @param key    the idempotency key of the add, or {@link IdempotencyKeys#NONE}.
+     * @return the statistics of the round the number, or the number of the earlier add with the same key, is added to,
+     *         or null if the statistics are not collected.
+     * @throws InterruptedException if thread interrupted while waiting.
+     */
+    RoundStats doAddWithStats(double number, long key) throws InterruptedException {
+        if (key == IdempotencyKeys.NONE) {
+            return doAddWithStats(number);
+        }
+        Round.Claim claim = claim(number, null, key);
+        awaitBlocked(claim.result());
+        return claim.round().stats();
+    }
+
+    /**
+     * Adds the numbers of the <tt>batch</tt> as a single add and waits for the {@link #end()} call, see
+     * {@link #addWithStats(Batch, long)}.
+     * @param batch the numbers to add.
+     * @param key   the idempotency key of the add, or {@link IdempotencyKeys#NONE}.
+     * @return the statistics of the round the numbers, or the ones of the earlier add with the same key, are added to,
+     *         or null if the statistics are not collected.
+     * @throws InterruptedException if thread interrupted while waiting.
+     */
+    RoundStats doAddWithStats(Batch batch, long key) throws InterruptedException {
+        if (key == IdempotencyKeys.NONE) {
+            Round round = admit(0, batch);
+            awaitBlocked(track(round, 0, batch));
+            return round.stats();
+        }
+        Round.Claim claim = claim(0, batch, key);
+        awaitBlocked(claim.result());
+        return claim.round().stats();
+    }
+
+    private double awaitBlocked(CompletableFuture<Double> result) throws InterruptedException {
+        metrics.onBlocked(1);
+        try {
+            return await(result);
         } finally {
-            roundComplete = false;  // starting a new round.
-            totalSum = 0;
+            metrics.onBlocked(-1);
+        }
+    }
+
+    /**
+     * Ends the current round, see {@link #end()}.
+     * @return the sum of the round that is ended.
+     */
+    double doEnd() {
+        return end().join();
+    }
+
+    /**
+     * Ends the current round, see {@link #end()}.
+     * @return the statistics (including the sum) of the round that is ended, or null if the statistics are not
+     *         collected.
+     * @throws ClosedException if the service is closed.
+     */
+    RoundStats doEndWithStats() {
+        Cut cut = cut();
+        finish(cut);
+        return cut.stats();
+    }
+
+    /**
+     * VisibleForTesting.
+     * @param result the future to wait for.
+     * @return the sum of the round.
+     * @throws InterruptedException if thread interrupted while waiting.
+     * @throws TimedOutException if the number is withdrawn since the round is not ended in time.
+     */
+    double await(CompletableFuture<Double> result) throws InterruptedException {
+        try {
+            return result.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof TimedOutException timedOut) {
+                throw timedOut;
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * The result of a {@link #cut()}.
+     */
+    static final class Cut {
+        private final long id;
+        private final double sum;
+        private final RoundStats stats;
+
+        /**
+         * @param id  the id of the cut, unique within the service.
+         * @param sum the sum of the sealed round.
+         */
+        Cut(long id, double sum) {
+            this(id, sum, null);
+        }
+
+        /**
+         * @param id    the id of the cut, unique within the service.
+         * @param sum   the sum of the sealed round.
+         * @param stats the statistics of the sealed round, or null if not collected.
+         */
+        Cut(long id, double sum, RoundStats stats) {
+            this.id = id;
+            this.sum = sum;
+            this.stats = stats;
+        }
+
+        long id() {
+            return id;
+        }
+
+        double sum() {
+            return sum;
+        }
+
+        RoundStats stats() {
+            return stats;
+        }
+    }
+
+    /**
+     * The deadline of an add. If the round is not ended in time and the number, or the numbers of a batch, can still
+     * be withdrawn from it, the client fails with {@link TimedOutException}. Otherwise, i.e. the round is being ended
+     * meanwhile, the number is counted and the client is completed with the sum of the round. Whichever of the round
+     * and the timer comes first decides, so a withdrawn number is never answered with a sum.
+     * <p>
+     * The timer is cancelled once the round ends. A round keeps the deadlines of its adds until it ends, so a deadline
+     * drops the client once the number is withdrawn. The withdrawal runs on the timer thread, which waits for the
+     * journal, if any, before failing the client. The withdrawal also releases the idempotency key of the add, so a
+     * later retry is counted again, while the retries that claimed the deadline meanwhile fail the same as the client.
+     */
+    private final class Deadline implements BiConsumer<Double, Throwable>, Runnable, Round.Claim {
+        private final Round round;
+        private final double number;
+        private final Batch batch;
+        private final long key;
+        private CompletableFuture<Double> client = new CompletableFuture<>();
+        private ScheduledFuture<?> timer;
+        private volatile boolean decided = false;
+
+        Deadline(Round round, double number, Batch batch, long key) {
+            this.round = round;
+            this.number = number;
+            this.batch = batch;
+            this.key = key;
+        }
+
+        /**
+         * Starts the timer and registers the deadline with the round.
+         */
+        void start() {
+            timer = Timer.EXECUTOR.schedule(this, limits.addTimeoutMillis, TimeUnit.MILLISECONDS);
+            round.whenComplete(this);
+        }
+
+        @Override
+        public Round round() {
+            return round;
+        }
+
+        /**
+         * @return the future of the client, or a failed one once the number is withdrawn.
+         */
+        @Override
+        public CompletableFuture<Double> result() {
+            CompletableFuture<Double> waiting = client;
+            return waiting != null ? waiting : CompletableFuture.failedFuture(timedOut);
+        }
+
+        /**
+         * Called when the round ends.
+         */
+        @Override
+        public void accept(Double sum, Throwable error) {
+            if (!DECIDED.compareAndSet(this, false, true)) {
+                return;  // withdrawn by the timer.
+            }
+            timer.cancel(false);
+            complete(client, sum, error);
+        }
+
+        /**
+         * Called by the timer.
+         */
+        @Override
+        public void run() {
+            if (decided || !DECIDED.compareAndSet(this, false, true)) {
+                return;  // the round ended.
+            }
+            CompletableFuture<Double> waiting = client;
+            if (!(batch == null ? round.tryWithdraw(number, key) : round.tryWithdraw(batch, key))) {
+                round.whenComplete((sum, error) -> complete(waiting, sum, error));  // sealed meanwhile.
+                return;
+            }
+            client = null;
+            Journal.Segment segment = round.segment();
+            if (segment != null) {
+                segment.awaitDurable();  // before the client is told that the number is not counted.
+            }
+            metrics.onRejected(Metrics.Rejection.TIMED_OUT);
+            waiting.completeExceptionally(timedOut);
+        }
+
+        private static void complete(CompletableFuture<Double> client, Double sum, Throwable error) {
+            if (error == null) {
+                client.complete(sum);
+            } else {
+                client.completeExceptionally(error);
+            }
+        }
+
+        private static final VarHandle DECIDED;
+
+        static {
+            try {
+                DECIDED = MethodHandles.lookup().findVarHandle(Deadline.class, "decided", boolean.class);
+            } catch (ReflectiveOperationException e) {
+                throw new ExceptionInInitializerError(e);
+            }
+        }
+    }
+
+    /**
+     * The timer of the deadlines and the automatic ends of all the services, a daemon thread that is started with the
+     * first one.
+     */
+    private static final class Timer {
+        static final ScheduledThreadPoolExecutor EXECUTOR = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "sum-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        static {
+            EXECUTOR.setRemoveOnCancelPolicy(true);  // a cancelled deadline does not wait in the queue.
+        }
+    }
+
+    /**
+     * The pool that releases the clients of the rounds ended by the pipelined services, daemon threads that are
+     * started with the first one. A client released by the pool may end a round without waiting for the pool.
+     */
+    private static final class Drain {
+        static final ThreadGroup GROUP = new ThreadGroup("sum-drain");
+        private static final AtomicInteger THREADS = new AtomicInteger();
+
+        static final ExecutorService EXECUTOR = Executors.newFixedThreadPool(
+                Runtime.getRuntime().availableProcessors(), runnable -> {
+                    Thread thread = new Thread(GROUP, runnable, "sum-drain-" + THREADS.getAndIncrement());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+    /**
+     * The admission limits of the rounds of a service, a limit of 0 is disabled. This class is immutable.
+     */
+    static final class Limits {
+
+        /**
+         * No limits, the rounds end only with the 'end' signal.
+         */
+        static final Limits NONE = new Limits(0, 0, 0, 0);
+
+        private final long maxPendingAdds;
+        private final long addTimeoutMillis;
+        private final long autoEndAdds;
+        private final long autoEndMillis;
+
+        /**
+         * @param maxPendingAdds   the number of the pending adds of a round after which the adds are rejected, a
+         *                         batch counted as a single add.
+         * @param addTimeoutMillis the time an add waits for the 'end' signal before it is withdrawn, in milliseconds.
+         * @param autoEndAdds      the number of the adds that ends a round, a batch counted as a single add.
+         * @param autoEndMillis    the time after the first add of a round that ends the round, in milliseconds.
+         * @throws IllegalArgumentException if a limit is negative.
+         */
+        Limits(long maxPendingAdds, long addTimeoutMillis, long autoEndAdds, long autoEndMillis) {
+            if (maxPendingAdds < 0 || addTimeoutMillis < 0 || autoEndAdds < 0 || autoEndMillis < 0) {
+                throw new IllegalArgumentException("limits must not be negative");
+            }
+            this.maxPendingAdds = maxPendingAdds;
+            this.addTimeoutMillis = addTimeoutMillis;
+            this.autoEndAdds = autoEndAdds;
+            this.autoEndMillis = autoEndMillis;
+        }
+
+        /**
+         * @return true if the rounds are ended by the service itself, after a number of adds or a time.
+         */
+        boolean autoEnds() {
+            return autoEndAdds > 0 || autoEndMillis > 0;
+        }
+    }
+
+    /**
+     * Thrown when a closed service is called. The caller may retry with a new service.
+     */
+    static final class ClosedException extends IllegalStateException {
+        ClosedException() {
+            super("service is closed");
+        }
+    }
+
+    /**
+     * Thrown when the current round already has the maximum number of pending adds. The number is not counted and
+     * the caller may retry later. It has no stack trace, since it is thrown at the rate of the overload.
+     */
+    static final class OverloadedException extends RuntimeException {
+        OverloadedException(long maxPendingAdds) {
+            super("round has maxPendingAdds=" + maxPendingAdds, null, false, false);
+        }
+    }
+
+    /**
+     * Fails an add that waited longer than the add timeout, after its number is withdrawn from the round. The number
+     * is not counted in any sum and the caller may retry. It has no stack trace, as it is created by the timer and
+     * shared by all the adds of a service.
+     */
+    static final class TimedOutException extends RuntimeException {
+        TimedOutException(long addTimeoutMillis) {
+            super("round did not end within addTimeoutMillis=" + addTimeoutMillis, null, false, false);
         }
-        return sum;
     }
 }
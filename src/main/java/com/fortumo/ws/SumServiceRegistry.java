@@ -0,0 +1,269 @@
+package com.fortumo.ws;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * The registry of the named sessions, each backed by an independent {@link SumService}. The sessions are created
+ * lazily on their first call and evicted once they are idle, i.e. no client is waiting for their current round.
+ * The sessions idle for longer than the idle timeout are evicted by a background sweep, so that no request scans the
+ * sessions for them. When the maximum number of sessions is reached, the sessions idle for the longest time are
+ * evicted first, as many as a new session needs, so that a busy session whose round is only momentarily empty is kept.
+ * This class is thread-safe.
+ * <p>
+ * The sessions are kept in a {@link ConcurrentHashMap}, so looking up an existing session does not take any lock and
+ * a session is created under the lock of its own bin only. Different sessions never contend with each other. An
+ * evicted session is {@link SumService#tryClose(long) closed} first, so a call that raced with the eviction fails
+ * with {@link SumService.ClosedException} and is retried against a new session.
+ */
+final class SumServiceRegistry {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SumServiceRegistry.class);
+
+    /**
+     * The id of the session that the requests without a session id are sent to.
+     */
+    static final String DEFAULT_SESSION = "";
+
+    /**
+     * A call to a session's service.
+     * @param <T> type of the result.
+     */
+    @FunctionalInterface
+    interface SessionCall<T> {
+        /**
+         * @param service the service of the session.
+         * @return the result of the call.
+         * @throws InterruptedException if thread interrupted while waiting.
+         */
+        T apply(SumService service) throws InterruptedException;
+    }
+
+    /**
+     * The minimum time between two sweeps of the idle sessions, in milliseconds.
+     */
+    private static final long MIN_SWEEP_INTERVAL_MILLIS = 1;
+
+    /**
+     * Session id to service map.
+     */
+    private final ConcurrentHashMap<String, SumService> sessions = new ConcurrentHashMap<>();
+
+    /**
+     * Creates the service of a new session.
+     */
+    private final Function<String, SumService> factory;
+
+    /**
+     * The maximum number of sessions. When reached, up to {@link #evictionBatch} idle sessions are evicted regardless
+     * of their idle time, the least recently used ones first.
+     */
+    private final int maxSessions;
+
+    /**
+     * The minimum number of sessions evicted at once when the maximum number of sessions is reached, if they are idle,
+     * so that the scan of the sessions is shared by the next new sessions.
+     */
+    private final int evictionBatch;
+
+    /**
+     * The time after which an idle session is evicted, in nanoseconds.
+     */
+    private final long idleNanos;
+
+    /**
+     * The background sweep of the idle sessions, run every half of the idle timeout.
+     */
+    private final ScheduledFuture<?> sweep;
+
+    /**
+     * @param factory           creates the service of a new session, given its id.
+     * @param maxSessions       the maximum number of sessions.
+     * @param idleTimeoutMillis the time after which an idle session is evicted, in milliseconds.
+     */
+    SumServiceRegistry(Function<String, SumService> factory, int maxSessions, long idleTimeoutMillis) {
+        if (maxSessions < 1 || idleTimeoutMillis < 0) {
+            throw new IllegalArgumentException(
+                    "invalid maxSessions=" + maxSessions + " or idleTimeoutMillis=" + idleTimeoutMillis);
+        }
+        this.factory = factory;
+        this.maxSessions = maxSessions;
+        this.evictionBatch = Math.max(1, maxSessions / 16);
+        this.idleNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+        long interval = Math.max(MIN_SWEEP_INTERVAL_MILLIS, idleTimeoutMillis / 2);
+        this.sweep = Sweeper.EXECUTOR.scheduleWithFixedDelay(this::sweep, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Applies the <tt>call</tt> to the service of the session, creating the session if it does not exist. If the
+     * session is evicted meanwhile, the call is retried with a new one.
+     * @param sessionId the id of the session.
+     * @param call      the call to apply.
+     * @param <T>       type of the result.
+     * @return the result of the call.
+     * @throws InterruptedException       if thread interrupted while waiting.
+     * @throws RejectedExecutionException if a new session is needed but the maximum number of sessions is reached
+     *                                    and none of them is idle.
+     */
+    <T> T call(String sessionId, SessionCall<T> call) throws InterruptedException {
+        while (true) {
+            SumService service = service(sessionId);
+            try {
+                return call.apply(service);
+            } catch (SumService.ClosedException e) {
+                sessions.remove(sessionId, service);  // evicted meanwhile, retry with a new session.
+            }
+        }
+    }
+
+    /**
+     * @param sessionId the id of the session.
+     * @return the service of the session, or null if the session does not exist. The session is not created.
+     */
+    SumService peek(String sessionId) {
+        return sessions.get(sessionId);
+    }
+
+    /**
+     * @param sessionId the id of the session.
+     * @return the service of the session, which is created if it does not exist.
+     */
+    private SumService service(String sessionId) {
+        SumService service = sessions.get(sessionId);
+        if (service != null) {
+            return service;
+        }
+        if (sessions.size() >= maxSessions && !makeRoom()) {
+            throw new RejectedExecutionException("max number of sessions reached, maxSessions=" + maxSessions);
+        }
+        return sessions.computeIfAbsent(sessionId, factory);
+    }
+
+    /**
+     * Evicts the least recently used idle sessions until there is room for a new session. The concurrent callers wait
+     * for each other, so that a burst of new sessions scans the sessions once per {@link #evictionBatch} new sessions
+     * rather than once per new session.
+     * @return true if there is room for a new session, false if none of the sessions is idle.
+     */
+    private synchronized boolean makeRoom() {
+        int needed = sessions.size() - maxSessions + 1;
+        if (needed > 0) {
+            evictLeastRecentlyUsed(Math.max(needed, evictionBatch));
+        }
+        return sessions.size() < maxSessions;
+    }
+
+    /**
+     * Evicts the sessions idle for longer than the idle timeout, run by the background sweep.
+     */
+    private void sweep() {
+        try {
+            evict(idleNanos);
+        } catch (RuntimeException e) {
+            LOG.error("cannot evict the idle sessions", e);  // the next sweep is still run.
+        }
+    }
+
+    /**
+     * Evicts the sessions that are idle for at least <tt>idleNanos</tt>.
+     * @param idleNanos the minimum idle time, in nanoseconds.
+     * @return the number of sessions evicted.
+     */
+    int evict(long idleNanos) {
+        int evicted = 0;
+        for (Map.Entry<String, SumService> entry : sessions.entrySet()) {
+            if (entry.getValue().tryClose(idleNanos) && sessions.remove(entry.getKey(), entry.getValue())) {
+                evicted++;
+            }
+        }
+        if (evicted > 0) {
+            LOG.debug("evicted idle sessions, count={}", evicted);
+        }
+        return evicted;
+    }
+
+    /**
+     * Evicts up to <tt>count</tt> idle sessions, the ones idle for the longest time first. Only the sessions that are
+     * evicted are closed, the others are checked without touching their rounds.
+     * @param count the maximum number of sessions to evict.
+     * @return the number of sessions evicted.
+     */
+    int evictLeastRecentlyUsed(int count) {
+        long now = System.nanoTime();
+        List<Idle> idle = new ArrayList<>();
+        for (Map.Entry<String, SumService> entry : sessions.entrySet()) {
+            long idleNanos = entry.getValue().idleNanos(now);
+            if (idleNanos >= 0) {
+                idle.add(new Idle(entry.getKey(), entry.getValue(), idleNanos));
+            }
+        }
+        idle.sort(Comparator.comparingLong((Idle session) -> session.idleNanos).reversed());
+        int evicted = 0;
+        for (int i = 0; i < idle.size() && evicted < count; i++) {
+            Idle session = idle.get(i);
+            if (session.service.tryClose(0) && sessions.remove(session.sessionId, session.service)) {
+                evicted++;
+            }
+        }
+        if (evicted > 0) {
+            LOG.debug("evicted least recently used sessions, count={}", evicted);
+        }
+        return evicted;
+    }
+
+    /**
+     * @return the number of sessions.
+     */
+    int size() {
+        return sessions.size();
+    }
+
+    /**
+     * Stops the background sweep of the idle sessions. The sessions are kept.
+     */
+    void close() {
+        sweep.cancel(false);
+    }
+
+    /**
+     * The thread that sweeps the idle sessions of all the registries, a daemon thread that is started with the first
+     * registry.
+     */
+    private static final class Sweeper {
+        static final ScheduledThreadPoolExecutor EXECUTOR = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "sum-sweeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        static {
+            EXECUTOR.setRemoveOnCancelPolicy(true);  // a closed registry is not referenced by the queue.
+        }
+    }
+
+    /**
+     * An idle session, as of the start of an eviction.
+     */
+    private static final class Idle {
+        private final String sessionId;
+        private final SumService service;
+        private final long idleNanos;
+
+        private Idle(String sessionId, SumService service, long idleNanos) {
+            this.sessionId = sessionId;
+            this.service = service;
+            this.idleNanos = idleNanos;
+        }
+    }
+}
@@ -1,6 +1,12 @@
 package com.fortumo.ws;
 
 
+import jakarta.servlet.AsyncContext;
+import jakarta.servlet.AsyncEvent;
+import jakarta.servlet.AsyncListener;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.WriteListener;
 import jakarta.servlet.http.HttpServlet;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
@@ -8,46 +14,629 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.text.DecimalFormat;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
 import static jakarta.servlet.http.HttpServletResponse.SC_BAD_REQUEST;
+import static jakarta.servlet.http.HttpServletResponse.SC_CONFLICT;
+import static jakarta.servlet.http.HttpServletResponse.SC_FORBIDDEN;
 import static jakarta.servlet.http.HttpServletResponse.SC_INTERNAL_SERVER_ERROR;
+import static jakarta.servlet.http.HttpServletResponse.SC_NOT_FOUND;
+import static jakarta.servlet.http.HttpServletResponse.SC_SERVICE_UNAVAILABLE;
 
 /**
- * The servlet class that handles the requests received by the application server. Note that the number of concurrent
- * requests that this servlet handles depends on the number of connections the backing application server is
- * configured with.
+ * The servlet class that handles the requests received by the application server. In the {@link Mode#BLOCKING} mode,
+ * the number of concurrent requests that this servlet handles depends on the number of connections the backing
+ * application server is configured with. In the {@link Mode#ASYNC} and {@link Mode#VIRTUAL} modes, the requests
+ * waiting for the 'end' signal do not hold any container threads.
+ * <p>
+ * The requests are sent to named sessions, i.e. <tt>POST /{sessionId}</tt>, each summing up its own numbers
+ * independently (see {@link SumServiceRegistry}). The requests to <tt>/</tt> are sent to the default session.
+ * <p>
+ * A batch request carries many numbers (see {@link Batch}), either as text with the {@link #BATCH_PARAM} query
+ * parameter or as binary with the {@link #BINARY_CONTENT_TYPE} content type. A batch is added as a single add, each of
+ * its numbers with the summation strategy of the session, and answered with the sum of the round, followed by the
+ * errors of the values that are rejected, one per line. A batch of more than {@link #MAX_BATCH_SIZE_PARAM} numbers is
+ * rejected with <tt>413</tt>.
+ * <p>
+ * The {@link Metrics} of the sessions and the request latencies are exposed on <tt>GET /metrics</tt> in the
+ * Prometheus text format.
+ * <p>
+ * With the {@link #JOURNAL_DIR_PARAM} init parameter, the numbers of the current rounds are journaled (see
+ * {@link Journal}) and the sessions that have a journal are recovered when the servlet is initialized.
+ * <p>
+ * With the {@link #CLUSTER_NODES_PARAM} and {@link #CLUSTER_SELF_PARAM} init parameters, the servlet is a node of a
+ * {@link SumCluster}: the 'end' signal received by any node releases the clients of all the nodes with the total of
+ * the cluster. The nodes call each other over HTTP with the query parameters of {@link SumCluster}, authenticated by
+ * the shared secret of the {@link #CLUSTER_SECRET_PARAM} init parameter. A cluster call without the secret is
+ * forbidden, so that a client cannot seal, complete or abort the rounds of the cluster.
+ * <p>
+ * <tt>GET /{sessionId}/events</tt> subscribes to the running sum and the completed rounds of the session as
+ * Server-Sent Events (see {@link SumEvents}), coalesced to one update per {@link #EVENT_INTERVAL_PARAM}.
+ * <p>
+ * <tt>GET /{sessionId}/snapshot</tt> answers with the id, the running sum and the number of the pending adds of the
+ * current round of the session as a JSON object (see {@link Round#snapshot()}), read without blocking the adders. A
+ * node of a cluster answers with its own part of the round only.
+ * <p>
+ * With the {@link #BINARY_PORT_PARAM} init parameter, the sessions are also served over TCP with the binary protocol
+ * of {@link BinaryServer}.
+ * <p>
+ * The {@link #MAX_PENDING_ADDS_PARAM}, {@link #ADD_TIMEOUT_PARAM}, {@link #AUTO_END_ADDS_PARAM} and
+ * {@link #AUTO_END_PARAM} init parameters configure the {@link SumService.Limits} of the sessions. An add is answered
+ * with <tt>429</tt> while its round is full and with <tt>503</tt> if its number is withdrawn since the round did not
+ * end in time, both with a <tt>Retry-After</tt> header. The number is not counted in either case.
+ * <p>
+ * With the {@link #STATS_PARAM} init parameter, the rounds also collect the {@link RoundStats} of their numbers. An
+ * add, a batch or an 'end' signal with the <tt>Accept: application/json</tt> header is then answered with the
+ * statistics of its round as a JSON object, e.g.
+ * <tt>{"sum":6.0,"count":3,"min":1.0,"max":3.0,"mean":2.0,"variance":0.667}</tt>, where every number of a batch counts
+ * on its own.
+ * <p>
+ * With the {@link #PIPELINED_PARAM} init parameter, an 'end' signal is answered as soon as its round is sealed and
+ * the next one is open, while the clients of the sealed round are released in the background (see {@link SumService}).
+ * <p>
+ * An add or a batch may carry the {@link #IDEMPOTENCY_KEY_HEADER} header, e.g. a random UUID per add, which its
+ * retries carry too. A retry of an add that is counted in the current or the previous round of the session is not
+ * counted again, but answered the same as the add once its round ends (see {@link SumService#add(double, long)}).
  */
 public class SumServlet extends HttpServlet {
 
     private static final Logger LOG = LoggerFactory.getLogger(SumServlet.class);
 
     /**
-     * Formats the value so that the decimal places are ignored if the value is an integer or long.
+     * Name of the servlet init parameter that configures the {@link Mode}.
      */
-    private static final DecimalFormat DECIMAL_FORMAT = new DecimalFormat("0.###");
+    static final String MODE_PARAM = "mode";
 
     /**
-     * The service that processes the received requests.
+     * Name of the servlet init parameter that configures the {@link Summation} strategy of the sessions.
      */
-    private final SumService service;
+    static final String SUMMATION_PARAM = "summation";
+
+    /**
+     * Name of the servlet init parameter that configures the maximum number of sessions.
+     */
+    static final String MAX_SESSIONS_PARAM = "maxSessions";
+
+    /**
+     * Name of the servlet init parameter that configures the time after which an idle session is evicted, in
+     * milliseconds.
+     */
+    static final String SESSION_IDLE_TIMEOUT_PARAM = "sessionIdleTimeoutMillis";
+
+    /**
+     * Name of the servlet init parameter that configures the directory of the {@link Journal}, no journal is kept if
+     * it is not set.
+     */
+    static final String JOURNAL_DIR_PARAM = "journalDir";
+
+    /**
+     * Name of the servlet init parameter that configures the {@link Journal.Durability}.
+     */
+    static final String JOURNAL_DURABILITY_PARAM = "journalDurability";
+
+    /**
+     * Name of the servlet init parameter that configures the comma separated base URLs of all the nodes of the
+     * cluster, including this one. The servlet runs standalone if it is not set.
+     */
+    static final String CLUSTER_NODES_PARAM = "clusterNodes";
+
+    /**
+     * Name of the servlet init parameter that configures the base URL of this node, one of the
+     * {@link #CLUSTER_NODES_PARAM}.
+     */
+    static final String CLUSTER_SELF_PARAM = "clusterSelf";
+
+    /**
+     * Name of the servlet init parameter that configures the shared secret that the nodes of the cluster authenticate
+     * their calls to each other with, required with {@link #CLUSTER_NODES_PARAM}.
+     */
+    static final String CLUSTER_SECRET_PARAM = "clusterSecret";
+
+    /**
+     * The timeout of a call to another node of the cluster.
+     */
+    private static final Duration CLUSTER_CALL_TIMEOUT = Duration.ofSeconds(5);
+
+    /**
+     * The time after which a cut that is not completed by its coordinator is aborted, in milliseconds.
+     */
+    private static final long CLUSTER_CUT_TIMEOUT = TimeUnit.SECONDS.toMillis(30);
+
+    /**
+     * The maximum size of the body of a cluster call, which is at most a number.
+     */
+    private static final int MAX_CLUSTER_CALL_SIZE = 64;
+
+    /**
+     * Name of the servlet init parameter that configures the time between two updates of the event subscribers, in
+     * milliseconds.
+     */
+    static final String EVENT_INTERVAL_PARAM = "eventIntervalMillis";
+
+    /**
+     * Name of the servlet init parameter that configures the port of the {@link BinaryServer}, which is not started
+     * if it is not set.
+     */
+    static final String BINARY_PORT_PARAM = "binaryPort";
+
+    /**
+     * Name of the servlet init parameter that configures the number of the event loops of the {@link BinaryServer}.
+     */
+    static final String BINARY_LOOPS_PARAM = "binaryLoops";
+
+    /**
+     * Name of the servlet init parameter that configures the number of the pending adds of a round after which the
+     * adds are rejected, unlimited if it is 0.
+     */
+    static final String MAX_PENDING_ADDS_PARAM = "maxPendingAdds";
+
+    /**
+     * Name of the servlet init parameter that configures the time an add waits for the 'end' signal before it is
+     * withdrawn, in milliseconds, unlimited if it is 0.
+     */
+    static final String ADD_TIMEOUT_PARAM = "addTimeoutMillis";
+
+    /**
+     * Name of the servlet init parameter that configures the number of the adds that ends a round, disabled if it is
+     * 0.
+     */
+    static final String AUTO_END_ADDS_PARAM = "autoEndAdds";
+
+    /**
+     * Name of the servlet init parameter that configures the time after the first add of a round that ends the round,
+     * in milliseconds, disabled if it is 0.
+     */
+    static final String AUTO_END_PARAM = "autoEndMillis";
+
+    /**
+     * Name of the servlet init parameter that configures the <tt>Retry-After</tt> header of a rejected add, in
+     * seconds.
+     */
+    static final String RETRY_AFTER_PARAM = "retryAfterSeconds";
+
+    /**
+     * Name of the servlet init parameter that configures the {@link RoundStats.Level} of the sessions.
+     */
+    static final String STATS_PARAM = "stats";
+
+    /**
+     * Name of the servlet init parameter that configures whether the sessions release the clients of their ended
+     * rounds in the background, <tt>true</tt> or <tt>false</tt>.
+     */
+    static final String PIPELINED_PARAM = "pipelined";
+
+    /**
+     * The content type of the responses with the statistics of a round.
+     */
+    static final String JSON_CONTENT_TYPE = "application/json";
+
+    /**
+     * The header of an add that identifies the add and its retries.
+     */
+    static final String IDEMPOTENCY_KEY_HEADER = "Idempotency-Key";
+
+    /**
+     * The status of an add that is rejected since its round is full.
+     */
+    static final int SC_TOO_MANY_REQUESTS = 429;
+
+    /**
+     * The default time between two updates of the event subscribers, in milliseconds.
+     */
+    private static final long DEFAULT_EVENT_INTERVAL = 100;
+
+    /**
+     * The path suffix of an event subscription, i.e. <tt>GET /{sessionId}/events</tt>.
+     */
+    static final String EVENTS_SUFFIX = "/events";
+
+    /**
+     * The path suffix of a snapshot of the current round, i.e. <tt>GET /{sessionId}/snapshot</tt>.
+     */
+    static final String SNAPSHOT_SUFFIX = "/snapshot";
+
+    /**
+     * The default maximum number of sessions.
+     */
+    private static final int DEFAULT_MAX_SESSIONS = 10_000;
+
+    /**
+     * The default time after which an idle session is evicted, in milliseconds.
+     */
+    private static final long DEFAULT_SESSION_IDLE_TIMEOUT = TimeUnit.MINUTES.toMillis(10);
+
+    /**
+     * The maximum length of a session id.
+     */
+    private static final int MAX_SESSION_ID_LENGTH = 128;
+
+    /**
+     * Name of the query parameter that marks a text batch request, i.e. <tt>POST /{sessionId}?batch</tt>.
+     */
+    static final String BATCH_PARAM = "batch";
+
+    /**
+     * Name of the servlet init parameter that configures the maximum number of the numbers of a batch, see
+     * {@link Batch#DEFAULT_MAX_COUNT}.
+     */
+    static final String MAX_BATCH_SIZE_PARAM = "maxBatchSize";
+
+    /**
+     * The status of a batch that has too many numbers.
+     */
+    static final int SC_CONTENT_TOO_LARGE = 413;
+
+    /**
+     * The content type of a binary batch request, an array of big-endian doubles.
+     */
+    static final String BINARY_CONTENT_TYPE = "application/octet-stream";
+
+    /**
+     * The path the metrics are exposed on, i.e. <tt>GET /metrics</tt>.
+     */
+    static final String METRICS_PATH = "/metrics";
+
+    /**
+     * The line terminator of the responses.
+     */
+    private static final byte[] CRLF = {'\r', '\n'};
+
+    /**
+     * The way the requests waiting for the 'end' signal are handled.
+     */
+    enum Mode {
+        /**
+         * The container thread is blocked until the 'end' signal is received.
+         */
+        BLOCKING,
+        /**
+         * The request is suspended with {@link HttpServletRequest#startAsync()} and the container thread is released.
+         * The response is sent by the thread that handles the 'end' signal.
+         */
+        ASYNC,
+        /**
+         * The request is suspended with {@link HttpServletRequest#startAsync()} and handled on a virtual thread, which
+         * is blocked until the 'end' signal is received. The waiting requests do not hold any platform threads.
+         */
+        VIRTUAL
+    }
+
+    /**
+     * The sessions that process the received requests.
+     */
+    private SumServiceRegistry sessions;
+
+    /**
+     * The mode of the servlet, configured with the {@link #MODE_PARAM} init parameter.
+     */
+    private Mode mode = Mode.BLOCKING;
+
+    /**
+     * The summation strategy of the sessions, configured with the {@link #SUMMATION_PARAM} init parameter.
+     */
+    private Summation summation = Summation.DOUBLE;
+
+    /**
+     * The directory of the journal, configured with the {@link #JOURNAL_DIR_PARAM} init parameter, or null.
+     */
+    private Path journalDir;
+
+    /**
+     * The durability of the journal, configured with the {@link #JOURNAL_DURABILITY_PARAM} init parameter.
+     */
+    private Journal.Durability durability = Journal.Durability.SYNC;
+
+    /**
+     * The admission limits of the sessions, configured with the {@link #MAX_PENDING_ADDS_PARAM},
+     * {@link #ADD_TIMEOUT_PARAM}, {@link #AUTO_END_ADDS_PARAM} and {@link #AUTO_END_PARAM} init parameters.
+     */
+    private SumService.Limits limits = SumService.Limits.NONE;
+
+    /**
+     * The <tt>Retry-After</tt> header of a rejected add, configured with the {@link #RETRY_AFTER_PARAM} init
+     * parameter.
+     */
+    private String retryAfter = "1";
+
+    /**
+     * The statistics the rounds of the sessions collect, configured with the {@link #STATS_PARAM} init parameter.
+     */
+    private RoundStats.Level statsLevel = RoundStats.Level.NONE;
+
+    /**
+     * Whether the sessions release the clients of their ended rounds in the background, configured with the
+     * {@link #PIPELINED_PARAM} init parameter.
+     */
+    private boolean pipelined = false;
+
+    /**
+     * The maximum number of the numbers of a batch, configured with the {@link #MAX_BATCH_SIZE_PARAM} init parameter.
+     */
+    private int maxBatchSize = Batch.DEFAULT_MAX_COUNT;
+
+    /**
+     * The cluster this servlet is a node of, configured with the {@link #CLUSTER_NODES_PARAM} init parameter, or null.
+     */
+    private SumCluster cluster;
+
+    /**
+     * The shared secret of the cluster, configured with the {@link #CLUSTER_SECRET_PARAM} init parameter, or null.
+     */
+    private String clusterSecret;
+
+    /**
+     * Pushes the running sums to the subscribers, created by {@link #init()}.
+     */
+    private SumEvents events;
+
+    /**
+     * The binary front end, configured with the {@link #BINARY_PORT_PARAM} init parameter, or null.
+     */
+    private BinaryServer binary;
+
+    /**
+     * Executes the requests on virtual threads in the {@link Mode#VIRTUAL} mode, null otherwise.
+     */
+    private ExecutorService virtualExecutor;
+
+    /**
+     * The metrics of the sessions and the requests.
+     */
+    private final Metrics metrics = new Metrics();
 
     public SumServlet() {
-        this.service = createService();
+        this.sessions = new SumServiceRegistry(this::createService, DEFAULT_MAX_SESSIONS, DEFAULT_SESSION_IDLE_TIMEOUT);
     }
 
     /**
      * VisibleForTesting.
-     * @return the service object.
+     * @return the service object of a new session.
      */
     SumService createService() {
-        return new SumService();
+        return new SumService(summation, metrics, null, limits, statsLevel, pipelined);
+    }
+
+    /**
+     * @param sessionId the id of the session.
+     * @return the service object of a new session, with a journal if one is configured.
+     * @throws UncheckedIOException if the journal cannot be read.
+     */
+    private SumService createService(String sessionId) {
+        SumService service = journalDir == null
+                ? createService()
+                : new SumService(summation, metrics, new Journal(journalDir, sessionId, durability), limits,
+                        statsLevel, pipelined);
+        service.onComplete(sum -> {
+            SumEvents subscribed = events;
+            if (subscribed != null) {
+                subscribed.roundCompleted(sessionId, sum);
+            }
+        });
+        return service;
+    }
+
+    /**
+     * Reads the {@link #MODE_PARAM}, {@link #SUMMATION_PARAM}, {@link #MAX_SESSIONS_PARAM},
+     * {@link #SESSION_IDLE_TIMEOUT_PARAM}, {@link #JOURNAL_DIR_PARAM}, {@link #JOURNAL_DURABILITY_PARAM},
+     * {@link #CLUSTER_NODES_PARAM}, {@link #CLUSTER_SELF_PARAM}, {@link #CLUSTER_SECRET_PARAM},
+     * {@link #EVENT_INTERVAL_PARAM}, {@link #BINARY_PORT_PARAM}, {@link #BINARY_LOOPS_PARAM},
+     * {@link #MAX_PENDING_ADDS_PARAM}, {@link #ADD_TIMEOUT_PARAM}, {@link #AUTO_END_ADDS_PARAM},
+     * {@link #AUTO_END_PARAM}, {@link #RETRY_AFTER_PARAM}, {@link #STATS_PARAM}, {@link #PIPELINED_PARAM} and
+     * {@link #MAX_BATCH_SIZE_PARAM} init parameters, then recovers the sessions that have a journal and starts the
+     * binary front end.
+     * @throws ServletException if the mode, the summation, the durability, the stats level or the pipelined flag is
+     *                          unknown, the session, the cluster (including a missing secret), the event, the binary,
+     *                          the batch or the limit parameters are invalid, the rounds of a cluster are ended
+     *                          automatically or collect statistics, the
+     *                          journal cannot be recovered or the binary port cannot be bound.
+     */
+    @Override
+    public void init() throws ServletException {
+        String modeParam = getInitParameter(MODE_PARAM);
+        if (modeParam != null) {
+            try {
+                mode = Mode.valueOf(modeParam.trim().toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                throw new ServletException("unknown mode=" + modeParam, e);
+            }
+        }
+        String summationParam = getInitParameter(SUMMATION_PARAM);
+        if (summationParam != null) {
+            try {
+                summation = Summation.valueOf(summationParam.trim().replace('-', '_').toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                throw new ServletException("unknown summation=" + summationParam, e);
+            }
+        }
+        initLimits();
+        String statsParam = getInitParameter(STATS_PARAM);
+        if (statsParam != null && !statsParam.isBlank()) {
+            try {
+                statsLevel = RoundStats.Level.parse(statsParam);
+            } catch (IllegalArgumentException e) {
+                throw new ServletException("unknown stats=" + statsParam, e);
+            }
+        }
+        String pipelinedParam = getInitParameter(PIPELINED_PARAM);
+        if (pipelinedParam != null && !pipelinedParam.isBlank()) {
+            switch (pipelinedParam.trim().toLowerCase(Locale.ROOT)) {
+                case "true" -> pipelined = true;
+                case "false" -> pipelined = false;
+                default -> throw new ServletException("unknown pipelined=" + pipelinedParam);
+            }
+        }
+        String maxBatchSizeParam = getInitParameter(MAX_BATCH_SIZE_PARAM);
+        if (maxBatchSizeParam != null && !maxBatchSizeParam.isBlank()) {
+            try {
+                maxBatchSize = Integer.parseInt(maxBatchSizeParam.trim());
+                if (maxBatchSize < 1) {
+                    throw new IllegalArgumentException("maxBatchSize must be positive");
+                }
+            } catch (IllegalArgumentException e) {
+                throw new ServletException("invalid maxBatchSize=" + maxBatchSizeParam, e);
+            }
+        }
+        String maxSessions = getInitParameter(MAX_SESSIONS_PARAM);
+        String idleTimeout = getInitParameter(SESSION_IDLE_TIMEOUT_PARAM);
+        try {
+            SumServiceRegistry configured = new SumServiceRegistry(this::createService,
+                    maxSessions == null ? DEFAULT_MAX_SESSIONS : Integer.parseInt(maxSessions.trim()),
+                    idleTimeout == null ? DEFAULT_SESSION_IDLE_TIMEOUT : Long.parseLong(idleTimeout.trim()));
+            sessions.close();
+            sessions = configured;
+        } catch (IllegalArgumentException e) {
+            throw new ServletException(
+                    "invalid maxSessions=" + maxSessions + " or sessionIdleTimeoutMillis=" + idleTimeout, e);
+        }
+        String durabilityParam = getInitParameter(JOURNAL_DURABILITY_PARAM);
+        if (durabilityParam != null) {
+            try {
+                durability = Journal.Durability.valueOf(durabilityParam.trim().toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                throw new ServletException("unknown journalDurability=" + durabilityParam, e);
+            }
+        }
+        String nodes = getInitParameter(CLUSTER_NODES_PARAM);
+        if (nodes != null && !nodes.isBlank()) {
+            String self = getInitParameter(CLUSTER_SELF_PARAM);
+            clusterSecret = getInitParameter(CLUSTER_SECRET_PARAM);
+            try {
+                List<String> nodeList = Arrays.stream(nodes.split(",")).map(String::trim).toList();
+                cluster = new SumCluster(self == null ? null : self.trim(), nodeList,
+                        new HttpClusterTransport(CLUSTER_CALL_TIMEOUT, clusterSecret), sessions, CLUSTER_CUT_TIMEOUT);
+            } catch (IllegalArgumentException e) {
+                throw new ServletException(
+                        "invalid clusterNodes=" + nodes + ", clusterSelf=" + self + " or clusterSecret", e);
+            }
+            if (limits.autoEnds()) {
+                throw new ServletException("autoEndAdds and autoEndMillis are not supported with clusterNodes");
+            }
+            if (statsLevel != RoundStats.Level.NONE) {
+                throw new ServletException("stats are not supported with clusterNodes");
+            }
+        }
+        String interval = getInitParameter(EVENT_INTERVAL_PARAM);
+        try {
+            long intervalMillis = interval == null ? DEFAULT_EVENT_INTERVAL : Long.parseLong(interval.trim());
+            if (intervalMillis <= 0) {
+                throw new IllegalArgumentException("interval must be positive");
+            }
+            events = new SumEvents(sessions, intervalMillis);
+        } catch (IllegalArgumentException e) {
+            throw new ServletException("invalid eventIntervalMillis=" + interval, e);
+        }
+        String journalParam = getInitParameter(JOURNAL_DIR_PARAM);
+        if (journalParam != null && !journalParam.isBlank()) {
+            journalDir = Paths.get(journalParam.trim());
+            recoverSessions();
+        }
+        if (mode == Mode.VIRTUAL) {
+            virtualExecutor = Executors.newVirtualThreadPerTaskExecutor();
+        }
+        String binaryPort = getInitParameter(BINARY_PORT_PARAM);
+        if (binaryPort != null && !binaryPort.isBlank()) {
+            String loops = getInitParameter(BINARY_LOOPS_PARAM);
+            try {
+                binary = new BinaryServer(sessions, cluster, metrics,
+                        new InetSocketAddress(Integer.parseInt(binaryPort.trim())),
+                        loops == null || loops.isBlank() ? 1 : Integer.parseInt(loops.trim()));
+            } catch (IllegalArgumentException e) {
+                throw new ServletException("invalid binaryPort=" + binaryPort + " or binaryLoops=" + loops, e);
+            } catch (IOException e) {
+                throw new ServletException("cannot listen on binaryPort=" + binaryPort, e);
+            }
+        }
+        LOG.info("servlet initialized with mode={}, summation={}, journalDir={}, clusterNodes={}",
+                mode, summation, journalDir, nodes);
+    }
+
+    /**
+     * Reads the {@link #MAX_PENDING_ADDS_PARAM}, {@link #ADD_TIMEOUT_PARAM}, {@link #AUTO_END_ADDS_PARAM},
+     * {@link #AUTO_END_PARAM} and {@link #RETRY_AFTER_PARAM} init parameters.
+     * @throws ServletException if a parameter is not a number or is negative.
+     */
+    private void initLimits() throws ServletException {
+        String maxPendingAdds = getInitParameter(MAX_PENDING_ADDS_PARAM);
+        String addTimeout = getInitParameter(ADD_TIMEOUT_PARAM);
+        String autoEndAdds = getInitParameter(AUTO_END_ADDS_PARAM);
+        String autoEnd = getInitParameter(AUTO_END_PARAM);
+        try {
+            limits = new SumService.Limits(longParam(maxPendingAdds), longParam(addTimeout),
+                    longParam(autoEndAdds), longParam(autoEnd));
+        } catch (IllegalArgumentException e) {
+            throw new ServletException("invalid maxPendingAdds=" + maxPendingAdds + ", addTimeoutMillis=" + addTimeout
+                    + ", autoEndAdds=" + autoEndAdds + " or autoEndMillis=" + autoEnd, e);
+        }
+        String retryAfterParam = getInitParameter(RETRY_AFTER_PARAM);
+        if (retryAfterParam != null && !retryAfterParam.isBlank()) {
+            try {
+                if (Long.parseLong(retryAfterParam.trim()) < 0) {
+                    throw new IllegalArgumentException("retryAfterSeconds must not be negative");
+                }
+            } catch (IllegalArgumentException e) {
+                throw new ServletException("invalid retryAfterSeconds=" + retryAfterParam, e);
+            }
+            retryAfter = retryAfterParam.trim();
+        }
+    }
+
+    /**
+     * @param value the value of an init parameter, or null.
+     * @return the value as a number, 0 if it is not set.
+     * @throws NumberFormatException if the value is not a number.
+     */
+    private static long longParam(String value) {
+        return value == null || value.isBlank() ? 0 : Long.parseLong(value.trim());
     }
 
     /**
-     * Handles the POST:/ request with body containing a number or the string 'end'. After validating the request body,
-     * it is sent to the {@link #service} for processing. Note that the end result is formatted using the
-     * {@link #DECIMAL_FORMAT}.
+     * Creates the sessions that have a journal, which recovers their current rounds.
+     * @throws ServletException if a journal cannot be recovered.
+     */
+    private void recoverSessions() throws ServletException {
+        try {
+            for (String sessionId : Journal.sessionIds(journalDir)) {
+                sessions.call(sessionId, service -> null);
+            }
+        } catch (UncheckedIOException | RejectedExecutionException | InterruptedException e) {
+            throw new ServletException("cannot recover the journal, dir=" + journalDir, e);
+        }
+    }
+
+    /**
+     * Stops the virtual thread executor, the event subscriptions and the binary front end, if any, and the sweep of the
+     * idle sessions.
+     */
+    @Override
+    public void destroy() {
+        sessions.close();
+        if (binary != null) {
+            binary.close();
+        }
+        if (virtualExecutor != null) {
+            virtualExecutor.shutdownNow();
+        }
+        if (events != null) {
+            events.close();
+        }
+    }
+
+    /**
+     * Handles the POST:/{sessionId} request with body containing a number or the string 'end'. In the
+     * {@link Mode#VIRTUAL} mode, the request is suspended and processed on a virtual thread.
      *
      * @param req request object to receive the client's request.
      * @param resp response object to send response.
@@ -55,36 +644,553 @@ public class SumServlet extends HttpServlet {
      */
     @Override
     protected void doPost(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        long start = System.nanoTime();
+        if (mode != Mode.VIRTUAL) {
+            process(req, resp, start);
+            return;
+        }
+        AsyncContext context = req.startAsync();
+        context.setTimeout(0);  // waits until the 'end' signal is received.
+        virtualExecutor.execute(() -> {
+            try {
+                process(req, resp, start);
+            } catch (Exception e) {
+                LOG.error(e.getMessage());
+            } finally {
+                context.complete();
+            }
+        });
+    }
+
+    /**
+     * Processes the request body containing a number or the string 'end'. After validating the request body, it is
+     * sent to the service of the session for processing. Note that the end result is formatted using the
+     * {@link DoubleFormat}. Nothing is logged per request unless debug logging is enabled.
+     *
+     * @param req   request object to receive the client's request.
+     * @param resp  response object to send response.
+     * @param start the time (in terms of {@link System#nanoTime()}) the request is received.
+     * @throws IOException if I/O stream cannot be processed correctly.
+     */
+    private void process(HttpServletRequest req, HttpServletResponse resp, long start) throws IOException {
         try {
-            String body = req.getReader().readLine();
-            LOG.info("recv request={}", body);
+            String sessionId = sessionId(req);
+            if (cluster != null && SumCluster.isClusterCall(req.getQueryString())) {
+                processClusterCall(req, resp, sessionId);
+                return;
+            }
+            if (isBatch(req)) {
+                processBatch(req, resp, sessionId, start);
+                return;
+            }
+            RequestBody body = RequestBody.readLine(req.getInputStream());
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("recv session={}, request={}", sessionId, body);
+            }
             validate(body);
-            double result;
-            if (body.equals("end")) {
-                result = service.doEnd();
+            boolean withStats = statsLevel != RoundStats.Level.NONE && acceptsJson(req);
+            if (body.isEnd()) {
+                if (withStats) {
+                    sendStats(resp, sessions.call(sessionId, SumService::doEndWithStats), null);
+                } else {
+                    sendResult(resp, cluster == null
+                            ? sessions.call(sessionId, SumService::doEnd) : cluster.end(sessionId).get(), null);
+                }
             } else {
-                double number = Double.parseDouble(body);
-                result = service.doAdd(number);
+                double number = body.parseDouble();
+                long key = idempotencyKey(req);
+                if (mode == Mode.ASYNC) {
+                    doAddAsync(req, sessionId, number, key, null, withStats, start);
+                    return;
+                }
+                if (withStats) {
+                    sendStats(resp, sessions.call(sessionId, service -> service.doAddWithStats(number, key)), null);
+                } else {
+                    sendResult(resp, sessions.call(sessionId, service -> service.doAdd(number, key)), null);
+                }
             }
-            resp.setStatus(200);
-            resp.setContentType("text/plain;charset=UTF-8");
-            resp.getOutputStream().println(DECIMAL_FORMAT.format(result));
+            metrics.onRequest(body.isEnd() ? Metrics.RequestType.END : Metrics.RequestType.ADD, start);
         } catch (IllegalArgumentException e) {
-            LOG.error(e.getMessage());
-            resp.sendError(SC_BAD_REQUEST, "request may only contain string 'end' or number");
+            LOG.debug(e.getMessage());
+            sendError(resp, SC_BAD_REQUEST, "request may only contain string 'end' or number");
+        } catch (InvalidSessionException e) {
+            LOG.debug(e.getMessage());
+            sendError(resp, SC_NOT_FOUND, "invalid session id");
+        } catch (RejectedExecutionException e) {
+            LOG.warn(e.getMessage());
+            sendError(resp, SC_SERVICE_UNAVAILABLE, "too many sessions");
+        } catch (SumService.OverloadedException e) {
+            LOG.debug(e.getMessage());
+            sendRetry(resp, SC_TOO_MANY_REQUESTS, "too many pending adds");
+        } catch (SumService.TimedOutException e) {
+            LOG.debug(e.getMessage());
+            sendRetry(resp, SC_SERVICE_UNAVAILABLE, "round did not end in time, number not counted");
         } catch (Exception e) {
             LOG.error(e.getMessage());
-            resp.sendError(SC_INTERNAL_SERVER_ERROR, "unexpected server error");
+            sendError(resp, SC_INTERNAL_SERVER_ERROR, "unexpected server error");
+        }
+    }
+
+    /**
+     * Streams the batch in the request body and adds its valid numbers to the service of the session as a single add,
+     * see {@link SumService#add(Batch, long)}. A batch without any valid number is rejected.
+     * @param req       request object to receive the client's request.
+     * @param resp      response object to send response.
+     * @param sessionId the id of the session.
+     * @param start     the time (in terms of {@link System#nanoTime()}) the request is received.
+     * @throws IOException          if I/O stream cannot be processed correctly.
+     * @throws InterruptedException if thread interrupted while waiting.
+     */
+    private void processBatch(HttpServletRequest req, HttpServletResponse resp, String sessionId, long start)
+            throws IOException, InterruptedException {
+        Batch batch;
+        try {
+            if (isBinary(req)) {
+                if (req.getContentLengthLong() > (long) maxBatchSize * Double.BYTES) {
+                    throw new Batch.TooLargeException(maxBatchSize);  // rejected before the body is read.
+                }
+                batch = Batch.readBinary(req.getInputStream(), maxBatchSize);
+            } else {
+                batch = Batch.readText(req.getInputStream(), maxBatchSize);
+            }
+        } catch (Batch.TooLargeException e) {
+            LOG.debug(e.getMessage());
+            sendError(resp, SC_CONTENT_TOO_LARGE, "batch has more than " + maxBatchSize + " numbers");
+            return;
+        }
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("recv session={}, batch count={}, errors={}", sessionId, batch.count(), batch.errorCount());
+        }
+        if (batch.count() == 0) {
+            sendError(resp, SC_BAD_REQUEST, "batch contains no valid number");
+            return;
+        }
+        long key = idempotencyKey(req);
+        boolean withStats = statsLevel != RoundStats.Level.NONE && acceptsJson(req);
+        try {
+            if (mode == Mode.ASYNC) {
+                doAddAsync(req, sessionId, 0, key, batch, withStats, start);
+                return;
+            }
+            if (withStats) {
+                sendStats(resp, sessions.call(sessionId, service -> service.doAddWithStats(batch, key)), batch);
+            } else {
+                sendResult(resp, sessions.call(sessionId, service -> service.doAdd(batch, key)), batch);
+            }
+        } catch (IllegalArgumentException e) {
+            LOG.debug(e.getMessage());
+            sendError(resp, SC_BAD_REQUEST, "batch contains no valid number");
+            return;
+        }
+        metrics.onRequest(Metrics.RequestType.BATCH, start);
+    }
+
+    /**
+     * Handles a call of the coordinator of a cut, see {@link SumCluster#handle(String, String, String)}. A call without
+     * the shared secret of the cluster is forbidden.
+     * @param req       request object to receive the client's request.
+     * @param resp      response object to send response.
+     * @param sessionId the id of the session.
+     * @throws IOException          if I/O stream cannot be processed correctly.
+     * @throws InterruptedException if thread interrupted while waiting.
+     */
+    private void processClusterCall(HttpServletRequest req, HttpServletResponse resp, String sessionId)
+            throws IOException, InterruptedException {
+        if (!HttpClusterTransport.authenticates(clusterSecret, req.getHeader(HttpClusterTransport.SECRET_HEADER))) {
+            LOG.warn("cluster call without the secret, session={}, query={}", sessionId, req.getQueryString());
+            sendError(resp, SC_FORBIDDEN, "cluster call not authenticated");
+            return;
+        }
+        String body = new String(req.getInputStream().readNBytes(MAX_CLUSTER_CALL_SIZE), StandardCharsets.UTF_8);
+        String response;
+        try {
+            response = cluster.handle(sessionId, req.getQueryString(), body);
+        } catch (IllegalArgumentException e) {
+            LOG.warn(e.getMessage());
+            sendError(resp, SC_BAD_REQUEST, "malformed cluster call");
+            return;
+        } catch (IllegalStateException e) {
+            LOG.warn(e.getMessage());
+            sendError(resp, SC_CONFLICT, "unknown cut");
+            return;
+        }
+        resp.setStatus(200);
+        resp.setContentType("text/plain;charset=UTF-8");
+        resp.getOutputStream().write(response.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Suspends the request and adds the <tt>number</tt> to the service of the session. The response is sent by the
+     * thread that completes the round that the number is added to, or by the one that withdraws the number.
+     * @param req       the request to suspend.
+     * @param sessionId the id of the session.
+     * @param number    the number to add.
+     * @param key       the idempotency key of the add, or {@link IdempotencyKeys#NONE}.
+     * @param batch     the batch to add instead of the <tt>number</tt>, null if it is a single number.
+     * @param withStats true to answer with the statistics of the round rather than its sum.
+     * @param start     the time (in terms of {@link System#nanoTime()}) the request is received.
+     * @throws InterruptedException if thread interrupted while waiting.
+     */
+    private void doAddAsync(HttpServletRequest req, String sessionId, double number, long key, Batch batch,
+                            boolean withStats, long start) throws InterruptedException {
+        CompletableFuture<?> result = sessions.call(sessionId, service -> batch == null
+                ? withStats ? service.addWithStats(number, key) : service.add(number, key)
+                : withStats ? service.addWithStats(batch, key) : service.add(batch, key));
+        AsyncContext context = req.startAsync();
+        context.setTimeout(0);  // waits until the 'end' signal is received.
+        result.whenComplete((value, error) -> {
+            HttpServletResponse resp = (HttpServletResponse) context.getResponse();
+            try {
+                if (error == null) {
+                    if (value instanceof RoundStats stats) {
+                        sendStats(resp, stats, batch);
+                    } else {
+                        sendResult(resp, (Double) value, batch);
+                    }
+                    metrics.onRequest(batch == null ? Metrics.RequestType.ADD : Metrics.RequestType.BATCH, start);
+                } else if (error instanceof SumService.TimedOutException) {
+                    LOG.debug(error.getMessage());
+                    sendRetry(resp, SC_SERVICE_UNAVAILABLE, "round did not end in time, number not counted");
+                } else {
+                    LOG.error(error.getMessage());
+                    sendError(resp, SC_INTERNAL_SERVER_ERROR, "unexpected server error");
+                }
+            } catch (Exception e) {
+                LOG.error(e.getMessage());
+            } finally {
+                context.complete();
+            }
+        });
+    }
+
+    /**
+     * Handles the <tt>GET /metrics</tt>, the <tt>GET /{sessionId}/events</tt> and the
+     * <tt>GET /{sessionId}/snapshot</tt> requests, any other path is not found.
+     * @param req  request object to receive the client's request.
+     * @param resp response object to send response.
+     * @throws IOException if I/O stream cannot be processed correctly.
+     */
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        String path = req.getPathInfo();
+        if (events != null && path != null && path.endsWith(EVENTS_SUFFIX)) {
+            String sessionId;
+            try {
+                sessionId = sessionId(path.substring(0, path.length() - EVENTS_SUFFIX.length()));
+            } catch (InvalidSessionException e) {
+                resp.sendError(SC_NOT_FOUND);
+                return;
+            }
+            subscribe(req, resp, sessionId);
+            return;
+        }
+        if (path != null && path.endsWith(SNAPSHOT_SUFFIX)) {
+            sendSnapshot(resp, path.substring(0, path.length() - SNAPSHOT_SUFFIX.length()));
+            return;
+        }
+        if (!METRICS_PATH.equals(path)) {
+            resp.sendError(SC_NOT_FOUND);
+            return;
+        }
+        StringBuilder out = new StringBuilder(32 * 1024);
+        metrics.writePrometheus(out, sessions.size());
+        resp.setStatus(200);
+        resp.setContentType("text/plain;version=0.0.4;charset=UTF-8");
+        resp.getOutputStream().write(out.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Sends the snapshot of the current round of the session as a JSON object. A session that does not exist, or is
+     * closed, is not found rather than created.
+     * @param resp        response object to send response.
+     * @param sessionPath the path of the session, i.e. <tt>/{sessionId}</tt>.
+     * @throws IOException if I/O stream cannot be processed correctly.
+     */
+    private void sendSnapshot(HttpServletResponse resp, String sessionPath) throws IOException {
+        Round.Snapshot snapshot;
+        try {
+            SumService service = sessions.peek(sessionId(sessionPath));
+            if (service == null) {
+                resp.sendError(SC_NOT_FOUND);
+                return;
+            }
+            snapshot = service.snapshot();
+        } catch (InvalidSessionException | SumService.ClosedException e) {
+            resp.sendError(SC_NOT_FOUND);
+            return;
         }
+        byte[] json = snapshot.appendJson(new StringBuilder(96)).append("\r\n").toString()
+                .getBytes(StandardCharsets.UTF_8);
+        resp.setStatus(200);
+        resp.setContentType(JSON_CONTENT_TYPE + ";charset=UTF-8");
+        resp.setHeader("Cache-Control", "no-cache");
+        resp.setContentLength(json.length);
+        resp.getOutputStream().write(json);
+    }
+
+    /**
+     * Suspends the request and subscribes it to the events of the session. The response stream is switched to the
+     * non-blocking mode, so a slow subscriber never blocks the thread that pushes the events.
+     * @param req       request object to receive the client's request.
+     * @param resp      response object to send response.
+     * @param sessionId the id of the session.
+     * @throws IOException if I/O stream cannot be processed correctly.
+     */
+    private void subscribe(HttpServletRequest req, HttpServletResponse resp, String sessionId) throws IOException {
+        resp.setStatus(200);
+        resp.setContentType("text/event-stream;charset=UTF-8");
+        resp.setHeader("Cache-Control", "no-cache");
+        AsyncContext context = req.startAsync();
+        context.setTimeout(0);  // streams until the client disconnects.
+        ServletOutputStream out = resp.getOutputStream();
+        SumEvents.Subscriber subscriber = new SumEvents.Subscriber(new EventSink(out, context));
+        context.addListener(new AsyncListener() {
+            @Override
+            public void onComplete(AsyncEvent event) {
+                subscriber.close();
+            }
+
+            @Override
+            public void onTimeout(AsyncEvent event) {
+                subscriber.close();
+            }
+
+            @Override
+            public void onError(AsyncEvent event) {
+                subscriber.close();
+            }
+
+            @Override
+            public void onStartAsync(AsyncEvent event) {
+            }
+        });
+        out.setWriteListener(new WriteListener() {
+            @Override
+            public void onWritePossible() {
+                subscriber.flush();
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                subscriber.close();
+            }
+        });
+        events.subscribe(sessionId, subscriber);
+    }
+
+    /**
+     * Sends an error and counts it in the {@link #metrics}.
+     * @param resp    response object to send response.
+     * @param status  the HTTP status code.
+     * @param message the error message.
+     * @throws IOException if I/O stream cannot be processed correctly.
+     */
+    private void sendError(HttpServletResponse resp, int status, String message) throws IOException {
+        metrics.onError();
+        resp.sendError(status, message);
+    }
+
+    /**
+     * Sends an error with the <tt>Retry-After</tt> header, for an add that is rejected without being counted.
+     * @param resp    response object to send response.
+     * @param status  the HTTP status code.
+     * @param message the error message.
+     * @throws IOException if I/O stream cannot be processed correctly.
+     */
+    private void sendRetry(HttpServletResponse resp, int status, String message) throws IOException {
+        resp.setHeader("Retry-After", retryAfter);
+        sendError(resp, status, message);
+    }
+
+    /**
+     * Sends the <tt>result</tt> formatted using the {@link DoubleFormat}. The line is encoded once and shared by all
+     * the responses with the same result, i.e. all the clients of a round, and sent with its <tt>Content-Length</tt>
+     * so the connection can be reused without chunking. The errors of the <tt>batch</tt>, if any, follow the result
+     * one per line.
+     * @param resp   response object to send response.
+     * @param result the result to send.
+     * @param batch  the batch request that is answered, null if it is a single number.
+     * @throws IOException if I/O stream cannot be processed correctly.
+     */
+    private void sendResult(HttpServletResponse resp, double result, Batch batch) throws IOException {
+        resp.setStatus(200);
+        resp.setContentType("text/plain;charset=UTF-8");
+        byte[] line = DoubleFormat.line(result);
+        boolean withErrors = batch != null && batch.errorCount() > 0;
+        if (!withErrors) {
+            resp.setContentLength(line.length);
+        }
+        ServletOutputStream out = resp.getOutputStream();
+        out.write(line);
+        if (!withErrors) {
+            return;
+        }
+        for (String error : batch.errors()) {
+            out.write(error.getBytes(StandardCharsets.UTF_8));
+            out.write(CRLF);
+        }
+        int omitted = batch.errorCount() - batch.errors().size();
+        if (omitted > 0) {
+            out.write(("and " + omitted + " more errors").getBytes(StandardCharsets.UTF_8));
+            out.write(CRLF);
+        }
+    }
+
+    /**
+     * Sends the statistics of a round as a JSON object, see {@link RoundStats#appendJson(StringBuilder)}, encoded
+     * once per round. The errors of the <tt>batch</tt>, if any, are added to the object, see
+     * {@link Batch#appendErrorsJson(StringBuilder)}.
+     * @param resp  response object to send response.
+     * @param stats the statistics of the round.
+     * @param batch the batch request that is answered, null if it is a single number.
+     * @throws IOException if I/O stream cannot be processed correctly.
+     */
+    private static void sendStats(HttpServletResponse resp, RoundStats stats, Batch batch) throws IOException {
+        resp.setStatus(200);
+        resp.setContentType(JSON_CONTENT_TYPE + ";charset=UTF-8");
+        byte[] json = stats.json();
+        ServletOutputStream out = resp.getOutputStream();
+        if (batch == null || batch.errorCount() == 0) {
+            resp.setContentLength(json.length + CRLF.length);
+            out.write(json);
+            out.write(CRLF);
+            return;
+        }
+        byte[] errors = batch.appendErrorsJson(new StringBuilder(",")).append('}').toString()
+                .getBytes(StandardCharsets.UTF_8);
+        resp.setContentLength(json.length - 1 + errors.length + CRLF.length);
+        out.write(json, 0, json.length - 1);  // without the closing brace.
+        out.write(errors);
+        out.write(CRLF);
+    }
+
+    /**
+     * @param req the request.
+     * @return true if the request accepts a JSON response.
+     */
+    private static boolean acceptsJson(HttpServletRequest req) {
+        String accept = req.getHeader("Accept");
+        return accept != null && accept.contains(JSON_CONTENT_TYPE);
+    }
+
+    /**
+     * @param req the request.
+     * @return the hash of the {@link #IDEMPOTENCY_KEY_HEADER} of the request, or {@link IdempotencyKeys#NONE} if it
+     *         has none or an empty one.
+     */
+    private static long idempotencyKey(HttpServletRequest req) {
+        String key = req.getHeader(IDEMPOTENCY_KEY_HEADER);
+        return key == null || key.isEmpty() ? IdempotencyKeys.NONE : IdempotencyKeys.hash(key);
+    }
+
+    /**
+     * @param req the request.
+     * @return true if the request is a text batch with the {@link #BATCH_PARAM} query parameter or a binary batch.
+     */
+    private static boolean isBatch(HttpServletRequest req) {
+        if (isBinary(req)) {
+            return true;
+        }
+        String query = req.getQueryString();
+        if (query == null) {
+            return false;
+        }
+        for (String param : query.split("&")) {
+            if (param.equals(BATCH_PARAM) || param.startsWith(BATCH_PARAM + "=")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param req the request.
+     * @return true if the request body is a binary batch.
+     */
+    private static boolean isBinary(HttpServletRequest req) {
+        String contentType = req.getContentType();
+        return contentType != null && contentType.regionMatches(
+                true, 0, BINARY_CONTENT_TYPE, 0, BINARY_CONTENT_TYPE.length());
+    }
+
+    /**
+     * Extracts the session id from the path of the request, i.e. <tt>/{sessionId}</tt>.
+     * @param req the request.
+     * @return the session id, or {@link SumServiceRegistry#DEFAULT_SESSION} if the path is empty.
+     * @throws InvalidSessionException if the path has more than one segment or the session id is too long.
+     */
+    private static String sessionId(HttpServletRequest req) {
+        return sessionId(req.getPathInfo());
+    }
+
+    /**
+     * @param path the path of the request after the servlet path, i.e. <tt>/{sessionId}</tt>.
+     * @return the session id, or {@link SumServiceRegistry#DEFAULT_SESSION} if the path is empty.
+     * @throws InvalidSessionException if the path has more than one segment or the session id is too long.
+     */
+    private static String sessionId(String path) {
+        if (path == null || path.length() <= 1) {
+            return SumServiceRegistry.DEFAULT_SESSION;
+        }
+        if (path.length() > MAX_SESSION_ID_LENGTH + 1 || path.indexOf('/', 1) >= 0) {
+            throw new InvalidSessionException("invalid session path=" + path);
+        }
+        return path.substring(1);
     }
 
     /**
      * Validates the request body.
      * @param body the request body to validate.
      */
-    private void validate(String body) {
+    private void validate(RequestBody body) {
         if (body == null || body.isBlank()) {
             throw new IllegalArgumentException("body must not be null or blank");
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * A {@link SumEvents.Sink} over the non-blocking output stream of a suspended request.
+     */
+    private static final class EventSink implements SumEvents.Sink {
+        private final ServletOutputStream out;
+        private final AsyncContext context;
+
+        EventSink(ServletOutputStream out, AsyncContext context) {
+            this.out = out;
+            this.context = context;
+        }
+
+        @Override
+        public boolean isReady() {
+            return out.isReady();
+        }
+
+        @Override
+        public void write(byte[] event) throws IOException {
+            out.write(event);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() {
+            try {
+                context.complete();
+            } catch (IllegalStateException e) {
+                // already completed by the container.
+            }
+        }
+    }
+
+    /**
+     * Thrown when the path of the request does not address a valid session.
+     */
+    private static final class InvalidSessionException extends RuntimeException {
+        InvalidSessionException(String message) {
+            super(message);
+        }
+    }
+}
@@ -0,0 +1,208 @@
+package com.fortumo.ws;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+
+/**
+ * The strategies to sum up the numbers of a {@link Round}. Each strategy accumulates the numbers in the striped cells
+ * of the round, so the adders still do not contend on a shared lock, and merges the cells once the round is sealed.
+ */
+enum Summation {
+
+    /**
+     * Plain double additions. The fastest, but the result depends on the order of the additions and the precision is
+     * lost when numbers of different magnitudes are mixed.
+     */
+    DOUBLE {
+        @Override
+        Round newRound() {
+            return new Round();
+        }
+    },
+    /**
+     * Neumaier's variant of the Kahan compensated summation, both in the cells and while merging them. The error does
+     * not grow with the number of additions, although the result is not exact.
+     */
+    COMPENSATED {
+        @Override
+        Round newRound() {
+            return new CompensatedRound();
+        }
+    },
+    /**
+     * Exact summation with {@link BigDecimal}, the result is the exact sum rounded to the nearest double, independent
+     * of the order of the additions. The slowest.
+     */
+    EXACT {
+        @Override
+        Round newRound() {
+            return new ExactRound();
+        }
+    },
+    /**
+     * Exact summation of integers with lock-free longs, nearly as fast as {@link #DOUBLE}. Any number that is not an
+     * integer or that does not fit in a long is rejected.
+     */
+    FIXED_POINT {
+        @Override
+        Round newRound() {
+            return new FixedPointRound();
+        }
+    };
+
+    /**
+     * @return a new round that sums up its numbers with this strategy.
+     */
+    abstract Round newRound();
+
+    /**
+     * Offset of the raw bits of the compensation of a cell.
+     */
+    private static final int COMPENSATION = Round.COUNT + 1;
+
+    /**
+     * Offset of the spin lock of a cell, which guards the cell parts that cannot be updated atomically.
+     */
+    private static final int LOCK = Round.COUNT + 2;
+
+    /**
+     * The rounding error of <tt>sum + number</tt>, see Neumaier's algorithm.
+     * @param sum    the sum before the addition.
+     * @param number the number added.
+     * @param next   the rounded result of the addition.
+     * @return the error to compensate.
+     */
+    private static double error(double sum, double number, double next) {
+        return Math.abs(sum) >= Math.abs(number) ? (sum - next) + number : (number - next) + sum;
+    }
+
+    /**
+     * Keeps a compensated sum per cell. A cell is locked while it is updated, the lock is contended only by the
+     * threads that are hashed to the same cell.
+     */
+    private static final class CompensatedRound extends Round {
+        @Override
+        void accumulate(int cell, int base, double number) {
+            lock(this, base);
+            try {
+                double sum = Double.longBitsToDouble(cells.getPlain(base + SUM));
+                double compensation = Double.longBitsToDouble(cells.getPlain(base + COMPENSATION));
+                double next = sum + number;
+                compensation += error(sum, number, next);
+                cells.setPlain(base + SUM, Double.doubleToRawLongBits(next));
+                cells.setPlain(base + COMPENSATION, Double.doubleToRawLongBits(compensation));
+            } finally {
+                unlock(this, base);
+            }
+        }
+
+        @Override
+        double total() {
+            double sum = 0;
+            double compensation = 0;
+            for (int i = 0; i < CELL_COUNT; i++) {
+                double number = Double.longBitsToDouble(cells.get(i * STRIDE + SUM));
+                double next = sum + number;
+                compensation += error(sum, number, next);
+                compensation += Double.longBitsToDouble(cells.get(i * STRIDE + COMPENSATION));
+                sum = next;
+            }
+            return sum + compensation;
+        }
+    }
+
+    /**
+     * Keeps an exact {@link BigDecimal} sum per cell. The infinities and NaN cannot be represented, they are summed up
+     * as doubles instead, so that they propagate to the result as with {@link #DOUBLE}.
+     */
+    private static final class ExactRound extends Round {
+        private final BigDecimal[] sums = new BigDecimal[CELL_COUNT];
+
+        @Override
+        void accumulate(int cell, int base, double number) {
+            lock(this, base);
+            try {
+                if (Double.isFinite(number)) {
+                    BigDecimal sum = sums[cell];
+                    sums[cell] = sum == null ? new BigDecimal(number) : sum.add(new BigDecimal(number));
+                } else {
+                    double special = Double.longBitsToDouble(cells.get(base + SUM));
+                    cells.setPlain(base + SUM, Double.doubleToRawLongBits(special + number));
+                }
+            } finally {
+                unlock(this, base);
+            }
+        }
+
+        @Override
+        double total() {
+            BigDecimal exact = BigDecimal.ZERO;
+            double special = 0;
+            for (int i = 0; i < CELL_COUNT; i++) {
+                if (sums[i] != null) {
+                    exact = exact.add(sums[i]);
+                }
+                special += Double.longBitsToDouble(cells.get(i * STRIDE + SUM));
+            }
+            return exact.doubleValue() + special;
+        }
+    }
+
+    /**
+     * Keeps a long sum per cell, which is updated without locking.
+     */
+    private static final class FixedPointRound extends Round {
+        private static void validate(double number) {
+            if (number != Math.rint(number) || Math.abs(number) >= 0x1p63) {
+                throw new IllegalArgumentException("fixed point summation accepts only integers, number=" + number);
+            }
+        }
+
+        @Override
+        void accumulate(int cell, int base, double number) {
+            validate(number);
+            long value = (long) number;
+            long prev;
+            long next;
+            do {
+                prev = cells.get(base + SUM);
+                try {
+                    next = Math.addExact(prev, value);
+                } catch (ArithmeticException e) {
+                    throw new IllegalArgumentException("fixed point sum out of range, number=" + number, e);
+                }
+            } while (!cells.weakCompareAndSetVolatile(base + SUM, prev, next));
+        }
+
+        @Override
+        double total() {
+            long sum = 0;
+            for (int i = 0; i < CELL_COUNT; i++) {
+                try {
+                    sum = Math.addExact(sum, cells.get(i * STRIDE + SUM));
+                } catch (ArithmeticException e) {
+                    return exactTotal();  // the cells are in range, but their sum is not.
+                }
+            }
+            return sum;
+        }
+
+        private double exactTotal() {
+            BigInteger sum = BigInteger.ZERO;
+            for (int i = 0; i < CELL_COUNT; i++) {
+                sum = sum.add(BigInteger.valueOf(cells.get(i * STRIDE + SUM)));
+            }
+            return sum.doubleValue();
+        }
+    }
+
+    private static void lock(Round round, int base) {
+        while (!round.cells.weakCompareAndSetAcquire(base + LOCK, 0, 1)) {
+            Thread.onSpinWait();
+        }
+    }
+
+    private static void unlock(Round round, int base) {
+        round.cells.setRelease(base + LOCK, 0);
+    }
+}
@@ -0,0 +1,140 @@
+package com.fortumo.ws;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.DoubleConsumer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class BatchTest {
+
+    /**
+     * Tests that the valid numbers of a text batch are kept in order, the blank lines are skipped and the invalid lines
+     * are reported with their line numbers.
+     */
+    @Test
+    void whenTextBatchThenValidNumbersKeptAndInvalidReported() throws IOException {
+        Batch batch = text("1\r\n2.5\n\nabc\r\nend\n-0.5\n");
+        assertEquals(3, batch.count());
+        assertEquals(List.of(1.0, 2.5, -0.5), numbers(batch));
+        assertEquals(2, batch.errorCount());
+        assertEquals(List.of("line 4: not a number", "line 5: 'end' is not allowed in a batch"), batch.errors());
+    }
+
+    /**
+     * Tests that an empty text batch has no numbers and no errors.
+     */
+    @Test
+    void whenEmptyTextBatchThenNothingRead() throws IOException {
+        Batch batch = text("");
+        assertEquals(0, batch.count());
+        assertEquals(0, batch.errorCount());
+    }
+
+    /**
+     * Tests that only the first {@link Batch#MAX_ERRORS} errors are kept, while all of them are counted.
+     */
+    @Test
+    void whenTooManyErrorsThenOnlyFirstKept() throws IOException {
+        Batch batch = text("x\n".repeat(Batch.MAX_ERRORS * 2) + "1");
+        assertEquals(List.of(1.0), numbers(batch));
+        assertEquals(Batch.MAX_ERRORS * 2, batch.errorCount());
+        assertEquals(Batch.MAX_ERRORS, batch.errors().size());
+    }
+
+    /**
+     * Tests that a batch of up to its maximum number of numbers is read, and a larger one is rejected, whether it is a
+     * text or a binary batch. The invalid values do not count towards the maximum.
+     */
+    @Test
+    void whenMoreThanMaxCountThenTooLarge() throws IOException {
+        assertEquals(3, Batch.readText(stream("1\nx\n2\n\n3"), 3).count());
+        assertThrows(Batch.TooLargeException.class, () -> Batch.readText(stream("1\n2\n3\n4"), 3));
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        for (int i = 0; i < 2_000; i++) {
+            out.writeDouble(i);
+        }
+        assertEquals(2_000, Batch.readBinary(new ByteArrayInputStream(bytes.toByteArray()), 2_000).count());
+        assertThrows(Batch.TooLargeException.class,
+                () -> Batch.readBinary(new ByteArrayInputStream(bytes.toByteArray()), 1_999));
+    }
+
+    /**
+     * Tests that all the values of a binary batch larger than the read buffer are read, and the trailing bytes that do
+     * not make a double are reported.
+     */
+    @Test
+    void whenBinaryBatchThenAllValuesReadAndTrailingBytesReported() throws IOException {
+        int count = 10_000;
+        Batch batch = binary(count, 3);
+        assertEquals(count, batch.count());
+        for (int i = 0; i < count; i++) {
+            assertEquals(i * 0.5, batch.number(i));
+        }
+        assertEquals(List.of("value 10001: trailing 3 bytes are not a double"), batch.errors());
+    }
+
+    /**
+     * Tests that the numbers an adder rejects are removed from the batch and reported after the parse errors, with
+     * their line numbers in a text batch and their positions in a binary batch.
+     */
+    @Test
+    void whenAdderRejectsThenNumbersRemovedAndReported() throws IOException {
+        List<Double> added = new ArrayList<>();
+        DoubleConsumer adder = number -> {
+            if (number != Math.rint(number)) {
+                throw new IllegalArgumentException("not an integer");
+            }
+            added.add(number);
+        };
+
+        Batch text = text("1\nx\n1.5\n\n2\n2.5\n");
+        assertEquals(2, text.addEach(adder));
+        assertEquals(List.of(1.0, 2.0), added);
+        assertEquals(List.of(1.0, 2.0), numbers(text));
+        assertEquals(List.of("line 2: not a number", "line 3: not an integer", "line 6: not an integer"),
+                text.errors());
+
+        added.clear();
+        Batch binary = binary(4, 0);
+        assertEquals(2, binary.addEach(adder));
+        assertEquals(List.of(0.0, 1.0), added);
+        assertEquals(List.of("value 2: not an integer", "value 4: not an integer"), binary.errors());
+    }
+
+    private Batch binary(int count, int trailingBytes) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        for (int i = 0; i < count; i++) {
+            out.writeDouble(i * 0.5);
+        }
+        out.write(new byte[trailingBytes]);
+        return Batch.readBinary(new ByteArrayInputStream(bytes.toByteArray()));
+    }
+
+    private List<Double> numbers(Batch batch) {
+        List<Double> numbers = new ArrayList<>();
+        for (int i = 0; i < batch.count(); i++) {
+            numbers.add(batch.number(i));
+        }
+        return numbers;
+    }
+
+    private Batch text(String body) throws IOException {
+        return Batch.readText(stream(body));
+    }
+
+    private static ByteArrayInputStream stream(String body) {
+        return new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8));
+    }
+}
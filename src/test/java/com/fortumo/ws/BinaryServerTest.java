@@ -0,0 +1,267 @@
+package com.fortumo.ws;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BinaryServerTest {
+
+    private static final byte[] SESSION = "s".getBytes(StandardCharsets.UTF_8);
+
+    private SumServiceRegistry sessions = new SumServiceRegistry(id -> new SumService(), 100, Long.MAX_VALUE);
+    private BinaryServer server;
+
+    @AfterEach
+    void closeServer() {
+        if (server != null) {
+            server.close();
+        }
+    }
+
+    /**
+     * Tests that the pipelined adds of a connection are answered with the sum of their round once it ends, each with
+     * the id of its request, and the sessions are the ones of the servlet.
+     */
+    @Test
+    void whenPipelinedAddsAndEndThenAllAnswered() throws Exception {
+        server = start(1);
+        CompletableFuture<Double> servletAdd = sessions.call("s", service -> service.add(1000));
+        try (SocketChannel channel = connect()) {
+            ByteBuffer out = ByteBuffer.allocate(64 * 1024);
+            for (int i = 1; i <= 100; i++) {
+                BinaryServer.writeAdd(out, i, SESSION, i);
+            }
+            BinaryServer.writeAdd(out, 101, "other".getBytes(StandardCharsets.UTF_8), 7);
+            BinaryServer.writeEnd(out, 0, SESSION);
+            write(channel, out);
+
+            Map<Integer, Double> results = read(channel, 101);
+            for (int i = 0; i <= 100; i++) {
+                assertEquals(6050, results.get(i), "id=" + i);
+            }
+            assertEquals(6050, servletAdd.join());
+
+            out.clear();
+            BinaryServer.writeEnd(out, 102, "other".getBytes(StandardCharsets.UTF_8));
+            write(channel, out);
+            assertEquals(Map.of(101, 7.0, 102, 7.0), read(channel, 2));
+        }
+    }
+
+    /**
+     * Tests that the requests split over many writes are reassembled.
+     */
+    @Test
+    void whenRequestsFragmentedThenReassembled() throws Exception {
+        server = start(1);
+        try (SocketChannel channel = connect()) {
+            ByteBuffer out = ByteBuffer.allocate(256);
+            BinaryServer.writeAdd(out, 1, SESSION, 2.5);
+            BinaryServer.writeEnd(out, 2, SESSION);
+            out.flip();
+            while (out.hasRemaining()) {
+                channel.write(ByteBuffer.wrap(new byte[]{out.get()}));
+                Thread.sleep(1);
+            }
+            assertEquals(Map.of(1, 2.5, 2, 2.5), read(channel, 2));
+        }
+    }
+
+    /**
+     * Tests that a number that is not accepted is answered with <tt>400</tt> and the connection is still usable,
+     * while a malformed request is answered with <tt>400</tt> and closes the connection.
+     */
+    @Test
+    void whenInvalidRequestsThenErrors() throws Exception {
+        sessions = new SumServiceRegistry(id -> new SumService(Summation.FIXED_POINT), 100, Long.MAX_VALUE);
+        server = start(1);
+        try (SocketChannel channel = connect()) {
+            ByteBuffer out = ByteBuffer.allocate(256);
+            BinaryServer.writeAdd(out, 1, SESSION, 0.5);
+            BinaryServer.writeEnd(out, 2, SESSION);
+            write(channel, out);
+            assertEquals(Map.of(1, -400.0, 2, 0.0), read(channel, 2));
+
+            out.clear();
+            out.put((byte) 9).putInt(3).put((byte) 0);
+            write(channel, out);
+            assertEquals(Map.of(3, -400.0), read(channel, 1));
+            assertEquals(-1, channel.read(ByteBuffer.allocate(1)));
+        }
+    }
+
+    /**
+     * Tests that an add that fails since its journal cannot be written is answered with <tt>500</tt> and closes its
+     * connection only, the loop (which is also the acceptor) keeps serving the other connections and the number is
+     * not counted.
+     */
+    @Test
+    void whenJournalFailsThenConnectionClosedAndLoopAlive(@TempDir Path dir) throws Exception {
+        Path journalDir = dir.resolve("journal");
+        sessions = new SumServiceRegistry(id -> new SumService(Summation.DOUBLE, Metrics.disabled(),
+                new Journal(journalDir, id, Journal.Durability.ASYNC)), 100, Long.MAX_VALUE);
+        server = start(1);
+        try (SocketChannel channel = connect()) {
+            ByteBuffer out = ByteBuffer.allocate(256);
+            BinaryServer.writeEnd(out, 1, SESSION);  // creates the session and its journal directory.
+            write(channel, out);
+            assertEquals(Map.of(1, 0.0), read(channel, 1));
+            Files.delete(journalDir);
+
+            out.clear();
+            BinaryServer.writeAdd(out, 2, SESSION, 5);
+            write(channel, out);
+            assertEquals(Map.of(2, -500.0), read(channel, 1));
+            assertEquals(-1, channel.read(ByteBuffer.allocate(1)));
+        }
+        try (SocketChannel channel = connect()) {
+            ByteBuffer out = ByteBuffer.allocate(256);
+            BinaryServer.writeEnd(out, 3, SESSION);
+            write(channel, out);
+            assertEquals(Map.of(3, 0.0), read(channel, 1));
+        }
+    }
+
+    /**
+     * Tests that an add to a full round is answered with <tt>429</tt> and an add that is not ended in time with
+     * <tt>503</tt>, neither counted in the sum.
+     */
+    @Test
+    void whenLimitsExceededThenErrors() throws Exception {
+        sessions = new SumServiceRegistry(id -> new SumService(Summation.DOUBLE, Metrics.disabled(), null,
+                new SumService.Limits(1, 50, 0, 0)), 100, Long.MAX_VALUE);
+        server = start(1);
+        try (SocketChannel channel = connect()) {
+            ByteBuffer out = ByteBuffer.allocate(256);
+            BinaryServer.writeAdd(out, 1, SESSION, 5);
+            BinaryServer.writeAdd(out, 2, SESSION, 7);
+            write(channel, out);
+            assertEquals(Map.of(1, -503.0, 2, -429.0), read(channel, 2));
+
+            out.clear();
+            BinaryServer.writeEnd(out, 3, SESSION);
+            write(channel, out);
+            assertEquals(Map.of(3, 0.0), read(channel, 1));
+        }
+    }
+
+    /**
+     * Stress tests many connections spread over several loops, adding concurrently with the 'end' signals. Every
+     * number must be counted in exactly one round, and each add must be answered with the sum of its round.
+     */
+    @Test
+    void whenManyConnectionsThenEachAddCountedOnce() throws Exception {
+        server = start(3);
+        int connections = 8;
+        int adds = 2_000;
+        ExecutorService executor = Executors.newFixedThreadPool(connections + 1);
+        List<Future<Map<Integer, Double>>> adders = new ArrayList<>();
+        for (int c = 0; c < connections; c++) {
+            adders.add(executor.submit(() -> {
+                try (SocketChannel channel = connect()) {
+                    ByteBuffer out = ByteBuffer.allocate(adds * BinaryServer.MAX_REQUEST_SIZE);
+                    for (int i = 0; i < adds; i++) {
+                        BinaryServer.writeAdd(out, i, SESSION, 1);
+                    }
+                    write(channel, out);
+                    return read(channel, adds);
+                }
+            }));
+        }
+        List<Double> ends = new ArrayList<>();
+        try (SocketChannel channel = connect()) {
+            ByteBuffer out = ByteBuffer.allocate(64);
+            int id = 0;
+            while (!adders.stream().allMatch(Future::isDone)) {
+                out.clear();
+                BinaryServer.writeEnd(out, id, SESSION);
+                write(channel, out);
+                ends.add(read(channel, 1).get(id++));
+            }
+        }
+        executor.shutdown();
+        double total = 0;
+        for (double sum : ends) {
+            total += sum;
+        }
+        assertEquals(connections * adds, total);
+        for (Future<Map<Integer, Double>> adder : adders) {
+            for (double sum : adder.get().values()) {
+                assertTrue(ends.contains(sum), "sum=" + sum);
+            }
+        }
+    }
+
+    /**
+     * Tests that the server refuses an invalid number of loops.
+     */
+    @Test
+    void whenNoLoopsThenRejected() {
+        assertThrows(IllegalArgumentException.class, () -> start(0));
+    }
+
+    private BinaryServer start(int loops) throws IOException {
+        return new BinaryServer(sessions, null, Metrics.disabled(),
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), loops);
+    }
+
+    private SocketChannel connect() throws IOException {
+        return SocketChannel.open(new InetSocketAddress(InetAddress.getLoopbackAddress(), server.port()));
+    }
+
+    private static void write(SocketChannel channel, ByteBuffer out) throws IOException {
+        out.flip();
+        while (out.hasRemaining()) {
+            channel.write(out);
+        }
+    }
+
+    /**
+     * Reads the responses.
+     * @param channel the connection.
+     * @param count   the number of the responses to read.
+     * @return the sums by the request ids, or the negated status of an error.
+     */
+    private static Map<Integer, Double> read(SocketChannel channel, int count) throws IOException {
+        Map<Integer, Double> responses = new HashMap<>();
+        ByteBuffer in = ByteBuffer.allocate(64 * 1024);
+        while (responses.size() < count) {
+            if (channel.read(in) < 0) {
+                throw new IOException("closed after " + responses.size() + " responses");
+            }
+            in.flip();
+            while (in.remaining() >= BinaryServer.ERROR_SIZE) {
+                byte type = in.get(in.position());
+                if (type == BinaryServer.RESULT && in.remaining() < BinaryServer.RESULT_SIZE) {
+                    break;
+                }
+                in.get();
+                int id = in.getInt();
+                responses.put(id, type == BinaryServer.RESULT ? in.getDouble() : -in.getShort());
+            }
+            in.compact();
+        }
+        return responses;
+    }
+}
@@ -0,0 +1,67 @@
+package com.fortumo.ws;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+class DoubleFormatTest {
+
+    private static final DecimalFormat REFERENCE =
+            new DecimalFormat("0.###", DecimalFormatSymbols.getInstance(Locale.ROOT));
+
+    /**
+     * Tests the values whose formatting is not obvious, i.e. signed zeros, rounding ties and non-finite values.
+     */
+    @Test
+    void whenEdgeCasesThenSameAsDecimalFormat() {
+        double[] values = {
+                0, -0.0, 1, -1, 10, 0.1, 0.5, 1.5, -1.5, 1234.5678, 0.0001, -0.0001, 0.0004, 0.0005, 0.0015,
+                0.0025, 1.0005, 2.0005, 999.9995, 999.9994, 0.9999, 1e-10, 1e12, 4.398046511104E12,
+                4.398046511104E12 + 0.5, 1e15, 1e23, 123456789012345.671875, Long.MAX_VALUE, Double.MAX_VALUE,
+                Double.MIN_VALUE, Double.NaN, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY
+        };
+        for (double value : values) {
+            assertEquals(REFERENCE.format(value), DoubleFormat.format(value), "value=" + value);
+        }
+    }
+
+    /**
+     * Tests random values of various magnitudes and the values with a few decimal places, which are the most common.
+     */
+    @Test
+    void whenRandomValuesThenSameAsDecimalFormat() {
+        Random random = new Random(42);
+        for (int i = 0; i < 200_000; i++) {
+            double value = random.nextDouble() * Math.pow(10, random.nextInt(30) - 10);
+            value = random.nextBoolean() ? value : -value;
+            assertEquals(REFERENCE.format(value), DoubleFormat.format(value), "value=" + value);
+
+            double decimal = (random.nextInt(2_000_000) - 1_000_000) / Math.pow(10, random.nextInt(6));
+            assertEquals(REFERENCE.format(decimal), DoubleFormat.format(decimal), "value=" + decimal);
+        }
+    }
+
+    /**
+     * Tests that the line of a value is followed by <tt>CRLF</tt> and shared by the calls with the same value, while
+     * the values that evict each other from the cache are still formatted correctly.
+     */
+    @Test
+    void whenLineThenFormattedOnceAndShared() {
+        byte[] line = DoubleFormat.line(1234.5678);
+        assertEquals("1234.568\r\n", new String(line, StandardCharsets.UTF_8));
+        assertSame(line, DoubleFormat.line(1234.5678));
+        assertEquals("-0\r\n", new String(DoubleFormat.line(-0.0), StandardCharsets.UTF_8));
+        assertEquals("0\r\n", new String(DoubleFormat.line(0.0), StandardCharsets.UTF_8));
+        for (int i = 0; i < 10_000; i++) {
+            assertEquals(REFERENCE.format(i / 8.0) + "\r\n",
+                    new String(DoubleFormat.line(i / 8.0), StandardCharsets.UTF_8), "value=" + i / 8.0);
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package com.fortumo.ws;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Runs several nodes of a {@link SumCluster} in the same JVM, each behind an HTTP server on the loopback interface,
+ * and connects them with the {@link HttpClusterTransport}.
+ */
+class HttpClusterTransportTest {
+
+    /**
+     * The shared secret of the nodes.
+     */
+    private static final String SECRET = "s3cret";
+
+    private final List<HttpServer> servers = new ArrayList<>();
+
+    @AfterEach
+    void stopServers() {
+        for (HttpServer server : servers) {
+            server.stop(0);
+        }
+    }
+
+    /**
+     * Tests that an 'end' signal on one node releases the clients of all the nodes over HTTP, including the sessions
+     * whose ids need to be encoded in the URL.
+     */
+    @Test
+    void whenEndOverLoopbackThenAllClientsReleasedWithTotal() throws Exception {
+        int nodeCount = 3;
+        List<String> nodes = new ArrayList<>();
+        for (int i = 0; i < nodeCount; i++) {
+            HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+            server.setExecutor(Executors.newCachedThreadPool());
+            servers.add(server);
+            nodes.add("http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort() + "/sum");
+        }
+        HttpClusterTransport transport = new HttpClusterTransport(Duration.ofSeconds(5), SECRET);
+        List<SumServiceRegistry> sessions = new ArrayList<>();
+        List<SumCluster> clusters = new ArrayList<>();
+        for (int i = 0; i < nodeCount; i++) {
+            SumServiceRegistry registry = new SumServiceRegistry(id -> new SumService(), 100, Long.MAX_VALUE);
+            SumCluster cluster = new SumCluster(nodes.get(i), nodes, transport, registry, 60_000);
+            sessions.add(registry);
+            clusters.add(cluster);
+            servers.get(i).createContext("/sum", exchange -> serve(cluster, exchange));
+            servers.get(i).start();
+        }
+
+        for (String sessionId : new String[]{"s", "a b+c", ""}) {
+            List<CompletableFuture<Double>> pending = new ArrayList<>();
+            for (int i = 0; i < nodeCount; i++) {
+                int number = i + 1;
+                pending.add(sessions.get(i).call(sessionId, service -> service.add(number)));
+            }
+            assertEquals(6, clusters.get(1).end(sessionId).join(), sessionId);
+            for (CompletableFuture<Double> future : pending) {
+                assertEquals(6, future.join());
+            }
+        }
+    }
+
+    /**
+     * Tests that a transport without a secret cannot be created, and a secret is authenticated only if it is the same.
+     */
+    @Test
+    void whenSecretThenAuthenticatedOnlyIfSame() {
+        assertThrows(IllegalArgumentException.class, () -> new HttpClusterTransport(Duration.ofSeconds(5), null));
+        assertThrows(IllegalArgumentException.class, () -> new HttpClusterTransport(Duration.ofSeconds(5), " "));
+        assertTrue(HttpClusterTransport.authenticates(SECRET, "s3cret"));
+        assertFalse(HttpClusterTransport.authenticates(SECRET, "s3cre"));
+        assertFalse(HttpClusterTransport.authenticates(SECRET, null));
+    }
+
+    /**
+     * Tests that a node that answers with an error fails the cut.
+     */
+    @Test
+    void whenNodeAnswersErrorThenCutFails() throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        servers.add(server);
+        server.createContext("/", exchange -> {
+            exchange.sendResponseHeaders(503, -1);
+            exchange.close();
+        });
+        server.start();
+        String node = "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort();
+        HttpClusterTransport transport = new HttpClusterTransport(Duration.ofSeconds(5), SECRET);
+        CompletionException e = assertThrows(CompletionException.class, () -> transport.cut(node, "s").join());
+        assertTrue(e.getCause() instanceof IOException);
+    }
+
+    /**
+     * Serves the cluster calls that carry the secret the same way {@link SumServlet} does.
+     */
+    private static void serve(SumCluster cluster, HttpExchange exchange) throws IOException {
+        String path = exchange.getRequestURI().getRawPath();
+        String sessionId = URLDecoder.decode(path.substring(path.lastIndexOf('/') + 1), StandardCharsets.UTF_8);
+        String body = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+        if (!HttpClusterTransport.authenticates(SECRET,
+                exchange.getRequestHeaders().getFirst(HttpClusterTransport.SECRET_HEADER))) {
+            exchange.sendResponseHeaders(403, -1);
+            exchange.close();
+            return;
+        }
+        int status = 200;
+        byte[] response;
+        try {
+            response = cluster.handle(sessionId, exchange.getRequestURI().getRawQuery(), body)
+                    .getBytes(StandardCharsets.UTF_8);
+        } catch (Exception e) {
+            status = 500;
+            response = new byte[0];
+        }
+        exchange.sendResponseHeaders(status, response.length == 0 ? -1 : response.length);
+        exchange.getResponseBody().write(response);
+        exchange.close();
+    }
+}
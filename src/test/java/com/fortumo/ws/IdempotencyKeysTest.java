@@ -0,0 +1,116 @@
+package com.fortumo.ws;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class IdempotencyKeysTest {
+
+    /**
+     * Tests that the keys behave like a map under a random mix of puts and removes of both small and random keys, while
+     * the tables grow and the removed keys shift the keys probed past them back.
+     */
+    @Test
+    void whenPutAndRemoveThenSameAsMap() {
+        Random random = new Random(42);
+        IdempotencyKeys<Long> keys = new IdempotencyKeys<>();
+        Map<Long, Long> expected = new HashMap<>();
+        for (int i = 0; i < 200_000; i++) {
+            long key = random.nextBoolean() ? 1 + random.nextInt(5_000) : random.nextLong() | 1;
+            if (random.nextInt(3) == 0) {
+                assertEquals(expected.remove(key) != null, keys.remove(key), "key=" + key);
+            } else {
+                Long value = (long) i;
+                assertEquals(expected.putIfAbsent(key, value), keys.putIfAbsent(key, value), "key=" + key);
+            }
+        }
+        assertEquals(expected.size(), keys.size());
+        for (int key = 1; key <= 5_000; key++) {
+            assertEquals(expected.get((long) key), keys.get(key), "key=" + key);
+        }
+        expected.forEach((key, value) -> assertEquals(value, keys.get(key), "key=" + key));
+    }
+
+    /**
+     * Tests that a key is claimed by exactly one of the threads that put it concurrently, and all of them see the value
+     * of that thread.
+     */
+    @Test
+    void whenConcurrentPutsThenEachKeyClaimedOnce() throws Exception {
+        int threadCount = 8;
+        int keyCount = 20_000;
+        IdempotencyKeys<Integer> keys = new IdempotencyKeys<>();
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+        CountDownLatch start = new CountDownLatch(1);
+        AtomicInteger claimed = new AtomicInteger();
+        List<Future<int[]>> futures = new ArrayList<>();
+        for (int t = 0; t < threadCount; t++) {
+            int thread = t;
+            futures.add(executor.submit(() -> {
+                start.await();
+                int[] winners = new int[keyCount];
+                for (int key = 1; key <= keyCount; key++) {
+                    Integer earlier = keys.putIfAbsent(key, thread);
+                    if (earlier == null) {
+                        claimed.incrementAndGet();
+                    }
+                    winners[key - 1] = earlier == null ? thread : earlier;
+                }
+                return winners;
+            }));
+        }
+        start.countDown();
+        List<int[]> winners = new ArrayList<>();
+        for (Future<int[]> future : futures) {
+            winners.add(future.get());
+        }
+        executor.shutdown();
+
+        assertEquals(keyCount, claimed.get());
+        assertEquals(keyCount, keys.size());
+        for (int key = 1; key <= keyCount; key++) {
+            int winner = keys.get(key);
+            for (int[] seen : winners) {
+                assertEquals(winner, seen[key - 1], "key=" + key);
+            }
+        }
+    }
+
+    /**
+     * Tests that the keys received from the clients hash to different keys, never to {@link IdempotencyKeys#NONE},
+     * and the same key always to the same one.
+     */
+    @Test
+    void whenHashThenStableAndSpread() {
+        Set<Long> hashes = new HashSet<>();
+        for (int i = 0; i < 100_000; i++) {
+            String key = i % 2 == 0 ? UUID.randomUUID().toString() : "request-" + i;
+            long hash = IdempotencyKeys.hash(key);
+            assertNotEquals(IdempotencyKeys.NONE, hash);
+            assertTrue(hashes.add(hash), "key=" + key);
+            assertEquals(hash, IdempotencyKeys.hash(new StringBuilder(key)));
+        }
+        assertNotEquals(IdempotencyKeys.hash("ab"), IdempotencyKeys.hash("ba"));
+        assertNotEquals(IdempotencyKeys.NONE, IdempotencyKeys.hash(""));
+        assertNull(new IdempotencyKeys<String>().get(IdempotencyKeys.hash("a")));
+        assertFalse(new IdempotencyKeys<String>().remove(IdempotencyKeys.hash("a")));
+    }
+}
@@ -0,0 +1,200 @@
+package com.fortumo.ws;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static java.nio.file.StandardOpenOption.WRITE;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class JournalTest {
+
+    /**
+     * Tests that the appended numbers are replayed in order, across the chunks of a segment, and the zero-filled slots
+     * after them are ignored.
+     */
+    @Test
+    void whenAppendedThenReplayed(@TempDir Path dir) {
+        Journal.Segment segment = new Journal(dir, "a", Journal.Durability.SYNC).newSegment();
+        int count = Journal.CHUNK_SIZE / Journal.RECORD_SIZE + 10;
+        for (int i = 0; i < count; i++) {
+            segment.append(i);
+        }
+        segment.awaitDurable();
+
+        List<Double> numbers = new ArrayList<>();
+        Journal.replay(segment.path(), numbers::add);
+        assertEquals(count, numbers.size());
+        for (int i = 0; i < count; i++) {
+            assertEquals(i, numbers.get(i));
+        }
+    }
+
+    /**
+     * Tests that a torn record, i.e. a number written without its marker, is not replayed.
+     */
+    @Test
+    void whenRecordTornThenSkipped(@TempDir Path dir) throws IOException {
+        Journal.Segment segment = new Journal(dir, "a", Journal.Durability.ASYNC).newSegment();
+        segment.append(1);
+        segment.append(2);
+        try (FileChannel channel = FileChannel.open(segment.path(), WRITE)) {
+            channel.write(ByteBuffer.allocate(Long.BYTES), Journal.RECORD_SIZE);  // clears the marker of 2.
+            channel.write(ByteBuffer.allocate(Long.BYTES).putDouble(0, 3), 2L * Journal.RECORD_SIZE + Long.BYTES);
+        }
+
+        List<Double> numbers = new ArrayList<>();
+        Journal.replay(segment.path(), numbers::add);
+        assertEquals(List.of(1.0), numbers);
+    }
+
+    /**
+     * Tests that the numbers of the current round are recovered by a new service after a crash, the ended rounds are
+     * not, and the journal is deleted once the recovered round is ended.
+     */
+    @Test
+    void whenRecoveredThenCurrentRoundRebuilt(@TempDir Path dir) throws IOException {
+        SumService crashed = service(dir, "a");
+        crashed.add(1);
+        crashed.doEnd();
+        crashed.add(2);
+        crashed.add(3);
+        service(dir, "b").add(100);  // another session.
+
+        SumService service = service(dir, "a");
+        service.add(4);
+        assertEquals(9, service.doEnd());
+        assertEquals(Set.of("b"), Journal.sessionIds(dir));
+        try (var files = Files.list(dir)) {
+            assertEquals(1, files.count());
+        }
+    }
+
+    /**
+     * Tests that a crash during the recovery, i.e. before the recovered round is ended, does not count the numbers
+     * twice.
+     */
+    @Test
+    void whenCrashedWhileRecoveringThenNotCountedTwice(@TempDir Path dir) {
+        service(dir, "a").add(1);
+        service(dir, "a").add(2);
+        service(dir, "a").add(3);
+        assertEquals(6, service(dir, "a").doEnd());
+        assertEquals(0, service(dir, "a").doEnd());
+    }
+
+    /**
+     * Tests that the numbers that are not accepted by the summation strategy are not journaled, whether they are
+     * invalid on their own or they overflow the cell they are added to.
+     */
+    @Test
+    void whenNumberRejectedThenNotJournaled(@TempDir Path dir) {
+        Journal journal = new Journal(dir, "a", Journal.Durability.SYNC);
+        SumService crashed = new SumService(Summation.FIXED_POINT, Metrics.disabled(), journal);
+        crashed.add(1);
+        assertThrows(IllegalArgumentException.class, () -> crashed.add(1.5));
+        crashed.add(0x1p62);
+        assertThrows(IllegalArgumentException.class, () -> crashed.add(0x1p62));  // the same cell, out of range.
+        List<Double> journaled = new ArrayList<>();
+        for (Path segment : journal.segments()) {
+            Journal.replay(segment, journaled::add);
+        }
+        assertEquals(List.of(1.0, 0x1p62), journaled);
+        SumService service = new SumService(Summation.FIXED_POINT, Metrics.disabled(),
+                new Journal(dir, "a", Journal.Durability.SYNC));
+        assertEquals(1 + 0x1p62, service.doEnd());
+    }
+
+    /**
+     * Tests that every number added by the concurrent adders is durable once its add returns, as the forces are
+     * shared by the adders.
+     */
+    @Test
+    void whenConcurrentSyncAddsThenAllRecovered(@TempDir Path dir) throws Exception {
+        int threadCount = 8;
+        int addsPerThread = 1_000;
+        SumService crashed = service(dir, "a");
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < threadCount; i++) {
+            futures.add(executor.submit(() -> {
+                start.await();
+                for (int j = 1; j <= addsPerThread; j++) {
+                    crashed.add(j);
+                }
+                return null;
+            }));
+        }
+        start.countDown();
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+
+        assertEquals(threadCount * (addsPerThread * (addsPerThread + 1.0) / 2), service(dir, "a").doEnd());
+    }
+
+    /**
+     * Tests that the ids of the sessions are decoded from the names of their segment files.
+     */
+    @Test
+    void whenSessionIdsThenDecodedFromFileNames(@TempDir Path dir) {
+        for (String id : new String[]{"", "a-1", "ü/?*"}) {
+            service(dir, id).add(1);
+        }
+        assertEquals(Set.of("", "a-1", "ü/?*"), Journal.sessionIds(dir));
+        assertTrue(Journal.sessionIds(dir.resolve("missing")).isEmpty());
+    }
+
+    /**
+     * Tests that the numbers of a batch added before the add of the batch fails midway are removed from the round, and
+     * negated in the journal, so that the failed batch is counted neither in the round nor by a recovery.
+     */
+    @Test
+    void whenBatchFailsMidwayThenAddedNumbersUndone(@TempDir Path dir) throws IOException {
+        Round round = new Round() {
+            private int accumulated;
+
+            @Override
+            void accumulate(int cell, int base, double number) {
+                if (++accumulated == 3) {
+                    throw new IllegalStateException("failed");
+                }
+                super.accumulate(cell, base, number);
+            }
+        };
+        Journal.Segment segment = new Journal(dir, "a", Journal.Durability.SYNC).newSegment();
+        round.attach(segment);
+        round.collectStats(RoundStats.Level.MOMENTS);
+        Batch batch = Batch.readText(new ByteArrayInputStream("1\n2\n4\n8\n".getBytes(StandardCharsets.UTF_8)));
+        assertThrows(IllegalStateException.class, () -> round.tryAdd(batch));
+        assertEquals(0, round.seal());
+        assertEquals(0, round.count());
+        assertEquals(0, round.stats().count());
+        List<Double> journaled = new ArrayList<>();
+        Journal.replay(segment.path(), journaled::add);
+        assertEquals(List.of(1.0, 2.0, -1.0, -2.0), journaled);
+    }
+
+    private static SumService service(Path dir, String sessionId) {
+        return new SumService(Summation.DOUBLE, Metrics.disabled(),
+                new Journal(dir, sessionId, Journal.Durability.SYNC));
+    }
+}
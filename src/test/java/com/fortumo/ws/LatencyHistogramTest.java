@@ -0,0 +1,54 @@
+package com.fortumo.ws;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LatencyHistogramTest {
+
+    /**
+     * Tests that every value is counted in the bucket whose bounds contain it, and the bucket is at most 25% wider
+     * than the value.
+     */
+    @Test
+    void whenBucketIndexThenValueWithinBounds() {
+        Random random = new Random(42);
+        for (int i = 0; i < 100_000; i++) {
+            long value = random.nextLong(LatencyHistogram.MAX_NANOS * 2);
+            int index = LatencyHistogram.bucketIndex(value);
+            assertTrue(value < LatencyHistogram.upperBound(index), "value=" + value);
+            if (index > 0) {
+                long lower = LatencyHistogram.upperBound(index - 1);
+                assertTrue(value >= lower, "value=" + value);
+                if (value < LatencyHistogram.MAX_NANOS) {
+                    assertTrue(LatencyHistogram.upperBound(index) - lower <= lower / 4, "value=" + value);
+                }
+            }
+        }
+        assertEquals(0, LatencyHistogram.bucketIndex(-1));
+        assertEquals(1, LatencyHistogram.bucketIndex(LatencyHistogram.MIN_NANOS));
+    }
+
+    /**
+     * Tests the Prometheus text format: the buckets are cumulative and end with the total count.
+     */
+    @Test
+    void whenWritePrometheusThenCumulativeBuckets() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(500);
+        histogram.record(1_500_000);
+        histogram.record(Long.MAX_VALUE);
+        assertEquals(3, histogram.count());
+
+        StringBuilder out = new StringBuilder();
+        histogram.writePrometheus(out, "latency_seconds", "type=\"add\"");
+        String text = out.toString();
+        assertTrue(text.startsWith("latency_seconds_bucket{type=\"add\",le=\"1.024E-6\"} 1\n"), text);
+        assertTrue(text.contains("latency_seconds_bucket{type=\"add\",le=\"0.001572864\"} 2\n"), text);
+        assertTrue(text.contains("latency_seconds_bucket{type=\"add\",le=\"+Inf\"} 3\n"), text);
+        assertTrue(text.endsWith("latency_seconds_count{type=\"add\"} 3\n"), text);
+    }
+}
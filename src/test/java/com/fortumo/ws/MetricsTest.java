@@ -0,0 +1,112 @@
+package com.fortumo.ws;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MetricsTest {
+
+    /**
+     * Tests that the pending adders, the blocked threads and the rounds are tracked by a service.
+     */
+    @Test
+    void whenAddAndEndThenCountersTracked() throws Exception {
+        Metrics metrics = new Metrics();
+        CountDownLatch waiting = new CountDownLatch(1);
+        SumService service = new SumService(Summation.DOUBLE, metrics) {
+            @Override
+            double await(CompletableFuture<Double> result) throws InterruptedException {
+                waiting.countDown();
+                return super.await(result);
+            }
+        };
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        service.add(1);
+        service.add(2);
+        Future<Double> blocked = executor.submit(() -> service.doAdd(3));
+        waiting.await();
+
+        String text = text(metrics);
+        assertTrue(text.contains("\nsum_adds_total 3\n"), text);
+        assertTrue(text.contains("\nsum_pending_adders 3\n"), text);
+        assertTrue(text.contains("\nsum_blocked_threads 1\n"), text);
+        assertTrue(text.contains("\nsum_rounds_total 0\n"), text);
+
+        assertEquals(6, service.doEnd());
+        assertEquals(6, blocked.get());
+        text = text(metrics);
+        assertTrue(text.contains("\nsum_pending_adders 0\n"), text);
+        assertTrue(text.contains("\nsum_blocked_threads 0\n"), text);
+        assertTrue(text.contains("\nsum_rounds_total 1\n"), text);
+        assertTrue(text.contains("\nsum_round_duration_seconds_count 1\n"), text);
+        assertTrue(text.contains("\nsum_round_seal_seconds_count 1\n"), text);
+        executor.shutdown();
+    }
+
+    /**
+     * Tests that the request latencies and the errors are tracked per type.
+     */
+    @Test
+    void whenRequestsThenLatenciesAndErrorsTracked() {
+        Metrics metrics = new Metrics();
+        metrics.onRequest(Metrics.RequestType.ADD, System.nanoTime());
+        metrics.onRequest(Metrics.RequestType.ADD, System.nanoTime());
+        metrics.onRequest(Metrics.RequestType.END, System.nanoTime());
+        metrics.onError();
+
+        String text = text(metrics);
+        assertTrue(text.startsWith("# HELP sum_sessions The number of sessions.\n# TYPE sum_sessions gauge\n"), text);
+        assertTrue(text.contains("\nsum_request_duration_seconds_count{type=\"add\"} 2\n"), text);
+        assertTrue(text.contains("\nsum_request_duration_seconds_count{type=\"end\"} 1\n"), text);
+        assertTrue(text.contains("\nsum_request_duration_seconds_count{type=\"batch\"} 0\n"), text);
+        assertTrue(text.contains("\nsum_request_errors_total 1\n"), text);
+    }
+
+    /**
+     * Tests that the rejected adds are tracked per reason, and a withdrawn adder is not pending anymore.
+     */
+    @Test
+    void whenAddsRejectedThenTrackedPerReason() {
+        Metrics metrics = new Metrics();
+        SumService service = new SumService(Summation.DOUBLE, metrics, null, new SumService.Limits(1, 10, 0, 0));
+        CompletableFuture<Double> timedOut = service.add(1);
+        assertThrows(SumService.OverloadedException.class, () -> service.add(2));
+        assertThrows(CompletionException.class, timedOut::join);
+
+        String text = text(metrics);
+        assertTrue(text.contains("\nsum_adds_total 1\n"), text);
+        assertTrue(text.contains("\nsum_pending_adders 0\n"), text);
+        assertTrue(text.contains("\nsum_rejected_adds_total{reason=\"overloaded\"} 1\n"), text);
+        assertTrue(text.contains("\nsum_rejected_adds_total{reason=\"timed_out\"} 1\n"), text);
+    }
+
+    /**
+     * Tests that the disabled metrics record nothing.
+     */
+    @Test
+    void whenDisabledThenNothingRecorded() {
+        Metrics metrics = Metrics.disabled();
+        metrics.onAdd();
+        metrics.onEnd(1, 1, 1);
+        metrics.onError();
+        String text = text(metrics);
+        assertTrue(text.contains("\nsum_adds_total 0\n"), text);
+        assertTrue(text.contains("\nsum_rounds_total 0\n"), text);
+        assertTrue(text.contains("\nsum_request_errors_total 0\n"), text);
+    }
+
+    private String text(Metrics metrics) {
+        StringBuilder out = new StringBuilder();
+        metrics.writePrometheus(out, 1);
+        return out.toString();
+    }
+}
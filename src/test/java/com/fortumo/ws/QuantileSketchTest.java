@@ -0,0 +1,87 @@
+package com.fortumo.ws;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class QuantileSketchTest {
+
+    private static final double RELATIVE_ERROR = Math.scalb(1.0, -(QuantileSketch.PRECISION_BITS + 1));
+
+    /**
+     * Tests that every value is within the relative error of the midpoint of its bucket, and the keys are ordered like
+     * the values, including the negative values and the infinities. The subnormal values share the first bucket.
+     */
+    @Test
+    void whenKeyThenValueWithinRelativeError() {
+        Random random = new Random(42);
+        for (int i = 0; i < 100_000; i++) {
+            double value = (random.nextDouble() - 0.5) * Math.pow(10, random.nextInt(600) - 300);
+            double midpoint = QuantileSketch.value(QuantileSketch.key(value));
+            assertEquals(value, midpoint, Math.abs(value) * RELATIVE_ERROR, "value=" + value);
+        }
+        double[] ordered = {Double.NEGATIVE_INFINITY, -1e300, -2, -1, -0.0, 0, Double.MIN_NORMAL, 1, 1.1, 1e300,
+                Double.POSITIVE_INFINITY};
+        for (int i = 1; i < ordered.length; i++) {
+            assertTrue(QuantileSketch.key(ordered[i - 1]) < QuantileSketch.key(ordered[i]), "value=" + ordered[i]);
+        }
+        assertEquals(QuantileSketch.key(0), QuantileSketch.key(Double.MIN_VALUE));
+        assertEquals(Double.POSITIVE_INFINITY, QuantileSketch.value(QuantileSketch.key(Double.POSITIVE_INFINITY)));
+        assertEquals(Double.NEGATIVE_INFINITY, QuantileSketch.value(QuantileSketch.key(Double.NEGATIVE_INFINITY)));
+    }
+
+    /**
+     * Tests that the quantiles of a sketch are within the relative error of the exact ones, and that merging the
+     * sketches of the parts of the values gives the same quantiles as a single sketch of all of them.
+     */
+    @Test
+    void whenQuantilesThenWithinRelativeErrorAndMergeable() {
+        Random random = new Random(42);
+        double[] values = new double[100_000];
+        QuantileSketch whole = new QuantileSketch();
+        QuantileSketch[] parts = {new QuantileSketch(), new QuantileSketch(), new QuantileSketch()};
+        for (int i = 0; i < values.length; i++) {
+            values[i] = Math.exp(random.nextGaussian() * 3) * (random.nextInt(10) == 0 ? -1 : 1);
+            whole.add(values[i]);
+            parts[i % parts.length].add(values[i]);
+        }
+        QuantileSketch merged = new QuantileSketch();
+        for (QuantileSketch part : parts) {
+            merged.merge(part);
+        }
+        double[] quantiles = {0, 0.01, 0.1, 0.5, 0.9, 0.99, 0.999, 1};
+        double[] estimates = whole.quantiles(quantiles);
+        assertArrayEquals(estimates, merged.quantiles(quantiles));
+        assertEquals(values.length, merged.count());
+
+        Arrays.sort(values);
+        for (int i = 0; i < quantiles.length; i++) {
+            double exact = values[(int) (quantiles[i] * (values.length - 1))];
+            assertEquals(exact, estimates[i], Math.abs(exact) * RELATIVE_ERROR, "quantile=" + quantiles[i]);
+        }
+    }
+
+    /**
+     * Tests that the removed values are not counted, and NaN is never counted.
+     */
+    @Test
+    void whenRemovedThenNotCounted() {
+        QuantileSketch sketch = new QuantileSketch();
+        assertTrue(Double.isNaN(sketch.quantiles(0.5)[0]));
+        for (int i = 1; i <= 100; i++) {
+            sketch.add(i);
+        }
+        sketch.add(Double.NaN);
+        for (int i = 51; i <= 100; i++) {
+            sketch.remove(i);
+        }
+        assertEquals(50, sketch.count());
+        double max = sketch.quantiles(1)[0];
+        assertEquals(50, max, 50 * RELATIVE_ERROR);
+    }
+}
@@ -0,0 +1,92 @@
+package com.fortumo.ws;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RequestBodyTest {
+
+    /**
+     * Tests that only the first line is read and the line terminators are the same as the
+     * {@link java.io.BufferedReader#readLine()}.
+     */
+    @Test
+    void whenReadLineThenFirstLineRead() throws IOException {
+        assertNull(body(""));
+        assertEquals("", body("\n").toString());
+        assertEquals("12", body("12\r\n34").toString());
+        assertEquals("12", body("12\r34").toString());
+        assertEquals("12", body("12\n34").toString());
+        assertEquals("a-line-longer-than-the-initial-buffer-of-the-body", body(
+                "a-line-longer-than-the-initial-buffer-of-the-body").toString());
+    }
+
+    /**
+     * Tests that the successive lines are read into the same object, and "\r\n" terminates a single line.
+     */
+    @Test
+    void whenNextThenSuccessiveLinesRead() throws IOException {
+        ByteArrayInputStream in = new ByteArrayInputStream(
+                "1\r\n\r\n2\r3\na-line-longer-than-the-initial-buffer-of-the-body\n4".getBytes(StandardCharsets.UTF_8));
+        RequestBody line = new RequestBody();
+        String[] expected = {"1", "", "2", "3", "a-line-longer-than-the-initial-buffer-of-the-body", "4"};
+        for (String value : expected) {
+            assertTrue(line.next(in));
+            assertEquals(value, line.toString());
+        }
+        assertFalse(line.next(in));
+    }
+
+    /**
+     * Tests the detection of the 'end' string and the blank bodies.
+     */
+    @Test
+    void whenEndOrBlankThenDetected() throws IOException {
+        assertTrue(body("end").isEnd());
+        assertTrue(body("end\nmore").isEnd());
+        assertFalse(body("end ").isEnd());
+        assertFalse(body("en").isEnd());
+        assertTrue(body(" \t").isBlank());
+        assertTrue(body("\n1").isBlank());
+        assertFalse(body(" 1").isBlank());
+    }
+
+    /**
+     * Tests that the same inputs are accepted and the same values are parsed as {@link Double#parseDouble(String)}.
+     */
+    @Test
+    void whenParseDoubleThenSameAsParseDouble() throws IOException {
+        String[] valid = {
+                "0", "-0", "+1", "1.", ".5", "-.5", "007", "0.001", "1234.5678", " 12 ", "1e3", "-1.5E-3", "0x1p3",
+                "NaN", "Infinity", "-Infinity", "1d", "2f", "123456789012345", "1234567890123456789",
+                "0.1234567890123456789", "0.0000000000000000000000001", "179769313486231570000000000000000000000"
+        };
+        for (String value : valid) {
+            assertEquals(Double.parseDouble(value), body(value).parseDouble(), value);
+        }
+
+        String[] invalid = {".", "-", "+", "1.2.3", "1-", "--1", "one", "1,5", "1 2"};
+        for (String value : invalid) {
+            assertThrows(NumberFormatException.class, () -> body(value).parseDouble(), value);
+        }
+
+        Random random = new Random(42);
+        for (int i = 0; i < 100_000; i++) {
+            String value = Long.toString(random.nextLong() % 1_000_000_000_000L) + "." + random.nextInt(100_000);
+            assertEquals(Double.parseDouble(value), body(value).parseDouble(), value);
+        }
+    }
+
+    private RequestBody body(String body) throws IOException {
+        return RequestBody.readLine(new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8)));
+    }
+}
@@ -0,0 +1,157 @@
+package com.fortumo.ws;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RoundStatsTest {
+
+    /**
+     * Tests that the aggregates of a single pass match the ones of the two-pass formulas, and the ones merged from
+     * many parts match the ones of a single pass.
+     */
+    @Test
+    void whenMergedThenSameAsSinglePass() {
+        Random random = new Random(42);
+        double[] numbers = new double[10_000];
+        RoundStats whole = new RoundStats(RoundStats.Level.MOMENTS);
+        RoundStats[] parts = new RoundStats[7];
+        for (int i = 0; i < parts.length; i++) {
+            parts[i] = new RoundStats(RoundStats.Level.MOMENTS);
+        }
+        for (int i = 0; i < numbers.length; i++) {
+            numbers[i] = 1e6 + random.nextGaussian() * 10;  // a large mean, which the naive formula fails on.
+            whole.add(numbers[i]);
+            parts[random.nextInt(parts.length)].add(numbers[i]);
+        }
+        double mean = 0;
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        for (double number : numbers) {
+            mean += number / numbers.length;
+            min = Math.min(min, number);
+            max = Math.max(max, number);
+        }
+        double variance = 0;
+        for (double number : numbers) {
+            variance += (number - mean) * (number - mean) / numbers.length;
+        }
+        RoundStats merged = new RoundStats(RoundStats.Level.MOMENTS);
+        merged.merge(new RoundStats(RoundStats.Level.MOMENTS));
+        for (RoundStats part : parts) {
+            merged.merge(part);
+        }
+        for (RoundStats stats : new RoundStats[]{whole, merged}) {
+            assertEquals(numbers.length, stats.count());
+            assertEquals(min, stats.min());
+            assertEquals(max, stats.max());
+            assertEquals(mean, stats.mean(), 1e-6);
+            assertEquals(variance, stats.variance(), variance * 1e-9);
+        }
+    }
+
+    /**
+     * Tests that removing the numbers reverses their adds, except for the min and the max, and an empty round has no
+     * aggregates but its count.
+     */
+    @Test
+    void whenRemovedThenReversed() {
+        RoundStats stats = new RoundStats(RoundStats.Level.QUANTILES);
+        assertEquals(0, stats.count());
+        assertTrue(Double.isNaN(stats.mean()));
+        assertTrue(Double.isNaN(stats.variance()));
+        assertTrue(Double.isNaN(stats.quantiles(0.5)[0]));
+        stats.add(1);
+        stats.add(2);
+        stats.add(3);
+        stats.add(100);
+        stats.remove(100);
+        assertEquals(3, stats.count());
+        assertEquals(2, stats.mean(), 1e-12);
+        assertEquals(2.0 / 3, stats.variance(), 1e-12);
+        assertEquals(1, stats.min());
+        assertEquals(100, stats.max());
+        assertEquals(2, stats.quantiles(0.5)[0], 0.02);
+        stats.remove(1);
+        stats.remove(2);
+        stats.remove(3);
+        assertEquals(0, stats.count());
+        assertTrue(Double.isNaN(stats.min()));
+    }
+
+    /**
+     * Tests that the numbers removed from other aggregates than the ones they are added to are subtracted once the
+     * aggregates are merged, whether the aggregates they are removed from are empty or have other numbers.
+     */
+    @Test
+    void whenRemovedFromOtherPartThenSubtractedOnMerge() {
+        RoundStats adder = new RoundStats(RoundStats.Level.QUANTILES);
+        adder.add(1);
+        adder.add(2);
+        adder.add(3);
+        RoundStats empty = new RoundStats(RoundStats.Level.QUANTILES);
+        empty.remove(3);
+        RoundStats other = new RoundStats(RoundStats.Level.QUANTILES);
+        other.add(10);
+        other.remove(2);
+        assertEquals(0, empty.count());
+        assertEquals(0, other.count());
+
+        RoundStats merged = new RoundStats(RoundStats.Level.QUANTILES);
+        merged.merge(adder);
+        merged.merge(empty);
+        merged.merge(other);
+        assertEquals(2, merged.count());
+        assertEquals(5.5, merged.mean(), 1e-12);
+        assertEquals(20.25, merged.variance(), 1e-9);
+        assertEquals(10, merged.quantiles(1)[0], 0.1);
+    }
+
+    /**
+     * Tests the JSON format, with the values that are not finite as <tt>null</tt> and the quantiles within the min and
+     * the max.
+     */
+    @Test
+    void whenAppendJsonThenStructured() {
+        RoundStats moments = new RoundStats(RoundStats.Level.MOMENTS);
+        moments.sum(0);
+        assertEquals("{\"sum\":0.0,\"count\":0,\"min\":null,\"max\":null,\"mean\":null,\"variance\":null}",
+                moments.appendJson(new StringBuilder()).toString());
+
+        RoundStats quantiles = new RoundStats(RoundStats.Level.QUANTILES);
+        for (int i = 0; i < 3; i++) {
+            quantiles.add(1.5);
+        }
+        quantiles.sum(4.5);
+        assertEquals("{\"sum\":4.5,\"count\":3,\"min\":1.5,\"max\":1.5,\"mean\":1.5,\"variance\":0.0,"
+                + "\"p50\":1.5,\"p90\":1.5,\"p99\":1.5}", quantiles.appendJson(new StringBuilder()).toString());
+    }
+
+    /**
+     * Tests that the JSON bytes are encoded once and shared.
+     */
+    @Test
+    void whenJsonThenEncodedOnce() {
+        RoundStats stats = new RoundStats(RoundStats.Level.MOMENTS);
+        stats.add(2);
+        stats.sum(2);
+        byte[] json = stats.json();
+        assertEquals(stats.appendJson(new StringBuilder()).toString(), new String(json, StandardCharsets.UTF_8));
+        assertSame(json, stats.json());
+    }
+
+    /**
+     * Tests that the levels are parsed case insensitively.
+     */
+    @Test
+    void whenParseLevelThenCaseInsensitive() {
+        assertEquals(RoundStats.Level.QUANTILES, RoundStats.Level.parse(" Quantiles "));
+        assertThrows(IllegalArgumentException.class, () -> RoundStats.Level.parse("median"));
+    }
+}
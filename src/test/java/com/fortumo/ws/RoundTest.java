@@ -0,0 +1,184 @@
+package com.fortumo.ws;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RoundTest {
+
+    /**
+     * Tests that the clients registered by many threads in their groups are all completed by the time the round is
+     * completed, whether the groups are released in parallel or not, and the clients registering later are completed
+     * at once. A failed round fails all its clients.
+     */
+    @Test
+    void whenReleasedThenAllGroupsCompleted() throws Exception {
+        long threshold = Round.parallelReleaseClients;
+        ExecutorService executor = Executors.newFixedThreadPool(16);
+        try {
+            for (long parallelFrom : new long[]{0, Long.MAX_VALUE}) {
+                Round.parallelReleaseClients = parallelFrom;
+                for (boolean failed : new boolean[]{false, true}) {
+                    Round round = new Round();
+                    List<Future<List<CompletableFuture<Double>>>> registrations = new ArrayList<>();
+                    for (int i = 0; i < 16; i++) {
+                        registrations.add(executor.submit(() -> {
+                            List<CompletableFuture<Double>> clients = new ArrayList<>();
+                            for (int j = 0; j < 1_000; j++) {
+                                assertTrue(round.tryAdd(1));
+                                clients.add(round.result());
+                            }
+                            return clients;
+                        }));
+                    }
+                    List<CompletableFuture<Double>> clients = new ArrayList<>();
+                    for (Future<List<CompletableFuture<Double>>> registration : registrations) {
+                        clients.addAll(registration.get());
+                    }
+                    double sum = round.seal();
+                    if (failed) {
+                        round.fail(new IllegalStateException());
+                    } else {
+                        round.complete(sum);
+                    }
+                    clients.add(round.result());
+                    for (CompletableFuture<Double> client : clients) {
+                        assertTrue(client.isDone());
+                        assertEquals(failed, client.isCompletedExceptionally());
+                        if (!failed) {
+                            assertEquals(16_000, client.join());
+                        }
+                    }
+                }
+            }
+        } finally {
+            Round.parallelReleaseClients = threshold;
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Tests that a snapshot read while many threads keep adding 2 is either consistent, i.e. its sum is twice its
+     * count, or marked as inconsistent, with every strategy. The consistent ones never go backwards, and once the
+     * adders are done the snapshot is exact.
+     */
+    @Test
+    void whenSnapshotWhileAddingThenSumAndCountConsistent() throws Exception {
+        int threadCount = 8;
+        int addsPerThread = 20_000;
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+        for (Summation summation : Summation.values()) {
+            Round round = summation.newRound();
+            round.id(7);
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < threadCount; i++) {
+                futures.add(executor.submit(() -> {
+                    start.await();
+                    for (int j = 0; j < addsPerThread; j++) {
+                        assertTrue(round.tryAdd(2));
+                    }
+                    return null;
+                }));
+            }
+            start.countDown();
+            long lastPending = 0;
+            while (!futures.stream().allMatch(Future::isDone)) {
+                Round.Snapshot snapshot = round.snapshot();
+                assertEquals(7, snapshot.roundId());
+                if (snapshot.consistent()) {
+                    assertEquals(2.0 * snapshot.pending(), snapshot.sum(), summation.name());
+                    assertTrue(snapshot.pending() >= lastPending, summation.name());
+                    lastPending = snapshot.pending();
+                }
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+            Round.Snapshot snapshot = round.snapshot();
+            assertTrue(snapshot.consistent(), summation.name());
+            assertEquals(threadCount * addsPerThread, snapshot.pending(), summation.name());
+            assertEquals(2.0 * threadCount * addsPerThread, snapshot.sum(), summation.name());
+            assertEquals(snapshot.sum(), round.seal(), summation.name());
+        }
+        executor.shutdown();
+    }
+
+    /**
+     * Tests that an add whose idempotency key is claimed in the same round or in the previous one is not counted but
+     * gets the claim of the earlier add, and that a key is released if its number is withdrawn or not accepted.
+     */
+    @Test
+    void whenKeyClaimedThenRetryNotCounted() {
+        Round first = Summation.FIXED_POINT.newRound();
+        assertNull(first.tryAdd(3, 7, null));
+        assertSame(first.claim(), first.tryAdd(3, 7, null));
+        assertThrows(IllegalArgumentException.class, () -> first.tryAdd(1.5, 8, null));
+        assertNull(first.tryAdd(2, 8, null));
+        Round.Claim withdrawn = Round.CLOSED.claim();
+        assertNull(first.tryAdd(4, 9, withdrawn));
+        assertSame(withdrawn, first.tryAdd(4, 9, null));
+        assertTrue(first.tryWithdraw(4, 9));
+        assertNull(first.tryAdd(4, 9, null));
+        assertEquals(3, first.count());
+        assertEquals(3, first.keyCount());
+
+        Round second = Summation.FIXED_POINT.newRound();
+        second.previous(first);
+        assertEquals(9, first.seal());
+        assertSame(Round.SEALED, first.tryAdd(5, 10, null));
+        assertSame(first.claim(), second.tryAdd(3, 7, null));
+        assertSame(first.claim(), second.tryAdd(4, 9, null));
+        assertNull(second.tryAdd(5, 10, null));
+        assertEquals(5, second.seal());
+        assertEquals(1, second.keyCount());
+        first.complete(9);
+        assertEquals(9, second.tryAdd(3, 7, null).result().join());
+    }
+
+    /**
+     * Tests that a number withdrawn by another thread than its adder, e.g. the timer of a deadline, is removed from the
+     * statistics of the round, although it is not in the statistics of the cell of the withdrawing thread, which has
+     * another number of its own.
+     */
+    @Test
+    void whenWithdrawnByAnotherThreadThenStatsExact() throws Exception {
+        Round round = Summation.DOUBLE.newRound();
+        round.collectStats(RoundStats.Level.MOMENTS);
+        assertTrue(round.tryAdd(1));
+        assertTrue(round.tryAdd(2));
+        assertTrue(round.tryAdd(3));
+        int adderCell = Round.cellIndex();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            for (int i = 0; i < 64 && executor.submit(Round::cellIndex).get() == adderCell; i++) {
+                executor.shutdown();
+                executor = Executors.newSingleThreadExecutor();  // another thread, likely of another cell.
+            }
+            executor.submit(() -> {
+                assertTrue(round.tryAdd(10));
+                assertTrue(round.tryWithdraw(3));
+            }).get();
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(13, round.seal());
+        RoundStats stats = round.stats();
+        assertEquals(3, stats.count());
+        assertEquals(round.count(), stats.count());
+        assertEquals(13.0 / 3, stats.mean(), 1e-12);
+        assertEquals((1 + 4 + 100) / 3.0 - 169.0 / 9, stats.variance(), 1e-9);
+    }
+}
@@ -0,0 +1,204 @@
+package com.fortumo.ws;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.DoubleAdder;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Runs several nodes of a {@link SumCluster} in the same JVM. The nodes call each other through the same
+ * {@link SumCluster#handle(String, String, String)} protocol that {@link SumServlet} serves, asynchronously.
+ */
+class SumClusterTest {
+
+    private static final List<String> NODES = List.of("a", "b", "c");
+
+    /**
+     * Tests that the 'end' signal received by any node releases the clients of all the nodes with the total.
+     */
+    @Test
+    void whenEndOnAnyNodeThenAllClientsReleasedWithTotal() throws InterruptedException {
+        Cluster cluster = new Cluster(Set.of());
+        List<CompletableFuture<Double>> pending = new ArrayList<>();
+        for (int i = 0; i < NODES.size(); i++) {
+            int number = i + 1;
+            pending.add(cluster.sessions.get(NODES.get(i)).call("s", service -> service.add(number)));
+        }
+
+        assertEquals(6, cluster.nodes.get("b").end("s").join());
+        for (CompletableFuture<Double> future : pending) {
+            assertEquals(6, future.join());
+        }
+        assertEquals(0, cluster.nodes.get("c").end("other").join());
+        assertEquals(0, cluster.nodes.get("a").end("s").join());
+    }
+
+    /**
+     * Stress tests the concurrent adders and coordinators on all the nodes. Every number must be counted in exactly
+     * one cut, and every client must be released with the total of its cut.
+     */
+    @Test
+    void whenConcurrentAddsAndEndsThenEachAddCountedInExactlyOneCut() throws Exception {
+        Cluster cluster = new Cluster(Set.of());
+        ExecutorService executor = Executors.newFixedThreadPool(6);
+        DoubleAdder totals = new DoubleAdder();
+        Set<Double> cutTotals = ConcurrentHashMap.newKeySet();
+        List<Future<List<CompletableFuture<Double>>>> adders = new ArrayList<>();
+        for (String node : NODES) {
+            adders.add(executor.submit(() -> {
+                List<CompletableFuture<Double>> results = new ArrayList<>();
+                for (int i = 0; i < 2_000; i++) {
+                    results.add(cluster.sessions.get(node).call("s", service -> service.add(1)));
+                }
+                return results;
+            }));
+        }
+        List<Future<?>> enders = new ArrayList<>();
+        for (String node : NODES) {
+            enders.add(executor.submit(() -> {
+                for (int i = 0; i < 50; i++) {
+                    double total = cluster.nodes.get(node).end("s").join();
+                    totals.add(total);
+                    cutTotals.add(total);
+                }
+                return null;
+            }));
+        }
+        List<CompletableFuture<Double>> results = new ArrayList<>();
+        for (Future<List<CompletableFuture<Double>>> adder : adders) {
+            results.addAll(adder.get());
+        }
+        for (Future<?> ender : enders) {
+            ender.get();
+        }
+        double last = cluster.nodes.get("a").end("s").join();
+        totals.add(last);
+        cutTotals.add(last);
+        executor.shutdown();
+
+        assertEquals(3 * 2_000, totals.sum());
+        for (CompletableFuture<Double> result : results) {
+            assertTrue(cutTotals.contains(result.join()));
+        }
+    }
+
+    /**
+     * Tests that if a node cannot be cut, the clients of the other nodes fail rather than being released with a
+     * partial total, and the next cut is not affected.
+     */
+    @Test
+    void whenNodeUnreachableThenCutAbortedOnOtherNodes() throws InterruptedException {
+        Cluster cluster = new Cluster(Set.of("c"));
+        CompletableFuture<Double> a = cluster.sessions.get("a").call("s", service -> service.add(1));
+        CompletableFuture<Double> b = cluster.sessions.get("b").call("s", service -> service.add(2));
+
+        assertThrows(Exception.class, () -> cluster.nodes.get("a").end("s").join());
+        assertThrows(ExecutionException.class, a::get);
+        assertThrows(ExecutionException.class, b::get);
+
+        cluster.unreachable.clear();
+        CompletableFuture<Double> next = cluster.sessions.get("b").call("s", service -> service.add(3));
+        assertFalse(next.isDone());
+        assertEquals(3, cluster.nodes.get("c").end("s").join());
+        assertEquals(3, next.join());
+    }
+
+    /**
+     * Tests that a node aborts a cut on its own if the coordinator does not complete it in time.
+     */
+    @Test
+    void whenCoordinatorLostThenCutAbortedAfterTimeout() throws InterruptedException {
+        SumServiceRegistry sessions = new SumServiceRegistry(id -> new SumService(), 10, Long.MAX_VALUE);
+        SumCluster node = new SumCluster("a", List.of("a", "b"), null, sessions, 10);
+        CompletableFuture<Double> pending = sessions.call("s", service -> service.add(1));
+
+        assertEquals("1 1.0", node.handle("s", SumCluster.CUT_PARAM, ""));
+        assertThrows(ExecutionException.class, pending::get);
+        assertThrows(IllegalStateException.class, () -> node.handle("s", SumCluster.COMPLETE_PARAM + "=1", "5"));
+    }
+
+    /**
+     * Tests that the calls of the coordinators are recognized and the malformed ones are rejected.
+     */
+    @Test
+    void whenMalformedCallThenRejected() throws InterruptedException {
+        assertTrue(SumCluster.isClusterCall("cut"));
+        assertTrue(SumCluster.isClusterCall("complete=1"));
+        assertTrue(SumCluster.isClusterCall("abort=1"));
+        assertFalse(SumCluster.isClusterCall(null));
+        assertFalse(SumCluster.isClusterCall("batch"));
+
+        SumServiceRegistry sessions = new SumServiceRegistry(id -> new SumService(), 10, Long.MAX_VALUE);
+        SumCluster node = new SumCluster("a", List.of("a"), null, sessions, 1_000);
+        assertThrows(IllegalArgumentException.class, () -> node.handle("s", "complete=x", "1"));
+        assertThrows(IllegalArgumentException.class, () -> node.handle("s", "complete=1", "x"));
+        assertThrows(IllegalArgumentException.class, () -> SumCluster.parseCut("1"));
+        assertThrows(IllegalArgumentException.class,
+                () -> new SumCluster("d", NODES, null, sessions, 1_000));
+    }
+
+    /**
+     * The nodes of a cluster in the same JVM, connected by an asynchronous in-memory transport.
+     */
+    private static final class Cluster implements ClusterTransport {
+        private final Map<String, SumCluster> nodes = new ConcurrentHashMap<>();
+        private final Map<String, SumServiceRegistry> sessions = new ConcurrentHashMap<>();
+        private final Set<String> unreachable = ConcurrentHashMap.newKeySet();
+
+        /**
+         * @param unreachable the nodes that cannot be called.
+         */
+        Cluster(Set<String> unreachable) {
+            this.unreachable.addAll(unreachable);
+            for (String node : NODES) {
+                SumServiceRegistry registry = new SumServiceRegistry(id -> new SumService(), 100, Long.MAX_VALUE);
+                sessions.put(node, registry);
+                nodes.put(node, new SumCluster(node, NODES, this, registry, 60_000));
+            }
+        }
+
+        @Override
+        public CompletableFuture<SumService.Cut> cut(String node, String sessionId) {
+            return call(node, sessionId, SumCluster.CUT_PARAM, "").thenApply(SumCluster::parseCut);
+        }
+
+        @Override
+        public CompletableFuture<Void> complete(String node, String sessionId, long cut, double total) {
+            return call(node, sessionId, SumCluster.COMPLETE_PARAM + "=" + cut, Double.toString(total))
+                    .thenApply(body -> null);
+        }
+
+        @Override
+        public CompletableFuture<Void> abort(String node, String sessionId, long cut) {
+            return call(node, sessionId, SumCluster.ABORT_PARAM + "=" + cut, "").thenApply(body -> null);
+        }
+
+        private CompletableFuture<String> call(String node, String sessionId, String query, String body) {
+            if (unreachable.contains(node)) {
+                return CompletableFuture.failedFuture(new IOException("node=" + node + " is unreachable"));
+            }
+            return CompletableFuture.supplyAsync(() -> {
+                try {
+                    return nodes.get(node).handle(sessionId, query, body);
+                } catch (InterruptedException e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+        }
+    }
+}
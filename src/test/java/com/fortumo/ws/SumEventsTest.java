@@ -0,0 +1,178 @@
+package com.fortumo.ws;
+
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SumEventsTest {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SumEventsTest.class);
+
+    private final SumEvents[] events = new SumEvents[1];
+    private final SumServiceRegistry sessions = new SumServiceRegistry(id -> {
+        SumService service = new SumService();
+        service.onComplete(sum -> events[0].roundCompleted(id, sum));
+        return service;
+    }, 100, Long.MAX_VALUE);
+
+    SumEventsTest() {
+        events[0] = new SumEvents(sessions, 0);
+    }
+
+    /**
+     * Tests that the running sum is sent only when it changes, and a completed round is sent before the running sum
+     * of the next round.
+     */
+    @Test
+    void whenAddsAndEndThenSumAndRoundEventsSent() throws InterruptedException {
+        ListSink sink = subscribe("s");
+        events[0].tick();
+        assertEquals(List.of("sum 0"), sink.events());
+
+        sessions.call("s", service -> service.add(1));
+        sessions.call("s", service -> service.add(2));
+        events[0].tick();
+        events[0].tick();
+        assertEquals(List.of("sum 0", "sum 3"), sink.events());
+
+        sessions.call("s", SumService::end);
+        sessions.call("s", service -> service.add(4));
+        events[0].tick();
+        assertEquals(List.of("sum 0", "sum 3", "round 3", "sum 4"), sink.events());
+        assertTrue(sink.flushes > 0);
+    }
+
+    /**
+     * Tests that a subscriber that is not ready receives only the latest running sum once it is ready, while the
+     * other subscribers receive every update.
+     */
+    @Test
+    void whenSubscriberNotReadyThenUpdatesCoalesced() throws InterruptedException {
+        ListSink fast = subscribe("s");
+        ListSink slow = subscribe("s");
+        slow.ready = false;
+        for (int i = 1; i <= 3; i++) {
+            sessions.call("s", service -> service.add(1));
+            events[0].tick();
+        }
+        assertEquals(List.of("sum 1", "sum 2", "sum 3"), fast.events());
+        assertEquals(List.of(), slow.events());
+
+        slow.ready = true;
+        slow.subscriber.flush();  // called by the container once the stream is writable.
+        assertEquals(List.of("sum 3"), slow.events());
+    }
+
+    /**
+     * Tests that a subscriber that falls behind by too many round events is closed and dropped, and a subscriber
+     * whose sink fails is closed.
+     */
+    @Test
+    void whenSubscriberTooSlowOrGoneThenClosed() throws InterruptedException {
+        ListSink slow = subscribe("s");
+        ListSink gone = subscribe("s");
+        slow.ready = false;
+        gone.fail = true;
+        for (int i = 0; i <= SumEvents.MAX_PENDING_ROUNDS; i++) {
+            sessions.call("s", SumService::end);
+        }
+        events[0].tick();
+        assertTrue(slow.closed);
+        assertTrue(gone.closed);
+        assertEquals(0, events[0].subscriberCount());
+    }
+
+    /**
+     * Measures the cost of fanning out the running sum to thousands of subscribers of a session. The add path is
+     * not involved, the adds complete before the ticks regardless of the number of subscribers.
+     */
+    @Test
+    void whenThousandsOfSubscribersThenEveryUpdateDelivered() throws InterruptedException {
+        int subscriberCount = 10_000;
+        int updates = 100;
+        List<ListSink> sinks = new ArrayList<>();
+        for (int i = 0; i < subscriberCount; i++) {
+            sinks.add(subscribe("s"));
+        }
+        events[0].tick();
+
+        long nanos = 0;
+        for (int i = 0; i < updates; i++) {
+            sessions.call("s", service -> service.add(1));
+            long start = System.nanoTime();
+            events[0].tick();
+            nanos += System.nanoTime() - start;
+        }
+        LOG.info("fan-out of {} updates to {} subscribers: {} ns per tick, {} ns per subscriber",
+                updates, subscriberCount, nanos / updates, nanos / updates / subscriberCount);
+        for (ListSink sink : sinks) {
+            assertEquals(updates + 1, sink.written.size());
+            assertFalse(sink.closed);
+        }
+        events[0].close();
+        assertTrue(sinks.get(0).closed);
+    }
+
+    private ListSink subscribe(String sessionId) {
+        ListSink sink = new ListSink();
+        sink.subscriber = new SumEvents.Subscriber(sink);
+        events[0].subscribe(sessionId, sink.subscriber);
+        return sink;
+    }
+
+    /**
+     * A sink that collects the events written.
+     */
+    private static final class ListSink implements SumEvents.Sink {
+        private final List<byte[]> written = new ArrayList<>();
+        private SumEvents.Subscriber subscriber;
+        private volatile boolean ready = true;
+        private boolean fail = false;
+        private boolean closed = false;
+        private int flushes = 0;
+
+        @Override
+        public boolean isReady() {
+            return ready;
+        }
+
+        @Override
+        public void write(byte[] event) throws IOException {
+            if (fail) {
+                throw new IOException("broken pipe");
+            }
+            written.add(event);
+        }
+
+        @Override
+        public void flush() {
+            flushes++;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+
+        /**
+         * @return the events written, e.g. <tt>sum 3</tt>.
+         */
+        List<String> events() {
+            List<String> events = new ArrayList<>();
+            for (byte[] event : written) {
+                String[] lines = new String(event, StandardCharsets.UTF_8).split("\n");
+                events.add(lines[0].substring("event: ".length()) + " " + lines[1].substring("data: ".length()));
+            }
+            return events;
+        }
+    }
+}
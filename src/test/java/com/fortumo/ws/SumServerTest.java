@@ -0,0 +1,73 @@
+package com.fortumo.ws;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class SumServerTest {
+
+    private SumServer server;
+
+    @AfterEach
+    void stopServer() throws Exception {
+        if (server != null) {
+            server.stop();
+        }
+    }
+
+    /**
+     * Tests that the embedded server serves the rounds of the servlet, configured with the init parameters passed as
+     * options, and that the training requests succeed.
+     */
+    @Test
+    void whenStartedThenRoundsServed() throws Exception {
+        server = new SumServer(SumServer.parse(new String[]{
+                "--port=0", "--host=127.0.0.1", "--acceptors=1", "--selectors=1", "--maxThreads=16",
+                "--mode=async", "--summation=fixed-point"}));
+        server.start();
+        URI base = URI.create("http://127.0.0.1:" + server.port());
+        HttpClient client = HttpClient.newHttpClient();
+
+        CompletableFuture<HttpResponse<String>> add = client.sendAsync(post(base, "/s", "2"),
+                HttpResponse.BodyHandlers.ofString());
+        HttpResponse<String> rejected = client.send(post(base, "/s", "0.5"), HttpResponse.BodyHandlers.ofString());
+        assertEquals(400, rejected.statusCode());  // only integers with the fixed-point summation.
+        while (!add.isDone()) {
+            client.send(post(base, "/s", "end"), HttpResponse.BodyHandlers.discarding());
+        }
+        assertEquals(200, add.join().statusCode());
+        assertEquals("2", add.join().body().trim());
+
+        SumServer.train(base);
+    }
+
+    /**
+     * Tests that the malformed options and the invalid server options are rejected, and a misconfigured servlet
+     * fails the start.
+     */
+    @Test
+    void whenInvalidOptionsThenRejected() {
+        assertEquals(Map.of("port", "1", "train", "true", "journalDir", ""),
+                SumServer.parse(new String[]{"--port=1", "--train", "--journalDir="}));
+        assertThrows(IllegalArgumentException.class, () -> SumServer.parse(new String[]{"port=1"}));
+        assertThrows(IllegalArgumentException.class, () -> SumServer.parse(new String[]{"--=1"}));
+        assertThrows(IllegalArgumentException.class, () -> new SumServer(Map.of("port", "x")));
+        assertThrows(IllegalArgumentException.class, () -> new SumServer(Map.of("minThreads", "0")));
+
+        server = new SumServer(Map.of("port", "0", "mode", "unknown"));
+        assertThrows(Exception.class, server::start);
+    }
+
+    private static HttpRequest post(URI base, String path, String body) {
+        return HttpRequest.newBuilder(base.resolve(path)).POST(HttpRequest.BodyPublishers.ofString(body)).build();
+    }
+}
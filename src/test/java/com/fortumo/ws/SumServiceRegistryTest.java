@@ -0,0 +1,210 @@
+package com.fortumo.ws;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SumServiceRegistryTest {
+
+    /**
+     * Tests that the sessions are created lazily and sum up their numbers independently.
+     */
+    @Test
+    void whenDifferentSessionsThenIndependentSums() throws InterruptedException {
+        SumServiceRegistry registry = registry(10, Long.MAX_VALUE);
+        assertEquals(0, registry.size());
+
+        CompletableFuture<Double> a1 = registry.call("a", service -> service.add(1));
+        CompletableFuture<Double> a2 = registry.call("a", service -> service.add(2));
+        CompletableFuture<Double> b = registry.call("b", service -> service.add(10));
+        assertEquals(2, registry.size());
+
+        assertEquals(3, registry.call("a", SumService::doEnd));
+        assertEquals(3, a1.join());
+        assertEquals(3, a2.join());
+        assertFalse(b.isDone());
+
+        assertEquals(10, registry.call("b", SumService::doEnd));
+        assertEquals(10, b.join());
+        assertEquals(0, registry.call(SumServiceRegistry.DEFAULT_SESSION, SumService::doEnd));
+    }
+
+    /**
+     * Tests that only the idle sessions are evicted, and an evicted session is re-created on its next call.
+     */
+    @Test
+    void whenEvictThenOnlyIdleSessionsEvicted() throws InterruptedException {
+        SumServiceRegistry registry = registry(10, Long.MAX_VALUE);
+        CompletableFuture<Double> pending = registry.call("busy", service -> service.add(5));
+        registry.call("idle", SumService::doEnd);
+
+        assertEquals(0, registry.evict(Long.MAX_VALUE));
+        assertEquals(1, registry.evict(0));
+        assertEquals(1, registry.size());
+
+        assertEquals(5, registry.call("busy", SumService::doEnd));
+        assertEquals(5, pending.join());
+        assertEquals(0, registry.call("idle", SumService::doEnd));
+        assertEquals(2, registry.size());
+    }
+
+    /**
+     * Tests that the idle sessions are evicted when the maximum number of sessions is reached, and a new session is
+     * rejected if none of them is idle.
+     */
+    @Test
+    void whenMaxSessionsReachedThenIdleEvictedOrRejected() throws InterruptedException {
+        SumServiceRegistry registry = registry(2, Long.MAX_VALUE);
+        CompletableFuture<Double> pending = registry.call("a", service -> service.add(1));
+        registry.call("b", SumService::doEnd);
+
+        registry.call("c", service -> service.add(2));  // evicts "b".
+        assertEquals(2, registry.size());
+        assertThrows(RejectedExecutionException.class, () -> registry.call("d", SumService::doEnd));
+
+        assertEquals(1, registry.call("a", SumService::doEnd));
+        assertEquals(1, pending.join());
+    }
+
+    /**
+     * Tests that when the maximum number of sessions is reached, the session idle for the longest time is evicted
+     * rather than the one that is just ended.
+     */
+    @Test
+    void whenMaxSessionsReachedThenLeastRecentlyUsedEvicted() throws InterruptedException {
+        SumServiceRegistry registry = registry(2, Long.MAX_VALUE);
+        registry.call("old", SumService::doEnd);
+        Thread.sleep(1);
+        registry.call("recent", SumService::doEnd);
+        Thread.sleep(1);
+        registry.call("recent", SumService::doEnd);  // opens a new round, so "recent" is used more recently.
+
+        registry.call("c", SumService::doEnd);  // evicts "old".
+        assertNull(registry.peek("old"));
+        assertNotNull(registry.peek("recent"));
+
+        registry.call("d", SumService::doEnd);  // evicts "recent".
+        assertNull(registry.peek("recent"));
+        assertNotNull(registry.peek("c"));
+        assertEquals(2, registry.size());
+    }
+
+    /**
+     * Tests that a burst of new sessions at the maximum number of sessions evicts as many idle sessions as it needs,
+     * rather than being rejected while idle sessions are left.
+     */
+    @Test
+    void whenBurstOfNewSessionsThenAsManyIdleEvicted() throws InterruptedException {
+        int maxSessions = 64;
+        SumServiceRegistry registry = registry(maxSessions, Long.MAX_VALUE);
+        for (int i = 0; i < maxSessions; i++) {
+            registry.call("old" + i, SumService::doEnd);
+        }
+        for (int i = 0; i < maxSessions; i++) {
+            registry.call("new" + i, service -> service.add(1));
+        }
+        assertEquals(maxSessions, registry.size());
+        assertNull(registry.peek("old" + (maxSessions - 1)));
+        assertThrows(RejectedExecutionException.class, () -> registry.call("more", SumService::doEnd));
+    }
+
+    /**
+     * Tests that the sessions idle for longer than the idle timeout are evicted by the background sweep, without any
+     * new session, and are not evicted anymore once the registry is closed.
+     */
+    @Test
+    void whenIdleTimeoutThenEvictedInBackground() throws InterruptedException {
+        SumServiceRegistry registry = registry(10, 10);
+        registry.call("a", SumService::doEnd);
+        CompletableFuture<Double> pending = registry.call("b", service -> service.add(1));
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (registry.peek("a") != null && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        assertNull(registry.peek("a"));
+        assertNotNull(registry.peek("b"));
+
+        registry.close();
+        assertEquals(1, registry.call("b", SumService::doEnd));
+        assertEquals(1, pending.join());
+        Thread.sleep(50);
+        assertNotNull(registry.peek("b"));
+    }
+
+    /**
+     * Stress tests the race between the adders and the eviction. The sessions are evicted continuously while many
+     * threads add to them, yet every number must be counted when the sessions are finally ended.
+     */
+    @Test
+    void whenConcurrentAddsAndEvictionsThenNoAddLost() throws Exception {
+        int threadCount = 8;
+        int addsPerThread = 2_000;
+        int sessionCount = 4;
+        SumServiceRegistry registry = registry(sessionCount, 0);
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount + 1);
+        CountDownLatch done = new CountDownLatch(threadCount);
+        AtomicBoolean evicting = new AtomicBoolean(true);
+
+        Future<?> evictor = executor.submit(() -> {
+            while (evicting.get()) {
+                registry.evict(0);
+            }
+        });
+        List<Future<List<CompletableFuture<Double>>>> futures = new ArrayList<>();
+        for (int i = 0; i < threadCount; i++) {
+            int fi = i;
+            futures.add(executor.submit(() -> {
+                List<CompletableFuture<Double>> results = new ArrayList<>();
+                try {
+                    for (int j = 0; j < addsPerThread; j++) {
+                        String sessionId = "s" + ((fi + j) % sessionCount);
+                        results.add(registry.call(sessionId, service -> service.add(1)));
+                    }
+                } finally {
+                    done.countDown();
+                }
+                return results;
+            }));
+        }
+        done.await();
+        evicting.set(false);
+        evictor.get();
+
+        double total = 0;
+        for (int i = 0; i < sessionCount; i++) {
+            total += registry.call("s" + i, SumService::doEnd);
+        }
+        assertEquals(threadCount * addsPerThread, total);
+        for (Future<List<CompletableFuture<Double>>> future : futures) {
+            for (CompletableFuture<Double> result : future.get()) {
+                assertTrue(result.isDone());
+            }
+        }
+        executor.shutdown();
+    }
+
+    /**
+     * @param maxSessions       the maximum number of sessions.
+     * @param idleTimeoutMillis the idle timeout of the sessions.
+     * @return the registry to test.
+     */
+    private SumServiceRegistry registry(int maxSessions, long idleTimeoutMillis) {
+        return new SumServiceRegistry(id -> new SumService(), maxSessions, idleTimeoutMillis);
+    }
+}
@@ -2,16 +2,30 @@ package com.fortumo.ws;
 
 import org.junit.jupiter.api.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 class SumServiceTest {
 
@@ -47,6 +61,31 @@ class SumServiceTest {
         executor.shutdown();
     }
 
+    /**
+     * Tests that the futures returned by {@link SumService#add(double)} are completed only when the round ends, and
+     * that the numbers added after the 'end' signal are counted in the next round.
+     */
+    @Test
+    void whenEndThenAddFuturesCompletedWithRoundSum() {
+        SumService service = new SumService();
+
+        CompletableFuture<Double> first = service.add(1);
+        CompletableFuture<Double> second = service.add(2);
+        assertFalse(first.isDone());
+        assertFalse(second.isDone());
+
+        CompletableFuture<Double> end = service.end();
+        assertTrue(end.isDone());
+        assertEquals(3, end.join());
+        assertEquals(3, first.join());
+        assertEquals(3, second.join());
+
+        CompletableFuture<Double> next = service.add(5);
+        assertFalse(next.isDone());
+        assertEquals(5, service.end().join());
+        assertEquals(5, next.join());
+    }
+
     /**
      * Tests {@link SumService#doEnd()} is called before {@link SumService#doAdd(double)},
      * in which case, the <tt>doEnd()</tt> method will return immediately with zero and <tt>doAdd()</tt> will have
@@ -70,27 +109,25 @@ class SumServiceTest {
     }
 
     /**
-     * Tests service re-usability after {@link SumService#doEnd()} is called. Also tests {@link IMonitor#doWait(long)}
-     * method to increase the coverage.
+     * Tests service re-usability after {@link SumService#doEnd()} is called.
      */
     @Test
     void testReuseOnComplete() throws InterruptedException, ExecutionException {
         ExecutorService executor = Executors.newFixedThreadPool(1);
 
-        IMonitor monitor = new IMonitor() {
-        };
-        SumService service = service(monitor::doNotify);
+        Semaphore waiting = new Semaphore(0);
+        SumService service = service(waiting::release);
 
         Future<Double> actualFuture;
         double expectedValue = 10;
 
         actualFuture = executor.submit(() -> service.doAdd(expectedValue));
-        monitor.doWait(0);
+        waiting.acquire();
         service.doEnd();
         assertEquals(expectedValue, actualFuture.get());
 
         actualFuture = executor.submit(() -> service.doAdd(expectedValue));
-        monitor.doWait(0);
+        waiting.acquire();
         service.doEnd();
         assertEquals(expectedValue, actualFuture.get());
 
@@ -141,20 +178,687 @@ class SumServiceTest {
     }
 
 
+    /**
+     * Stress tests the cut between the rounds. Many threads keep adding 1 while the main thread keeps sending the
+     * 'end' signal. Since every adder adds 1, a round that ended with the sum <tt>n</tt> must release exactly
+     * <tt>n</tt> adders with the same sum, and no number may be lost or counted twice.
+     */
+    @Test
+    void whenConcurrentAddsAndEndsThenEachAddCountedInExactlyOneRound() throws InterruptedException, ExecutionException {
+        int threadCount = 16;
+        int addsPerThread = 500;
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+        CountDownLatch done = new CountDownLatch(threadCount);
+        SumService service = new SumService();
+
+        Map<Double, LongAdder> addResults = new ConcurrentHashMap<>();
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < threadCount; i++) {
+            futures.add(executor.submit(() -> {
+                try {
+                    for (int j = 0; j < addsPerThread; j++) {
+                        addResults.computeIfAbsent(service.doAdd(1), k -> new LongAdder()).increment();
+                    }
+                } finally {
+                    done.countDown();
+                }
+                return null;
+            }));
+        }
+
+        Map<Double, Long> endResults = new HashMap<>();
+        double totalOfRounds = 0;
+        while (done.getCount() > 0) {
+            double sum = service.doEnd();
+            endResults.merge(sum, 1L, Long::sum);
+            totalOfRounds += sum;
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+
+        assertEquals(threadCount * addsPerThread, totalOfRounds);
+        addResults.forEach((sum, adders) ->
+                assertEquals(sum * endResults.getOrDefault(sum, 0L), adders.doubleValue(), "sum=" + sum));
+
+        executor.shutdown();
+    }
+
+    /**
+     * Stress tests the epochs of a pipelined service. Many threads keep adding 1 while the main thread keeps sending
+     * the 'end' signal and every 7th add ends its round too, and the clients of the ended rounds are released in the
+     * background. A round that ended with the sum <tt>n</tt> must still release exactly <tt>n</tt> adders with the
+     * same sum, and the rounds must be released in the order they are ended.
+     */
+    @Test
+    void whenPipelinedAddsAndEndsThenEachAddCountedInItsRound() throws Exception {
+        int threadCount = 16;
+        int addsPerThread = 500;
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+        CountDownLatch done = new CountDownLatch(threadCount);
+        SumService service = new SumService(Summation.DOUBLE, Metrics.disabled(), null,
+                new SumService.Limits(0, 0, 7, 0), RoundStats.Level.NONE, true);
+        Map<Double, LongAdder> endResults = new ConcurrentHashMap<>();
+        LongAdder totalOfRounds = new LongAdder();
+        List<Thread> releasers = new ArrayList<>();
+        service.onComplete(sum -> {
+            endResults.computeIfAbsent(sum, k -> new LongAdder()).increment();
+            totalOfRounds.add((long) sum);
+            synchronized (releasers) {
+                releasers.add(Thread.currentThread());
+            }
+        });
+
+        Map<Double, LongAdder> addResults = new ConcurrentHashMap<>();
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < threadCount; i++) {
+            futures.add(executor.submit(() -> {
+                try {
+                    for (int j = 0; j < addsPerThread; j++) {
+                        addResults.computeIfAbsent(service.doAdd(1), k -> new LongAdder()).increment();
+                    }
+                } finally {
+                    done.countDown();
+                }
+                return null;
+            }));
+        }
+        while (done.getCount() > 0) {
+            service.end();
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (totalOfRounds.sum() < threadCount * addsPerThread && System.nanoTime() < deadline) {
+            Thread.sleep(1);  // the listener of the last rounds may still be draining.
+        }
+
+        assertEquals(threadCount * addsPerThread, totalOfRounds.sum());
+        addResults.forEach((sum, adders) -> assertEquals(
+                sum * endResults.get(sum).sum(), adders.doubleValue(), "sum=" + sum));
+        synchronized (releasers) {
+            assertTrue(releasers.stream().allMatch(t -> t.getName().startsWith("sum-drain-")), releasers::toString);
+        }
+        executor.shutdown();
+    }
+
+    /**
+     * Tests that the 'end' signal of a pipelined service blocks, rather than spins, while the maximum number of rounds
+     * are waiting to be released, and proceeds once the drain catches up.
+     */
+    @Test
+    void whenPipelinedBacklogFullThenEndBlocks() throws Exception {
+        SumService service = new SumService(Summation.DOUBLE, Metrics.disabled(), null, SumService.Limits.NONE,
+                RoundStats.Level.NONE, true);
+        CountDownLatch releasing = new CountDownLatch(1);
+        CountDownLatch proceed = new CountDownLatch(1);
+        service.add(1).thenRun(() -> {
+            releasing.countDown();
+            try {
+                proceed.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        assertEquals(1, service.doEnd());
+        assertTrue(releasing.await(5, TimeUnit.SECONDS));
+
+        Thread ender = new Thread(() -> {
+            for (int i = 0; i <= SumService.MAX_UNDRAINED; i++) {
+                service.end();
+            }
+        });
+        ender.setDaemon(true);
+        ender.start();
+        try {
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (ender.getState() != Thread.State.WAITING && System.nanoTime() < deadline) {
+                Thread.sleep(1);
+            }
+            assertEquals(Thread.State.WAITING, ender.getState());
+        } finally {
+            proceed.countDown();
+        }
+        ender.join(TimeUnit.SECONDS.toMillis(5));
+        assertFalse(ender.isAlive());
+    }
+
+    /**
+     * Tests that the 'end' signal of a pipelined service returns the sum once its round is sealed, while a client of
+     * the round is still being released, and the next round accepts numbers and ends meanwhile. Its clients are
+     * released only after the ones of the previous round.
+     */
+    @Test
+    void whenPipelinedThenEndDoesNotWaitForClients() throws Exception {
+        SumService service = new SumService(Summation.DOUBLE, Metrics.disabled(), null, SumService.Limits.NONE,
+                RoundStats.Level.NONE, true);
+        List<Double> completed = new ArrayList<>();
+        service.onComplete(sum -> {
+            synchronized (completed) {
+                completed.add(sum);
+            }
+        });
+        CountDownLatch releasing = new CountDownLatch(1);
+        CountDownLatch proceed = new CountDownLatch(1);
+        CompletableFuture<Double> first = service.add(1);
+        CompletableFuture<Void> slowClient = first.thenRun(() -> {
+            releasing.countDown();
+            try {
+                proceed.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+
+        assertEquals(1, service.doEnd());
+        assertTrue(releasing.await(5, TimeUnit.SECONDS));
+        CompletableFuture<Double> second = service.add(2);
+        assertEquals(2, service.end().join());
+        assertFalse(second.isDone());  // queued behind the slow client of the first round.
+        assertFalse(slowClient.isDone());
+
+        proceed.countDown();
+        assertEquals(2, second.get(5, TimeUnit.SECONDS));
+        slowClient.get(5, TimeUnit.SECONDS);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (System.nanoTime() < deadline) {
+            synchronized (completed) {
+                if (completed.size() == 2) {
+                    break;
+                }
+            }
+            Thread.sleep(1);
+        }
+        synchronized (completed) {
+            assertEquals(List.of(1.0, 2.0), completed);
+        }
+    }
+
+    /**
+     * Tests {@link SumService#tryClose(long)} closes the service only if its current round is empty and open for long
+     * enough, and a closed service rejects the calls.
+     */
+    @Test
+    void whenIdleThenClosedAndCallsRejected() {
+        SumService service = new SumService();
+        assertFalse(service.tryClose(Long.MAX_VALUE));  // not idle for long enough.
+
+        CompletableFuture<Double> pending = service.add(1);
+        assertFalse(service.tryClose(0));  // a client is waiting for the round.
+        assertEquals(1, service.end().join());
+        assertEquals(1, pending.join());
+
+        assertTrue(service.tryClose(0));
+        assertTrue(service.tryClose(0));
+        assertThrows(SumService.ClosedException.class, () -> service.add(1));
+        assertThrows(SumService.ClosedException.class, service::end);
+    }
+
+    /**
+     * Stress tests the race between the adders and {@link SumService#tryClose(long)}. An add either fails because the
+     * service is closed or it is counted, in which case the service must not be closed.
+     */
+    @Test
+    void whenConcurrentAddsAndCloseThenNoAddLost() throws InterruptedException, ExecutionException {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        for (int i = 0; i < 1_000; i++) {
+            SumService service = new SumService();
+            Future<Boolean> closed = executor.submit(() -> service.tryClose(0));
+            CompletableFuture<Double> added = null;
+            try {
+                added = service.add(1);
+            } catch (SumService.ClosedException expected) {
+                // the service is closed before the number is added.
+            }
+            assertEquals(added == null, closed.get());
+            if (added != null) {
+                assertEquals(1, service.end().join());
+                assertEquals(1, added.join());
+            }
+        }
+        executor.shutdown();
+    }
+
+    /**
+     * Tests that the clients of a round sealed by {@link SumService#cut()} wait until the cut is completed, and are
+     * completed with the provided total rather than the partial sum.
+     */
+    @Test
+    void whenCutThenClientsWaitForComplete() {
+        SumService service = new SumService();
+        CompletableFuture<Double> first = service.add(1);
+        SumService.Cut cut = service.cut();
+        assertEquals(1, cut.sum());
+        CompletableFuture<Double> next = service.add(2);  // counted in the next round.
+        assertFalse(first.isDone());
+
+        assertEquals(10, service.complete(cut.id(), 10).join());
+        assertEquals(10, first.join());
+        assertFalse(next.isDone());
+        assertThrows(IllegalStateException.class, () -> service.complete(cut.id(), 10));
+        assertEquals(2, service.end().join());
+    }
+
+    /**
+     * Tests that a snapshot shows the running sum and the pending adds of the current round without ending it, and the
+     * rounds are numbered one after the other.
+     */
+    @Test
+    void whenSnapshotThenCurrentRoundShownWithoutEndingIt() {
+        SumService service = new SumService();
+        Round.Snapshot empty = service.snapshot();
+        assertEquals(1, empty.roundId());
+        assertEquals(0, empty.sum());
+        assertEquals(0, empty.pending());
+
+        CompletableFuture<Double> first = service.add(1.5);
+        service.add(2);
+        Round.Snapshot running = service.snapshot();
+        assertTrue(running.consistent());
+        assertEquals(1, running.roundId());
+        assertEquals(3.5, running.sum());
+        assertEquals(2, running.pending());
+        assertFalse(first.isDone());
+
+        assertEquals(3.5, service.end().join());
+        service.add(4);
+        Round.Snapshot next = service.snapshot();
+        assertEquals(2, next.roundId());
+        assertEquals(4, next.sum());
+        assertEquals(1, next.pending());
+        assertEquals(4, service.cut().sum());
+        assertEquals(3, service.snapshot().roundId());
+    }
+
+    /**
+     * Tests that the clients of an aborted cut fail, and the service is not closed while a cut is open.
+     */
+    @Test
+    void whenCutAbortedThenClientsFail() {
+        SumService service = new SumService();
+        CompletableFuture<Double> pending = service.add(1);
+        SumService.Cut cut = service.cut();
+        assertFalse(service.tryClose(0));
+
+        service.abort(cut.id(), new IllegalStateException("aborted"));
+        assertThrows(ExecutionException.class, pending::get);
+        assertThrows(IllegalStateException.class, () -> service.abort(cut.id(), new IllegalStateException()));
+        assertTrue(service.tryClose(0));
+    }
+
+    /**
+     * Tests that the adds are rejected while the round has the maximum number of pending adds, and accepted again
+     * once the round ends.
+     */
+    @Test
+    void whenRoundFullThenAddsRejected() {
+        SumService service = new SumService(Summation.DOUBLE, Metrics.disabled(), null,
+                new SumService.Limits(3, 0, 0, 0));
+        List<CompletableFuture<Double>> pending = List.of(service.add(1), service.add(2), service.add(3));
+        assertThrows(SumService.OverloadedException.class, () -> service.add(4));
+
+        assertEquals(6, service.end().join());
+        for (CompletableFuture<Double> result : pending) {
+            assertEquals(6, result.join());
+        }
+        assertFalse(service.add(4).isDone());
+    }
+
+    /**
+     * Tests that a retry of an add is answered while the round has the maximum number of pending adds, as it adds
+     * nothing, while a new add is still rejected.
+     */
+    @Test
+    void whenRoundFullThenRetryAnswered() {
+        SumService service = new SumService(Summation.DOUBLE, Metrics.disabled(), null,
+                new SumService.Limits(2, 0, 0, 0));
+        CompletableFuture<Double> first = service.add(1, 11);
+        CompletableFuture<Double> second = service.add(2, 12);
+        CompletableFuture<Double> retried = service.add(1, 11);
+        assertThrows(SumService.OverloadedException.class, () -> service.add(4, 14));
+
+        assertEquals(3, service.end().join());
+        assertEquals(3, first.join());
+        assertEquals(3, second.join());
+        assertEquals(3, retried.join());
+    }
+
+    /**
+     * Tests that an add that waits longer than the timeout is withdrawn from its round and fails, both with the
+     * future and the blocking API, while the next round is not affected.
+     */
+    @Test
+    void whenAddTimesOutThenWithdrawn() throws InterruptedException {
+        SumService service = new SumService(Summation.DOUBLE, Metrics.disabled(), null,
+                new SumService.Limits(0, 20, 0, 0));
+        CompletableFuture<Double> timedOut = service.add(5);
+        ExecutionException e = assertThrows(ExecutionException.class, () -> timedOut.get(5, TimeUnit.SECONDS));
+        assertTrue(e.getCause() instanceof SumService.TimedOutException, e.toString());
+        assertThrows(SumService.TimedOutException.class, () -> service.doAdd(7));
+
+        CompletableFuture<Double> counted = service.add(2);
+        assertEquals(2, service.end().join());
+        assertEquals(2, counted.join());
+    }
+
+    /**
+     * Tests that a batch is a single add: a timed out batch withdraws all of its numbers, with or without a key, and
+     * a retried batch is not counted again.
+     */
+    @Test
+    void whenBatchTimesOutThenAllNumbersWithdrawn() throws Exception {
+        SumService service = new SumService(Summation.FIXED_POINT, Metrics.disabled(), null,
+                new SumService.Limits(0, 20, 0, 0));
+        CompletableFuture<Double> timedOut = service.add(batch("1\n2\n3"), IdempotencyKeys.NONE);
+        CompletableFuture<Double> keyed = service.add(batch("4\n5"), 7);
+        for (CompletableFuture<Double> result : List.of(timedOut, keyed)) {
+            ExecutionException e = assertThrows(ExecutionException.class, () -> result.get(5, TimeUnit.SECONDS));
+            assertTrue(e.getCause() instanceof SumService.TimedOutException, e.toString());
+        }
+
+        SumService waiting = new SumService(Summation.FIXED_POINT);
+        CompletableFuture<Double> counted = waiting.add(batch("4\n5"), 7);
+        CompletableFuture<Double> retried = waiting.add(batch("4\n5"), 7);
+        assertEquals(9, waiting.end().join());
+        assertEquals(9, counted.join());
+        assertEquals(9, retried.join());
+        assertEquals(0, service.end().join());
+    }
+
+    /**
+     * Tests that a retry of an add, i.e. one with the same idempotency key, is not counted again while the add is
+     * pending or its round is the previous one, but gets the same answer, with the sum or with the statistics. A retry
+     * of an add ended two rounds ago is counted again.
+     */
+    @Test
+    void whenRetriedThenCountedOnceAndAnsweredAlike() throws Exception {
+        Metrics metrics = new Metrics();
+        SumService service = new SumService(Summation.DOUBLE, metrics, null, SumService.Limits.NONE,
+                RoundStats.Level.MOMENTS);
+        CompletableFuture<Double> added = service.add(2, 7);
+        CompletableFuture<Double> retried = service.add(2, 7);
+        CompletableFuture<RoundStats> retriedWithStats = service.addWithStats(2, 7);
+        CompletableFuture<Double> other = service.add(3, 8);
+        assertFalse(retried.isDone());
+        assertEquals(5, service.end().join());
+        assertEquals(5, added.join());
+        assertEquals(5, retried.join());
+        assertEquals(2, retriedWithStats.join().count());
+        assertEquals(5, other.join());
+
+        assertEquals(5, service.doAdd(2, 7));
+        assertEquals(2, service.doAddWithStats(3, 8).count());
+        CompletableFuture<Double> counted = service.add(4, 9);
+        assertEquals(4, service.end().join());
+        assertEquals(4, counted.join());
+        CompletableFuture<Double> again = service.add(2, 7);
+        assertEquals(2, service.end().join());
+        assertEquals(2, again.join());
+        StringBuilder text = new StringBuilder();
+        metrics.writePrometheus(text, 1);
+        assertTrue(text.toString().contains("sum_duplicate_adds_total 4\n"), text.toString());
+    }
+
+    /**
+     * Tests that a retry of an add that times out fails the same as the add, and a later retry is counted again,
+     * since the key is released along with the withdrawn number.
+     */
+    @Test
+    void whenRetriedAddTimesOutThenRetryCountedAgain() {
+        SumService service = new SumService(Summation.DOUBLE, Metrics.disabled(), null,
+                new SumService.Limits(0, 20, 0, 0));
+        CompletableFuture<Double> timedOut = service.add(5, 7);
+        CompletableFuture<Double> retried = service.add(5, 7);
+        ExecutionException e = assertThrows(ExecutionException.class, () -> timedOut.get(5, TimeUnit.SECONDS));
+        assertTrue(e.getCause() instanceof SumService.TimedOutException, e.toString());
+        e = assertThrows(ExecutionException.class, () -> retried.get(5, TimeUnit.SECONDS));
+        assertTrue(e.getCause() instanceof SumService.TimedOutException, e.toString());
+
+        SumService waiting = new SumService(Summation.DOUBLE, Metrics.disabled(), null,
+                new SumService.Limits(0, 60_000, 0, 0));
+        CompletableFuture<Double> counted = waiting.add(5, 7);
+        CompletableFuture<Double> retriedAgain = waiting.add(5, 7);
+        assertEquals(5, waiting.end().join());
+        assertEquals(5, counted.join());
+        assertEquals(5, retriedAgain.join());
+        assertThrows(SumService.TimedOutException.class, () -> service.doAdd(5, 7));
+        CompletableFuture<Double> fresh = service.add(5, 7);
+        assertEquals(5, service.end().join());
+        assertEquals(5, fresh.join());
+    }
+
+    /**
+     * Stress tests the retries racing with the 'end' signal. In every iteration, the main thread adds 1 with a new key
+     * per retrier, then the retriers retry their adds while the main thread ends the round, so every retry lands in
+     * the round of its add or in the next one. Every key must be counted exactly once and every retry must get the
+     * same sum as its add, with both the inline and the pipelined release.
+     */
+    @Test
+    void whenRetriesRaceWithEndThenEachKeyCountedOnce() throws Exception {
+        int retrierCount = 4;
+        int iterations = 2_000;
+        for (boolean pipelined : new boolean[] {false, true}) {
+            SumService service = new SumService(Summation.DOUBLE, Metrics.disabled(), null, SumService.Limits.NONE,
+                    RoundStats.Level.NONE, pipelined);
+            ExecutorService executor = Executors.newFixedThreadPool(retrierCount);
+            CyclicBarrier start = new CyclicBarrier(retrierCount + 1);
+            CyclicBarrier done = new CyclicBarrier(retrierCount + 1);
+            List<CompletableFuture<Double>> adds = new ArrayList<>();
+            List<CompletableFuture<Double>> retries = new ArrayList<>();
+            for (int i = 0; i < iterations * retrierCount; i++) {
+                retries.add(null);
+            }
+            List<Future<?>> futures = new ArrayList<>();
+            for (int r = 0; r < retrierCount; r++) {
+                int retrier = r;
+                futures.add(executor.submit(() -> {
+                    for (int i = 0; i < iterations; i++) {
+                        start.await();
+                        int index = i * retrierCount + retrier;
+                        retries.set(index, service.add(1, index + 1));
+                        done.await();
+                    }
+                    return null;
+                }));
+            }
+            double totalOfRounds = 0;
+            for (int i = 0; i < iterations; i++) {
+                for (int r = 0; r < retrierCount; r++) {
+                    adds.add(service.add(1, i * retrierCount + r + 1));
+                }
+                start.await();
+                totalOfRounds += service.end().join();
+                done.await();
+            }
+            totalOfRounds += service.end().join();
+            for (Future<?> future : futures) {
+                future.get();
+            }
+            executor.shutdown();
+
+            assertEquals(iterations * retrierCount, totalOfRounds, "pipelined=" + pipelined);
+            for (int i = 0; i < adds.size(); i++) {
+                assertEquals(adds.get(i).get(5, TimeUnit.SECONDS), retries.get(i).get(5, TimeUnit.SECONDS),
+                        "pipelined=" + pipelined + ", key=" + (i + 1));
+            }
+        }
+    }
+
+    /**
+     * Tests that the adders and the 'end' signal receive the statistics of their round, and that no statistics are
+     * returned unless they are collected.
+     */
+    @Test
+    void whenStatsCollectedThenReturnedWithSum() throws Exception {
+        SumService service = new SumService(Summation.DOUBLE, Metrics.disabled(), null,
+                SumService.Limits.NONE, RoundStats.Level.MOMENTS);
+        CompletableFuture<RoundStats> first = service.addWithStats(2);
+        CompletableFuture<Double> second = service.add(4);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Future<RoundStats> blocked = executor.submit(() -> service.doAddWithStats(6));
+        while (!blocked.isDone() && service.runningSum() != 12) {
+            Thread.onSpinWait();
+        }
+
+        RoundStats ended = service.doEndWithStats();
+        assertEquals(12, ended.sum());
+        assertEquals(3, ended.count());
+        assertEquals(4, ended.mean());
+        assertEquals(8.0 / 3, ended.variance(), 1e-12);
+        assertEquals(2, ended.min());
+        assertEquals(6, ended.max());
+        assertEquals(ended, first.join());
+        assertEquals(ended, blocked.get());
+        assertEquals(12, second.join());
+        executor.shutdown();
+
+        assertEquals(0, service.doEndWithStats().count());
+        assertEquals(null, new SumService().doEndWithStats());
+    }
+
+    /**
+     * Tests that every number of a batch is aggregated in the statistics of the round on its own, with or without a
+     * key, while the batch is a single add of the round, e.g. for its pending adds and its auto end.
+     */
+    @Test
+    void whenBatchWithStatsThenEachNumberAggregated() throws Exception {
+        SumService service = new SumService(Summation.DOUBLE, Metrics.disabled(), null,
+                new SumService.Limits(0, 0, 3, 0), RoundStats.Level.MOMENTS);
+        CompletableFuture<RoundStats> batched = service.addWithStats(batch("1\n2\n3"), IdempotencyKeys.NONE);
+        CompletableFuture<RoundStats> keyed = service.addWithStats(batch("4\n6"), 7);
+        assertEquals(2, service.snapshot().pending());
+        assertFalse(batched.isDone());
+
+        RoundStats ended = service.doEndWithStats();
+        assertEquals(16, ended.sum());
+        assertEquals(5, ended.count());
+        assertEquals(3.2, ended.mean(), 1e-12);
+        assertEquals(1, ended.min());
+        assertEquals(6, ended.max());
+        assertEquals(ended, batched.join());
+        assertEquals(ended, keyed.join());
+    }
+
+    /**
+     * Tests that a round ends by itself once it has the configured number of adds, and every adder of the round
+     * receives its sum.
+     */
+    @Test
+    void whenAutoEndAddsThenRoundEnds() {
+        SumService service = new SumService(Summation.DOUBLE, Metrics.disabled(), null,
+                new SumService.Limits(0, 0, 3, 0));
+        CompletableFuture<Double> first = service.add(1);
+        CompletableFuture<Double> second = service.add(2);
+        assertFalse(second.isDone());
+        CompletableFuture<Double> third = service.add(3);
+        assertEquals(6, first.join());
+        assertEquals(6, second.join());
+        assertEquals(6, third.join());
+
+        CompletableFuture<Double> next = service.add(4);
+        assertFalse(next.isDone());
+        assertEquals(4, service.end().join());
+    }
+
+    /**
+     * Tests that a round ends by itself after the configured time since its first add, once per round.
+     */
+    @Test
+    void whenAutoEndMillisThenRoundEnds() throws Exception {
+        SumService service = new SumService(Summation.DOUBLE, Metrics.disabled(), null,
+                new SumService.Limits(0, 0, 0, 20));
+        long start = System.nanoTime();
+        CompletableFuture<Double> first = service.add(1);
+        CompletableFuture<Double> second = service.add(2);
+        assertEquals(3, first.get(5, TimeUnit.SECONDS));
+        assertEquals(3, second.join());
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(20));
+
+        assertEquals(4, service.add(4).get(5, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Load tests the limits under overload: the adders outpace the 'end' signals, so the rounds are full most of the
+     * time and many adds time out. The pending adds of a round never exceed the limit by more than the number of the
+     * concurrent adders, and every add is either rejected, withdrawn or counted in exactly one round, i.e. the ended
+     * rounds sum up to the number of the adds that received a sum.
+     */
+    @Test
+    void whenOverloadedThenPendingBoundedAndEachAddCountedOnce() throws Exception {
+        int threadCount = 4;
+        int maxPending = 1_000;
+        SumService service = new SumService(Summation.DOUBLE, Metrics.disabled(), null,
+                new SumService.Limits(maxPending, 5, 0, 0));
+        LongAdder ended = new LongAdder();
+        service.onComplete(sum -> ended.add((long) sum));
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(500);
+        List<Future<List<CompletableFuture<Double>>>> adders = new ArrayList<>();
+        LongAdder rejected = new LongAdder();
+        for (int i = 0; i < threadCount; i++) {
+            adders.add(executor.submit(() -> {
+                List<CompletableFuture<Double>> results = new ArrayList<>();
+                while (System.nanoTime() < deadline) {
+                    try {
+                        results.add(service.add(1));
+                    } catch (SumService.OverloadedException e) {
+                        rejected.increment();
+                    }
+                }
+                return results;
+            }));
+        }
+        long maxCount = 0;
+        while (System.nanoTime() < deadline) {
+            SumService.Cut cut = service.cut();
+            maxCount = Math.max(maxCount, (long) cut.sum());
+            service.complete(cut.id(), cut.sum());
+            Thread.sleep(10);
+        }
+        long counted = 0;
+        long timedOut = 0;
+        for (Future<List<CompletableFuture<Double>>> adder : adders) {
+            for (CompletableFuture<Double> result : adder.get()) {
+                try {
+                    result.get(5, TimeUnit.SECONDS);
+                    counted++;
+                } catch (ExecutionException e) {
+                    assertTrue(e.getCause() instanceof SumService.TimedOutException, e.toString());
+                    timedOut++;
+                }
+            }
+        }
+        executor.shutdown();
+        service.end();
+        assertTrue(maxCount <= maxPending + threadCount, "maxCount=" + maxCount);
+        assertTrue(rejected.sum() > 0 && timedOut > 0, "rejected=" + rejected.sum() + ", timedOut=" + timedOut);
+        assertEquals(counted, ended.sum());
+    }
+
     /**
      * Creates a fine grained {@link SumService} that allows a custom runnable (i.e. <tt>onWait</tt>) to be
-     * executed when the {@link SumService#doWait()} method is called.
+     * executed when the {@link SumService#await(CompletableFuture)} method is called, i.e. after the number is added
+     * and before waiting for the 'end' signal.
      *
-     * @param onWait the method to execute when the {@link SumService#doWait()} method is called.
+     * @param onWait the method to execute when the {@link SumService#await(CompletableFuture)} method is called.
      * @return the {@link SumService} as a spy.
      */
     private SumService service(Runnable onWait) {
         return new SumService() {
             @Override
-            public synchronized void doWait() throws InterruptedException {
+            double await(CompletableFuture<Double> result) throws InterruptedException {
                 onWait.run();
-                super.doWait();
+                return super.await(result);
             }
         };
     }
-}
\ No newline at end of file
+
+    /**
+     * @param text the body of a text batch.
+     * @return the batch read from the <tt>text</tt>.
+     */
+    private static Batch batch(String text) throws IOException {
+        return Batch.readText(new ByteArrayInputStream(text.getBytes(StandardCharsets.UTF_8)));
+    }
+}
@@ -1,29 +1,60 @@
 package com.fortumo.ws;
 
+import jakarta.servlet.AsyncContext;
+import jakarta.servlet.ServletConfig;
+import jakarta.servlet.ReadListener;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.ServletInputStream;
 import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.WriteListener;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
-import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Supplier;
 
 import static jakarta.servlet.http.HttpServletResponse.SC_BAD_REQUEST;
+import static jakarta.servlet.http.HttpServletResponse.SC_CONFLICT;
+import static jakarta.servlet.http.HttpServletResponse.SC_FORBIDDEN;
 import static jakarta.servlet.http.HttpServletResponse.SC_INTERNAL_SERVER_ERROR;
+import static jakarta.servlet.http.HttpServletResponse.SC_NOT_FOUND;
+import static jakarta.servlet.http.HttpServletResponse.SC_SERVICE_UNAVAILABLE;
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyDouble;
 import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyLong;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
-import static org.mockito.Mockito.doNothing;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 class SumServletTest {
 
+    /**
+     * The shared secret of the cluster configs.
+     */
+    private static final String CLUSTER_SECRET = "s3cret";
+
     /**
      * Tests {@link SumServlet#createService()} method returns non-null service.
      */
@@ -99,7 +130,8 @@ class SumServletTest {
     void whenNumberReceivedThenSuccess() throws IOException {
         HttpServletResponse respMock = response();
         servlet().doPost(request(() -> "1"), respMock);
-        verifySuccessResponse(respMock);
+        verifySuccessResponse(respMock, "10");
+        verify(respMock).setContentLength(4);
     }
 
     /**
@@ -109,7 +141,786 @@ class SumServletTest {
     void whenEndReceivedThenSuccess() throws IOException {
         HttpServletResponse respMock = response();
         servlet().doPost(request(() -> "end"), respMock);
-        verifySuccessResponse(respMock);
+        verifySuccessResponse(respMock, "0");
+    }
+
+    /**
+     * tests that in the async mode, a single thread can have far more adders waiting for the 'end' signal than an
+     * application server has threads (e.g. 200 by default in jetty and tomcat).
+     */
+    @Test
+    void whenAsyncModeThenMorePendingAddersThanContainerThreads() throws IOException, ServletException {
+        SumServlet servlet = new SumServlet();
+        servlet.init(config("async"));
+
+        int adderCount = 1_000;
+        List<AsyncContext> contexts = new ArrayList<>();
+        List<HttpServletResponse> responses = new ArrayList<>();
+        for (int i = 0; i < adderCount; i++) {
+            HttpServletResponse respMock = response();
+            AsyncContext contextMock = mock(AsyncContext.class);
+            when(contextMock.getResponse()).thenReturn(respMock);
+            HttpServletRequest reqMock = request(() -> "1");
+            when(reqMock.startAsync()).thenReturn(contextMock);
+
+            servlet.doPost(reqMock, respMock);  // returns without waiting for the 'end' signal.
+            verify(contextMock, never()).complete();
+            contexts.add(contextMock);
+            responses.add(respMock);
+        }
+
+        HttpServletResponse endRespMock = response();
+        servlet.doPost(request(() -> "end"), endRespMock);
+        assertEquals("1000\r\n", body(endRespMock));
+        for (int i = 0; i < adderCount; i++) {
+            verify(contexts.get(i)).complete();
+            assertEquals("1000\r\n", body(responses.get(i)));
+        }
+    }
+
+    /**
+     * tests that in the virtual mode, the adders block on virtual threads, so that far more adders can wait for the
+     * 'end' signal than an application server has threads.
+     */
+    @Test
+    void whenVirtualModeThenMorePendingAddersThanContainerThreads() throws Exception {
+        int adderCount = 1_000;
+        CountDownLatch waiting = new CountDownLatch(adderCount);
+        SumServlet servlet = new SumServlet() {
+            @Override
+            SumService createService() {
+                return new SumService() {
+                    @Override
+                    double await(CompletableFuture<Double> result) throws InterruptedException {
+                        waiting.countDown();
+                        return super.await(result);
+                    }
+                };
+            }
+        };
+        servlet.init(config("virtual"));
+
+        CountDownLatch completed = new CountDownLatch(adderCount + 1);
+        List<HttpServletResponse> responses = new ArrayList<>();
+        for (int i = 0; i < adderCount; i++) {
+            HttpServletResponse respMock = response();
+            AsyncContext contextMock = asyncContext(completed::countDown);
+            HttpServletRequest reqMock = request(() -> "1");
+            when(reqMock.startAsync()).thenReturn(contextMock);
+
+            servlet.doPost(reqMock, respMock);  // returns without waiting for the 'end' signal.
+            responses.add(respMock);
+        }
+        waiting.await();
+
+        AsyncContext endContextMock = asyncContext(completed::countDown);
+        HttpServletRequest endReqMock = request(() -> "end");
+        when(endReqMock.startAsync()).thenReturn(endContextMock);
+        HttpServletResponse endRespMock = response();
+        servlet.doPost(endReqMock, endRespMock);
+
+        assertTrue(completed.await(5, TimeUnit.SECONDS));
+        assertEquals("1000\r\n", body(endRespMock));
+        for (HttpServletResponse respMock : responses) {
+            assertEquals("1000\r\n", body(respMock));
+        }
+        servlet.destroy();
+    }
+
+    /**
+     * tests that the requests to different session paths are summed up independently, and the requests without a
+     * session path are sent to the default session.
+     */
+    @Test
+    void whenDifferentSessionsThenIndependentSums() throws IOException, ServletException {
+        SumServlet servlet = new SumServlet();
+        servlet.init(config("async"));
+
+        HttpServletResponse aRespMock = response();
+        AsyncContext aContextMock = mock(AsyncContext.class);
+        when(aContextMock.getResponse()).thenReturn(aRespMock);
+        HttpServletRequest aReqMock = request("/a", () -> "1");
+        when(aReqMock.startAsync()).thenReturn(aContextMock);
+        servlet.doPost(aReqMock, aRespMock);
+
+        HttpServletResponse bRespMock = response();
+        AsyncContext bContextMock = mock(AsyncContext.class);
+        when(bContextMock.getResponse()).thenReturn(bRespMock);
+        HttpServletRequest bReqMock = request("/b", () -> "2");
+        when(bReqMock.startAsync()).thenReturn(bContextMock);
+        servlet.doPost(bReqMock, bRespMock);
+
+        HttpServletResponse endRespMock = response();
+        servlet.doPost(request("/a", () -> "end"), endRespMock);
+        assertEquals("1\r\n", body(endRespMock));
+        assertEquals("1\r\n", body(aRespMock));
+        verify(bContextMock, never()).complete();
+
+        HttpServletResponse defaultEndRespMock = response();
+        servlet.doPost(request("/", () -> "end"), defaultEndRespMock);
+        assertEquals("0\r\n", body(defaultEndRespMock));
+        verify(bContextMock, never()).complete();
+    }
+
+    /**
+     * tests when the path of the request has more than one segment, then an error is sent.
+     */
+    @Test
+    void whenInvalidSessionPathThenSendErrorCalled() throws IOException {
+        HttpServletResponse respMock = response();
+        servlet().doPost(request("/a/b", () -> "1"), respMock);
+        verifySendErrorCalled(respMock, SC_NOT_FOUND);
+    }
+
+    /**
+     * tests that a text batch is answered with the result followed by the errors of the rejected values.
+     */
+    @Test
+    void whenTextBatchReceivedThenResultAndErrorsSent() throws IOException {
+        HttpServletResponse respMock = response();
+        HttpServletRequest reqMock = request(() -> "1\nabc\n2");
+        when(reqMock.getQueryString()).thenReturn(SumServlet.BATCH_PARAM);
+        servlet().doPost(reqMock, respMock);
+        verifySuccessResponse(respMock, "10\r\nline 2: not a number");
+    }
+
+    /**
+     * tests when a batch contains no valid number, then an error is sent.
+     */
+    @Test
+    void whenBatchWithoutValidNumberThenSendErrorCalled() throws IOException {
+        HttpServletResponse respMock = response();
+        HttpServletRequest reqMock = request(() -> "abc\n");
+        when(reqMock.getQueryString()).thenReturn("x=1&" + SumServlet.BATCH_PARAM + "=true");
+        servlet().doPost(reqMock, respMock);
+        verifySendErrorCalled(respMock, SC_BAD_REQUEST, "batch contains no valid number");
+    }
+
+    /**
+     * tests that a batch of more numbers than the configured maximum is rejected with <tt>413</tt> and not counted,
+     * a binary one by its content length before its body is read, and an invalid maximum fails the initialization.
+     */
+    @Test
+    void whenBatchTooLargeThenSendErrorCalled() throws IOException, ServletException {
+        ServletConfig configMock = config(null);
+        when(configMock.getInitParameter(SumServlet.MAX_BATCH_SIZE_PARAM)).thenReturn("2");
+        SumServlet servlet = new SumServlet();
+        servlet.init(configMock);
+
+        HttpServletResponse textRespMock = response();
+        HttpServletRequest textReqMock = request(() -> "1\n2\n3");
+        when(textReqMock.getQueryString()).thenReturn(SumServlet.BATCH_PARAM);
+        servlet.doPost(textReqMock, textRespMock);
+        verifySendErrorCalled(textRespMock, SumServlet.SC_CONTENT_TOO_LARGE, "batch has more than 2 numbers");
+
+        HttpServletResponse binaryRespMock = response();
+        HttpServletRequest binaryReqMock = mock(HttpServletRequest.class);
+        when(binaryReqMock.getContentType()).thenReturn(SumServlet.BINARY_CONTENT_TYPE);
+        when(binaryReqMock.getContentLengthLong()).thenReturn(3L * Double.BYTES);
+        servlet.doPost(binaryReqMock, binaryRespMock);
+        verifySendErrorCalled(binaryRespMock, SumServlet.SC_CONTENT_TOO_LARGE, "batch has more than 2 numbers");
+        verify(binaryReqMock, never()).getInputStream();
+
+        HttpServletResponse endRespMock = response();
+        servlet.doPost(request(() -> "end"), endRespMock);
+        assertEquals("0\r\n", body(endRespMock));
+
+        ServletConfig invalidMock = config(null);
+        when(invalidMock.getInitParameter(SumServlet.MAX_BATCH_SIZE_PARAM)).thenReturn("0");
+        assertThrows(ServletException.class, () -> new SumServlet().init(invalidMock));
+    }
+
+    /**
+     * tests that the numbers of a binary batch are added to the round as a single add in the async mode, and the batch
+     * is answered with the sum of the round.
+     */
+    @Test
+    void whenBinaryBatchReceivedThenAddedToRound() throws IOException, ServletException {
+        SumServlet servlet = new SumServlet();
+        servlet.init(config("async"));
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(bytes);
+        for (int i = 1; i <= 100; i++) {
+            data.writeDouble(i);
+        }
+        HttpServletRequest reqMock = mock(HttpServletRequest.class);
+        when(reqMock.getInputStream()).thenReturn(new RequestStream(bytes.toByteArray()));
+        when(reqMock.getContentType()).thenReturn(SumServlet.BINARY_CONTENT_TYPE);
+        HttpServletResponse respMock = response();
+        AsyncContext contextMock = mock(AsyncContext.class);
+        when(contextMock.getResponse()).thenReturn(respMock);
+        when(reqMock.startAsync()).thenReturn(contextMock);
+        servlet.doPost(reqMock, respMock);
+        servlet.doPost(request(() -> "1"), response());  // a single number in the same round.
+
+        HttpServletResponse endRespMock = response();
+        servlet.doPost(request(() -> "end"), endRespMock);
+        assertEquals("5051\r\n", body(endRespMock));
+        verify(contextMock).complete();
+        assertEquals("5051\r\n", body(respMock));
+    }
+
+    /**
+     * tests that the numbers of a batch are compensated one by one, rather than summed up as plain doubles first, which
+     * would lose the 1 of <tt>1e16 + 1 - 1e16</tt>.
+     */
+    @Test
+    void whenCompensatedBatchThenEachNumberCompensated() throws IOException, ServletException {
+        assertEquals(List.of("1\r\n", "1\r\n"), batchThenEnd("compensated", "1e16\n1\n-1e16"));
+    }
+
+    /**
+     * tests that the numbers of a batch are summed up exactly, independent of their order within the batch.
+     */
+    @Test
+    void whenExactBatchThenSummedExactly() throws IOException, ServletException {
+        assertEquals(List.of("1\r\n", "1\r\n"), batchThenEnd("exact", "1e16\n1\n-1e16"));
+        assertEquals(List.of("1\r\n", "1\r\n"), batchThenEnd("exact", "1\n-1e16\n1e16"));
+    }
+
+    /**
+     * tests that the numbers of a fixed point batch are summed up as longs, and each number that is not an integer is
+     * rejected on its own, even if the batch sums up to an integer.
+     */
+    @Test
+    void whenFixedPointBatchThenIntegersSummedAndOthersRejected() throws IOException, ServletException {
+        assertEquals(List.of("1\r\n", "1\r\n"), batchThenEnd("fixed-point", "1e16\n1\n-1e16"));
+        assertEquals(List.of("3\r\nline 1: fixed point summation accepts only integers, number=0.5\r\n"
+                        + "line 3: fixed point summation accepts only integers, number=0.5\r\n", "3\r\n"),
+                batchThenEnd("fixed-point", "0.5\n3\n0.5"));
+
+        SumServlet servlet = summationServlet("fixed-point");
+        HttpServletRequest reqMock = request(() -> "0.5\n0.5");
+        when(reqMock.getQueryString()).thenReturn(SumServlet.BATCH_PARAM);
+        HttpServletResponse respMock = response();
+        servlet.doPost(reqMock, respMock);
+        verifySendErrorCalled(respMock, SC_BAD_REQUEST, "batch contains no valid number");
+        HttpServletResponse endRespMock = response();
+        servlet.doPost(request(() -> "end"), endRespMock);
+        assertEquals("0\r\n", body(endRespMock));
+    }
+
+    /**
+     * tests that the metrics are exposed in the Prometheus text format, and the requests are counted in them.
+     */
+    @Test
+    void whenGetMetricsThenPrometheusTextSent() throws IOException {
+        SumServlet servlet = new SumServlet();
+        servlet.doPost(request(() -> "end"), response());
+        servlet.doPost(request(() -> "abc"), response());
+
+        HttpServletRequest reqMock = mock(HttpServletRequest.class);
+        when(reqMock.getPathInfo()).thenReturn(SumServlet.METRICS_PATH);
+        HttpServletResponse respMock = response();
+        servlet.doGet(reqMock, respMock);
+        verify(respMock).setStatus(200);
+        String text = body(respMock);
+        assertTrue(text.contains("\nsum_sessions 1\n"), text);
+        assertTrue(text.contains("\nsum_rounds_total 1\n"), text);
+        assertTrue(text.contains("\nsum_request_errors_total 1\n"), text);
+        assertTrue(text.contains("\nsum_request_duration_seconds_count{type=\"end\"} 1\n"), text);
+    }
+
+    /**
+     * tests that a subscriber of a session receives the running sum and the completed rounds as Server-Sent Events,
+     * and an invalid session path is not found.
+     */
+    @Test
+    void whenSubscribedThenEventsStreamed() throws Exception {
+        ServletConfig configMock = config(null);
+        when(configMock.getInitParameter(SumServlet.EVENT_INTERVAL_PARAM)).thenReturn("10");
+        SumServlet servlet = new SumServlet();
+        servlet.init(configMock);
+
+        HttpServletRequest reqMock = request("/a" + SumServlet.EVENTS_SUFFIX, () -> null);
+        AsyncContext contextMock = mock(AsyncContext.class);
+        when(reqMock.startAsync()).thenReturn(contextMock);
+        HttpServletResponse respMock = response();
+        servlet.doGet(reqMock, respMock);
+        verify(respMock).setContentType("text/event-stream;charset=UTF-8");
+        awaitBody(respMock, "event: sum\ndata: 0\n\n");
+
+        servlet.doPost(request("/a", () -> "end"), response());
+        awaitBody(respMock, "event: round\ndata: 0\n\n");
+
+        HttpServletResponse invalidRespMock = response();
+        servlet.doGet(request("/a/b" + SumServlet.EVENTS_SUFFIX, () -> null), invalidRespMock);
+        verify(invalidRespMock).sendError(SC_NOT_FOUND);
+        servlet.destroy();
+        verify(contextMock).complete();
+    }
+
+    /**
+     * tests that a snapshot of the current round of a session is sent as JSON without ending the round, and the
+     * snapshot of a session that does not exist is not found.
+     */
+    @Test
+    void whenGetSnapshotThenCurrentRoundSent() throws Exception {
+        SumServlet servlet = new SumServlet();
+        servlet.init(config("async"));
+        for (String number : new String[]{"1", "2.5"}) {
+            HttpServletRequest addReq = request("/a", () -> number);
+            when(addReq.startAsync()).thenReturn(mock(AsyncContext.class));
+            servlet.doPost(addReq, response());
+        }
+
+        HttpServletResponse respMock = response();
+        servlet.doGet(request("/a" + SumServlet.SNAPSHOT_SUFFIX, () -> null), respMock);
+        String expected = "{\"round\":1,\"sum\":3.5,\"pending\":2,\"consistent\":true}\r\n";
+        assertEquals(expected, body(respMock));
+        verify(respMock).setContentType("application/json;charset=UTF-8");
+        verify(respMock).setContentLength(expected.length());
+
+        HttpServletResponse endResp = response();
+        servlet.doPost(request("/a", () -> "end"), endResp);
+        assertEquals("3.5\r\n", body(endResp));
+
+        HttpServletResponse unknownRespMock = response();
+        servlet.doGet(request("/b" + SumServlet.SNAPSHOT_SUFFIX, () -> null), unknownRespMock);
+        verify(unknownRespMock).sendError(SC_NOT_FOUND);
+    }
+
+    /**
+     * tests when the path of a GET request is not the metrics path, then not found is sent.
+     */
+    @Test
+    void whenGetOtherPathThenNotFound() throws IOException {
+        HttpServletRequest reqMock = mock(HttpServletRequest.class);
+        when(reqMock.getPathInfo()).thenReturn("/a");
+        HttpServletResponse respMock = response();
+        servlet().doGet(reqMock, respMock);
+        verify(respMock).sendError(SC_NOT_FOUND);
+    }
+
+    /**
+     * tests when the mode init parameter is unknown, then the servlet fails to initialize.
+     */
+    @Test
+    void whenUnknownModeThenInitFails() {
+        assertThrows(ServletException.class, () -> new SumServlet().init(config("some-arbitrary-mode")));
+    }
+
+    /**
+     * tests when the summation init parameter is unknown, then the servlet fails to initialize.
+     */
+    @Test
+    void whenUnknownSummationThenInitFails() {
+        ServletConfig configMock = config(null);
+        when(configMock.getInitParameter(SumServlet.SUMMATION_PARAM)).thenReturn("some-arbitrary-summation");
+        assertThrows(ServletException.class, () -> new SumServlet().init(configMock));
+    }
+
+    /**
+     * tests when the summation is fixed point and the number is not an integer, then an error is sent.
+     */
+    @Test
+    void whenFixedPointAndNotIntegerThenSendErrorCalled() throws IOException, ServletException {
+        ServletConfig configMock = config(null);
+        when(configMock.getInitParameter(SumServlet.SUMMATION_PARAM)).thenReturn("fixed-point");
+        SumServlet servlet = new SumServlet();
+        servlet.init(configMock);
+
+        HttpServletResponse respMock = response();
+        servlet.doPost(request(() -> "1.5"), respMock);
+        verifySendErrorCalled(respMock, SC_BAD_REQUEST);
+    }
+
+    /**
+     * tests that the numbers journaled by a servlet are recovered by the next servlet with the same journal directory,
+     * i.e. after a restart, and counted in the first round of their session.
+     */
+    @Test
+    void whenJournalDirThenSessionsRecoveredOnInit(@TempDir Path dir) throws IOException, ServletException {
+        ServletConfig configMock = config("async");
+        when(configMock.getInitParameter(SumServlet.JOURNAL_DIR_PARAM)).thenReturn(dir.toString());
+        when(configMock.getInitParameter(SumServlet.JOURNAL_DURABILITY_PARAM)).thenReturn("async");
+        SumServlet crashed = new SumServlet();
+        crashed.init(configMock);
+        for (String number : new String[]{"1", "2"}) {
+            HttpServletRequest reqMock = request("/a", () -> number);
+            when(reqMock.startAsync()).thenReturn(mock(AsyncContext.class));
+            crashed.doPost(reqMock, response());
+        }
+
+        SumServlet servlet = new SumServlet();
+        servlet.init(configMock);
+        HttpServletResponse endRespMock = response();
+        servlet.doPost(request("/a", () -> "end"), endRespMock);
+        assertEquals("3\r\n", body(endRespMock));
+    }
+
+    /**
+     * tests when the journal durability init parameter is unknown, then the servlet fails to initialize.
+     */
+    @Test
+    void whenUnknownJournalDurabilityThenInitFails() {
+        ServletConfig configMock = config(null);
+        when(configMock.getInitParameter(SumServlet.JOURNAL_DURABILITY_PARAM)).thenReturn("some-arbitrary-durability");
+        assertThrows(ServletException.class, () -> new SumServlet().init(configMock));
+    }
+
+    /**
+     * tests when the pipelined init parameter is neither true nor false, then the servlet fails to initialize.
+     */
+    @Test
+    void whenUnknownPipelinedThenInitFails() {
+        ServletConfig configMock = config(null);
+        when(configMock.getInitParameter(SumServlet.PIPELINED_PARAM)).thenReturn("yes");
+        assertThrows(ServletException.class, () -> new SumServlet().init(configMock));
+    }
+
+    /**
+     * tests that a node of a cluster serves the calls of the coordinators, and an unknown cut is a conflict.
+     */
+    @Test
+    void whenClusterCallsThenHandled() throws IOException, ServletException {
+        SumServlet servlet = new SumServlet();
+        servlet.init(clusterConfig());
+
+        HttpServletResponse cutRespMock = response();
+        servlet.doPost(clusterCall(SumCluster.CUT_PARAM, null, CLUSTER_SECRET), cutRespMock);
+        assertEquals("1 0.0", body(cutRespMock));
+
+        for (int status : new int[]{200, SC_CONFLICT}) {
+            HttpServletResponse respMock = response();
+            servlet.doPost(clusterCall(SumCluster.COMPLETE_PARAM + "=1", "5", CLUSTER_SECRET), respMock);
+            if (status == 200) {
+                verify(respMock).setStatus(200);
+            } else {
+                verifySendErrorCalled(respMock, status, "unknown cut");
+            }
+        }
+    }
+
+    /**
+     * tests that a cluster call without the shared secret of the cluster, e.g. a client that forges the total of a
+     * cut, is forbidden and leaves the cut pending, and a cluster cannot be configured without a secret.
+     */
+    @Test
+    void whenClusterCallNotAuthenticatedThenForbidden() throws IOException, ServletException {
+        SumServlet servlet = new SumServlet();
+        servlet.init(clusterConfig());
+        servlet.doPost(clusterCall(SumCluster.CUT_PARAM, null, CLUSTER_SECRET), response());
+
+        for (String secret : new String[]{null, "", "guess"}) {
+            HttpServletResponse respMock = response();
+            servlet.doPost(clusterCall(SumCluster.COMPLETE_PARAM + "=1", "1e9", secret), respMock);
+            verifySendErrorCalled(respMock, SC_FORBIDDEN, "cluster call not authenticated");
+        }
+        HttpServletResponse abortRespMock = response();
+        servlet.doPost(clusterCall(SumCluster.ABORT_PARAM + "=1", null, null), abortRespMock);
+        verifySendErrorCalled(abortRespMock, SC_FORBIDDEN, "cluster call not authenticated");
+
+        HttpServletResponse respMock = response();
+        servlet.doPost(clusterCall(SumCluster.COMPLETE_PARAM + "=1", "5", CLUSTER_SECRET), respMock);
+        verify(respMock).setStatus(200);  // the cut is still pending.
+
+        ServletConfig noSecretMock = config(null);
+        when(noSecretMock.getInitParameter(SumServlet.CLUSTER_NODES_PARAM)).thenReturn("http://a,http://b");
+        when(noSecretMock.getInitParameter(SumServlet.CLUSTER_SELF_PARAM)).thenReturn("http://a");
+        assertThrows(ServletException.class, () -> new SumServlet().init(noSecretMock));
+    }
+
+    /**
+     * tests when this node is not one of the cluster nodes, then the servlet fails to initialize.
+     */
+    @Test
+    void whenClusterSelfUnknownThenInitFails() {
+        ServletConfig configMock = config(null);
+        when(configMock.getInitParameter(SumServlet.CLUSTER_NODES_PARAM)).thenReturn("http://a,http://b");
+        assertThrows(ServletException.class, () -> new SumServlet().init(configMock));
+    }
+
+    /**
+     * tests when the binary front end has no event loop, then the servlet fails to initialize.
+     */
+    @Test
+    void whenInvalidBinaryLoopsThenInitFails() {
+        ServletConfig configMock = config(null);
+        when(configMock.getInitParameter(SumServlet.BINARY_PORT_PARAM)).thenReturn("0");
+        when(configMock.getInitParameter(SumServlet.BINARY_LOOPS_PARAM)).thenReturn("0");
+        assertThrows(ServletException.class, () -> new SumServlet().init(configMock));
+    }
+
+    /**
+     * tests that an add that is not ended in time is answered with <tt>503</tt> and the <tt>Retry-After</tt> header,
+     * and its number is not counted.
+     */
+    @Test
+    void whenAddTimesOutThenServiceUnavailable() throws Exception {
+        SumServlet servlet = new SumServlet();
+        servlet.init(limitsConfig("blocking"));
+
+        HttpServletResponse timedOutResp = response();
+        servlet.doPost(request(() -> "1"), timedOutResp);  // blocks until the add times out.
+        verifySendErrorCalled(timedOutResp, SC_SERVICE_UNAVAILABLE);
+        verify(timedOutResp).setHeader("Retry-After", "2");
+
+        HttpServletResponse endRespMock = response();
+        servlet.doPost(request(() -> "end"), endRespMock);
+        verifySuccessResponse(endRespMock, "0");
+    }
+
+    /**
+     * tests that in the async mode, an add to a full round is answered with <tt>429</tt> and the suspended add that is
+     * not ended in time with <tt>503</tt>, both with the <tt>Retry-After</tt> header.
+     */
+    @Test
+    void whenAsyncAndLimitsExceededThenRetryAfterSent() throws Exception {
+        SumServlet servlet = new SumServlet();
+        servlet.init(limitsConfig("async"));
+
+        HttpServletResponse timedOutResp = response();
+        CountDownLatch completed = new CountDownLatch(1);
+        AsyncContext contextMock = asyncContext(completed::countDown);
+        when(contextMock.getResponse()).thenReturn(timedOutResp);
+        HttpServletRequest timedOutReq = request(() -> "1");
+        when(timedOutReq.startAsync()).thenReturn(contextMock);
+        servlet.doPost(timedOutReq, timedOutResp);
+
+        HttpServletResponse rejectedResp = response();
+        servlet.doPost(request(() -> "1"), rejectedResp);
+        verifySendErrorCalled(rejectedResp, SumServlet.SC_TOO_MANY_REQUESTS);
+        verify(rejectedResp).setHeader("Retry-After", "2");
+
+        assertTrue(completed.await(5, TimeUnit.SECONDS));
+        verifySendErrorCalled(timedOutResp, SC_SERVICE_UNAVAILABLE);
+        verify(timedOutResp).setHeader("Retry-After", "2");
+    }
+
+    /**
+     * tests when a limit is invalid or the rounds of a cluster end automatically, then the servlet fails to
+     * initialize.
+     */
+    @Test
+    void whenInvalidLimitsThenInitFails() {
+        ServletConfig negativeMock = config(null);
+        when(negativeMock.getInitParameter(SumServlet.ADD_TIMEOUT_PARAM)).thenReturn("-1");
+        assertThrows(ServletException.class, () -> new SumServlet().init(negativeMock));
+
+        ServletConfig retryMock = config(null);
+        when(retryMock.getInitParameter(SumServlet.RETRY_AFTER_PARAM)).thenReturn("soon");
+        assertThrows(ServletException.class, () -> new SumServlet().init(retryMock));
+
+        ServletConfig clusterMock = config(null);
+        when(clusterMock.getInitParameter(SumServlet.AUTO_END_ADDS_PARAM)).thenReturn("10");
+        when(clusterMock.getInitParameter(SumServlet.CLUSTER_NODES_PARAM)).thenReturn("http://a,http://b");
+        when(clusterMock.getInitParameter(SumServlet.CLUSTER_SELF_PARAM)).thenReturn("http://a");
+        when(clusterMock.getInitParameter(SumServlet.CLUSTER_SECRET_PARAM)).thenReturn(CLUSTER_SECRET);
+        assertThrows(ServletException.class, () -> new SumServlet().init(clusterMock));
+    }
+
+    /**
+     * tests that with the stats collected, the requests that accept JSON are answered with the statistics of their
+     * round and the other ones with the sum, and the stats are not supported in a cluster.
+     */
+    @Test
+    void whenStatsAndAcceptJsonThenStatsSent() throws Exception {
+        SumServlet servlet = new SumServlet();
+        ServletConfig configMock = config("async");
+        when(configMock.getInitParameter(SumServlet.STATS_PARAM)).thenReturn("moments");
+        servlet.init(configMock);
+
+        HttpServletResponse jsonResp = response();
+        AsyncContext jsonContext = mock(AsyncContext.class);
+        when(jsonContext.getResponse()).thenReturn(jsonResp);
+        HttpServletRequest jsonReq = request(() -> "2");
+        when(jsonReq.getHeader("Accept")).thenReturn("application/json");
+        when(jsonReq.startAsync()).thenReturn(jsonContext);
+        servlet.doPost(jsonReq, jsonResp);
+
+        HttpServletResponse textResp = response();
+        AsyncContext textContext = mock(AsyncContext.class);
+        when(textContext.getResponse()).thenReturn(textResp);
+        HttpServletRequest textReq = request(() -> "4");
+        when(textReq.startAsync()).thenReturn(textContext);
+        servlet.doPost(textReq, textResp);
+
+        HttpServletResponse endResp = response();
+        HttpServletRequest endReq = request(() -> "end");
+        when(endReq.getHeader("Accept")).thenReturn("text/plain, application/json");
+        servlet.doPost(endReq, endResp);
+        String expected = "{\"sum\":6.0,\"count\":2,\"min\":2.0,\"max\":4.0,\"mean\":3.0,\"variance\":1.0}\r\n";
+        assertEquals(expected, body(endResp));
+        verify(endResp).setContentType("application/json;charset=UTF-8");
+        verify(endResp).setContentLength(expected.length());
+        assertEquals(expected, body(jsonResp));
+        assertEquals("6\r\n", body(textResp));
+
+        ServletConfig clusterMock = config(null);
+        when(clusterMock.getInitParameter(SumServlet.STATS_PARAM)).thenReturn("quantiles");
+        when(clusterMock.getInitParameter(SumServlet.CLUSTER_NODES_PARAM)).thenReturn("http://a,http://b");
+        when(clusterMock.getInitParameter(SumServlet.CLUSTER_SELF_PARAM)).thenReturn("http://a");
+        when(clusterMock.getInitParameter(SumServlet.CLUSTER_SECRET_PARAM)).thenReturn(CLUSTER_SECRET);
+        assertThrows(ServletException.class, () -> new SumServlet().init(clusterMock));
+        ServletConfig unknownMock = config(null);
+        when(unknownMock.getInitParameter(SumServlet.STATS_PARAM)).thenReturn("median");
+        assertThrows(ServletException.class, () -> new SumServlet().init(unknownMock));
+    }
+
+    /**
+     * tests that a batch that accepts JSON is answered with the statistics of its round, where each of its numbers is
+     * counted on its own, followed by the errors of the batch, in the async and the blocking modes.
+     */
+    @Test
+    void whenBatchAcceptsJsonThenStatsAndErrorsSent() throws Exception {
+        ServletConfig configMock = config("async");
+        when(configMock.getInitParameter(SumServlet.STATS_PARAM)).thenReturn("moments");
+        SumServlet servlet = new SumServlet();
+        servlet.init(configMock);
+
+        HttpServletResponse batchResp = response();
+        AsyncContext batchContext = mock(AsyncContext.class);
+        when(batchContext.getResponse()).thenReturn(batchResp);
+        HttpServletRequest batchReq = request(() -> "1\n2\nabc\n3");
+        when(batchReq.getQueryString()).thenReturn(SumServlet.BATCH_PARAM);
+        when(batchReq.getHeader("Accept")).thenReturn("application/json");
+        when(batchReq.startAsync()).thenReturn(batchContext);
+        servlet.doPost(batchReq, batchResp);
+
+        servlet.doPost(request(() -> "end"), response());
+        String expected = "{\"sum\":6.0,\"count\":3,\"min\":1.0,\"max\":3.0,\"mean\":2.0,"
+                + "\"variance\":0.6666666666666666,\"errors\":[\"line 3: not a number\"],\"errorCount\":1}\r\n";
+        assertEquals(expected, body(batchResp));
+        verify(batchResp).setContentType("application/json;charset=UTF-8");
+        verify(batchResp).setContentLength(expected.length());
+
+        ServletConfig blockingMock = config(null);
+        when(blockingMock.getInitParameter(SumServlet.STATS_PARAM)).thenReturn("moments");
+        CountDownLatch waiting = new CountDownLatch(1);
+        SumServlet blocking = new SumServlet() {
+            @Override
+            SumService createService() {
+                return new SumService(Summation.DOUBLE, Metrics.disabled(), null, SumService.Limits.NONE,
+                        RoundStats.Level.MOMENTS) {
+                    @Override
+                    double await(CompletableFuture<Double> result) throws InterruptedException {
+                        waiting.countDown();
+                        return super.await(result);
+                    }
+                };
+            }
+        };
+        blocking.init(blockingMock);
+        HttpServletResponse blockedResp = response();
+        HttpServletRequest blockedReq = request(() -> "4\n6");
+        when(blockedReq.getQueryString()).thenReturn(SumServlet.BATCH_PARAM);
+        when(blockedReq.getHeader("Accept")).thenReturn("application/json");
+        Thread adder = new Thread(() -> {
+            try {
+                blocking.doPost(blockedReq, blockedResp);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        adder.start();
+        waiting.await();
+        blocking.doPost(request(() -> "end"), response());
+        adder.join(5_000);
+        assertEquals("{\"sum\":10.0,\"count\":2,\"min\":4.0,\"max\":6.0,\"mean\":5.0,\"variance\":1.0}\r\n",
+                body(blockedResp));
+    }
+
+    /**
+     * tests that a retried add, i.e. one with the same <tt>Idempotency-Key</tt> header, is answered with the sum of
+     * the round of the add without being counted again, while an add with another or no key is counted.
+     */
+    @Test
+    void whenRetriedWithIdempotencyKeyThenCountedOnce() throws Exception {
+        SumServlet servlet = new SumServlet();
+        servlet.init(config("async"));
+
+        List<HttpServletResponse> responses = new ArrayList<>();
+        for (String key : new String[] {"a1", "a1", "b2", null, ""}) {
+            HttpServletResponse respMock = response();
+            AsyncContext contextMock = mock(AsyncContext.class);
+            when(contextMock.getResponse()).thenReturn(respMock);
+            HttpServletRequest reqMock = request(() -> "2");
+            when(reqMock.getHeader(SumServlet.IDEMPOTENCY_KEY_HEADER)).thenReturn(key);
+            when(reqMock.startAsync()).thenReturn(contextMock);
+            servlet.doPost(reqMock, respMock);
+            responses.add(respMock);
+        }
+
+        HttpServletResponse endResp = response();
+        servlet.doPost(request(() -> "end"), endResp);
+        verifySuccessResponse(endResp, "8");
+        for (HttpServletResponse respMock : responses) {
+            verifySuccessResponse(respMock, "8");
+        }
+    }
+
+    /**
+     * Creates a mock {@link AsyncContext} object that runs the provided <tt>onComplete</tt> when it is completed.
+     * @param onComplete the method to run when {@link AsyncContext#complete()} is called.
+     * @return async context mock.
+     */
+    private AsyncContext asyncContext(Runnable onComplete) {
+        AsyncContext contextMock = mock(AsyncContext.class);
+        doAnswer(invocation -> {
+            onComplete.run();
+            return null;
+        }).when(contextMock).complete();
+        return contextMock;
+    }
+
+    /**
+     * Creates a mock {@link ServletConfig} object with the provided {@link SumServlet#MODE_PARAM} init parameter.
+     * @param mode the servlet mode.
+     * @return config mock.
+     */
+    private ServletConfig config(String mode) {
+        ServletConfig configMock = mock(ServletConfig.class);
+        when(configMock.getInitParameter(SumServlet.MODE_PARAM)).thenReturn(mode);
+        return configMock;
+    }
+
+    /**
+     * @param summation the {@link SumServlet#SUMMATION_PARAM} init parameter.
+     * @return a servlet in the async mode with the <tt>summation</tt> strategy.
+     */
+    private SumServlet summationServlet(String summation) throws ServletException {
+        ServletConfig configMock = config("async");
+        when(configMock.getInitParameter(SumServlet.SUMMATION_PARAM)).thenReturn(summation);
+        SumServlet servlet = new SumServlet();
+        servlet.init(configMock);
+        return servlet;
+    }
+
+    /**
+     * Sends a text batch to a new servlet with the <tt>summation</tt> strategy, then the 'end' signal.
+     * @param summation the {@link SumServlet#SUMMATION_PARAM} init parameter.
+     * @param batch     the body of the batch.
+     * @return the responses to the batch and to the 'end' signal.
+     */
+    private List<String> batchThenEnd(String summation, String batch) throws IOException, ServletException {
+        SumServlet servlet = summationServlet(summation);
+        HttpServletRequest reqMock = request(() -> batch);
+        when(reqMock.getQueryString()).thenReturn(SumServlet.BATCH_PARAM);
+        HttpServletResponse respMock = response();
+        AsyncContext contextMock = mock(AsyncContext.class);
+        when(contextMock.getResponse()).thenReturn(respMock);
+        when(reqMock.startAsync()).thenReturn(contextMock);
+        servlet.doPost(reqMock, respMock);
+
+        HttpServletResponse endRespMock = response();
+        servlet.doPost(request(() -> "end"), endRespMock);
+        return List.of(body(respMock), body(endRespMock));
+    }
+
+    /**
+     * Creates a mock {@link ServletConfig} object with a round of at most one pending add, an add timeout of 50 ms and
+     * a <tt>Retry-After</tt> of 2 seconds.
+     * @param mode the servlet mode.
+     * @return config mock.
+     */
+    private ServletConfig limitsConfig(String mode) {
+        ServletConfig configMock = config(mode);
+        when(configMock.getInitParameter(SumServlet.MAX_PENDING_ADDS_PARAM)).thenReturn("1");
+        when(configMock.getInitParameter(SumServlet.ADD_TIMEOUT_PARAM)).thenReturn("50");
+        when(configMock.getInitParameter(SumServlet.RETRY_AFTER_PARAM)).thenReturn("2");
+        return configMock;
     }
 
     /**
@@ -132,9 +943,10 @@ class SumServletTest {
                 try {
                     SumService serviceMock = mock(SumService.class);
                     if (serviceExceptionSupplier != null) {
-                        when(serviceMock.doAdd(anyDouble())).thenThrow(serviceExceptionSupplier.get());
+                        when(serviceMock.doAdd(anyDouble(), anyLong())).thenThrow(serviceExceptionSupplier.get());
                     } else {
-                        when(serviceMock.doAdd(anyDouble())).thenReturn(10.0);
+                        when(serviceMock.doAdd(anyDouble(), anyLong())).thenReturn(10.0);
+                        when(serviceMock.doAdd(any(Batch.class), anyLong())).thenReturn(10.0);
                     }
                     return serviceMock;
                 } catch (Exception e) {
@@ -145,17 +957,51 @@ class SumServletTest {
     }
 
     /**
-     * Creates a mock {@link HttpServletRequest} object that returns the string object provided by the bodySupplier
-     * param.
+     * @return the config of the node <tt>http://a</tt> of a cluster of two nodes.
+     */
+    private ServletConfig clusterConfig() {
+        ServletConfig configMock = config(null);
+        when(configMock.getInitParameter(SumServlet.CLUSTER_NODES_PARAM)).thenReturn("http://a, http://b");
+        when(configMock.getInitParameter(SumServlet.CLUSTER_SELF_PARAM)).thenReturn("http://a");
+        when(configMock.getInitParameter(SumServlet.CLUSTER_SECRET_PARAM)).thenReturn(CLUSTER_SECRET);
+        return configMock;
+    }
+
+    /**
+     * @param query  the query string of the call.
+     * @param body   the body of the call, may be null.
+     * @param secret the secret the call carries, may be null.
+     * @return the request mock of a cluster call to the session <tt>s</tt>.
+     */
+    private HttpServletRequest clusterCall(String query, String body, String secret) throws IOException {
+        HttpServletRequest reqMock = request("/s", () -> body);
+        when(reqMock.getQueryString()).thenReturn(query);
+        when(reqMock.getHeader(HttpClusterTransport.SECRET_HEADER)).thenReturn(secret);
+        return reqMock;
+    }
+
+    /**
+     * Creates a mock {@link HttpServletRequest} object whose body is the string object provided by the bodySupplier
+     * param. A null body is received as an empty stream.
      * @param bodySupplier data received as part of the request.
      * @return request mock.
      */
     private HttpServletRequest request(Supplier<String> bodySupplier) throws IOException {
-        BufferedReader brMock = mock(BufferedReader.class);
-        when(brMock.readLine()).thenReturn(bodySupplier.get());
+        return request(null, bodySupplier);
+    }
+
+    /**
+     * @param pathInfo     the path of the request after the servlet path, i.e. <tt>/{sessionId}</tt>.
+     * @param bodySupplier data received as part of the request.
+     * @return request mock.
+     */
+    private HttpServletRequest request(String pathInfo, Supplier<String> bodySupplier) throws IOException {
+        String body = bodySupplier.get();
+        byte[] bytes = body == null ? new byte[0] : body.getBytes(StandardCharsets.UTF_8);
 
         HttpServletRequest reqMock = mock(HttpServletRequest.class);
-        when(reqMock.getReader()).thenReturn(brMock);
+        when(reqMock.getInputStream()).thenReturn(new RequestStream(bytes));
+        when(reqMock.getPathInfo()).thenReturn(pathInfo);
 
         return reqMock;
     }
@@ -165,21 +1011,41 @@ class SumServletTest {
      * @return response mock.
      */
     private HttpServletResponse response() throws IOException {
-        ServletOutputStream osMock = mock(ServletOutputStream.class);
-        doNothing().when(osMock).println(anyString());
         HttpServletResponse respMock = mock(HttpServletResponse.class);
-        when(respMock.getOutputStream()).thenReturn(osMock);
+        when(respMock.getOutputStream()).thenReturn(new ResponseStream());
         return respMock;
     }
 
+    /**
+     * @param respMock the response mock created by {@link #response()}.
+     * @return the body written to the response.
+     */
+    private String body(HttpServletResponse respMock) throws IOException {
+        return ((ResponseStream) respMock.getOutputStream()).body.toString(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Waits until the body written to the response contains the <tt>expected</tt> string.
+     * @param respMock the response mock created by {@link #response()}.
+     * @param expected the expected part of the body.
+     */
+    private void awaitBody(HttpServletResponse respMock, String expected) throws Exception {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!body(respMock).contains(expected)) {
+            assertTrue(System.nanoTime() < deadline, "body=" + body(respMock));
+            Thread.sleep(5);
+        }
+    }
+
     /**
      * Verifies the response mock method calls in case of success scenario.
-     * @param respMock response mock to verify.
+     * @param respMock     response mock to verify.
+     * @param expectedBody the expected result in the response body.
      */
-    private void verifySuccessResponse(HttpServletResponse respMock) throws IOException {
+    private void verifySuccessResponse(HttpServletResponse respMock, String expectedBody) throws IOException {
         verify(respMock).setStatus(200);
         verify(respMock).setContentType(anyString());
-        verify(respMock.getOutputStream()).println(anyString());
+        assertEquals(expectedBody + "\r\n", body(respMock));
     }
 
     private void verifySendErrorCalled(HttpServletResponse respMock) throws IOException {
@@ -200,4 +1066,57 @@ class SumServletTest {
         verify(respMock).sendError(eq(status), eq(msg));
     }
 
-}
\ No newline at end of file
+    /**
+     * A request body stream over the provided bytes.
+     */
+    private static final class RequestStream extends ServletInputStream {
+        private final ByteArrayInputStream body;
+
+        RequestStream(byte[] bytes) {
+            this.body = new ByteArrayInputStream(bytes);
+        }
+
+        @Override
+        public boolean isFinished() {
+            return body.available() == 0;
+        }
+
+        @Override
+        public boolean isReady() {
+            return true;
+        }
+
+        @Override
+        public void setReadListener(ReadListener readListener) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int read() {
+            return body.read();
+        }
+    }
+
+    /**
+     * A response body stream that collects the written bytes.
+     */
+    private static final class ResponseStream extends ServletOutputStream {
+        private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+        @Override
+        public boolean isReady() {
+            return true;
+        }
+
+        @Override
+        public void setWriteListener(WriteListener writeListener) {
+            // always ready, the listener is never called.
+        }
+
+        @Override
+        public synchronized void write(int b) {
+            body.write(b);
+        }
+    }
+
+}
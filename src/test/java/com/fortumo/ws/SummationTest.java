@@ -0,0 +1,189 @@
+package com.fortumo.ws;
+
+import org.junit.jupiter.api.Test;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SummationTest {
+
+    /**
+     * Tests that the compensated and the exact summations do not lose the small numbers added to a large one, unlike
+     * the plain double summation.
+     */
+    @Test
+    void whenMixedMagnitudesThenCompensatedAndExactKeepPrecision() {
+        double[] numbers = {1e16, 1, 1, 1, 1, -1e16};
+        assertEquals(0, sum(Summation.DOUBLE, numbers));
+        assertEquals(4, sum(Summation.COMPENSATED, numbers));
+        assertEquals(4, sum(Summation.EXACT, numbers));
+        assertEquals(4, sum(Summation.FIXED_POINT, numbers));
+    }
+
+    /**
+     * Tests that the exact summation results in the exact sum rounded to the nearest double, regardless of the order
+     * of the numbers, and the compensated summation is not further than a few ulps from it.
+     */
+    @Test
+    void whenShuffledThenExactSumIsOrderIndependent() {
+        Random random = new Random(42);
+        List<Double> numbers = new ArrayList<>();
+        BigDecimal exact = BigDecimal.ZERO;
+        for (int i = 0; i < 10_000; i++) {
+            double number = (random.nextDouble() - 0.5) * Math.pow(10, random.nextInt(30) - 10);
+            numbers.add(number);
+            exact = exact.add(new BigDecimal(number));
+        }
+        double expected = exact.doubleValue();
+        for (int i = 0; i < 10; i++) {
+            Collections.shuffle(numbers, random);
+            double[] shuffled = numbers.stream().mapToDouble(Double::doubleValue).toArray();
+            assertEquals(expected, sum(Summation.EXACT, shuffled));
+            assertEquals(expected, sum(Summation.COMPENSATED, shuffled), 4 * Math.ulp(expected));
+        }
+    }
+
+    /**
+     * Tests that the infinities and NaN propagate to the result of the exact summation as with the plain double.
+     */
+    @Test
+    void whenNotFiniteThenExactPropagates() {
+        assertEquals(Double.POSITIVE_INFINITY, sum(Summation.EXACT, 1, Double.POSITIVE_INFINITY));
+        assertTrue(Double.isNaN(sum(Summation.EXACT, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY)));
+        assertTrue(Double.isNaN(sum(Summation.EXACT, 1, Double.NaN)));
+    }
+
+    /**
+     * Tests that the fixed point summation rejects the numbers that are not integers or out of range, and leaves the
+     * sum as it is.
+     */
+    @Test
+    void whenNotIntegerThenFixedPointRejects() {
+        Round round = Summation.FIXED_POINT.newRound();
+        assertTrue(round.tryAdd(Long.MAX_VALUE - 1024));
+        assertThrows(IllegalArgumentException.class, () -> round.tryAdd(1.5));
+        assertThrows(IllegalArgumentException.class, () -> round.tryAdd(Double.NaN));
+        assertThrows(IllegalArgumentException.class, () -> round.tryAdd(Double.POSITIVE_INFINITY));
+        assertThrows(IllegalArgumentException.class, () -> round.tryAdd(0x1p63));
+        assertThrows(IllegalArgumentException.class, () -> round.tryAdd(4096));
+        assertTrue(round.tryAdd(-1));
+        assertEquals((double) (Long.MAX_VALUE - 1025), round.seal());
+    }
+
+    /**
+     * Tests that a withdrawn number is not counted by any strategy, and that a number cannot be withdrawn from a sealed
+     * round or if it is not finite.
+     */
+    @Test
+    void whenWithdrawnThenNotCounted() {
+        for (Summation summation : Summation.values()) {
+            Round round = summation.newRound();
+            assertTrue(round.tryAdd(3));
+            assertTrue(round.tryAdd(1L << 40));
+            assertTrue(round.tryWithdraw(1L << 40));
+            assertEquals(1, round.count(), summation.name());
+            assertFalse(round.tryWithdraw(Double.POSITIVE_INFINITY), summation.name());
+            assertEquals(3, round.seal(), summation.name());
+            assertFalse(round.tryWithdraw(3), summation.name());
+            assertEquals(3, round.total(), summation.name());
+        }
+    }
+
+    /**
+     * Tests that every strategy is correct under the concurrent adders, the cells of the round must merge to the exact
+     * sum of the integers added.
+     */
+    @Test
+    void whenConcurrentAddsThenEveryStrategyExact() throws Exception {
+        int threadCount = 8;
+        int addsPerThread = 10_000;
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+        for (Summation summation : Summation.values()) {
+            SumService service = new SumService(summation);
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < threadCount; i++) {
+                futures.add(executor.submit(() -> {
+                    start.await();
+                    for (int j = 1; j <= addsPerThread; j++) {
+                        service.add(j);
+                    }
+                    return null;
+                }));
+            }
+            start.countDown();
+            for (Future<?> future : futures) {
+                future.get();
+            }
+            double expected = threadCount * (addsPerThread * (addsPerThread + 1.0) / 2);
+            assertEquals(expected, service.doEnd(), summation.name());
+        }
+        executor.shutdown();
+    }
+
+    /**
+     * Tests that the statistics of the cells of a round are merged into the exact aggregates of all the numbers added
+     * by the concurrent adders with every strategy, and a withdrawn number is not counted.
+     */
+    @Test
+    void whenConcurrentAddsWithStatsThenAllCellsAggregated() throws Exception {
+        int threadCount = 8;
+        int addsPerThread = 10_000;
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+        for (Summation summation : Summation.values()) {
+            Round round = summation.newRound();
+            round.collectStats(RoundStats.Level.QUANTILES);
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < threadCount; i++) {
+                futures.add(executor.submit(() -> {
+                    start.await();
+                    for (int j = 1; j <= addsPerThread; j++) {
+                        assertTrue(round.tryAdd(j));
+                    }
+                    return null;
+                }));
+            }
+            start.countDown();
+            for (Future<?> future : futures) {
+                future.get();
+            }
+            assertTrue(round.tryAdd(1e6));
+            assertTrue(round.tryWithdraw(1e6));
+            double sum = round.seal();
+            RoundStats stats = round.stats();
+            assertEquals(sum, stats.sum(), summation.name());
+            assertEquals(threadCount * addsPerThread, stats.count(), summation.name());
+            assertEquals(1, stats.min(), summation.name());
+            assertEquals((addsPerThread + 1) / 2.0, stats.mean(), 1e-9, summation.name());
+            assertEquals((addsPerThread * (double) addsPerThread - 1) / 12, stats.variance(), 1e-3, summation.name());
+            assertEquals(addsPerThread / 2.0, stats.quantiles(0.5)[0], addsPerThread / 100.0, summation.name());
+        }
+        executor.shutdown();
+    }
+
+    /**
+     * @param summation the strategy to sum up with.
+     * @param numbers   the numbers to add in order.
+     * @return the sum of a round that the <tt>numbers</tt> are added to.
+     */
+    private double sum(Summation summation, double... numbers) {
+        Round round = summation.newRound();
+        for (double number : numbers) {
+            assertTrue(round.tryAdd(number));
+        }
+        return round.seal();
+    }
+}